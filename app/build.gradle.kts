@@ -31,6 +31,23 @@ android {
     }
     buildFeatures {
         viewBinding = true
+        // BuildConfig.DEBUG прячет отладочные пункты меню в релизе
+        buildConfig = true
+    }
+    testOptions {
+        unitTests {
+            isReturnDefaultValues = true
+            all {
+                // Размеры нагрузочного прогона: -Ploadtest.users=1000,10000,100000
+                it.systemProperty("loadtest.users", project.findProperty("loadtest.users") ?: "1000")
+                // Офлайн-оценка матчера: -Peval.templates=..., -Peval.output=..., см. MatcherEvaluationTest
+                for (key in listOf("eval.templates", "eval.identities", "eval.captures", "eval.far",
+                        "eval.output", "eval.curves")) {
+                    project.findProperty(key)?.let { value -> it.systemProperty(key, value) }
+                }
+                it.maxHeapSize = "2g"
+            }
+        }
     }
 }
 
@@ -51,6 +68,10 @@ dependencies {
     implementation("androidx.camera:camera-view:1.3.1")
     
     testImplementation("junit:junit:4.13.2")
+    testImplementation("org.robolectric:robolectric:4.11.1")
+    testImplementation("androidx.test:core:1.5.0")
     androidTestImplementation("androidx.test.ext:junit:1.1.5")
+    // GrantPermissionRule для замера старта камеры
+    androidTestImplementation("androidx.test:rules:1.5.0")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.5.1")
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package com.example.registerface;
+
+import android.Manifest;
+import android.util.Log;
+import android.view.ViewGroup;
+
+import androidx.camera.view.PreviewView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.rule.GrantPermissionRule;
+
+import com.example.registerface.face.ScanController;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Замер старта сканирования на устройстве: время от
+ * {@link ScanController#setAnalyzer} до первого кадра в анализаторе. Первый
+ * старт холодный (привязка камеры), следующие {@link #WARM_STARTS} — теплые,
+ * между ними анализатор снимается. Итог пишется в logcat с тегом
+ * {@value #TAG}: {@code ./gradlew connectedAndroidTest} и
+ * {@code adb logcat -s ScanStartLatency}. Холодный старт в одном процессе
+ * измеряется один раз, поэтому для нескольких замеров тест запускают
+ * несколько раз.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScanStartLatencyTest {
+    private static final String TAG = "ScanStartLatency";
+    private static final int WARM_STARTS = 20;
+    private static final long PAUSE_MS = 300;
+    private static final long TIMEOUT_S = 10;
+
+    @Rule
+    public GrantPermissionRule cameraPermission = GrantPermissionRule.grant(Manifest.permission.CAMERA);
+
+    @Test
+    public void measuresColdAndWarmStart() throws InterruptedException {
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            ScanController[] controller = new ScanController[1];
+            scenario.onActivity(activity -> {
+                PreviewView previewView = new PreviewView(activity);
+                activity.addContentView(previewView, new ViewGroup.LayoutParams(
+                        ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+                controller[0] = new ScanController(activity, activity, previewView);
+            });
+
+            long cold = startOnce(scenario, controller[0]);
+            long[] warm = new long[WARM_STARTS];
+            for (int i = 0; i < WARM_STARTS; i++) {
+                Thread.sleep(PAUSE_MS);
+                warm[i] = startOnce(scenario, controller[0]);
+            }
+            scenario.onActivity(activity -> controller[0].release());
+
+            Arrays.sort(warm);
+            String report = String.format(Locale.US,
+                    "cold %.1f ms; warm p50 %.1f ms, max %.1f ms over %d starts",
+                    cold / 1e6, warm[WARM_STARTS / 2] / 1e6, warm[WARM_STARTS - 1] / 1e6, WARM_STARTS);
+            Log.i(TAG, report);
+            System.out.println("Scan start: " + report);
+        }
+    }
+
+    // Время от запроса до первого кадра; анализатор после этого снимается
+    private static long startOnce(ActivityScenario<MainActivity> scenario, ScanController controller)
+            throws InterruptedException {
+        CountDownLatch firstFrame = new CountDownLatch(1);
+        long[] frameNanos = new long[1];
+        long[] requestedNanos = new long[1];
+        scenario.onActivity(activity -> {
+            requestedNanos[0] = System.nanoTime();
+            controller.setAnalyzer(image -> {
+                if (firstFrame.getCount() > 0) {
+                    frameNanos[0] = System.nanoTime();
+                    firstFrame.countDown();
+                }
+                image.close();
+            });
+        });
+        assertTrue("no frame within " + TIMEOUT_S + " s", firstFrame.await(TIMEOUT_S, TimeUnit.SECONDS));
+        scenario.onActivity(activity -> controller.clearAnalyzer());
+        return frameNanos[0] - requestedNanos[0];
+    }
+}
@@ -22,30 +22,55 @@ import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
+import androidx.fragment.app.FragmentActivity;
 import androidx.navigation.fragment.NavHostFragment;
 
 import com.example.registerface.databinding.FragmentLoginBinding;
 import com.example.registerface.db.DatabaseHelper;
+import com.example.registerface.db.UserDirectory;
+import com.example.registerface.db.LoginAuditLog;
+import com.example.registerface.db.SessionStore;
 import com.example.registerface.face.CameraHelper;
+import com.example.registerface.face.DetectedFace;
 import com.example.registerface.face.FaceDetectorHelper;
+import com.example.registerface.face.FaceEventPublisher;
+import com.example.registerface.face.FaceFrame;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.FaceStream;
+import com.example.registerface.face.FrameIdentifier;
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.face.ScanController;
+import com.example.registerface.face.TrackingCache;
 import com.example.registerface.models.User;
-import com.example.registerface.utils.FaceImageUtils;
-import com.google.mlkit.vision.face.Face;
+import com.example.registerface.utils.FaceImageStore;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class LoginFragment extends Fragment implements FaceDetectorHelper.FaceDetectorListener {
+public class LoginFragment extends Fragment {
     private static final String TAG = "LoginFragment";
     private static final int REQUEST_CAMERA_PERMISSION = 100;
+    private static final long SCAN_TIMEOUT_SECONDS = 30;
     private FragmentLoginBinding binding;
+    private UserDirectory userDirectory;
     private DatabaseHelper dbHelper;
+    private LoginAuditLog auditLog;
+    private MatchClient matchClient;
     private EditText userIdInput;
     private Button loginButton;
     private Button scanFaceButton;
     private Button registerButton;
     private PreviewView previewView;
-    private String capturedFaceData;
+    private volatile String capturedFaceData;
+    private volatile Integer capturedTrackingId;
+    private ScanController scanController;
     private CameraHelper cameraHelper;
+    private FaceEventPublisher faceEvents;
+    private FaceStream.Subscription scanSubscription;
+    // ID, введенный на момент начала сканирования: поток кадров не читает EditText
+    private volatile String scanUserId;
+    private final TrackingCache trackingCache = new TrackingCache();
     private boolean isScanning = false;
 
     @Override
@@ -57,13 +82,17 @@ public class LoginFragment extends Fragment implements FaceDetectorHelper.FaceDe
     public void onViewCreated(@NonNull View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        dbHelper = new DatabaseHelper(getContext());
+        userDirectory = UserDirectory.getInstance(requireContext());
+        dbHelper = userDirectory.getDatabaseHelper();
+        auditLog = LoginAuditLog.getInstance(requireContext());
+        matchClient = userDirectory.getMatchClient();
 
         userIdInput = binding.userIdInput;
         loginButton = binding.loginButton;
         scanFaceButton = binding.scanFaceButton;
         registerButton = binding.registerButton;
         previewView = binding.previewView;
+        scanController = new ScanController(requireContext(), getViewLifecycleOwner(), previewView);
 
         registerButton.setOnClickListener(v -> {
             NavHostFragment.findNavController(LoginFragment.this)
@@ -90,34 +119,49 @@ public class LoginFragment extends Fragment implements FaceDetectorHelper.FaceDe
                 return;
             }
 
-            User user = dbHelper.getUser(userId);
-            if (user != null) {
-                Log.d(TAG, "Stored face data: " + user.getFaceData());
-                Log.d(TAG, "Captured face data: " + capturedFaceData);
-
-                FaceDetectorHelper.FaceComparisonResult result = FaceDetectorHelper.compareFaces(user.getFaceData(),
-                        capturedFaceData);
-                String similarityMessage = String.format("Face similarity: %.1f%%", result.similarityPercentage);
-                Log.d(TAG, "Face similarity percentage: " + result.similarityPercentage);
-
-                if (result.matches) {
-                    Toast.makeText(getContext(), "Login successful! " + similarityMessage, Toast.LENGTH_LONG).show();
-                    // Pass user data to profile fragment
-                    Bundle bundle = new Bundle();
-                    bundle.putString("userId", user.getUserId());
-                    bundle.putString("name", user.getName());
-                    bundle.putString("email", user.getEmail());
-                    bundle.putFloat("faceSimilarity", result.similarityPercentage);
-                    Log.d(TAG, "Passing face similarity to profile: " + result.similarityPercentage);
-
-                    NavHostFragment.findNavController(LoginFragment.this)
-                            .navigate(R.id.action_login_to_profile, bundle);
+            long attemptStart = System.nanoTime();
+            // Сравниваем со снимком на момент нажатия, даже если сканирование продолжается
+            String faceData = capturedFaceData;
+            Integer trackingId = capturedTrackingId;
+            userDirectory.getUser(userId, user -> {
+                if (binding == null) {
+                    return;
+                }
+                if (user != null) {
+                    Log.d(TAG, "Stored face data: " + user.getFaceData());
+                    Log.d(TAG, "Captured face data: " + faceData);
+
+                    // Для того же трека решение по этому пользователю уже принято
+                    FaceDetectorHelper.FaceComparisonResult result = trackingId != null
+                            ? trackingCache.getDecision(trackingId, userId) : null;
+                    if (result == null) {
+                        result = FaceDetectorHelper.compareFaces(user.getFaceData(), faceData);
+                        if (trackingId != null) {
+                            trackingCache.putDecision(trackingId, userId, result);
+                        }
+                    }
+                    String similarityMessage = String.format("Face similarity: %.1f%%", result.similarityPercentage);
+                    Log.d(TAG, "Face similarity percentage: " + result.similarityPercentage);
+                    auditLog.log(userId, result.similarityPercentage,
+                            result.matches ? LoginAuditLog.Decision.ACCEPTED : LoginAuditLog.Decision.REJECTED,
+                            System.nanoTime() - attemptStart);
+
+                    if (result.matches) {
+                        Toast.makeText(getContext(), "Login successful! " + similarityMessage, Toast.LENGTH_LONG).show();
+                        // Профиль берет данные из сессии, а не из аргументов
+                        SessionStore.getInstance(requireContext()).login(user, result.similarityPercentage);
+                        Log.d(TAG, "Passing face similarity to profile: " + result.similarityPercentage);
+
+                        NavHostFragment.findNavController(LoginFragment.this)
+                                .navigate(R.id.action_login_to_profile);
+                    } else {
+                        Toast.makeText(getContext(), "Face does not match! " + similarityMessage, Toast.LENGTH_LONG).show();
+                    }
                 } else {
-                    Toast.makeText(getContext(), "Face does not match! " + similarityMessage, Toast.LENGTH_LONG).show();
+                    auditLog.log(userId, 0f, LoginAuditLog.Decision.UNKNOWN_USER, System.nanoTime() - attemptStart);
+                    Toast.makeText(getContext(), "User not found!", Toast.LENGTH_SHORT).show();
                 }
-            } else {
-                Toast.makeText(getContext(), "User not found!", Toast.LENGTH_SHORT).show();
-            }
+            });
         });
     }
 
@@ -134,11 +178,20 @@ public class LoginFragment extends Fragment implements FaceDetectorHelper.FaceDe
 
     private void startFaceScanning() {
         isScanning = true;
+        scanUserId = userIdInput.getText().toString().trim();
         scanFaceButton.setText("Stop Scanning");
         previewView.setVisibility(View.VISIBLE);
 
-        cameraHelper = new CameraHelper(requireContext(), previewView, this);
-        cameraHelper.startCamera(getViewLifecycleOwner());
+        // Новый детектор заново нумерует треки, старые записи кэша к ним не относятся
+        trackingCache.clear();
+        faceEvents = new FaceEventPublisher();
+        // Кадры запрашиваются по одному: пока идет обработка, детектор только заменяет ожидающий кадр
+        scanSubscription = FaceStream.from(faceEvents)
+                .filter(frame -> !frame.isEmpty())
+                .timeout(SCAN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .subscribe(this::onFaceFrame, this::onScanError);
+        cameraHelper = new CameraHelper(scanController, faceEvents);
+        cameraHelper.start();
     }
 
     private void stopFaceScanning() {
@@ -146,47 +199,130 @@ public class LoginFragment extends Fragment implements FaceDetectorHelper.FaceDe
         scanFaceButton.setText("Scan Face");
         previewView.setVisibility(View.GONE);
 
+        stopFaceEvents();
+        Log.d(TAG, "Tracking cache: " + trackingCache.getFramesFromCache() + " frames from cache, "
+                + trackingCache.getFramesEvaluated() + " evaluated");
+    }
+
+    private void stopFaceEvents() {
+        if (scanSubscription != null) {
+            scanSubscription.cancel();
+            scanSubscription = null;
+        }
         if (cameraHelper != null) {
-            cameraHelper.shutdown();
+            cameraHelper.stop();
+        }
+        if (faceEvents != null) {
+            Log.d(TAG, "Frames dropped while busy: " + faceEvents.getFramesDropped());
+            faceEvents.close();
+            faceEvents = null;
         }
     }
 
-    @Override
-    public void onFaceDetected(List<Face> faces) {
-        if (faces.size() > 0) {
-            Face face = faces.get(0);
-            capturedFaceData = FaceDetectorHelper.getFaceData(face);
+    // Вызывается в потоке FaceEventPublisher, только для кадров с лицом
+    private void onFaceFrame(FaceFrame frame) {
+        DetectedFace face = frame.getPrimaryFace();
+        String faceData = null;
+        if (frame.getFaces().size() > 1) {
+            FrameIdentifier.Identification own = identifyOwnFace(frame);
+            if (own != null) {
+                face = own.face;
+                faceData = own.faceData;
+            }
+        }
+        trackingCache.retainTracked(frame.getFaces());
+        TrackingCache.Entry cached = trackingCache.get(face);
+        if (cached != null) {
+            // Лицо все еще в треке и поза почти не изменилась: шаблон уже есть
+            capturedFaceData = cached.faceData;
+            capturedTrackingId = cached.trackingId;
+            Log.d(TAG, "Face served from tracking cache: " + cached.trackingId);
+        } else {
+            capturedFaceData = faceData != null ? faceData : FaceDetectorHelper.getFaceData(face);
+            TrackingCache.Entry entry = trackingCache.put(face, capturedFaceData,
+                    FaceDetectorHelper.estimateQuality(face));
+            capturedTrackingId = entry != null ? entry.trackingId : null;
             Log.d(TAG, "Face captured: " + capturedFaceData);
+        }
+        boolean newCapture = cached == null;
 
-            // Сохраняем фото лица
-            Bitmap faceBitmap = previewView.getBitmap();
-            String userId = userIdInput.getText().toString().trim();
-            if (faceBitmap != null && !userId.isEmpty()) {
-                FaceImageUtils.saveFaceImage(getContext(), faceBitmap, "face_login_" + userId + ".jpg");
+        runOnUiThread(() -> {
+            if (!isScanning) {
+                return; // кадр пришел уже после остановки сканирования
+            }
+            if (newCapture) {
+                saveFaceSnapshot();
             }
+            Toast.makeText(getContext(), "Face captured successfully!", Toast.LENGTH_SHORT).show();
+            stopFaceScanning();
+        });
+    }
 
-            requireActivity().runOnUiThread(() -> {
-                Toast.makeText(getContext(), "Face captured successfully!", Toast.LENGTH_SHORT).show();
-                stopFaceScanning();
-            });
+    /**
+     * Several people are in view: identifies all of them in one gallery pass
+     * and returns the face recognized as the entered user, or {@code null}
+     * to fall back to the first face.
+     */
+    private FrameIdentifier.Identification identifyOwnFace(FaceFrame frame) {
+        FrameIdentifier identifier = new FrameIdentifier(matchClient, FaceMatcher.getThresholdPercentage());
+        List<FrameIdentifier.Identification> identifications;
+        try {
+            identifications = identifier.identify(frame);
+        } catch (InterruptedException e) {
+            // Галерея не загрузилась: никого не опознали, лицо проверится обычным сравнением
+            Thread.currentThread().interrupt();
+            return null;
         }
+        FrameIdentifier.Identification own = null;
+        for (FrameIdentifier.Identification identification : identifications) {
+            Log.d(TAG, "Track " + identification.trackingId + ": "
+                    + (identification.match != null ? identification.match.userId : "unknown"));
+            if (own == null && identification.match != null && identification.match.userId.equals(scanUserId)) {
+                own = identification;
+            }
+        }
+        return own;
     }
 
-    @Override
-    public void onFaceDetectionError(Exception e) {
-        Log.e(TAG, "Face detection error", e);
-        requireActivity().runOnUiThread(() -> {
-            Toast.makeText(getContext(), "Face detection error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    private void onScanError(Throwable e) {
+        String message = e instanceof TimeoutException ? "No face found, please try again"
+                : "Face detection error: " + e.getMessage();
+        Log.e(TAG, "Face scanning stopped", e);
+        runOnUiThread(() -> {
+            if (!isScanning) {
+                return;
+            }
+            Toast.makeText(getContext(), message, Toast.LENGTH_SHORT).show();
             stopFaceScanning();
         });
     }
 
+    // Снимок берем с PreviewView, поэтому только на главном потоке
+    private void saveFaceSnapshot() {
+        Bitmap faceBitmap = previewView.getBitmap();
+        String userId = userIdInput.getText().toString().trim();
+        if (faceBitmap != null && !userId.isEmpty()) {
+            FaceImageStore.getInstance(requireContext()).save(FaceImageStore.Kind.LOGIN, userId, faceBitmap);
+        }
+    }
+
+    // Результаты детектора приходят в фоновом потоке; после onDestroyView их игнорируем
+    private void runOnUiThread(Runnable action) {
+        FragmentActivity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(() -> {
+                if (binding != null) {
+                    action.run();
+                }
+            });
+        }
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (cameraHelper != null) {
-            cameraHelper.shutdown();
-        }
+        stopFaceEvents();
+        scanController.release();
         binding = null;
     }
 }
\ No newline at end of file
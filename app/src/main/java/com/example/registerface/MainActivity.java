@@ -1,6 +1,8 @@
 package com.example.registerface;
 
+import android.app.AlertDialog;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.google.android.material.snackbar.Snackbar;
 
@@ -15,11 +17,20 @@ import androidx.navigation.ui.AppBarConfiguration;
 import androidx.navigation.ui.NavigationUI;
 
 import com.example.registerface.databinding.ActivityMainBinding;
+import com.example.registerface.face.ArtGcStats;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.FrameMonitor;
+import com.example.registerface.face.MatcherConfig;
 
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
 
     private AppBarConfiguration appBarConfiguration;
     private ActivityMainBinding binding;
@@ -27,6 +38,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        loadMatcherConfig();
+        FrameMonitor.getInstance().setGcStats(new ArtGcStats());
 
         binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
@@ -47,10 +60,23 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    // Пороги и веса, подобранные офлайн-оценкой; без файла в assets остаются значения по умолчанию
+    private void loadMatcherConfig() {
+        try (InputStream in = getAssets().open(MatcherConfig.ASSET_NAME)) {
+            FaceMatcher.setConfig(MatcherConfig.load(in));
+            Log.d(TAG, "Matcher config loaded: " + FaceMatcher.getConfig());
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No matcher config, using defaults");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load matcher config, using defaults", e);
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_frame_stats).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -65,10 +91,25 @@ public class MainActivity extends AppCompatActivity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if (id == R.id.action_frame_stats) {
+            showFrameStats();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
+    // Сводка по потерянным кадрам за последнее окно, для настройки на реальных устройствах
+    private void showFrameStats() {
+        FrameMonitor.Summary summary = FrameMonitor.getInstance().summary();
+        Log.d(TAG, "Frame stats: " + summary);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_frame_stats)
+                .setMessage(summary.toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
     @Override
     public boolean onSupportNavigateUp() {
         NavController navController = Navigation.findNavController(this, R.id.nav_host_fragment_content_main);
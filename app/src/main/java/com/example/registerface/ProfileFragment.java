@@ -1,11 +1,6 @@
 package com.example.registerface;
 
 import android.app.AlertDialog;
-import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -21,27 +16,24 @@ import androidx.fragment.app.Fragment;
 import androidx.navigation.fragment.NavHostFragment;
 
 import com.example.registerface.databinding.FragmentProfileBinding;
+import com.example.registerface.models.Session;
 import com.example.registerface.models.User;
-import com.example.registerface.db.DatabaseHelper;
+import com.example.registerface.db.SessionStore;
+import com.example.registerface.db.UserDirectory;
+import com.example.registerface.utils.FaceImageStore;
 
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 import java.util.Map;
 import java.util.HashMap;
-import java.io.File;
-import java.io.FileOutputStream;
 
-public class ProfileFragment extends Fragment {
+public class ProfileFragment extends Fragment implements SessionStore.Listener {
     private FragmentProfileBinding binding;
-    private SharedPreferences sharedPreferences;
+    private SessionStore sessionStore;
     private SimpleDateFormat dateFormat;
-    private DatabaseHelper dbHelper;
+    private UserDirectory userDirectory;
     private static final String TAG = "ProfileFragment";
-    private static final String PREF_NAME = "UserPrefs";
-    private static final String KEY_NAME = "name";
-    private static final String KEY_EMAIL = "email";
-    private static final String KEY_REG_DATE = "registration_date";
-    private static final String KEY_LAST_LOGIN = "last_login";
+    private String shownImagesUserId;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -53,54 +45,43 @@ public class ProfileFragment extends Fragment {
     public void onViewCreated(@NonNull View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
         
-        sharedPreferences = requireContext().getSharedPreferences(PREF_NAME, 0);
+        sessionStore = SessionStore.getInstance(requireContext());
         dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.getDefault());
-        dbHelper = new DatabaseHelper(getContext());
-
-        // Получаем данные из Bundle
-        Bundle args = getArguments();
-        String userId = null;
-        if (args != null) {
-            String name = args.getString("name");
-            String email = args.getString("email");
-            float faceSimilarity = args.getFloat("faceSimilarity", 0f);
-            userId = args.getString("userId");
-            
-            // Сохраняем данные в SharedPreferences
-            SharedPreferences.Editor editor = sharedPreferences.edit();
-            editor.putString(KEY_NAME, name);
-            editor.putString(KEY_EMAIL, email);
-            editor.putLong(KEY_LAST_LOGIN, System.currentTimeMillis());
-            editor.putFloat("face_similarity", faceSimilarity);
-            editor.putString("user_id", userId);
-            // Если это первая регистрация, сохраняем дату регистрации
-            if (!sharedPreferences.contains(KEY_REG_DATE)) {
-                editor.putLong(KEY_REG_DATE, System.currentTimeMillis());
-            }
-            editor.apply();
+        userDirectory = UserDirectory.getInstance(requireContext());
 
-            // Загружаем и отображаем данные о лице
-            if (userId != null) {
-                User user = dbHelper.getUser(userId);
-                if (user != null) {
-                    displayFaceData(user.getFaceData(), faceSimilarity);
-                }
-            }
-        } else {
-            userId = sharedPreferences.getString("user_id", null);
+        setupViews();
+        // Данные берем из снимка сессии; если она еще восстанавливается, придет через слушателя
+        sessionStore.addListener(this);
+        onSessionChanged(sessionStore.get());
+        setupClickListeners();
+    }
+
+    @Override
+    public void onSessionChanged(Session session) {
+        if (binding == null || session == null) {
+            return;
         }
+        loadUserData(session);
+        displayFaceData(session.getFaceData(), session.getFaceSimilarity());
 
         // Загружаем и отображаем фото лица
-        if (userId != null) {
-            Bitmap regFace = loadFaceImage("face_reg_" + userId + ".jpg");
-            Bitmap loginFace = loadFaceImage("face_login_" + userId + ".jpg");
-            if (regFace != null) binding.ivRegisteredFace.setImageBitmap(regFace);
-            if (loginFace != null) binding.ivLoginFace.setImageBitmap(loginFace);
+        if (!session.getUserId().equals(shownImagesUserId)) {
+            String userId = session.getUserId();
+            shownImagesUserId = userId;
+            FaceImageStore imageStore = FaceImageStore.getInstance(requireContext());
+            // Снимки читаются с диска в фоне, экран обновляется, когда они готовы
+            imageStore.load(FaceImageStore.Kind.REGISTRATION, userId, bitmap -> {
+                if (isShowingImagesOf(userId) && bitmap != null) binding.ivRegisteredFace.setImageBitmap(bitmap);
+            });
+            imageStore.load(FaceImageStore.Kind.LOGIN, userId, bitmap -> {
+                if (isShowingImagesOf(userId) && bitmap != null) binding.ivLoginFace.setImageBitmap(bitmap);
+            });
         }
+    }
 
-        setupViews();
-        loadUserData();
-        setupClickListeners();
+    // Экран могли закрыть или сменить пользователя, пока снимок читался
+    private boolean isShowingImagesOf(String userId) {
+        return binding != null && userId.equals(shownImagesUserId);
     }
 
     private void setupViews() {
@@ -109,18 +90,18 @@ public class ProfileFragment extends Fragment {
         binding.btnShowUsers.setVisibility(View.VISIBLE); // Показываем кнопку просмотра пользователей
     }
 
-    private void loadUserData() {
-        String name = sharedPreferences.getString(KEY_NAME, "");
-        String email = sharedPreferences.getString(KEY_EMAIL, "");
-        long regDate = sharedPreferences.getLong(KEY_REG_DATE, System.currentTimeMillis());
-        long lastLogin = sharedPreferences.getLong(KEY_LAST_LOGIN, System.currentTimeMillis());
+    private void loadUserData(Session session) {
+        Log.d(TAG, "Loading user data - Name: " + session.getName() + ", Email: " + session.getEmail());
 
-        Log.d(TAG, "Loading user data - Name: " + name + ", Email: " + email);
+        binding.nameText.setText("Имя: " + session.getName());
+        binding.emailText.setText("Email: " + session.getEmail());
+        binding.registrationDateText.setText("Дата регистрации: " + formatDate(session.getRegisteredAt()));
+        binding.lastLoginText.setText("Последний вход: " + formatDate(session.getLastLoginAt()));
+    }
 
-        binding.nameText.setText("Имя: " + name);
-        binding.emailText.setText("Email: " + email);
-        binding.registrationDateText.setText("Дата регистрации: " + dateFormat.format(regDate));
-        binding.lastLoginText.setText("Последний вход: " + dateFormat.format(lastLogin));
+    private String formatDate(long millis) {
+        // 0 у пользователей, зарегистрированных до появления этих полей
+        return millis > 0 ? dateFormat.format(millis) : "—";
     }
 
     private void setupClickListeners() {
@@ -130,29 +111,24 @@ public class ProfileFragment extends Fragment {
     }
 
     private void showAllUsers() {
-        StringBuilder usersList = new StringBuilder();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor cursor = db.query("users", null, null, null, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                String userId = cursor.getString(cursor.getColumnIndexOrThrow("user_id"));
-                String name = cursor.getString(cursor.getColumnIndexOrThrow("name"));
-                String email = cursor.getString(cursor.getColumnIndexOrThrow("email"));
-                
-                usersList.append("ID: ").append(userId)
-                        .append("\nИмя: ").append(name)
-                        .append("\nEmail: ").append(email)
+        userDirectory.listUsers(users -> {
+            if (binding == null) {
+                return;
+            }
+            StringBuilder usersList = new StringBuilder();
+            for (User user : users) {
+                usersList.append("ID: ").append(user.getUserId())
+                        .append("\nИмя: ").append(user.getName())
+                        .append("\nEmail: ").append(user.getEmail())
                         .append("\n\n");
-            } while (cursor.moveToNext());
-            cursor.close();
-        }
+            }
 
-        new AlertDialog.Builder(requireContext())
-                .setTitle("Список пользователей")
-                .setMessage(usersList.length() > 0 ? usersList.toString() : "Нет зарегистрированных пользователей")
-                .setPositiveButton("OK", null)
-                .show();
+            new AlertDialog.Builder(requireContext())
+                    .setTitle("Список пользователей")
+                    .setMessage(usersList.length() > 0 ? usersList.toString() : "Нет зарегистрированных пользователей")
+                    .setPositiveButton("OK", null)
+                    .show();
+        });
     }
 
     private void showEditProfileDialog() {
@@ -189,27 +165,14 @@ public class ProfileFragment extends Fragment {
 
     private void updateProfile(String name, String email) {
         Log.d(TAG, "Updating profile - Name: " + name + ", Email: " + email);
-        
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString(KEY_NAME, name);
-        editor.putString(KEY_EMAIL, email);
-        boolean success = editor.commit();
-        
-        Log.d(TAG, "Profile update success: " + success);
-        
-        if (success) {
-            Toast.makeText(getContext(), "Профиль обновлен", Toast.LENGTH_SHORT).show();
-            loadUserData();
-        } else {
-            Toast.makeText(getContext(), "Ошибка обновления профиля", Toast.LENGTH_SHORT).show();
-        }
+
+        // Снимок обновляется сразу, запись в БД идет в фоне; экран обновит слушатель
+        sessionStore.updateProfile(name, email);
+        Toast.makeText(getContext(), "Профиль обновлен", Toast.LENGTH_SHORT).show();
     }
 
     private void logout() {
-        // Очищаем данные пользователя
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.clear();
-        editor.apply();
+        sessionStore.logout();
 
         // Переходим на экран входа
         NavHostFragment.findNavController(ProfileFragment.this)
@@ -265,36 +228,10 @@ public class ProfileFragment extends Fragment {
         return features;
     }
 
-    // Сохранение фото лица
-    public String saveFaceImage(Bitmap bitmap, String fileName) {
-        try {
-            File file = new File(requireContext().getFilesDir(), fileName);
-            FileOutputStream fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, fos);
-            fos.close();
-            return file.getAbsolutePath();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    // Загрузка фото лица
-    public Bitmap loadFaceImage(String fileName) {
-        try {
-            File file = new File(requireContext().getFilesDir(), fileName);
-            if (file.exists()) {
-                return BitmapFactory.decodeFile(file.getAbsolutePath());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        sessionStore.removeListener(this);
         binding = null;
     }
 } 
\ No newline at end of file
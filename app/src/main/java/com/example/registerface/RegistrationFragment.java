@@ -1,6 +1,8 @@
 package com.example.registerface;
 
 import android.Manifest;
+import android.app.AlertDialog;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.os.Bundle;
@@ -22,22 +24,42 @@ import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
+import androidx.fragment.app.FragmentActivity;
 import androidx.navigation.fragment.NavHostFragment;
 
 import com.example.registerface.databinding.FragmentRegistrationBinding;
 import com.example.registerface.db.DatabaseHelper;
+import com.example.registerface.db.UserDirectory;
 import com.example.registerface.face.CameraHelper;
+import com.example.registerface.face.DetectedFace;
+import com.example.registerface.face.DetectorLoadController;
 import com.example.registerface.face.FaceDetectorHelper;
+import com.example.registerface.face.FaceEventPublisher;
+import com.example.registerface.face.FaceFrame;
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceStream;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.ScanController;
+import com.example.registerface.face.TrackingCache;
 import com.example.registerface.models.User;
-import com.example.registerface.utils.FaceImageUtils;
-import com.google.mlkit.vision.face.Face;
+import com.example.registerface.utils.FaceImageStore;
 
 import java.util.List;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class RegistrationFragment extends Fragment implements FaceDetectorHelper.FaceDetectorListener {
+public class RegistrationFragment extends Fragment {
     private static final String TAG = "RegistrationFragment";
     private static final int REQUEST_CAMERA_PERMISSION = 100;
+    // Лицо должно продержаться в одном треке столько кадров, прежде чем его снимем
+    private static final int STABLE_FRAMES = 3;
+    private static final long SCAN_TIMEOUT_SECONDS = 30;
     private FragmentRegistrationBinding binding;
+    private UserDirectory userDirectory;
     private DatabaseHelper dbHelper;
     private EditText userIdInput;
     private EditText nameInput;
@@ -45,9 +67,15 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
     private Button registerButton;
     private Button scanFaceButton;
     private PreviewView previewView;
-    private String capturedFaceData;
+    private volatile String capturedFaceData;
+    private ScanController scanController;
     private CameraHelper cameraHelper;
+    private FaceEventPublisher faceEvents;
+    private FaceStream.Subscription scanSubscription;
+    private final TrackingCache trackingCache = new TrackingCache();
     private boolean isScanning = false;
+    // Поиск дубликатов и построение галереи не должны идти на главном потоке
+    private ExecutorService galleryExecutor;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -58,7 +86,17 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
     public void onViewCreated(@NonNull View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        dbHelper = new DatabaseHelper(getContext());
+        userDirectory = UserDirectory.getInstance(requireContext());
+        dbHelper = userDirectory.getDatabaseHelper();
+        galleryExecutor = Executors.newSingleThreadExecutor();
+        // Строим галерею заранее, пока пользователь заполняет форму
+        galleryExecutor.execute(() -> {
+            try {
+                dbHelper.getFaceGallery(this::showGalleryProgress);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
 
         userIdInput = binding.userIdInput;
         nameInput = binding.nameInput;
@@ -66,6 +104,7 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
         registerButton = binding.registerButton;
         scanFaceButton = binding.scanFaceButton;
         previewView = binding.previewView;
+        scanController = new ScanController(requireContext(), getViewLifecycleOwner(), previewView);
 
         scanFaceButton.setOnClickListener(v -> {
             if (checkCameraPermission()) {
@@ -99,21 +138,113 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
                 return;
             }
 
-            Log.d(TAG, "Registering user with face data: " + capturedFaceData);
             User user = new User(userId, capturedFaceData, name, email);
-            if (dbHelper.addUser(user)) {
-                Log.d(TAG, "User registered successfully");
-                Toast.makeText(getContext(), "Registration successful!", Toast.LENGTH_SHORT).show();
-                NavHostFragment.findNavController(RegistrationFragment.this)
-                        .navigate(R.id.action_registration_to_login);
-            } else {
-                Log.e(TAG, "Failed to register user");
-                Toast.makeText(getContext(), "Registration failed. User ID might already exist.", Toast.LENGTH_SHORT)
-                        .show();
+            setRegisterBusy(true);
+            checkDuplicateAndRegister(user);
+        });
+    }
+
+    /**
+     * Searches the new template against every enrolled one before insert:
+     * above the block threshold registration is refused, above the warn
+     * threshold the user has to confirm.
+     */
+    private void checkDuplicateAndRegister(User user) {
+        int warnPercent = getResources().getInteger(R.integer.duplicate_warn_percent);
+        int blockPercent = getResources().getInteger(R.integer.duplicate_block_percent);
+        if (warnPercent <= 0 && blockPercent <= 0) {
+            registerUser(user);
+            return;
+        }
+        float minPercent = warnPercent > 0 && blockPercent > 0 ? Math.min(warnPercent, blockPercent)
+                : Math.max(warnPercent, blockPercent);
+
+        galleryExecutor.execute(() -> {
+            long start = System.nanoTime();
+            FaceGallery gallery;
+            try {
+                gallery = dbHelper.getFaceGallery(this::showGalleryProgress);
+            } catch (InterruptedException e) {
+                // Без галереи проверить дубликаты нельзя, поэтому и не регистрируем
+                Thread.currentThread().interrupt();
+                runOnUiThread(() -> setRegisterBusy(false));
+                return;
             }
+            FaceGallery.Match match = gallery.findBest(FaceTemplate.parse(user.getFaceData()), minPercent,
+                    user.getUserId());
+            Log.d(TAG, String.format(Locale.US, "Duplicate check over %d users took %.1f ms",
+                    gallery.size(), (System.nanoTime() - start) / 1e6));
+
+            runOnUiThread(() -> {
+                if (match == null) {
+                    registerUser(user);
+                } else if (blockPercent > 0 && match.similarityPercentage >= blockPercent) {
+                    Log.d(TAG, "Registration blocked, face matches user " + match.userId);
+                    setRegisterBusy(false);
+                    Toast.makeText(getContext(), String.format(Locale.US,
+                            "This face is already registered (user %s, %.1f%%)", match.userId,
+                            match.similarityPercentage), Toast.LENGTH_LONG).show();
+                } else {
+                    new AlertDialog.Builder(requireContext())
+                            .setTitle("Possible duplicate")
+                            .setMessage(String.format(Locale.US,
+                                    "This face is similar to user %s (%.1f%%). Register anyway?",
+                                    match.userId, match.similarityPercentage))
+                            .setPositiveButton("Register", (dialog, which) -> registerUser(user))
+                            .setNegativeButton("Cancel", (dialog, which) -> setRegisterBusy(false))
+                            .show();
+                }
+            });
         });
     }
 
+    // Прогресс загрузки галереи показываем, только когда пользователь уже ждет проверку
+    private void showGalleryProgress(int loaded, int total) {
+        runOnUiThread(() -> {
+            if (!registerButton.isEnabled()) {
+                registerButton.setText(String.format(Locale.US, "Checking faces %d%%",
+                        total > 0 ? loaded * 100L / total : 100));
+            }
+        });
+    }
+
+    private void setRegisterBusy(boolean busy) {
+        registerButton.setEnabled(!busy);
+        registerButton.setText(busy ? "Checking faces..." : "Register");
+    }
+
+    private void registerUser(User user) {
+        Log.d(TAG, "Registering user with face data: " + user.getFaceData());
+        // Строка вставляется в фоне, и к ее провалу экран может быть уже закрыт
+        Context appContext = requireContext().getApplicationContext();
+        setRegisterBusy(true);
+        // Проверка занятости ID может читать SQLite, поэтому не в главном потоке
+        galleryExecutor.execute(() -> {
+            boolean added = userDirectory.addUser(user, notSaved -> onRegistrationNotSaved(appContext, notSaved));
+            runOnUiThread(() -> {
+                setRegisterBusy(false);
+                if (added) {
+                    Log.d(TAG, "User registered successfully");
+                    Toast.makeText(getContext(), "Registration successful!", Toast.LENGTH_SHORT).show();
+                    NavHostFragment.findNavController(RegistrationFragment.this)
+                            .navigate(R.id.action_registration_to_login);
+                } else {
+                    Log.e(TAG, "Failed to register user");
+                    Toast.makeText(getContext(), "Registration failed. User ID might already exist.",
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+        });
+    }
+
+    // Вызывается из потока записи каталога
+    private static void onRegistrationNotSaved(Context appContext, User user) {
+        Log.e(TAG, "User " + user.getUserId() + " was not saved");
+        new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(appContext,
+                "Registration of " + user.getUserId() + " was not saved. Please register again.",
+                Toast.LENGTH_LONG).show());
+    }
+
     private boolean checkCameraPermission() {
         return ContextCompat.checkSelfPermission(requireContext(),
                 Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
@@ -130,8 +261,21 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
         scanFaceButton.setText("Stop Scanning");
         previewView.setVisibility(View.VISIBLE);
 
-        cameraHelper = new CameraHelper(requireContext(), previewView, this);
-        cameraHelper.startCamera(getViewLifecycleOwner());
+        // Новый детектор заново нумерует треки, старые записи кэша к ним не относятся
+        trackingCache.clear();
+        faceEvents = new FaceEventPublisher();
+        // Кадры запрашиваются по одному: пока идет обработка, детектор только заменяет ожидающий кадр
+        scanSubscription = FaceStream.from(faceEvents)
+                .map(FaceFrame::getPrimaryFace)
+                .filter(face -> face != null)
+                .groupBy(DetectedFace::getTrackingId, STABLE_FRAMES)
+                .map(RegistrationFragment::bestQualityFace)
+                .timeout(SCAN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .subscribe(this::onStableFace, this::onScanError);
+        // Сохраненный шаблон служит годами, поэтому регистрация всегда идет с точным детектором и контуром;
+        // по лестнице нагрузки спускается только вход, и замеры регистрации ее не сдвигают
+        cameraHelper = new CameraHelper(scanController, faceEvents, null, DetectorLoadController.pinned(0));
+        cameraHelper.start();
     }
 
     private void stopFaceScanning() {
@@ -139,59 +283,120 @@ public class RegistrationFragment extends Fragment implements FaceDetectorHelper
         scanFaceButton.setText("Scan Face");
         previewView.setVisibility(View.GONE);
 
+        stopFaceEvents();
+        Log.d(TAG, "Tracking cache: " + trackingCache.getFramesFromCache() + " frames from cache, "
+                + trackingCache.getFramesEvaluated() + " evaluated");
+    }
+
+    private void stopFaceEvents() {
+        if (scanSubscription != null) {
+            scanSubscription.cancel();
+            scanSubscription = null;
+        }
         if (cameraHelper != null) {
-            cameraHelper.shutdown();
+            cameraHelper.stop();
+        }
+        if (faceEvents != null) {
+            Log.d(TAG, "Frames dropped while busy: " + faceEvents.getFramesDropped());
+            faceEvents.close();
+            faceEvents = null;
         }
     }
 
-    @Override
-    public void onFaceDetected(List<Face> faces) {
-        if (faces.size() > 0) {
-            Face face = faces.get(0);
-            capturedFaceData = FaceDetectorHelper.getFaceData(face);
-            Log.d(TAG, "Face captured during registration: " + capturedFaceData);
-
-            // Сохраняем фото лица
-            Bitmap faceBitmap = previewView.getBitmap();
-            String userId = userIdInput.getText().toString().trim();
-            if (faceBitmap != null && !userId.isEmpty()) {
-                FaceImageUtils.saveFaceImage(getContext(), faceBitmap, "face_reg_" + userId + ".jpg");
+    private static DetectedFace bestQualityFace(List<DetectedFace> track) {
+        DetectedFace best = track.get(0);
+        float bestQuality = FaceDetectorHelper.estimateQuality(best);
+        for (int i = 1; i < track.size(); i++) {
+            float quality = FaceDetectorHelper.estimateQuality(track.get(i));
+            if (quality > bestQuality) {
+                best = track.get(i);
+                bestQuality = quality;
             }
+        }
+        return best;
+    }
 
-            // Проверяем качество захвата лица
-            if (face.getSmilingProbability() != null &&
-                    face.getLeftEyeOpenProbability() != null &&
-                    face.getRightEyeOpenProbability() != null) {
-                requireActivity().runOnUiThread(() -> {
-                    Toast.makeText(getContext(), "Scanning...", Toast.LENGTH_SHORT).show();
-
-                    Toast.makeText(getContext(), "Face captured successfully!", Toast.LENGTH_SHORT).show();
-                    stopFaceScanning();
+    // Вызывается в потоке FaceEventPublisher с лучшим кадром из STABLE_FRAMES одного трека
+    private void onStableFace(DetectedFace face) {
+        trackingCache.retainTracked(Collections.singletonList(face));
+        TrackingCache.Entry cached = trackingCache.get(face);
+        float quality;
+        if (cached != null) {
+            // Лицо все еще в треке и поза почти не изменилась: шаблон уже есть
+            capturedFaceData = cached.faceData;
+            quality = cached.quality;
+        } else {
+            capturedFaceData = FaceDetectorHelper.getFaceData(face);
+            quality = FaceDetectorHelper.estimateQuality(face);
+            trackingCache.put(face, capturedFaceData, quality);
+            Log.d(TAG, "Face captured during registration: " + capturedFaceData);
+        }
+        boolean newCapture = cached == null;
 
-                });
-            } else {
-                requireActivity().runOnUiThread(() -> {
-                    Toast.makeText(getContext(), "Please look directly at the camera and try again", Toast.LENGTH_LONG)
-                            .show();
-                });
-            }
+        // Проверяем качество захвата лица
+        if (quality != FaceDetectorHelper.QUALITY_UNKNOWN) {
+            runOnUiThread(() -> {
+                if (!isScanning) {
+                    return; // кадр пришел уже после остановки сканирования
+                }
+                if (newCapture) {
+                    saveFaceSnapshot();
+                }
+                Toast.makeText(getContext(), "Face captured successfully!", Toast.LENGTH_SHORT).show();
+                stopFaceScanning();
+            });
+        } else {
+            runOnUiThread(() -> {
+                if (newCapture) {
+                    saveFaceSnapshot();
+                }
+                Toast.makeText(getContext(), "Please look directly at the camera and try again", Toast.LENGTH_LONG)
+                        .show();
+            });
         }
     }
 
-    @Override
-    public void onFaceDetectionError(Exception e) {
-        Log.e(TAG, "Face detection error during registration", e);
-        requireActivity().runOnUiThread(() -> {
-            Toast.makeText(getContext(), "Face detection error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+    private void onScanError(Throwable e) {
+        String message = e instanceof TimeoutException ? "No face found, please try again"
+                : "Face detection error: " + e.getMessage();
+        Log.e(TAG, "Face scanning stopped during registration", e);
+        runOnUiThread(() -> {
+            if (!isScanning) {
+                return;
+            }
+            Toast.makeText(getContext(), message, Toast.LENGTH_SHORT).show();
             stopFaceScanning();
         });
     }
 
+    // Снимок берем с PreviewView, поэтому только на главном потоке
+    private void saveFaceSnapshot() {
+        Bitmap faceBitmap = previewView.getBitmap();
+        String userId = userIdInput.getText().toString().trim();
+        if (faceBitmap != null && !userId.isEmpty()) {
+            FaceImageStore.getInstance(requireContext()).save(FaceImageStore.Kind.REGISTRATION, userId, faceBitmap);
+        }
+    }
+
+    // Результаты детектора приходят в фоновом потоке; после onDestroyView их игнорируем
+    private void runOnUiThread(Runnable action) {
+        FragmentActivity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(() -> {
+                if (binding != null) {
+                    action.run();
+                }
+            });
+        }
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (cameraHelper != null) {
-            cameraHelper.shutdown();
+        stopFaceEvents();
+        scanController.release();
+        if (galleryExecutor != null) {
+            galleryExecutor.shutdown();
         }
         binding = null;
     }
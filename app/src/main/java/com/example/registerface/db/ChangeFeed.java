@@ -0,0 +1,441 @@
+package com.example.registerface.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.registerface.face.FaceSignature;
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.utils.FaceImageStore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Репликация регистраций между киосками через журнал изменений.
+ *
+ * Каждая запись пользователя через {@link DatabaseHelper} в той же
+ * транзакции пишет строку в {@link #TABLE_CHANGES} с монотонным номером
+ * (AUTOINCREMENT, номера не переиспользуются). На пользователя хранится
+ * только последнее изменение, поэтому журнал не длиннее числа
+ * пользователей, а дельта с номера N содержит каждого измененного
+ * пользователя один раз.
+ *
+ * Получатель забирает дельту соседа через {@link ChangeTransport} и
+ * применяет ее пачками по {@link #BATCH_SIZE}; номер последнего принятого
+ * изменения соседа сохраняется в той же транзакции, что и пачка.
+ * Повторное применение ничего не меняет. Конфликты решаются по времени
+ * изменения: побеждает более позднее. Принятые изменения попадают в свой
+ * журнал с исходным устройством, так что их можно передать дальше, но
+ * обратно источнику они не отдаются. Тот же журнал доставляет
+ * регистрации на сервер опознания, см. {@link #pushToMatchServer}.
+ *
+ * Формат потока: UTF-8, заголовок {@link #HEADER} с ID устройства, затем
+ * по строке на изменение: seq, op, origin, changed_at, user_id, name,
+ * email, face_data, registered_at через табуляцию, с экранированием как в
+ * {@link EnrollmentTransfer}.
+ */
+public class ChangeFeed {
+    private static final String TAG = "ChangeFeed";
+    static final String HEADER = "# faceregister changes v1";
+    public static final int BATCH_SIZE = 500;
+
+    static final String TABLE_CHANGES = "user_changes";
+    static final String COLUMN_SEQ = "seq";
+    static final String COLUMN_OP = "op";
+    static final String COLUMN_ORIGIN = "origin";
+    static final String COLUMN_CHANGED_AT = "changed_at";
+    static final String TABLE_SYNC_STATE = "sync_state";
+    static final String COLUMN_KEY = "key";
+    static final String COLUMN_VALUE = "value";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_PEER_PREFIX = "peer_seq:";
+    private static final String KEY_MATCH_SERVER_PREFIX = "match_server_seq:";
+
+    public static final String OP_UPSERT = "U";
+    public static final String OP_DELETE = "D";
+    private static final int FIELD_COUNT = 9;
+
+    public static class PullResult {
+        /** Changes that were written to the local database. */
+        public final long applied;
+        /** Changes skipped as already seen, older than the local state or malformed. */
+        public final long skipped;
+        /** Last sequence number of the peer seen so far. */
+        public final long peerSeq;
+
+        PullResult(long applied, long skipped, long peerSeq) {
+            this.applied = applied;
+            this.skipped = skipped;
+            this.peerSeq = peerSeq;
+        }
+    }
+
+    private final DatabaseHelper dbHelper;
+
+    public ChangeFeed(DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CHANGES + "("
+                + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + DatabaseHelper.COLUMN_USER_ID + " TEXT NOT NULL UNIQUE,"
+                + COLUMN_OP + " TEXT NOT NULL,"
+                + COLUMN_ORIGIN + " TEXT NOT NULL,"
+                + COLUMN_CHANGED_AT + " INTEGER NOT NULL"
+                + ")");
+        db.execSQL("CREATE TABLE " + TABLE_SYNC_STATE + "("
+                + COLUMN_KEY + " TEXT PRIMARY KEY,"
+                + COLUMN_VALUE + " TEXT NOT NULL"
+                + ")");
+        db.execSQL("INSERT INTO " + TABLE_SYNC_STATE + " VALUES (?, ?)",
+                new Object[]{KEY_DEVICE_ID, UUID.randomUUID().toString()});
+    }
+
+    // Для базы, созданной до журнала: все существующие пользователи становятся изменениями этого устройства
+    static void logExistingUsers(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + TABLE_CHANGES + "(" + DatabaseHelper.COLUMN_USER_ID + "," + COLUMN_OP + ","
+                        + COLUMN_ORIGIN + "," + COLUMN_CHANGED_AT + ") SELECT " + DatabaseHelper.COLUMN_USER_ID
+                        + ", ?, ?, " + DatabaseHelper.COLUMN_REGISTERED_AT + " FROM " + DatabaseHelper.TABLE_USERS,
+                new Object[]{OP_UPSERT, readDeviceId(db)});
+    }
+
+    static String readDeviceId(SQLiteDatabase db) {
+        return readState(db, KEY_DEVICE_ID);
+    }
+
+    /**
+     * Records a change of {@code userId}, replacing its previous entry. Must
+     * run in the transaction that changed the user.
+     */
+    static void logChange(SQLiteDatabase db, String userId, String op, String origin, long changedAt) {
+        // REPLACE удаляет прежнюю строку пользователя и выдает новый, больший номер
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_CHANGES + "(" + DatabaseHelper.COLUMN_USER_ID + ","
+                        + COLUMN_OP + "," + COLUMN_ORIGIN + "," + COLUMN_CHANGED_AT + ") VALUES (?,?,?,?)",
+                new Object[]{userId, op, origin, changedAt});
+    }
+
+    public String getDeviceId() {
+        return dbHelper.getDeviceId();
+    }
+
+    /** Highest local sequence number, 0 if nothing was ever logged. */
+    public long getLastSeq() {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery("SELECT MAX(" + COLUMN_SEQ + ") FROM " + TABLE_CHANGES, null)) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /** Last sequence number of the device {@code peerId} applied here, 0 if none. */
+    public long getPeerSeq(String peerId) {
+        String value = readState(dbHelper.getReadableDatabase(), KEY_PEER_PREFIX + peerId);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    /**
+     * Writes all changes after {@code sinceSeq} in sequence order, leaving
+     * out those that came from {@code excludeOrigin}. The cost depends on the
+     * number of changes, not on the number of users.
+     * Must not be called on the main thread.
+     *
+     * @return number of changes written
+     */
+    public long exportChanges(long sinceSeq, String excludeOrigin, OutputStream out) throws IOException {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(HEADER + " " + dbHelper.getDeviceId() + "\n");
+        long written = 0;
+        StringBuilder line = new StringBuilder(1024);
+        try (Cursor cursor = db.rawQuery("SELECT c." + COLUMN_SEQ + ", c." + COLUMN_OP + ", c." + COLUMN_ORIGIN
+                        + ", c." + COLUMN_CHANGED_AT + ", c." + DatabaseHelper.COLUMN_USER_ID
+                        + ", u." + DatabaseHelper.COLUMN_NAME + ", u." + DatabaseHelper.COLUMN_EMAIL
+                        + ", u." + DatabaseHelper.COLUMN_FACE_DATA + ", u." + DatabaseHelper.COLUMN_REGISTERED_AT
+                        + ", u." + DatabaseHelper.COLUMN_USER_ID
+                        + " FROM " + TABLE_CHANGES + " c LEFT JOIN " + DatabaseHelper.TABLE_USERS + " u ON u."
+                        + DatabaseHelper.COLUMN_USER_ID + " = c." + DatabaseHelper.COLUMN_USER_ID
+                        + " WHERE c." + COLUMN_SEQ + " > ? AND c." + COLUMN_ORIGIN + " != ?"
+                        + " ORDER BY c." + COLUMN_SEQ,
+                new String[]{String.valueOf(sinceSeq), excludeOrigin != null ? excludeOrigin : ""})) {
+            while (cursor.moveToNext()) {
+                // Строки пользователя нет, значит он удален, что бы ни было записано в журнале
+                boolean exists = !cursor.isNull(9) && OP_UPSERT.equals(cursor.getString(1));
+                line.setLength(0);
+                line.append(cursor.getLong(0)).append('\t')
+                        .append(exists ? OP_UPSERT : OP_DELETE).append('\t');
+                EnrollmentTransfer.escape(cursor.getString(2), line);
+                line.append('\t').append(cursor.getLong(3)).append('\t');
+                EnrollmentTransfer.escape(cursor.getString(4), line);
+                line.append('\t');
+                if (exists) {
+                    EnrollmentTransfer.escape(cursor.getString(5), line);
+                    line.append('\t');
+                    EnrollmentTransfer.escape(cursor.getString(6), line);
+                    line.append('\t');
+                    EnrollmentTransfer.escape(cursor.getString(7), line);
+                    line.append('\t').append(cursor.getLong(8));
+                } else {
+                    line.append("\t\t\t0");
+                }
+                line.append('\n');
+                writer.write(line.toString());
+                written++;
+            }
+        }
+        writer.flush();
+        return written;
+    }
+
+    /**
+     * Fetches the changes of {@code peerId} since the last pull and applies
+     * them. An interrupted pull resumes after the last committed batch.
+     * Must not be called on the main thread.
+     *
+     * @param peerId device ID of the peer, as {@link #getDeviceId()} returns it there
+     */
+    public PullResult pull(String peerId, ChangeTransport transport) throws IOException {
+        long since = getPeerSeq(peerId);
+        try (InputStream in = transport.openChanges(since, dbHelper.getDeviceId())) {
+            return apply(peerId, in);
+        }
+    }
+
+    /**
+     * Applies a change stream of {@code peerId}. Changes at or below the
+     * stored sequence number of the peer are skipped, so applying the same
+     * stream twice is safe. A stream whose header names another device is
+     * rejected before anything is applied: its numbers would move the
+     * position of the wrong peer.
+     */
+    public PullResult apply(String peerId, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String header = reader.readLine();
+        if (header == null || !header.startsWith(HEADER)) {
+            throw new IOException("Not a change feed: " + header);
+        }
+        String sourceId = header.substring(HEADER.length()).trim();
+        if (sourceId.equals(dbHelper.getDeviceId())) {
+            throw new IOException("Change feed comes from this device");
+        }
+        if (!sourceId.equals(peerId)) {
+            throw new IOException("Change feed comes from " + sourceId + ", expected " + peerId);
+        }
+
+        long peerSeq = getPeerSeq(peerId);
+        long applied = 0;
+        long skipped = 0;
+        List<String[]> batch = new ArrayList<>(BATCH_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length != FIELD_COUNT) {
+                skipped++;
+                continue;
+            }
+            batch.add(fields);
+            if (batch.size() == BATCH_SIZE) {
+                long[] counts = applyBatch(peerId, peerSeq, batch);
+                applied += counts[0];
+                skipped += counts[1];
+                peerSeq = counts[2];
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            long[] counts = applyBatch(peerId, peerSeq, batch);
+            applied += counts[0];
+            skipped += counts[1];
+            peerSeq = counts[2];
+        }
+        Log.d(TAG, "Pulled from " + peerId + ": " + applied + " applied, " + skipped + " skipped, at " + peerSeq);
+        return new PullResult(applied, skipped, peerSeq);
+    }
+
+    /**
+     * Sends the users changed since the last push to the match server of
+     * {@code client}: upserts through {@link MatchClient#enroll}, deletions
+     * through {@link MatchClient#remove}, {@link #BATCH_SIZE} at a time. The
+     * position is kept per server URL and start ID, so a restarted server
+     * gets every user again. Changes of all origins are sent; enrolling the
+     * same user from two kiosks is harmless. Must not be called on the main
+     * thread.
+     *
+     * @return number of changes sent
+     */
+    public long pushToMatchServer(MatchClient client) throws IOException {
+        if (client.getEndpoint() == null) {
+            return 0;
+        }
+        String key = KEY_MATCH_SERVER_PREFIX + client.getEndpoint() + " " + client.getServerInstance();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        String value = readState(db, key);
+        long since = value != null ? Long.parseLong(value) : 0;
+        long sent = 0;
+        while (true) {
+            List<String> enrollIds = new ArrayList<>();
+            List<String> enrollData = new ArrayList<>();
+            List<String> removeIds = new ArrayList<>();
+            long lastSeq = since;
+            try (Cursor cursor = db.rawQuery("SELECT c." + COLUMN_SEQ + ", c." + DatabaseHelper.COLUMN_USER_ID
+                            + ", u." + DatabaseHelper.COLUMN_FACE_DATA + " FROM " + TABLE_CHANGES + " c LEFT JOIN "
+                            + DatabaseHelper.TABLE_USERS + " u ON u." + DatabaseHelper.COLUMN_USER_ID
+                            + " = c." + DatabaseHelper.COLUMN_USER_ID + " WHERE c." + COLUMN_SEQ + " > ? ORDER BY c."
+                            + COLUMN_SEQ + " LIMIT " + BATCH_SIZE,
+                    new String[]{String.valueOf(since)})) {
+                while (cursor.moveToNext()) {
+                    lastSeq = cursor.getLong(0);
+                    // Удаленного пользователя уже нет в users, поэтому op не нужен
+                    if (cursor.isNull(2) || cursor.getString(2).isEmpty()) {
+                        removeIds.add(cursor.getString(1));
+                    } else {
+                        enrollIds.add(cursor.getString(1));
+                        enrollData.add(cursor.getString(2));
+                    }
+                }
+            }
+            if (lastSeq == since) {
+                break;
+            }
+            if (!enrollIds.isEmpty()) {
+                client.enroll(enrollIds.toArray(new String[0]), enrollData.toArray(new String[0]));
+            }
+            if (!removeIds.isEmpty()) {
+                client.remove(removeIds.toArray(new String[0]));
+            }
+            // Позицию двигаем только после ответа сервера; оборванная отправка повторит последнюю пачку
+            writeState(db, key, String.valueOf(lastSeq));
+            since = lastSeq;
+            sent += enrollIds.size() + removeIds.size();
+        }
+        if (sent > 0) {
+            Log.d(TAG, "Pushed " + sent + " changes to " + client.getEndpoint() + ", at " + since);
+        }
+        return sent;
+    }
+
+    // Возвращает {применено, пропущено, новый номер соседа}
+    private long[] applyBatch(String peerId, long peerSeq, List<String[]> batch) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long applied = 0;
+        long skipped = 0;
+        long maxSeq = peerSeq;
+        // Галерею и снимки меняем только после коммита, чтобы откат пачки их не задел
+        List<String[]> committed = new ArrayList<>(batch.size());
+        db.beginTransactionNonExclusive();
+        try {
+            for (String[] fields : batch) {
+                long seq;
+                long changedAt;
+                try {
+                    seq = Long.parseLong(fields[0]);
+                    changedAt = Long.parseLong(fields[3]);
+                } catch (NumberFormatException e) {
+                    skipped++;
+                    continue;
+                }
+                String op = fields[1];
+                String origin = EnrollmentTransfer.unescape(fields[2]);
+                String userId = EnrollmentTransfer.unescape(fields[4]);
+                if (seq <= peerSeq || userId.isEmpty()
+                        || !(OP_UPSERT.equals(op) || OP_DELETE.equals(op))
+                        || !isNewer(db, userId, origin, changedAt)) {
+                    skipped++;
+                    maxSeq = Math.max(maxSeq, seq);
+                    continue;
+                }
+                maxSeq = Math.max(maxSeq, seq);
+                if (OP_UPSERT.equals(op)) {
+                    long registeredAt;
+                    try {
+                        registeredAt = Long.parseLong(fields[8]);
+                    } catch (NumberFormatException e) {
+                        skipped++;
+                        continue;
+                    }
+                    upsertUser(db, userId, EnrollmentTransfer.unescape(fields[5]),
+                            EnrollmentTransfer.unescape(fields[6]), EnrollmentTransfer.unescape(fields[7]),
+                            registeredAt);
+                    committed.add(new String[]{userId, EnrollmentTransfer.unescape(fields[7])});
+                } else {
+                    db.delete(DatabaseHelper.TABLE_USERS, DatabaseHelper.COLUMN_USER_ID + "=?",
+                            new String[]{userId});
+                    committed.add(new String[]{userId, null});
+                }
+                logChange(db, userId, op, origin, changedAt);
+                applied++;
+            }
+            writeState(db, KEY_PEER_PREFIX + peerId, String.valueOf(maxSeq));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (String[] change : committed) {
+            if (change[1] != null) {
+                dbHelper.updateFaceGallery(change[0], change[1]);
+            } else {
+                dbHelper.removeFromFaceGallery(change[0]);
+                FaceImageStore.getInstance(dbHelper.getContext()).deleteUser(change[0]);
+            }
+        }
+        if (!committed.isEmpty()) {
+            UserDirectory.invalidateShared(dbHelper);
+        }
+        return new long[]{applied, skipped, maxSeq};
+    }
+
+    // Побеждает более позднее изменение; при равном времени — большее ID устройства, чтобы все сошлись одинаково
+    private static boolean isNewer(SQLiteDatabase db, String userId, String origin, long changedAt) {
+        try (Cursor cursor = db.query(TABLE_CHANGES, new String[]{COLUMN_ORIGIN, COLUMN_CHANGED_AT},
+                DatabaseHelper.COLUMN_USER_ID + "=?", new String[]{userId}, null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                return true;
+            }
+            long localChangedAt = cursor.getLong(1);
+            if (changedAt != localChangedAt) {
+                return changedAt > localChangedAt;
+            }
+            return origin.compareTo(cursor.getString(0)) > 0;
+        }
+    }
+
+    // UPSERT появился только в SQLite 3.24; время последнего входа остается местным
+    private static void upsertUser(SQLiteDatabase db, String userId, String name, String email, String faceData,
+                                   long registeredAt) {
+        Object[] args = {name, email, faceData, registeredAt, FaceSignature.of(faceData), userId};
+        db.execSQL("UPDATE " + DatabaseHelper.TABLE_USERS + " SET "
+                + DatabaseHelper.COLUMN_NAME + "=?, " + DatabaseHelper.COLUMN_EMAIL + "=?, "
+                + DatabaseHelper.COLUMN_FACE_DATA + "=?, " + DatabaseHelper.COLUMN_REGISTERED_AT + "=?, "
+                + DatabaseHelper.COLUMN_SIGNATURE + "=? WHERE " + DatabaseHelper.COLUMN_USER_ID + "=?", args);
+        db.execSQL("INSERT OR IGNORE INTO " + DatabaseHelper.TABLE_USERS + "("
+                + DatabaseHelper.COLUMN_NAME + "," + DatabaseHelper.COLUMN_EMAIL + ","
+                + DatabaseHelper.COLUMN_FACE_DATA + "," + DatabaseHelper.COLUMN_REGISTERED_AT + ","
+                + DatabaseHelper.COLUMN_SIGNATURE + "," + DatabaseHelper.COLUMN_USER_ID
+                + ") VALUES (?,?,?,?,?,?)", args);
+    }
+
+    private static String readState(SQLiteDatabase db, String key) {
+        try (Cursor cursor = db.query(TABLE_SYNC_STATE, new String[]{COLUMN_VALUE}, COLUMN_KEY + "=?",
+                new String[]{key}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    private static void writeState(SQLiteDatabase db, String key, String value) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_SYNC_STATE + " VALUES (?, ?)", new Object[]{key, value});
+    }
+}
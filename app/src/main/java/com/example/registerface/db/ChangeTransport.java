@@ -0,0 +1,19 @@
+package com.example.registerface.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Способ получить журнал изменений соседнего устройства: файл, HTTP или
+ * что-то еще. Поток в формате {@link ChangeFeed#exportChanges}.
+ */
+public interface ChangeTransport {
+    /**
+     * Opens the peer's changes with a sequence number above {@code sinceSeq}.
+     * The stream may also contain older changes, they are skipped on apply.
+     *
+     * @param requesterId device ID of the caller; the peer may leave out
+     *                    changes that came from it
+     */
+    InputStream openChanges(long sinceSeq, String requesterId) throws IOException;
+}
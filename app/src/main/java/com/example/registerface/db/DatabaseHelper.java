@@ -5,21 +5,72 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceSignature;
+import com.example.registerface.face.FaceTemplate;
 import com.example.registerface.models.User;
+import com.example.registerface.utils.FaceImageStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "FaceAuthDB";
-    private static final int DATABASE_VERSION = 1;
+    // 2: registered_at, last_login_at; 3: signature; 4: user_changes, sync_state
+    private static final int DATABASE_VERSION = 4;
+
+    static final String TABLE_USERS = "users";
+    static final String COLUMN_USER_ID = "user_id";
+    static final String COLUMN_FACE_DATA = "face_data";
+    static final String COLUMN_NAME = "name";
+    static final String COLUMN_EMAIL = "email";
+    static final String COLUMN_REGISTERED_AT = "registered_at";
+    static final String COLUMN_LAST_LOGIN_AT = "last_login_at";
+    static final String COLUMN_SIGNATURE = "signature";
+    // Покрывающий индекс: отбор по сигнатуре читает только его, не трогая face_data
+    private static final String INDEX_SIGNATURE = "idx_users_signature";
+    // Ограничение SQLite на число параметров запроса
+    private static final int MAX_QUERY_ARGS = 500;
+
+    // Загрузки галерей всех баз идут по очереди в одном фоновом потоке
+    private static final ExecutorService GALLERY_PRELOADER = Executors.newSingleThreadExecutor();
 
-    private static final String TABLE_USERS = "users";
-    private static final String COLUMN_USER_ID = "user_id";
-    private static final String COLUMN_FACE_DATA = "face_data";
-    private static final String COLUMN_NAME = "name";
-    private static final String COLUMN_EMAIL = "email";
+    // Галерея шаблонов этой базы; строится при первом обращении и обновляется при записи. В приложении
+    // на базу один экземпляр (у UserDirectory), поэтому галерея своя у каждой базы, например у второго
+    // киоска в тестах. Поля ниже защищены galleryLock, который держится только короткое время
+    private final Object galleryLock = new Object();
+    private FaceGallery faceGallery;
+    // Пока галерея строится, сюда попадают изменения за это время: {userId, faceData}, null вместо faceData — удаление
+    private List<String[]> pendingGalleryWrites;
+    // Растет при каждом сбросе; загрузка, начатая до сброса, не публикуется
+    private int galleryGeneration;
+    // Фоновая загрузка, которую запускает identify; null, пока ее не запускали или после неудачи
+    private Future<?> galleryPreload;
+    // Одновременно строится только одна галерея, остальные вызовы ждут ее
+    private final Object galleryLoadLock = new Object();
+
+    private final Context context;
+    private volatile String deviceId;
 
     public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /** Opens a database with another name, e.g. a second kiosk in tests. */
+    DatabaseHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        this.context = context;
+        // WAL: чтение не блокируется записью, а параллельные чтения идут через разные соединения пула
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -28,15 +79,57 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 + COLUMN_USER_ID + " TEXT PRIMARY KEY,"
                 + COLUMN_FACE_DATA + " TEXT,"
                 + COLUMN_NAME + " TEXT,"
-                + COLUMN_EMAIL + " TEXT"
+                + COLUMN_EMAIL + " TEXT,"
+                + COLUMN_REGISTERED_AT + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_LAST_LOGIN_AT + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_SIGNATURE + " INTEGER"
                 + ")";
         db.execSQL(createTable);
+        createSignatureIndex(db);
+        ChangeFeed.createTables(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_USERS);
-        onCreate(db);
+        // Миграции по шагам, зарегистрированные пользователи сохраняются
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_USERS + " ADD COLUMN " + COLUMN_REGISTERED_AT + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_USERS + " ADD COLUMN " + COLUMN_LAST_LOGIN_AT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_USERS + " ADD COLUMN " + COLUMN_SIGNATURE + " INTEGER");
+            backfillSignatures(db);
+            createSignatureIndex(db);
+        }
+        if (oldVersion < 4) {
+            ChangeFeed.createTables(db);
+            ChangeFeed.logExistingUsers(db);
+        }
+    }
+
+    private static void createSignatureIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_SIGNATURE + " ON " + TABLE_USERS
+                + "(" + COLUMN_SIGNATURE + ", " + COLUMN_USER_ID + ")");
+    }
+
+    // onUpgrade уже идет в транзакции; индекс строится после заполнения, а не обновляется на каждой строке
+    private static void backfillSignatures(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_USERS + " SET " + COLUMN_SIGNATURE
+                + "=? WHERE " + COLUMN_USER_ID + "=?");
+        try (Cursor cursor = db.query(TABLE_USERS, new String[]{COLUMN_USER_ID, COLUMN_FACE_DATA},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                Long signature = FaceSignature.of(cursor.getString(1));
+                if (signature == null) {
+                    continue;
+                }
+                update.bindLong(1, signature);
+                update.bindString(2, cursor.getString(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
     }
 
     public boolean addUser(User user) {
@@ -46,15 +139,32 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(COLUMN_FACE_DATA, user.getFaceData());
         values.put(COLUMN_NAME, user.getName());
         values.put(COLUMN_EMAIL, user.getEmail());
+        values.put(COLUMN_REGISTERED_AT, user.getRegisteredAt() != 0 ? user.getRegisteredAt() : System.currentTimeMillis());
+        values.put(COLUMN_LAST_LOGIN_AT, user.getLastLoginAt());
+        values.put(COLUMN_SIGNATURE, FaceSignature.of(user.getFaceData()));
 
-        long result = db.insert(TABLE_USERS, null, values);
+        long result;
+        db.beginTransaction();
+        try {
+            result = db.insert(TABLE_USERS, null, values);
+            if (result != -1) {
+                logChange(db, user.getUserId(), ChangeFeed.OP_UPSERT);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        if (result != -1) {
+            updateFaceGallery(user.getUserId(), user.getFaceData());
+        }
         return result != -1;
     }
 
     public User getUser(String userId) {
         SQLiteDatabase db = this.getReadableDatabase();
         Cursor cursor = db.query(TABLE_USERS,
-                new String[]{COLUMN_USER_ID, COLUMN_FACE_DATA, COLUMN_NAME, COLUMN_EMAIL},
+                new String[]{COLUMN_USER_ID, COLUMN_FACE_DATA, COLUMN_NAME, COLUMN_EMAIL,
+                        COLUMN_REGISTERED_AT, COLUMN_LAST_LOGIN_AT},
                 COLUMN_USER_ID + "=?",
                 new String[]{userId},
                 null, null, null);
@@ -65,31 +175,358 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     cursor.getString(0),
                     cursor.getString(1),
                     cursor.getString(2),
-                    cursor.getString(3)
+                    cursor.getString(3),
+                    cursor.getLong(4),
+                    cursor.getLong(5)
             );
             cursor.close();
         }
         return user;
     }
 
+    /** All users ordered by ID, without face data. */
+    public List<User> getUserProfiles() {
+        List<User> users = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor cursor = db.query(TABLE_USERS,
+                new String[]{COLUMN_USER_ID, COLUMN_NAME, COLUMN_EMAIL, COLUMN_REGISTERED_AT, COLUMN_LAST_LOGIN_AT},
+                null, null, null, null, COLUMN_USER_ID)) {
+            while (cursor.moveToNext()) {
+                users.add(new User(cursor.getString(0), null, cursor.getString(1), cursor.getString(2),
+                        cursor.getLong(3), cursor.getLong(4)));
+            }
+        }
+        return users;
+    }
+
     public boolean updateUser(User user) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(COLUMN_FACE_DATA, user.getFaceData());
         values.put(COLUMN_NAME, user.getName());
         values.put(COLUMN_EMAIL, user.getEmail());
+        values.put(COLUMN_SIGNATURE, FaceSignature.of(user.getFaceData()));
 
-        int result = db.update(TABLE_USERS, values,
-                COLUMN_USER_ID + "=?",
-                new String[]{user.getUserId()});
+        int result;
+        db.beginTransaction();
+        try {
+            result = db.update(TABLE_USERS, values,
+                    COLUMN_USER_ID + "=?",
+                    new String[]{user.getUserId()});
+            if (result > 0) {
+                logChange(db, user.getUserId(), ChangeFeed.OP_UPSERT);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        if (result > 0) {
+            updateFaceGallery(user.getUserId(), user.getFaceData());
+        }
+        return result > 0;
+    }
+
+    /**
+     * Writes the profile fields and the last login time without touching
+     * the face template. A changed name or email goes to the change feed;
+     * a new login time alone stays local.
+     */
+    public boolean updateProfile(String userId, String name, String email, long lastLoginAt) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        values.put(COLUMN_EMAIL, email);
+        values.put(COLUMN_LAST_LOGIN_AT, lastLoginAt);
+
+        int result;
+        db.beginTransaction();
+        try {
+            boolean profileChanged;
+            try (Cursor cursor = db.query(TABLE_USERS, new String[]{COLUMN_NAME, COLUMN_EMAIL},
+                    COLUMN_USER_ID + "=?", new String[]{userId}, null, null, null)) {
+                if (!cursor.moveToFirst()) {
+                    return false;
+                }
+                profileChanged = !Objects.equals(name, cursor.getString(0))
+                        || !Objects.equals(email, cursor.getString(1));
+            }
+            result = db.update(TABLE_USERS, values,
+                    COLUMN_USER_ID + "=?",
+                    new String[]{userId});
+            if (result > 0 && profileChanged) {
+                logChange(db, userId, ChangeFeed.OP_UPSERT);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         return result > 0;
     }
 
     public boolean deleteUser(String userId) {
         SQLiteDatabase db = this.getWritableDatabase();
-        int result = db.delete(TABLE_USERS,
-                COLUMN_USER_ID + "=?",
-                new String[]{userId});
+        int result;
+        db.beginTransaction();
+        try {
+            result = db.delete(TABLE_USERS,
+                    COLUMN_USER_ID + "=?",
+                    new String[]{userId});
+            if (result > 0) {
+                logChange(db, userId, ChangeFeed.OP_DELETE);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        if (result > 0) {
+            removeFromFaceGallery(userId);
+            // Снимки удаленного пользователя больше никому не нужны
+            FaceImageStore.getInstance(context).deleteUser(userId);
+        }
         return result > 0;
     }
+
+    /**
+     * Local 1:N search for {@link com.example.registerface.face.MatchClient}. Once the gallery of this database is
+     * loaded it answers everything. Before that each probe is compared only
+     * with its {@link #findSignatureCandidates signature candidates}, so a
+     * login right after start does not wait for every row to be read; a
+     * match there is taken as the answer even though someone outside the
+     * candidates might score higher. If any probe has no match among its
+     * candidates, the gallery is loaded and searched as a whole. The first
+     * call without a gallery also starts loading it in the background, so
+     * the candidate path serves only until the gallery is published.
+     *
+     * @throws InterruptedException see {@link #getFaceGallery()}
+     */
+    public FaceGallery.Match[] identify(FaceTemplate[] probes, float minPercentage) throws InterruptedException {
+        FaceGallery gallery;
+        synchronized (galleryLock) {
+            gallery = faceGallery;
+        }
+        if (gallery == null) {
+            // Иначе на киоске, где только входят, галерею никто не загрузит и кандидаты читались бы всегда
+            preloadFaceGallery();
+            FaceGallery.Match[] matches = new FaceGallery.Match[probes.length];
+            boolean complete = true;
+            for (int i = 0; i < probes.length && complete; i++) {
+                // Без сигнатуры кандидаты — вся таблица, тогда проще сразу загрузить галерею
+                if (FaceSignature.of(probes[i]) == null) {
+                    complete = false;
+                    break;
+                }
+                FaceGallery candidates = new FaceGallery();
+                for (User user : findSignatureCandidates(probes[i], FaceSignature.DEFAULT_MAX_DISTANCE)) {
+                    candidates.put(user.getUserId(), user.getFaceData());
+                }
+                matches[i] = candidates.findBest(probes[i], minPercentage);
+                complete = matches[i] != null;
+            }
+            if (complete) {
+                return matches;
+            }
+        }
+        return getFaceGallery().findBest(probes, minPercentage);
+    }
+
+    /**
+     * Users whose signature is within {@code maxDistance} bits of the
+     * signature of {@code probe}, plus users without a signature, as
+     * candidates for a full 1:N comparison. The index range allows the top
+     * ratio to differ by {@link FaceSignature#RANGE_LEVELS} levels at most,
+     * see {@link FaceSignature#rangeLow}; the Hamming filter reads only the
+     * index, and face data is loaded just for the rows that pass it. Must
+     * not be called on the main thread.
+     */
+    public List<User> findSignatureCandidates(FaceTemplate probeTemplate, int maxDistance) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Long probe = FaceSignature.of(probeTemplate);
+        List<String> userIds = new ArrayList<>();
+        String selection = null;
+        String[] selectionArgs = null;
+        if (probe != null) {
+            selection = COLUMN_SIGNATURE + " BETWEEN ? AND ? OR " + COLUMN_SIGNATURE + " IS NULL";
+            selectionArgs = new String[]{String.valueOf(FaceSignature.rangeLow(probe, maxDistance)),
+                    String.valueOf(FaceSignature.rangeHigh(probe, maxDistance))};
+        }
+        try (Cursor cursor = db.query(TABLE_USERS, new String[]{COLUMN_USER_ID, COLUMN_SIGNATURE},
+                selection, selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                if (probe == null || cursor.isNull(1)
+                        || FaceSignature.distance(probe, cursor.getLong(1)) <= maxDistance) {
+                    userIds.add(cursor.getString(0));
+                }
+            }
+        }
+
+        // Шаблоны читаем только у кандидатов, пачками по первичному ключу
+        List<User> users = new ArrayList<>(userIds.size());
+        for (int from = 0; from < userIds.size(); from += MAX_QUERY_ARGS) {
+            List<String> chunk = userIds.subList(from, Math.min(userIds.size(), from + MAX_QUERY_ARGS));
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            try (Cursor cursor = db.query(TABLE_USERS,
+                    new String[]{COLUMN_USER_ID, COLUMN_FACE_DATA, COLUMN_NAME, COLUMN_EMAIL,
+                            COLUMN_REGISTERED_AT, COLUMN_LAST_LOGIN_AT},
+                    COLUMN_USER_ID + " IN (" + placeholders + ")", chunk.toArray(new String[0]),
+                    null, null, null)) {
+                while (cursor.moveToNext()) {
+                    users.add(new User(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3), cursor.getLong(4), cursor.getLong(5)));
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * In-memory gallery of all enrolled templates for 1:N search. Built from
+     * the database on first use and kept in sync by addUser, updateUser and
+     * deleteUser. The first call reads every row, so it must not be made on
+     * the main thread.
+     *
+     * @throws InterruptedException if the thread was interrupted while the
+     *                              gallery was built; nothing is cached then
+     */
+    public FaceGallery getFaceGallery() throws InterruptedException {
+        return getFaceGallery(null);
+    }
+
+    /**
+     * Like {@link #getFaceGallery()}, reporting load progress if the gallery
+     * has to be built. The gallery is built without holding the lock that
+     * writers take: writes made meanwhile are recorded, replayed on the
+     * finished gallery and only then is it published.
+     */
+    public FaceGallery getFaceGallery(GalleryLoader.ProgressListener listener) throws InterruptedException {
+        synchronized (galleryLock) {
+            if (faceGallery != null) {
+                return faceGallery;
+            }
+        }
+        synchronized (galleryLoadLock) {
+            while (true) {
+                int generation;
+                synchronized (galleryLock) {
+                    if (faceGallery != null) {
+                        return faceGallery;
+                    }
+                    generation = galleryGeneration;
+                    pendingGalleryWrites = new ArrayList<>();
+                }
+                FaceGallery loaded;
+                try {
+                    loaded = new GalleryLoader(this).load(listener);
+                } catch (InterruptedException | RuntimeException e) {
+                    // Незагруженную галерею не сохраняем, следующий вызов начнет заново
+                    synchronized (galleryLock) {
+                        pendingGalleryWrites = null;
+                    }
+                    throw e;
+                }
+                synchronized (galleryLock) {
+                    List<String[]> writes = pendingGalleryWrites;
+                    pendingGalleryWrites = null;
+                    if (generation == galleryGeneration) {
+                        for (String[] write : writes) {
+                            if (write[1] != null) {
+                                loaded.put(write[0], write[1]);
+                            } else {
+                                loaded.remove(write[0]);
+                            }
+                        }
+                        faceGallery = loaded;
+                        return loaded;
+                    }
+                }
+                // Галерею сбросили во время загрузки: таблицу меняли в обход, читаем заново
+            }
+        }
+    }
+
+    private void preloadFaceGallery() {
+        synchronized (galleryLock) {
+            if (faceGallery != null || galleryPreload != null) {
+                return;
+            }
+            galleryPreload = GALLERY_PRELOADER.submit(() -> {
+                try {
+                    getFaceGallery();
+                } catch (InterruptedException | RuntimeException e) {
+                    Log.w(TAG, "Background gallery load failed", e);
+                    synchronized (galleryLock) {
+                        galleryPreload = null;
+                    }
+                }
+            });
+        }
+    }
+
+    /** Waits for the background load started by {@link #identify}, if any. */
+    void awaitFaceGalleryPreload() throws InterruptedException {
+        Future<?> preload;
+        synchronized (galleryLock) {
+            preload = galleryPreload;
+        }
+        if (preload != null) {
+            try {
+                preload.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /** Drops the gallery after bulk writes that bypass this class; it is rebuilt on next use. */
+    void invalidateFaceGallery() {
+        synchronized (galleryLock) {
+            faceGallery = null;
+            galleryGeneration++;
+            // Следующий identify без галереи снова запустит загрузку
+            galleryPreload = null;
+        }
+    }
+
+    void updateFaceGallery(String userId, String faceData) {
+        synchronized (galleryLock) {
+            if (faceGallery != null) {
+                faceGallery.put(userId, faceData);
+            }
+            if (pendingGalleryWrites != null) {
+                pendingGalleryWrites.add(new String[]{userId, faceData});
+            }
+        }
+    }
+
+    void removeFromFaceGallery(String userId) {
+        synchronized (galleryLock) {
+            if (faceGallery != null) {
+                faceGallery.remove(userId);
+            }
+            if (pendingGalleryWrites != null) {
+                pendingGalleryWrites.add(new String[]{userId, null});
+            }
+        }
+    }
+
+    Context getContext() {
+        return context;
+    }
+
+    /** Random ID of this database, created with it; identifies it to peers in the change feed. */
+    public String getDeviceId() {
+        String id = deviceId;
+        if (id == null) {
+            id = ChangeFeed.readDeviceId(getReadableDatabase());
+            deviceId = id;
+        }
+        return id;
+    }
+
+    // Журнал изменений для репликации пишется в транзакции самой записи
+    void logChange(SQLiteDatabase db, String userId, String op) {
+        ChangeFeed.logChange(db, userId, op, getDeviceId(), System.currentTimeMillis());
+    }
 } 
\ No newline at end of file
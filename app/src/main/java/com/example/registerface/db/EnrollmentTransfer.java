@@ -0,0 +1,412 @@
+package com.example.registerface.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.registerface.face.FaceSignature;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Потоковый импорт и экспорт зарегистрированных пользователей для
+ * развертывания на новой площадке.
+ *
+ * Формат файла: UTF-8, одна запись на строку, поля user_id, name, email и
+ * face_data разделены табуляцией. Символы '\\', табуляция и перевод строки
+ * внутри полей экранируются как "\\\\", "\\t", "\\n" и "\\r". Строки,
+ * начинающиеся с '#', считаются комментариями.
+ *
+ * Импорт идет пачками по {@link #BATCH_SIZE} записей в одной транзакции
+ * через заранее скомпилированные запросы. После каждой пачки рядом с файлом
+ * сохраняется checkpoint, поэтому прерванный импорт продолжается с
+ * последней закоммиченной пачки. Память не зависит от размера файла:
+ * буфер чтения фиксирован, строка ограничена {@link #MAX_LINE_BYTES}.
+ */
+public class EnrollmentTransfer {
+    private static final String TAG = "EnrollmentTransfer";
+    private static final String HEADER = "# faceregister enrollment v1";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    public static final int BATCH_SIZE = 500;
+    public static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FIELD_COUNT = 4;
+
+    // Повторный импорт той же пачки после сбоя должен быть безопасным. REPLACE удалил бы строку вместе с
+    // registered_at и last_login_at, поэтому сначала UPDATE существующей, затем вставка новой
+    private static final String SQL_UPDATE_USER = "UPDATE " + DatabaseHelper.TABLE_USERS + " SET "
+            + DatabaseHelper.COLUMN_NAME + "=?,"
+            + DatabaseHelper.COLUMN_EMAIL + "=?,"
+            + DatabaseHelper.COLUMN_FACE_DATA + "=?,"
+            + DatabaseHelper.COLUMN_SIGNATURE + "=? WHERE "
+            + DatabaseHelper.COLUMN_USER_ID + "=?";
+    private static final String SQL_INSERT_USER = "INSERT OR IGNORE INTO " + DatabaseHelper.TABLE_USERS + "("
+            + DatabaseHelper.COLUMN_NAME + ","
+            + DatabaseHelper.COLUMN_EMAIL + ","
+            + DatabaseHelper.COLUMN_FACE_DATA + ","
+            + DatabaseHelper.COLUMN_SIGNATURE + ","
+            + DatabaseHelper.COLUMN_USER_ID + ","
+            + DatabaseHelper.COLUMN_REGISTERED_AT
+            + ") VALUES (?,?,?,?,?,?)";
+
+    public interface ProgressListener {
+        /**
+         * @param records  records imported or exported so far
+         * @param fraction completed share of the work, from 0 to 1
+         */
+        void onProgress(long records, float fraction);
+    }
+
+    public static class ImportResult {
+        public final long imported;
+        public final long skipped;
+        public final boolean resumed;
+
+        ImportResult(long imported, long skipped, boolean resumed) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.resumed = resumed;
+        }
+    }
+
+    private final DatabaseHelper dbHelper;
+
+    public EnrollmentTransfer(DatabaseHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * Imports users from {@code source}, overwriting the profile and face data
+     * of existing rows with the same user ID; their registration and last
+     * login times are kept, new users are registered now. If a checkpoint from an interrupted import of the same file
+     * exists, the import resumes after the last committed batch.
+     * Must not be called on the main thread.
+     */
+    public ImportResult importUsers(File source, ProgressListener listener) throws IOException {
+        File checkpointFile = new File(source.getPath() + CHECKPOINT_SUFFIX);
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile, source);
+        boolean resumed = checkpoint.offset > 0;
+        if (resumed) {
+            Log.d(TAG, "Resuming import of " + source.getName() + " at record " + checkpoint.imported);
+        }
+
+        long totalBytes = Math.max(1, source.length());
+        long imported = checkpoint.imported;
+        long skipped = checkpoint.skipped;
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_USER);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_USER);
+        long registeredAt = System.currentTimeMillis();
+        try (FileInputStream in = new FileInputStream(source)) {
+            in.getChannel().position(checkpoint.offset);
+            LineReader reader = new LineReader(in, checkpoint.offset);
+            String[] fields = new String[FIELD_COUNT];
+            int inBatch = 0;
+
+            db.beginTransactionNonExclusive();
+            try {
+                while (reader.next()) {
+                    if (reader.isBlankOrComment()) {
+                        continue;
+                    }
+                    if (!reader.split(fields) || fields[0].isEmpty()) {
+                        skipped++;
+                        continue;
+                    }
+
+                    // Параметры 1..5 у обоих запросов одинаковые: name, email, face_data, signature, user_id
+                    Long signature = FaceSignature.of(fields[3]);
+                    bindUser(update, fields, signature);
+                    if (update.executeUpdateDelete() == 0) {
+                        bindUser(insert, fields, signature);
+                        insert.bindLong(6, registeredAt);
+                        insert.executeInsert();
+                    }
+                    // Импорт тоже расходится по соседним киоскам
+                    dbHelper.logChange(db, fields[0], ChangeFeed.OP_UPSERT);
+                    imported++;
+
+                    if (++inBatch == BATCH_SIZE) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        // Следующую транзакцию открываем сразу: finally ниже закрывает ее и при ошибке checkpoint
+                        db.beginTransactionNonExclusive();
+                        inBatch = 0;
+                        new Checkpoint(reader.offset(), imported, skipped, source).write(checkpointFile);
+                        if (listener != null) {
+                            listener.onProgress(imported, (float) reader.offset() / totalBytes);
+                        }
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            update.close();
+            insert.close();
+            // Строки вставлены в обход addUser
+            dbHelper.invalidateFaceGallery();
+            UserDirectory.invalidateShared(dbHelper);
+        }
+
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            Log.w(TAG, "Could not delete checkpoint " + checkpointFile);
+        }
+        if (listener != null) {
+            listener.onProgress(imported, 1f);
+        }
+        Log.d(TAG, "Imported " + imported + " users, skipped " + skipped + " malformed lines");
+        return new ImportResult(imported, skipped, resumed);
+    }
+
+    /**
+     * Writes all users to {@code target} walking a single cursor. The file is
+     * written next to the target and renamed when complete, so a failed
+     * export never leaves a truncated file behind.
+     * Must not be called on the main thread.
+     */
+    public long exportUsers(File target, ProgressListener listener) throws IOException {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        long total = Math.max(1, DatabaseUtils.queryNumEntries(db, DatabaseHelper.TABLE_USERS));
+        File temp = new File(target.getPath() + ".tmp");
+        long exported = 0;
+
+        Cursor cursor = db.query(DatabaseHelper.TABLE_USERS,
+                new String[]{DatabaseHelper.COLUMN_USER_ID, DatabaseHelper.COLUMN_NAME,
+                        DatabaseHelper.COLUMN_EMAIL, DatabaseHelper.COLUMN_FACE_DATA},
+                null, null, null, null, DatabaseHelper.COLUMN_USER_ID);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE)) {
+            out.write(HEADER.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            StringBuilder line = new StringBuilder(1024);
+            while (cursor.moveToNext()) {
+                line.setLength(0);
+                for (int i = 0; i < FIELD_COUNT; i++) {
+                    if (i > 0) {
+                        line.append('\t');
+                    }
+                    escape(cursor.getString(i), line);
+                }
+                line.append('\n');
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+
+                exported++;
+                if (listener != null && exported % BATCH_SIZE == 0) {
+                    listener.onProgress(exported, Math.min(1f, (float) exported / total));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not move export to " + target);
+        }
+        if (listener != null) {
+            listener.onProgress(exported, 1f);
+        }
+        Log.d(TAG, "Exported " + exported + " users to " + target.getName());
+        return exported;
+    }
+
+    private static void bindUser(SQLiteStatement statement, String[] fields, Long signature) {
+        statement.clearBindings();
+        statement.bindString(1, fields[1]);
+        statement.bindString(2, fields[2]);
+        statement.bindString(3, fields[3]);
+        if (signature != null) {
+            statement.bindLong(4, signature);
+        }
+        statement.bindString(5, fields[0]);
+    }
+
+    static void escape(String value, StringBuilder out) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(byte[] bytes, int from, int to) {
+        return unescape(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    default: out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Читает строки как байты, чтобы точно знать смещение в файле для checkpoint.
+     */
+    private static final class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[1024];
+        private int length;
+        private boolean overflow;
+        private long offset;
+
+        LineReader(InputStream in, long startOffset) {
+            this.in = in;
+            this.offset = startOffset;
+        }
+
+        /** Offset just past the last line returned by {@link #next()}. */
+        long offset() {
+            return offset;
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            overflow = false;
+            boolean any = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return any;
+                    }
+                }
+                byte b = buffer[position++];
+                offset++;
+                any = true;
+                if (b == '\n') {
+                    if (length > 0 && line[length - 1] == '\r') {
+                        length--;
+                    }
+                    return true;
+                }
+                if (length == line.length) {
+                    if (length >= MAX_LINE_BYTES) {
+                        // Слишком длинная строка: дочитываем до конца и отбрасываем
+                        overflow = true;
+                        continue;
+                    }
+                    byte[] grown = new byte[Math.min(MAX_LINE_BYTES, line.length * 2)];
+                    System.arraycopy(line, 0, grown, 0, length);
+                    line = grown;
+                }
+                line[length++] = b;
+            }
+        }
+
+        boolean isBlankOrComment() {
+            return !overflow && (length == 0 || line[0] == '#');
+        }
+
+        boolean split(String[] fields) {
+            if (overflow) {
+                return false;
+            }
+            int field = 0;
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || line[i] == '\t') {
+                    if (field == fields.length) {
+                        return false;
+                    }
+                    fields[field++] = unescape(line, start, i);
+                    start = i + 1;
+                }
+            }
+            return field == fields.length;
+        }
+    }
+
+    private static final class Checkpoint {
+        final long offset;
+        final long imported;
+        final long skipped;
+        final long sourceLength;
+        final long sourceModified;
+
+        Checkpoint(long offset, long imported, long skipped, File source) {
+            this(offset, imported, skipped, source.length(), source.lastModified());
+        }
+
+        Checkpoint(long offset, long imported, long skipped, long sourceLength, long sourceModified) {
+            this.offset = offset;
+            this.imported = imported;
+            this.skipped = skipped;
+            this.sourceLength = sourceLength;
+            this.sourceModified = sourceModified;
+        }
+
+        static Checkpoint read(File checkpointFile, File source) {
+            Checkpoint empty = new Checkpoint(0, 0, 0, source);
+            if (!checkpointFile.exists()) {
+                return empty;
+            }
+            try (FileInputStream in = new FileInputStream(checkpointFile)) {
+                byte[] bytes = new byte[(int) Math.min(checkpointFile.length(), 256)];
+                int read = in.read(bytes);
+                String[] parts = new String(bytes, 0, Math.max(read, 0), StandardCharsets.UTF_8).trim().split(" ");
+                Checkpoint checkpoint = new Checkpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+                // Файл изменился с момента сбоя: начинаем сначала
+                if (checkpoint.sourceLength != source.length() || checkpoint.sourceModified != source.lastModified()) {
+                    Log.w(TAG, "Source changed since checkpoint, starting over");
+                    return empty;
+                }
+                return checkpoint;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Ignoring unreadable checkpoint", e);
+                return empty;
+            }
+        }
+
+        void write(File checkpointFile) throws IOException {
+            File temp = new File(checkpointFile.getPath() + ".tmp");
+            String value = offset + " " + imported + " " + skipped + " " + sourceLength + " " + sourceModified;
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(value.getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(checkpointFile)) {
+                throw new IOException("Could not write checkpoint " + checkpointFile);
+            }
+        }
+    }
+}
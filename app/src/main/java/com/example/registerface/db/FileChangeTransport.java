@@ -0,0 +1,47 @@
+package com.example.registerface.db;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Журнал изменений через файл, например на съемном носителе: источник
+ * пишет дельту методом {@link #write}, получатель читает ее как транспорт.
+ * Файл может содержать больше, чем нужно получателю, лишнее отсекается
+ * по номерам.
+ */
+public class FileChangeTransport implements ChangeTransport {
+    private final File file;
+
+    public FileChangeTransport(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public InputStream openChanges(long sinceSeq, String requesterId) throws IOException {
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Writes the changes of {@code feed} after {@code sinceSeq} to the file.
+     * The file is replaced only when complete.
+     *
+     * @return number of changes written
+     */
+    public long write(ChangeFeed feed, long sinceSeq) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        long written;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+            written = feed.exportChanges(sinceSeq, null, out);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.registerface.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Параллельная загрузка таблицы users в {@link FaceGallery}. Диапазон rowid
+ * делится на куски по {@link #CHUNK_ROWS}, каждый кусок читается отдельным
+ * запросом по ключу; в режиме WAL запросы из разных потоков идут через
+ * разные соединения пула и не ждут друг друга. Разбор face_data тоже идет в
+ * этих потоках, результат пишется сразу в заранее выделенные массивы.
+ * Галерея отдается только целиком, после загрузки всех кусков.
+ */
+public class GalleryLoader {
+    private static final String TAG = "GalleryLoader";
+    public static final int CHUNK_ROWS = 2000;
+    // Пул соединений SQLite для чтения в WAL обычно не больше четырех
+    private static final int MAX_READERS = 4;
+
+    /** Called from loader threads after each chunk. */
+    public interface ProgressListener {
+        void onProgress(int loaded, int total);
+    }
+
+    private final DatabaseHelper dbHelper;
+    private final int readers;
+
+    public GalleryLoader(DatabaseHelper dbHelper) {
+        this(dbHelper, Math.min(MAX_READERS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public GalleryLoader(DatabaseHelper dbHelper, int readers) {
+        this.dbHelper = dbHelper;
+        this.readers = Math.max(1, readers);
+    }
+
+    /**
+     * Reads every user with a rowid not above the current maximum. Must not
+     * be called on the main thread.
+     */
+    public FaceGallery load(ProgressListener listener) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        long minRowId;
+        long maxRowId;
+        int total;
+        // Границы фиксируем один раз: строки, вставленные позже, получат rowid больше maxRowId
+        try (Cursor cursor = db.rawQuery("SELECT MIN(rowid), MAX(rowid), COUNT(*) FROM "
+                + DatabaseHelper.TABLE_USERS, null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return new FaceGallery();
+            }
+            minRowId = cursor.getLong(0);
+            maxRowId = cursor.getLong(1);
+            total = cursor.getInt(2);
+        }
+
+        FaceGallery.Builder builder = new FaceGallery.Builder(total);
+        AtomicInteger nextSlot = new AtomicInteger();
+        AtomicInteger loaded = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        List<Future<?>> chunks = new ArrayList<>();
+        try {
+            for (long from = minRowId; from <= maxRowId; from += CHUNK_ROWS) {
+                long to = Math.min(maxRowId, from + CHUNK_ROWS - 1);
+                long chunkFrom = from;
+                chunks.add(pool.submit(() -> {
+                    int rows = loadChunk(db, chunkFrom, to, builder, nextSlot);
+                    int done = loaded.addAndGet(rows);
+                    if (listener != null) {
+                        listener.onProgress(done, total);
+                    }
+                }));
+            }
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int size = Math.min(nextSlot.get(), builder.capacity());
+        FaceGallery gallery = builder.build(size);
+        Log.d(TAG, String.format("Loaded %d templates in %.1f ms with %d readers",
+                size, (System.nanoTime() - startNanos) / 1e6, readers));
+        return gallery;
+    }
+
+    private static int loadChunk(SQLiteDatabase db, long fromRowId, long toRowId,
+                                 FaceGallery.Builder builder, AtomicInteger nextSlot) {
+        int rows = 0;
+        try (Cursor cursor = db.rawQuery("SELECT " + DatabaseHelper.COLUMN_USER_ID + ", "
+                        + DatabaseHelper.COLUMN_FACE_DATA + " FROM " + DatabaseHelper.TABLE_USERS
+                        + " WHERE rowid BETWEEN ? AND ?",
+                new String[]{Long.toString(fromRowId), Long.toString(toRowId)})) {
+            while (cursor.moveToNext()) {
+                int slot = nextSlot.getAndIncrement();
+                if (slot >= builder.capacity()) {
+                    // Строку заменили (REPLACE) уже после подсчета; ее добавит addUser/updateUser
+                    Log.w(TAG, "More rows than counted, skipping " + cursor.getString(0));
+                    continue;
+                }
+                builder.set(slot, cursor.getString(0), FaceTemplate.parse(cursor.getString(1)));
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
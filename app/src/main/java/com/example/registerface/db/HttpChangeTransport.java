@@ -0,0 +1,47 @@
+package com.example.registerface.db;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Журнал изменений соседа по HTTP: {@code GET <endpoint>?since=N&requester=ID}
+ * должен отдавать вывод {@link ChangeFeed#exportChanges}.
+ */
+public class HttpChangeTransport implements ChangeTransport {
+    private static final int TIMEOUT_MS = 15_000;
+
+    private final String endpoint;
+
+    public HttpChangeTransport(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public InputStream openChanges(long sinceSeq, String requesterId) throws IOException {
+        URL url = URI.create(endpoint + (endpoint.contains("?") ? "&" : "?") + "since=" + sinceSeq
+                + "&requester=" + URLEncoder.encode(requesterId, "UTF-8")).toURL();
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Change feed request failed: HTTP " + status + " from " + url);
+        }
+        return new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,413 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал попыток входа только на дозапись. {@link #log} лишь кладет событие
+ * в неблокирующую очередь; фоновый поток раз в {@link #COMMIT_INTERVAL_MS}
+ * кодирует накопленные события, пишет их одним буфером в {@link FileChannel}
+ * и вызывает {@code force()} один раз на всю группу.
+ *
+ * <p>Файлы {@code audit-<seq>.log} начинаются с {@link #MAGIC} и версии,
+ * затем идут записи:
+ * <pre>
+ * u16 длина тела | i64 время, мс | u8 решение | f32 схожесть, % |
+ * i32 задержка, мкс | u8 длина ID | ID в UTF-8 | i32 CRC32 тела
+ * </pre>
+ * ID длиннее 255 байт обрезается по границе символа UTF-8.
+ * Обычная запись занимает около 30 байт. Сегмент закрывается после
+ * {@link #SEGMENT_BYTES}, хранятся последние {@link #MAX_SEGMENTS}.
+ * Оборванный хвост после сбоя отсекается по CRC при чтении.
+ */
+public class LoginAuditLog implements Closeable {
+    private static final String TAG = "LoginAuditLog";
+    static final int MAGIC = 0x46414C47; // "FALG"
+    static final short VERSION = 1;
+    private static final int HEADER_BYTES = 6;
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    public static final long COMMIT_INTERVAL_MS = 500;
+    public static final long SEGMENT_BYTES = 1024 * 1024;
+    public static final int MAX_SEGMENTS = 16;
+    // Если диск не успевает, лишние события отбрасываются, а не копятся в памяти
+    static final int MAX_PENDING = 10_000;
+    private static final int MAX_USER_ID_BYTES = 255;
+    private static final int FIXED_BODY_BYTES = 8 + 1 + 4 + 4 + 1;
+    private static final int MAX_RECORD_BYTES = 2 + FIXED_BODY_BYTES + MAX_USER_ID_BYTES + 4;
+
+    public enum Decision {
+        ACCEPTED, REJECTED, UNKNOWN_USER;
+
+        private static final Decision[] VALUES = values();
+    }
+
+    public static final class Record {
+        public final long timestampMillis;
+        public final String userId;
+        public final float similarityPercentage;
+        public final Decision decision;
+        public final int latencyMicros;
+
+        Record(long timestampMillis, String userId, float similarityPercentage, Decision decision, int latencyMicros) {
+            this.timestampMillis = timestampMillis;
+            this.userId = userId;
+            this.similarityPercentage = similarityPercentage;
+            this.decision = decision;
+            this.latencyMicros = latencyMicros;
+        }
+    }
+
+    private static LoginAuditLog instance;
+
+    private final File directory;
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    // Дальше только поток writer
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long nextSegment;
+
+    public static synchronized LoginAuditLog getInstance(Context context) {
+        if (instance == null) {
+            instance = new LoginAuditLog(new File(context.getApplicationContext().getFilesDir(), "audit"));
+        }
+        return instance;
+    }
+
+    LoginAuditLog(File directory) {
+        this.directory = directory;
+        writer.scheduleWithFixedDelay(this::commit, COMMIT_INTERVAL_MS, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records one login attempt. Does no I/O and never blocks; the event
+     * becomes durable with the next group commit.
+     */
+    public void log(String userId, float similarityPercentage, Decision decision, long latencyNanos) {
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.add(new Record(System.currentTimeMillis(), userId != null ? userId : "", similarityPercentage,
+                decision, (int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000)));
+    }
+
+    /** Commits everything logged so far and waits for it to reach the disk. */
+    public void flush() {
+        try {
+            writer.submit(this::commit).get();
+        } catch (Exception e) {
+            Log.e(TAG, "Audit flush failed", e);
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        writer.shutdown();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close audit segment", e);
+        }
+    }
+
+    private void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            ensureSegment();
+            boolean wrote = false;
+            Record record;
+            while ((record = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                if (buffer.remaining() < MAX_RECORD_BYTES) {
+                    writeBuffer();
+                }
+                encode(record);
+                wrote = true;
+            }
+            if (wrote) {
+                writeBuffer();
+                // Группа событий фиксируется одним force()
+                channel.force(false);
+                if (channel.size() >= SEGMENT_BYTES) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Audit commit failed", e);
+            buffer.clear();
+            closeQuietly();
+        }
+    }
+
+    private void encode(Record record) {
+        byte[] userId = record.userId.getBytes(StandardCharsets.UTF_8);
+        int idLength = utf8PrefixLength(userId, MAX_USER_ID_BYTES);
+        int bodyLength = FIXED_BODY_BYTES + idLength;
+
+        buffer.putShort((short) bodyLength);
+        int bodyStart = buffer.position();
+        buffer.putLong(record.timestampMillis);
+        buffer.put((byte) record.decision.ordinal());
+        buffer.putFloat(record.similarityPercentage);
+        buffer.putInt(record.latencyMicros);
+        buffer.put((byte) idLength);
+        buffer.put(userId, 0, idLength);
+
+        crc.reset();
+        for (int i = bodyStart; i < buffer.position(); i++) {
+            crc.update(buffer.get(i));
+        }
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /** Longest prefix of at most {@code maxBytes} that does not cut a UTF-8 character in two. */
+    static int utf8PrefixLength(byte[] utf8, int maxBytes) {
+        if (utf8.length <= maxBytes) {
+            return utf8.length;
+        }
+        int length = maxBytes;
+        // Байты продолжения имеют вид 10xxxxxx, символ начинается на первом байте другого вида
+        while (length > 0 && (utf8[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureSegment() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] segments = listSegments(directory);
+        if (nextSegment == 0 && segments.length > 0) {
+            nextSegment = sequenceOf(segments[segments.length - 1]) + 1;
+        }
+        File file = new File(directory, String.format(Locale.US, "%s%016x%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putShort(VERSION).flip();
+        channel.write(header);
+
+        // Сегменты сверх лимита удаляем, начиная со старых
+        for (int i = 0; i <= segments.length - MAX_SEGMENTS; i++) {
+            if (!segments[i].delete()) {
+                Log.w(TAG, "Could not delete old audit segment " + segments[i]);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // Номер в имени шестнадцатеричный фиксированной длины, поэтому сортировка по имени хронологическая
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Opens a reader over all segments, oldest first. Call {@link #flush()}
+     * first to include the latest events.
+     */
+    public Reader openReader() {
+        return new Reader(directory);
+    }
+
+    /**
+     * Writes the whole log to {@code target} as tab-separated text, one
+     * attempt per line, without loading it into memory.
+     *
+     * @return number of records exported
+     */
+    public long exportTsv(File target) throws IOException {
+        flush();
+        long count = 0;
+        try (Reader reader = openReader();
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(target), StandardCharsets.UTF_8))) {
+            out.write("# timestamp_ms\tuser_id\tdecision\tsimilarity\tlatency_us\n");
+            Record record;
+            while ((record = reader.next()) != null) {
+                out.write(String.format(Locale.US, "%d\t%s\t%s\t%.2f\t%d\n", record.timestampMillis,
+                        record.userId, record.decision, record.similarityPercentage, record.latencyMicros));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Потоковое чтение журнала для выгрузки: в памяти только один буфер.
+     */
+    public static final class Reader implements Closeable {
+        private final List<File> segments;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32 crc = new CRC32();
+        private int segmentIndex;
+        private FileChannel channel;
+        private boolean eof = true;
+
+        Reader(File directory) {
+            this.segments = new ArrayList<>(Arrays.asList(listSegments(directory)));
+        }
+
+        /** @return the next record, or {@code null} when all segments are read */
+        public Record next() throws IOException {
+            while (true) {
+                if (channel == null && !openNextSegment()) {
+                    return null;
+                }
+                Record record = readRecord();
+                if (record != null) {
+                    return record;
+                }
+                // Конец сегмента или оборванная запись: переходим к следующему
+                channel.close();
+                channel = null;
+            }
+        }
+
+        private boolean openNextSegment() throws IOException {
+            while (segmentIndex < segments.size()) {
+                File file = segments.get(segmentIndex++);
+                FileChannel candidate = new FileInputStream(file).getChannel();
+                buffer.clear();
+                buffer.limit(0);
+                eof = false;
+                channel = candidate;
+                if (fill(HEADER_BYTES) && buffer.getInt() == MAGIC && buffer.getShort() == VERSION) {
+                    return true;
+                }
+                Log.w(TAG, "Skipping audit segment with bad header: " + file.getName());
+                candidate.close();
+                channel = null;
+            }
+            return false;
+        }
+
+        private Record readRecord() throws IOException {
+            if (!fill(2)) {
+                return null;
+            }
+            int bodyLength = buffer.getShort() & 0xFFFF;
+            if (bodyLength < FIXED_BODY_BYTES || bodyLength > FIXED_BODY_BYTES + MAX_USER_ID_BYTES
+                    || !fill(bodyLength + 4)) {
+                return null;
+            }
+            int bodyStart = buffer.position();
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + bodyStart, bodyLength);
+
+            long timestamp = buffer.getLong();
+            int decision = buffer.get() & 0xFF;
+            float similarity = buffer.getFloat();
+            int latencyMicros = buffer.getInt();
+            int idLength = buffer.get() & 0xFF;
+            if (idLength != bodyLength - FIXED_BODY_BYTES || decision >= Decision.VALUES.length) {
+                return null;
+            }
+            String userId = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), idLength,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + idLength);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                return null;
+            }
+            return new Record(timestamp, userId, similarity, Decision.VALUES[decision], latencyMicros);
+        }
+
+        private boolean fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return true;
+            }
+            buffer.compact();
+            while (!eof && buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                }
+            }
+            buffer.flip();
+            return buffer.remaining() >= bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            segmentIndex = segments.size();
+        }
+    }
+}
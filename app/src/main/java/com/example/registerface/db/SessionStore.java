@@ -0,0 +1,180 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.registerface.models.Session;
+import com.example.registerface.models.User;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Текущая сессия и профиль пользователя. Чтение идет из неизменяемого
+ * снимка в памяти, изменения сразу видны в снимке и уходят в
+ * {@link UserDirectory}, который пишет их в таблицу users отложенно и сливает
+ * несколько правок одного пользователя в одну. Единственный источник
+ * профиля — таблица users, в SharedPreferences хранится только ID
+ * вошедшего пользователя, чтобы восстановить сессию после перезапуска.
+ */
+public class SessionStore {
+    private static final String TAG = "SessionStore";
+    private static final String PREF_NAME = "UserPrefs";
+    private static final String KEY_USER_ID = "user_id";
+    // Ключи старого ProfileFragment, переносятся в users при восстановлении
+    private static final String LEGACY_KEY_NAME = "name";
+    private static final String LEGACY_KEY_EMAIL = "email";
+    private static final String[] LEGACY_KEYS = {
+            LEGACY_KEY_NAME, LEGACY_KEY_EMAIL, "registration_date", "last_login", "face_similarity"
+    };
+
+    /** Called on the main thread; {@code session} is {@code null} after logout. */
+    public interface Listener {
+        void onSessionChanged(Session session);
+    }
+
+    private static SessionStore instance;
+
+    private final Context appContext;
+    private final UserDirectory userDirectory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Session session;
+    // Был вход или выход после запуска: восстановленная сессия уже не нужна
+    private boolean changedSinceStart;
+
+    public static synchronized SessionStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new SessionStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SessionStore(Context appContext) {
+        this(appContext, UserDirectory.getInstance(appContext));
+    }
+
+    /** Store over another directory, e.g. one on a separate database in tests. */
+    SessionStore(Context appContext, UserDirectory userDirectory) {
+        this.appContext = appContext;
+        this.userDirectory = userDirectory;
+        executor.execute(this::restore);
+    }
+
+    /**
+     * Current session, or {@code null} if nobody is logged in or the session
+     * is still being restored; listeners are notified once it is.
+     */
+    public Session get() {
+        return session;
+    }
+
+    public void login(User user, float faceSimilarity) {
+        long now = System.currentTimeMillis();
+        Session newSession = new Session(user.getUserId(), user.getName(), user.getEmail(), user.getFaceData(),
+                faceSimilarity, user.getRegisteredAt(), now);
+        publish(newSession);
+        scheduleWrite(newSession);
+        executor.execute(() -> preferences().edit().putString(KEY_USER_ID, user.getUserId()).apply());
+    }
+
+    public void updateProfile(String name, String email) {
+        Session current = session;
+        if (current == null) {
+            return;
+        }
+        Session updated = current.withProfile(name, email);
+        publish(updated);
+        scheduleWrite(updated);
+    }
+
+    public void logout() {
+        publish(null);
+        executor.execute(() -> preferences().edit().remove(KEY_USER_ID).apply());
+    }
+
+    /** Blocks until the changes made before this call are in the database. */
+    void flush() throws InterruptedException {
+        try {
+            executor.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        userDirectory.flush();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void publish(Session newSession) {
+        changedSinceStart = true;
+        session = newSession;
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onSessionChanged(newSession);
+            }
+        });
+    }
+
+    // В потоке хранилища: если пользователя нет в каталоге, он подгрузится из БД
+    private void scheduleWrite(Session snapshot) {
+        executor.execute(() -> {
+            if (!userDirectory.updateProfile(snapshot.getUserId(), snapshot.getName(), snapshot.getEmail(),
+                    snapshot.getLastLoginAt())) {
+                Log.w(TAG, "User " + snapshot.getUserId() + " no longer exists, profile not saved");
+            }
+        });
+    }
+
+    private void restore() {
+        SharedPreferences preferences = preferences();
+        String userId = preferences.getString(KEY_USER_ID, null);
+        if (userId == null) {
+            return;
+        }
+        User user = userDirectory.getUser(userId);
+        if (user == null) {
+            preferences.edit().remove(KEY_USER_ID).apply();
+            return;
+        }
+
+        // Правки профиля старых версий жили только в SharedPreferences
+        String legacyName = preferences.getString(LEGACY_KEY_NAME, null);
+        String legacyEmail = preferences.getString(LEGACY_KEY_EMAIL, null);
+        if (legacyName != null && legacyEmail != null) {
+            user.setName(legacyName);
+            user.setEmail(legacyEmail);
+            userDirectory.updateProfile(userId, legacyName, legacyEmail, user.getLastLoginAt());
+        }
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String key : LEGACY_KEYS) {
+            editor.remove(key);
+        }
+        editor.apply();
+
+        Session restored = new Session(user.getUserId(), user.getName(), user.getEmail(), user.getFaceData(),
+                0f, user.getRegisteredAt(), user.getLastLoginAt());
+        synchronized (this) {
+            // Вход или выход мог произойти, пока шло восстановление
+            if (!changedSinceStart) {
+                publish(restored);
+            }
+        }
+    }
+
+    private SharedPreferences preferences() {
+        return appContext.getSharedPreferences(PREF_NAME, 0);
+    }
+}
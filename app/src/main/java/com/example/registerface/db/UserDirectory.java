@@ -0,0 +1,432 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.registerface.R;
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.models.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Общий каталог пользователей в памяти перед таблицей users. Чтение идет из
+ * {@link ConcurrentHashMap} неизменяемых записей и не блокирует читателей
+ * друг другом; запись пользователя подгружается из БД при первом обращении,
+ * список всех пользователей — одним запросом без face_data при первом
+ * {@link #listUsers()}. {@link #getInstance} загружает список сразу в
+ * потоке записи, а экраны читают через {@link #getUser(String, UserCallback)}
+ * и {@link #listUsers(UsersCallback)}, чтобы промах кэша не ходил в SQLite
+ * из главного потока.
+ *
+ * Изменения сразу видны в памяти и в галерее, а в SQLite уходят в фоновом
+ * потоке из одной очереди, поэтому применяются в том порядке, в каком
+ * сделаны. Подряд идущие правки профиля одного пользователя сливаются:
+ * задача записи берет из памяти самое свежее состояние. Удаление оставляет
+ * в памяти метку до записи в БД, чтобы подгрузка не вернула удаленного.
+ * Если строка так и не вставилась, пользователь убирается из памяти и
+ * галереи, а вызвавший узнает об этом через {@link AddFailureListener}.
+ *
+ * Каталог не видит записей в обход себя; после репликации и импорта
+ * вызывается {@link #invalidateShared}.
+ *
+ * Если задан сервер опознания, после каждой записи в БД изменения
+ * отправляются и на него ({@link ChangeFeed#pushToMatchServer}); неудачная
+ * отправка повторяется через {@link MatchClient#RETRY_AFTER_MS}.
+ */
+public class UserDirectory {
+    private static final String TAG = "UserDirectory";
+
+    private static UserDirectory instance;
+
+    /** Told on the write thread that a user accepted by {@link #addUser} was not stored. */
+    public interface AddFailureListener {
+        void onAddFailed(User user);
+    }
+
+    public interface UserCallback {
+        /** Called on the main thread; {@code user} is {@code null} if there is no such user. */
+        void onUser(User user);
+    }
+
+    public interface UsersCallback {
+        /** Called on the main thread with the same list as {@link #listUsers()}. */
+        void onUsers(List<User> users);
+    }
+
+    /** Immutable copy of a users row; {@code faceData} is {@code null} until loaded. */
+    private static final class Entry {
+        static final Entry DELETED = new Entry(null, null, null, null, 0, 0);
+
+        final String userId;
+        final String faceData;
+        final String name;
+        final String email;
+        final long registeredAt;
+        final long lastLoginAt;
+
+        Entry(String userId, String faceData, String name, String email, long registeredAt, long lastLoginAt) {
+            this.userId = userId;
+            this.faceData = faceData;
+            this.name = name;
+            this.email = email;
+            this.registeredAt = registeredAt;
+            this.lastLoginAt = lastLoginAt;
+        }
+
+        static Entry of(User user) {
+            return new Entry(user.getUserId(), user.getFaceData(), user.getName(), user.getEmail(),
+                    user.getRegisteredAt(), user.getLastLoginAt());
+        }
+
+        Entry withProfile(String name, String email, long lastLoginAt) {
+            return new Entry(userId, faceData, name, email, registeredAt, lastLoginAt);
+        }
+
+        Entry withFaceData(String faceData) {
+            return new Entry(userId, faceData, name, email, registeredAt, lastLoginAt);
+        }
+
+        User toUser() {
+            return new User(userId, faceData, name, email, registeredAt, lastLoginAt);
+        }
+    }
+
+    private final DatabaseHelper dbHelper;
+    private final MatchClient matchClient;
+    // Сеть не задерживает очередь записи: отправка на сервер идет своим потоком
+    private final ScheduledExecutorService pusher = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean pushQueued = new AtomicBoolean();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // Чтение для главного потока не ждет очереди записи
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object queueLock = new Object();
+    // Число еще не записанных в БД изменений каждого пользователя
+    private final Map<String, Integer> pendingWrites = new HashMap<>();
+    // Пользователи, у которых в очереди уже стоит запись профиля
+    private final Set<String> queuedProfiles = new HashSet<>();
+    private final Object listLock = new Object();
+    private volatile boolean listLoaded;
+
+    public static synchronized UserDirectory getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            DatabaseHelper dbHelper = new DatabaseHelper(appContext);
+            instance = new UserDirectory(dbHelper, new MatchClient(
+                    appContext.getString(R.string.match_server_url),
+                    appContext.getString(R.string.match_server_token),
+                    appContext.getResources().getInteger(R.integer.match_server_read_timeout_ms),
+                    dbHelper::identify));
+            // Список нужен входу и профилю, загружаем его до первого экрана
+            instance.writer.execute(instance::listUsers);
+            // Регистрации, сделанные без сервера или до его перезапуска
+            instance.pushToMatchServer();
+        }
+        return instance;
+    }
+
+    /**
+     * Drops cached rows of the shared directory after writes to
+     * {@code written} that bypassed it; writes to another database, e.g. a
+     * second kiosk in tests, leave it alone.
+     */
+    static void invalidateShared(DatabaseHelper written) {
+        UserDirectory directory;
+        synchronized (UserDirectory.class) {
+            directory = instance;
+        }
+        if (directory != null && directory.dbHelper.getDatabaseName().equals(written.getDatabaseName())) {
+            directory.invalidate();
+        }
+    }
+
+    UserDirectory(DatabaseHelper dbHelper) {
+        this(dbHelper, new MatchClient(null, dbHelper::identify));
+    }
+
+    UserDirectory(DatabaseHelper dbHelper, MatchClient matchClient) {
+        this.dbHelper = dbHelper;
+        this.matchClient = matchClient;
+    }
+
+    /** Identification through the match server, falling back to {@link DatabaseHelper#identify}. */
+    public MatchClient getMatchClient() {
+        return matchClient;
+    }
+
+    /** Shared helper for the face gallery and other queries the directory does not cache. */
+    public DatabaseHelper getDatabaseHelper() {
+        return dbHelper;
+    }
+
+    /**
+     * Returns a copy of the user, loading it from the database on the first
+     * access; on the main thread use {@link #getUser(String, UserCallback)}.
+     */
+    public User getUser(String userId) {
+        Entry entry = entries.get(userId);
+        if (entry == Entry.DELETED) {
+            return null;
+        }
+        if (entry != null && entry.faceData != null) {
+            return entry.toUser();
+        }
+        if (entry == null && listLoaded) {
+            // Список загружен целиком, и такого пользователя в нем нет
+            return null;
+        }
+        User user = dbHelper.getUser(userId);
+        if (user == null) {
+            return null;
+        }
+        Entry loaded = Entry.of(user);
+        // Запись, сделанная в памяти, пока шло чтение, новее прочитанной
+        Entry current = entries.compute(userId, (id, cached) -> {
+            if (cached == null) {
+                return loaded;
+            }
+            if (cached != Entry.DELETED && cached.faceData == null) {
+                return cached.withFaceData(loaded.faceData);
+            }
+            return cached;
+        });
+        return current == Entry.DELETED ? null : current.toUser();
+    }
+
+    /** Looks the user up in the background, see {@link #getUser(String)}. */
+    public void getUser(String userId, UserCallback callback) {
+        reader.execute(() -> {
+            User user = getUser(userId);
+            mainHandler.post(() -> callback.onUser(user));
+        });
+    }
+
+    /** Lists users in the background, see {@link #listUsers()}. */
+    public void listUsers(UsersCallback callback) {
+        reader.execute(() -> {
+            List<User> users = listUsers();
+            mainHandler.post(() -> callback.onUsers(users));
+        });
+    }
+
+    /**
+     * All users ordered by ID; face data is {@code null} unless the user was
+     * loaded by {@link #getUser}. The first call reads the database.
+     */
+    public List<User> listUsers() {
+        if (!listLoaded) {
+            synchronized (listLock) {
+                if (!listLoaded) {
+                    for (User user : dbHelper.getUserProfiles()) {
+                        entries.putIfAbsent(user.getUserId(), Entry.of(user));
+                    }
+                    listLoaded = true;
+                }
+            }
+        }
+        List<User> users = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry != Entry.DELETED) {
+                users.add(entry.toUser());
+            }
+        }
+        Collections.sort(users, (a, b) -> a.getUserId().compareTo(b.getUserId()));
+        return users;
+    }
+
+    /** Same as {@link #addUser(User, AddFailureListener)} with no one to tell about a failed insert. */
+    public boolean addUser(User user) {
+        return addUser(user, null);
+    }
+
+    /**
+     * Adds a user unless the ID is taken. The user is visible and matchable
+     * at once; the row is inserted in the background. If the insert fails,
+     * the user is dropped again and {@code failureListener} is called.
+     * May read the database, so call it off the main thread.
+     */
+    public boolean addUser(User user, AddFailureListener failureListener) {
+        String userId = user.getUserId();
+        if (getUser(userId) != null) {
+            return false;
+        }
+        long registeredAt = user.getRegisteredAt() != 0 ? user.getRegisteredAt() : System.currentTimeMillis();
+        Entry entry = new Entry(userId, user.getFaceData(), user.getName(), user.getEmail(),
+                registeredAt, user.getLastLoginAt());
+        Entry previous = entries.putIfAbsent(userId, entry);
+        if (previous != null && !(previous == Entry.DELETED && entries.replace(userId, Entry.DELETED, entry))) {
+            // Тот же ID добавили параллельно
+            return false;
+        }
+        dbHelper.updateFaceGallery(userId, entry.faceData);
+        enqueue(userId, false, () -> {
+            boolean inserted;
+            try {
+                inserted = dbHelper.addUser(entry.toUser());
+                if (!inserted) {
+                    // Строку с тем же ID успела вставить репликация
+                    Log.w(TAG, "User " + userId + " was not inserted, reloading from database");
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to insert user " + userId, e);
+                inserted = false;
+            }
+            if (!inserted) {
+                entries.remove(userId, entry);
+                // В галерее остается строка из БД, если она есть, а не весь кэш сбрасывается
+                User stored;
+                try {
+                    stored = dbHelper.getUser(userId);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to reload user " + userId, e);
+                    stored = null;
+                }
+                if (stored != null) {
+                    dbHelper.updateFaceGallery(userId, stored.getFaceData());
+                } else {
+                    dbHelper.removeFromFaceGallery(userId);
+                }
+                if (failureListener != null) {
+                    failureListener.onAddFailed(entry.toUser());
+                }
+            }
+        });
+        return true;
+    }
+
+    public boolean updateProfile(String userId, String name, String email, long lastLoginAt) {
+        if (getUser(userId) == null) {
+            return false;
+        }
+        while (true) {
+            Entry current = entries.get(userId);
+            if (current == null || current == Entry.DELETED) {
+                return false;
+            }
+            if (entries.replace(userId, current, current.withProfile(name, email, lastLoginAt))) {
+                break;
+            }
+        }
+        enqueue(userId, true, () -> writeProfile(userId));
+        return true;
+    }
+
+    public boolean deleteUser(String userId) {
+        if (getUser(userId) == null) {
+            return false;
+        }
+        Entry previous = entries.put(userId, Entry.DELETED);
+        if (previous == null || previous == Entry.DELETED) {
+            return false;
+        }
+        dbHelper.removeFromFaceGallery(userId);
+        enqueue(userId, false, () -> {
+            dbHelper.deleteUser(userId);
+            entries.remove(userId, Entry.DELETED);
+        });
+        return true;
+    }
+
+    /**
+     * Drops cached rows once the writes queued so far are in the database,
+     * so the next reads go to SQLite. Rows with writes still queued stay.
+     * The changes that bypassed the directory are pushed to the match server.
+     */
+    public void invalidate() {
+        writer.execute(() -> {
+            synchronized (listLock) {
+                synchronized (queueLock) {
+                    listLoaded = false;
+                    entries.keySet().removeIf(userId -> !pendingWrites.containsKey(userId));
+                }
+            }
+            pushToMatchServer();
+        });
+    }
+
+    /** Blocks until every write queued before this call is in the database. */
+    public void flush() throws InterruptedException {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends changes the match server does not have yet, in the background.
+     * Calls made while a push is waiting are merged into it.
+     */
+    public void pushToMatchServer() {
+        if (matchClient.getEndpoint() == null || !pushQueued.compareAndSet(false, true)) {
+            return;
+        }
+        pusher.execute(() -> {
+            pushQueued.set(false);
+            try {
+                new ChangeFeed(dbHelper).pushToMatchServer(matchClient);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Push to match server failed, retrying later", e);
+                pusher.schedule(this::pushToMatchServer, MatchClient.RETRY_AFTER_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    // Добавление и удаление не сливаются: следующая правка профиля встанет за ними в очередь
+    private void enqueue(String userId, boolean profile, Runnable write) {
+        synchronized (queueLock) {
+            if (profile) {
+                if (!queuedProfiles.add(userId)) {
+                    return;
+                }
+            } else {
+                queuedProfiles.remove(userId);
+            }
+            pendingWrites.merge(userId, 1, Integer::sum);
+            writer.execute(() -> {
+                try {
+                    write.run();
+                } finally {
+                    synchronized (queueLock) {
+                        pendingWrites.computeIfPresent(userId, (id, count) -> count == 1 ? null : count - 1);
+                    }
+                }
+                if (!profile) {
+                    // Шаблоны меняются только добавлением и удалением, правка профиля серверу не нужна
+                    pushToMatchServer();
+                }
+            });
+        }
+    }
+
+    private void writeProfile(String userId) {
+        synchronized (queueLock) {
+            queuedProfiles.remove(userId);
+        }
+        Entry entry = entries.get(userId);
+        if (entry == null || entry == Entry.DELETED) {
+            return;
+        }
+        if (!dbHelper.updateProfile(userId, entry.name, entry.email, entry.lastLoginAt)) {
+            Log.w(TAG, "User " + userId + " no longer exists, profile not saved");
+        }
+    }
+}
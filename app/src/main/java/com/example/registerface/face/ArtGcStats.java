@@ -0,0 +1,34 @@
+package com.example.registerface.face;
+
+import android.os.Debug;
+
+/**
+ * Счетчики сборок мусора ART для {@link FrameMonitor}. {@code Debug.getRuntimeStat}
+ * отдает строки; если статистика недоступна, считаем нули.
+ */
+public class ArtGcStats implements FrameMonitor.GcStats {
+    private static final String GC_COUNT = "art.gc.gc-count";
+    private static final String GC_TIME = "art.gc.gc-time";
+
+    @Override
+    public long gcCount() {
+        return read(GC_COUNT);
+    }
+
+    @Override
+    public long gcTimeMillis() {
+        return read(GC_TIME);
+    }
+
+    private static long read(String stat) {
+        String value = Debug.getRuntimeStat(stat);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
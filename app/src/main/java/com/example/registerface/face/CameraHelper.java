@@ -1,85 +1,72 @@
 package com.example.registerface.face;
 
-import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.camera.core.CameraSelector;
-import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageProxy;
-import androidx.camera.core.Preview;
-import androidx.camera.lifecycle.ProcessCameraProvider;
-import androidx.camera.view.PreviewView;
-import androidx.core.content.ContextCompat;
-import androidx.lifecycle.LifecycleOwner;
 
-import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.Executor;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-public class CameraHelper {
+/**
+ * Живой источник кадров: фронтальная камера {@link ScanController} и
+ * детектор ML Kit. Одно сканирование: {@link #start()} ставит анализатор,
+ * {@link #stop()} снимает его, камера при этом остается привязанной.
+ */
+public class CameraHelper implements FrameSource {
     private static final String TAG = "CameraHelper";
-    private final Context context;
-    private final PreviewView previewView;
-    private final ExecutorService cameraExecutor;
+    private final ScanController scanController;
     private final FaceDetectorHelper faceDetectorHelper;
-    private ProcessCameraProvider cameraProvider;
+    private final FrameMonitor monitor = FrameMonitor.getInstance();
+    private final DetectorLoadController loadController;
 
-    public CameraHelper(Context context, PreviewView previewView, FaceDetectorHelper.FaceDetectorListener listener) {
-        this.context = context;
-        this.previewView = previewView;
-        this.cameraExecutor = Executors.newSingleThreadExecutor();
-        this.faceDetectorHelper = new FaceDetectorHelper(listener);
+    public CameraHelper(ScanController scanController, FaceDetectorHelper.FaceDetectorListener listener) {
+        this(scanController, listener, null);
     }
 
-    public void startCamera(LifecycleOwner lifecycleOwner) {
-        ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(context);
-
-        cameraProviderFuture.addListener(() -> {
-            try {
-                cameraProvider = cameraProviderFuture.get();
-                bindCameraUseCases(lifecycleOwner);
-            } catch (ExecutionException | InterruptedException e) {
-                Log.e(TAG, "Error starting camera", e);
-            }
-        }, ContextCompat.getMainExecutor(context));
+    /**
+     * @param callbackExecutor executor for detection callbacks, see
+     *                         {@link FaceDetectorHelper#FaceDetectorHelper(FaceDetectorHelper.FaceDetectorListener, Executor)}
+     */
+    public CameraHelper(ScanController scanController, FaceDetectorHelper.FaceDetectorListener listener,
+                        Executor callbackExecutor) {
+        this(scanController, listener, callbackExecutor, DetectorLoadController.getInstance());
     }
 
-    private void bindCameraUseCases(LifecycleOwner lifecycleOwner) {
-        CameraSelector cameraSelector = new CameraSelector.Builder()
-                .requireLensFacing(CameraSelector.LENS_FACING_FRONT)
-                .build();
-
-        Preview preview = new Preview.Builder().build();
-        preview.setSurfaceProvider(previewView.getSurfaceProvider());
-
-        ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
-                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
-                .build();
-
-        imageAnalysis.setAnalyzer(cameraExecutor, this::analyzeImage);
+    /**
+     * @param loadController load level of this scan: the shared ladder, or
+     *                       {@link DetectorLoadController#pinned} for a fixed level
+     */
+    public CameraHelper(ScanController scanController, FaceDetectorHelper.FaceDetectorListener listener,
+                        Executor callbackExecutor, DetectorLoadController loadController) {
+        this.scanController = scanController;
+        this.loadController = loadController;
+        this.faceDetectorHelper = new FaceDetectorHelper(listener, callbackExecutor, loadController);
+    }
 
-        try {
-            cameraProvider.unbindAll();
-            cameraProvider.bindToLifecycle(
-                    lifecycleOwner,
-                    cameraSelector,
-                    preview,
-                    imageAnalysis
-            );
-        } catch (Exception e) {
-            Log.e(TAG, "Error binding camera use cases", e);
-        }
+    @Override
+    public void start() {
+        scanController.setAnalyzer(this::analyzeImage, loadController.getLevel());
     }
 
     private void analyzeImage(@NonNull ImageProxy image) {
-        faceDetectorHelper.detectFaces(image)
-                .addOnCompleteListener(task -> image.close());
+        long timestampNanos = image.getImageInfo().getTimestamp();
+        monitor.onFrameArrived(timestampNanos);
+        FrameMonitor.Summary summary = monitor.summaryIfDue(timestampNanos);
+        if (summary != null) {
+            Log.d(TAG, "Frame stats: " + summary + "; detector " + loadController);
+        }
+        // На легких уровнях нагрузки анализируется не каждый кадр
+        if (!loadController.acceptFrame(timestampNanos)) {
+            image.close();
+            return;
+        }
+        // detectFaces закрывает кадр сам, как только детектор закончил с пикселями
+        faceDetectorHelper.detectFaces(image);
     }
 
-    public void shutdown() {
-        cameraExecutor.shutdown();
+    @Override
+    public void stop() {
+        scanController.clearAnalyzer();
+        faceDetectorHelper.close();
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package com.example.registerface.face;
+
+/**
+ * Приводит контур лица к фиксированному числу точек, равномерно
+ * распределенных по длине дуги. Благодаря этому точка с индексом i
+ * в любом шаблоне соответствует одному и тому же участку контура,
+ * а сравнение контуров идет циклом фиксированной длины.
+ */
+public final class ContourResampler {
+    public static final int POINTS = 20;
+    /** Длина массива контура: POINTS пар (x, y). */
+    public static final int SLOTS = POINTS * 2;
+
+    private ContourResampler() {
+    }
+
+    /**
+     * Resamples a closed polyline given as interleaved (x, y) pairs into
+     * {@link #POINTS} points spaced evenly by arc length, starting at the
+     * first input point.
+     *
+     * @param xy         interleaved coordinates, at least {@code pointCount * 2} long
+     * @param pointCount number of input points
+     * @param out        destination of length {@link #SLOTS}
+     */
+    public static void resample(float[] xy, int pointCount, float[] out) {
+        if (pointCount <= 0) {
+            throw new IllegalArgumentException("Empty contour");
+        }
+
+        // Общая длина замкнутого контура, включая отрезок от последней точки к первой
+        float perimeter = 0f;
+        for (int i = 0; i < pointCount; i++) {
+            int j = (i + 1) % pointCount;
+            perimeter += segmentLength(xy, i, j);
+        }
+
+        if (pointCount == 1 || perimeter == 0f) {
+            for (int k = 0; k < SLOTS; k += 2) {
+                out[k] = xy[0];
+                out[k + 1] = xy[1];
+            }
+            return;
+        }
+
+        float spacing = perimeter / POINTS;
+        int segment = 0;
+        float segmentStart = 0f;
+        float segmentLength = segmentLength(xy, 0, 1 % pointCount);
+
+        for (int k = 0; k < POINTS; k++) {
+            float target = k * spacing;
+            while (segmentStart + segmentLength < target && segment < pointCount - 1) {
+                segmentStart += segmentLength;
+                segment++;
+                segmentLength = segmentLength(xy, segment, (segment + 1) % pointCount);
+            }
+
+            int a = segment * 2;
+            int b = ((segment + 1) % pointCount) * 2;
+            float t = segmentLength > 0f ? (target - segmentStart) / segmentLength : 0f;
+            if (t < 0f) t = 0f;
+            if (t > 1f) t = 1f;
+            out[k * 2] = xy[a] + (xy[b] - xy[a]) * t;
+            out[k * 2 + 1] = xy[a + 1] + (xy[b + 1] - xy[a + 1]) * t;
+        }
+    }
+
+    /**
+     * Parses the {@code faceContour} value of a face data string into a
+     * fixed {@link #SLOTS}-long array. Templates stored before resampling was
+     * introduced carry a different number of points and are resampled here,
+     * so old and new templates stay comparable.
+     *
+     * @return the contour, or {@code null} if no valid point could be read
+     */
+    public static float[] parse(String contourData) {
+        if (contourData == null || contourData.isEmpty()) {
+            return null;
+        }
+
+        String[] points = contourData.split(";");
+        float[] xy = new float[points.length * 2];
+        int count = 0;
+        for (String point : points) {
+            String[] coords = point.split(",");
+            if (coords.length != 2) {
+                continue;
+            }
+            try {
+                xy[count * 2] = Float.parseFloat(coords[0]);
+                xy[count * 2 + 1] = Float.parseFloat(coords[1]);
+                count++;
+            } catch (NumberFormatException ignored) {
+                // Пропускаем поврежденную точку
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        float[] out = new float[SLOTS];
+        if (count == POINTS) {
+            System.arraycopy(xy, 0, out, 0, SLOTS);
+        } else {
+            resample(xy, count, out);
+        }
+        return out;
+    }
+
+    private static float segmentLength(float[] xy, int i, int j) {
+        float dx = xy[j * 2] - xy[i * 2];
+        float dy = xy[j * 2 + 1] - xy[i * 2 + 1];
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.registerface.face;
+
+/**
+ * Результат детектора для одного лица, не зависящий от ML Kit: рамка,
+ * углы головы, вероятности, шесть используемых точек лица и контур FACE в
+ * координатах кадра. Живая камера заполняет его из {@code Face}, а
+ * {@link ReplayFrameSource} читает из записи, поэтому извлечение шаблона
+ * и сравнение работают одинаково в обоих случаях.
+ */
+public final class DetectedFace {
+    private static final float[] NO_CONTOUR = new float[0];
+
+    private final long timestampNanos;
+    private final Integer trackingId;
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+    private final float headEulerX;
+    private final float headEulerY;
+    private final float headEulerZ;
+    private final Float smilingProbability;
+    private final Float leftEyeOpenProbability;
+    private final Float rightEyeOpenProbability;
+    // Пары (x, y) в порядке FaceTemplate.LANDMARK_KEYS
+    private final float[] landmarks;
+    private final int landmarkMask;
+    private final float[] contour;
+
+    private DetectedFace(Builder builder) {
+        this.timestampNanos = builder.timestampNanos;
+        this.trackingId = builder.trackingId;
+        this.left = builder.left;
+        this.top = builder.top;
+        this.right = builder.right;
+        this.bottom = builder.bottom;
+        this.headEulerX = builder.headEulerX;
+        this.headEulerY = builder.headEulerY;
+        this.headEulerZ = builder.headEulerZ;
+        this.smilingProbability = builder.smilingProbability;
+        this.leftEyeOpenProbability = builder.leftEyeOpenProbability;
+        this.rightEyeOpenProbability = builder.rightEyeOpenProbability;
+        this.landmarks = builder.landmarks;
+        this.landmarkMask = builder.landmarkMask;
+        this.contour = builder.contour;
+    }
+
+    /** Timestamp of the camera frame the face was detected in. */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public Integer getTrackingId() {
+        return trackingId;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getRight() {
+        return right;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    public int getWidth() {
+        return right - left;
+    }
+
+    public int getHeight() {
+        return bottom - top;
+    }
+
+    public float getHeadEulerAngleX() {
+        return headEulerX;
+    }
+
+    public float getHeadEulerAngleY() {
+        return headEulerY;
+    }
+
+    public float getHeadEulerAngleZ() {
+        return headEulerZ;
+    }
+
+    public Float getSmilingProbability() {
+        return smilingProbability;
+    }
+
+    public Float getLeftEyeOpenProbability() {
+        return leftEyeOpenProbability;
+    }
+
+    public Float getRightEyeOpenProbability() {
+        return rightEyeOpenProbability;
+    }
+
+    /** @param index index into {@link FaceTemplate#LANDMARK_KEYS} */
+    public boolean hasLandmark(int index) {
+        return (landmarkMask & (1 << index)) != 0;
+    }
+
+    public int getLandmarkMask() {
+        return landmarkMask;
+    }
+
+    public float getLandmarkX(int index) {
+        return landmarks[index * 2];
+    }
+
+    public float getLandmarkY(int index) {
+        return landmarks[index * 2 + 1];
+    }
+
+    public int getContourPointCount() {
+        return contour.length / 2;
+    }
+
+    /** Interleaved (x, y) contour points; must not be modified. */
+    public float[] getContour() {
+        return contour;
+    }
+
+    public static class Builder {
+        private long timestampNanos;
+        private Integer trackingId;
+        private int left;
+        private int top;
+        private int right;
+        private int bottom;
+        private float headEulerX;
+        private float headEulerY;
+        private float headEulerZ;
+        private Float smilingProbability;
+        private Float leftEyeOpenProbability;
+        private Float rightEyeOpenProbability;
+        private final float[] landmarks = new float[FaceTemplate.LANDMARK_COUNT * 2];
+        private int landmarkMask;
+        private float[] contour = NO_CONTOUR;
+
+        public Builder setTimestampNanos(long timestampNanos) {
+            this.timestampNanos = timestampNanos;
+            return this;
+        }
+
+        public Builder setTrackingId(Integer trackingId) {
+            this.trackingId = trackingId;
+            return this;
+        }
+
+        public Builder setBounds(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            return this;
+        }
+
+        public Builder setHeadEulerAngles(float x, float y, float z) {
+            this.headEulerX = x;
+            this.headEulerY = y;
+            this.headEulerZ = z;
+            return this;
+        }
+
+        public Builder setProbabilities(Float smiling, Float leftEyeOpen, Float rightEyeOpen) {
+            this.smilingProbability = smiling;
+            this.leftEyeOpenProbability = leftEyeOpen;
+            this.rightEyeOpenProbability = rightEyeOpen;
+            return this;
+        }
+
+        /** @param index index into {@link FaceTemplate#LANDMARK_KEYS} */
+        public Builder setLandmark(int index, float x, float y) {
+            landmarks[index * 2] = x;
+            landmarks[index * 2 + 1] = y;
+            landmarkMask |= 1 << index;
+            return this;
+        }
+
+        /** @param contour interleaved (x, y) points; the array is kept, not copied */
+        public Builder setContour(float[] contour) {
+            this.contour = contour != null ? contour : NO_CONTOUR;
+            return this;
+        }
+
+        public DetectedFace build() {
+            return new DetectedFace(this);
+        }
+    }
+}
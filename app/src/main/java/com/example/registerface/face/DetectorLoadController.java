@@ -0,0 +1,223 @@
+package com.example.registerface.face;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Подстраивает нагрузку детектора под устройство. Следит за скользящим p90
+ * задержки детектора и переходит по лестнице {@link #LEVELS}: сначала
+ * быстрый режим вместо точного, затем без контура, затем меньшее
+ * разрешение и реже анализ. Гистерезис: вниз по лестнице, когда p90 дольше
+ * {@link #DOWNGRADE_HOLD_NANOS} выше бюджета; обратно вверх, только когда он
+ * {@link #BASE_UPGRADE_HOLD_NANOS} ниже половины бюджета. Если подъем
+ * быстро откатился, следующая попытка ждет вдвое дольше, поэтому на
+ * границе уровней переключение не зацикливается.
+ *
+ * Регистрации нужен лучший шаблон, а не скорость: для нее
+ * {@link #pinned(int)} дает контроллер, который держит один уровень и не
+ * влияет на общий.
+ *
+ * Чистая Java, время берется из {@link Clock}. Потокобезопасен.
+ */
+public final class DetectorLoadController {
+    public static final long DEFAULT_BUDGET_NANOS = 100_000_000L;
+    static final int WINDOW = 15;
+    // Меньше замеров после смены уровня не хватает для решения
+    static final int MIN_SAMPLES = 5;
+    static final float UPGRADE_FRACTION = 0.5f;
+    static final long DOWNGRADE_HOLD_NANOS = 1_000_000_000L;
+    static final long BASE_UPGRADE_HOLD_NANOS = 5_000_000_000L;
+    static final long MAX_UPGRADE_HOLD_NANOS = 80_000_000_000L;
+    // Откат раньше этого срока после подъема считается неудачным подъемом
+    static final long FAILED_UPGRADE_NANOS = 10_000_000_000L;
+
+    /** One step of the ladder; index 0 is the heaviest. */
+    public static final class Level {
+        public final String name;
+        public final boolean accurate;
+        public final boolean contours;
+        /** Target analysis resolution, long side × short side. */
+        public final int longSide;
+        public final int shortSide;
+        /** Frames closer than this are not analyzed; 0 analyzes every frame. */
+        public final long minFrameIntervalNanos;
+
+        Level(String name, boolean accurate, boolean contours, int longSide, int shortSide, int maxFps) {
+            this.name = name;
+            this.accurate = accurate;
+            this.contours = contours;
+            this.longSide = longSide;
+            this.shortSide = shortSide;
+            this.minFrameIntervalNanos = maxFps == 0 ? 0 : 1_000_000_000L / maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static final Level[] LEVELS = {
+            new Level("accurate+contour 640x480", true, true, 640, 480, 0),
+            new Level("fast+contour 640x480", false, true, 640, 480, 0),
+            new Level("fast 640x480", false, false, 640, 480, 0),
+            new Level("fast 480x360", false, false, 480, 360, 0),
+            new Level("fast 480x360 15fps", false, false, 480, 360, 15),
+            new Level("fast 320x240 10fps", false, false, 320, 240, 10),
+    };
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = System::nanoTime;
+
+    private static DetectorLoadController instance;
+
+    private final Clock clock;
+    private final long budgetNanos;
+    private final boolean pinned;
+    private final long[] window = new long[WINDOW];
+    private int samples;
+    private int level;
+    private long overBudgetSince = -1;
+    private long underBudgetSince = -1;
+    private long upgradeHoldNanos = BASE_UPGRADE_HOLD_NANOS;
+    private long lastUpgradeNanos = -1;
+    private long lastAcceptedFrameNanos = Long.MIN_VALUE;
+    private long levelChanges;
+
+    /** Один на процесс: возможности устройства не зависят от экрана. */
+    public static synchronized DetectorLoadController getInstance() {
+        if (instance == null) {
+            instance = new DetectorLoadController(SYSTEM_CLOCK, DEFAULT_BUDGET_NANOS);
+        }
+        return instance;
+    }
+
+    public DetectorLoadController(Clock clock, long budgetNanos) {
+        this(clock, budgetNanos, 0, false);
+    }
+
+    private DetectorLoadController(Clock clock, long budgetNanos, int level, boolean pinned) {
+        this.clock = clock;
+        this.budgetNanos = budgetNanos;
+        this.level = level;
+        this.pinned = pinned;
+    }
+
+    /**
+     * Controller that stays at {@code LEVELS[levelIndex]} whatever the
+     * latency. It still records latencies for {@link #toString()}, but the
+     * shared controller from {@link #getInstance()} does not see them.
+     */
+    public static DetectorLoadController pinned(int levelIndex) {
+        if (levelIndex < 0 || levelIndex >= LEVELS.length) {
+            throw new IllegalArgumentException("No load level " + levelIndex);
+        }
+        return new DetectorLoadController(SYSTEM_CLOCK, DEFAULT_BUDGET_NANOS, levelIndex, true);
+    }
+
+    public synchronized Level getLevel() {
+        return LEVELS[level];
+    }
+
+    public synchronized int getLevelIndex() {
+        return level;
+    }
+
+    public synchronized long getLevelChanges() {
+        return levelChanges;
+    }
+
+    /** 90th percentile of the detector latency since the last level change, 0 without samples. */
+    public synchronized long rollingLatencyNanos() {
+        int filled = Math.min(samples, WINDOW);
+        if (filled == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(window, filled);
+        Arrays.sort(sorted);
+        return sorted[Math.min(filled - 1, (int) Math.ceil(0.9 * filled) - 1)];
+    }
+
+    /**
+     * Records one detector latency.
+     *
+     * @return {@code true} if the level changed and the detector must be reconfigured
+     */
+    public synchronized boolean onDetectionFinished(long latencyNanos) {
+        long now = clock.nanoTime();
+        window[samples % WINDOW] = latencyNanos;
+        samples++;
+        if (lastUpgradeNanos >= 0 && now - lastUpgradeNanos >= FAILED_UPGRADE_NANOS) {
+            // Подъем прижился: следующий снова ждет базовое время
+            lastUpgradeNanos = -1;
+            upgradeHoldNanos = BASE_UPGRADE_HOLD_NANOS;
+        }
+        if (pinned || samples < MIN_SAMPLES) {
+            return false;
+        }
+
+        long latency = rollingLatencyNanos();
+        if (latency > budgetNanos) {
+            underBudgetSince = -1;
+            if (overBudgetSince < 0) {
+                overBudgetSince = now;
+            }
+            if (now - overBudgetSince >= DOWNGRADE_HOLD_NANOS && level < LEVELS.length - 1) {
+                if (lastUpgradeNanos >= 0) {
+                    upgradeHoldNanos = Math.min(upgradeHoldNanos * 2, MAX_UPGRADE_HOLD_NANOS);
+                    lastUpgradeNanos = -1;
+                }
+                setLevel(level + 1);
+                return true;
+            }
+        } else if (latency < budgetNanos * UPGRADE_FRACTION) {
+            overBudgetSince = -1;
+            if (underBudgetSince < 0) {
+                underBudgetSince = now;
+            }
+            if (now - underBudgetSince >= upgradeHoldNanos && level > 0) {
+                lastUpgradeNanos = now;
+                setLevel(level - 1);
+                return true;
+            }
+        } else {
+            overBudgetSince = -1;
+            underBudgetSince = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a frame with the given camera timestamp should be analyzed at
+     * the current level's rate. Accepted frames start the next interval.
+     */
+    public synchronized boolean acceptFrame(long frameTimestampNanos) {
+        long interval = LEVELS[level].minFrameIntervalNanos;
+        // Допуск в восьмую часть интервала на дрожание меток кадров
+        if (interval > 0 && lastAcceptedFrameNanos != Long.MIN_VALUE
+                && frameTimestampNanos - lastAcceptedFrameNanos < interval - interval / 8) {
+            return false;
+        }
+        lastAcceptedFrameNanos = frameTimestampNanos;
+        return true;
+    }
+
+    private void setLevel(int newLevel) {
+        level = newLevel;
+        levelChanges++;
+        // Замеры старого уровня к новому не относятся
+        samples = 0;
+        overBudgetSince = -1;
+        underBudgetSince = -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "level %d (%s%s), p90 %.1f ms, budget %.0f ms, %d changes",
+                level, LEVELS[level], pinned ? ", pinned" : "", rollingLatencyNanos() / 1e6, budgetNanos / 1e6,
+                levelChanges);
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.registerface.face;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Источник {@link FaceStream}: принимает результаты детектора как слушатель
+ * и раздает их подписчикам по их спросу. Пока спроса нет, у каждого
+ * подписчика хранится только последний кадр — новый заменяет ожидающий, так
+ * что очередь кадров не растет. Все сигналы подписчикам идут из одного
+ * фонового потока этого источника.
+ */
+public class FaceEventPublisher implements FaceDetectorHelper.FaceDetectorListener, FaceStream.Publisher<FaceFrame> {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final List<FrameSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private volatile boolean closed;
+
+    @Override
+    public void subscribe(FaceStream.Subscriber<? super FaceFrame> subscriber) {
+        FrameSubscription subscription = new FrameSubscription(subscriber);
+        // onSubscribe ставится в очередь раньше любого кадра этому подписчику
+        if (!execute(() -> subscriber.onSubscribe(subscription))) {
+            subscriber.onError(new IllegalStateException("Publisher is closed"));
+            return;
+        }
+        subscriptions.add(subscription);
+    }
+
+    @Override
+    public void onFaceDetected(List<DetectedFace> faces) {
+        if (closed) {
+            return;
+        }
+        FaceFrame frame = new FaceFrame(faces.isEmpty() ? 0 : faces.get(0).getTimestampNanos(), faces);
+        for (FrameSubscription subscription : subscriptions) {
+            subscription.offer(frame);
+        }
+    }
+
+    @Override
+    public void onFaceDetectionError(Exception e) {
+        for (FrameSubscription subscription : subscriptions) {
+            subscription.terminate(e);
+        }
+    }
+
+    /** Completes all subscribers; frames still waiting for demand are dropped. */
+    public void close() {
+        closed = true;
+        for (FrameSubscription subscription : subscriptions) {
+            subscription.terminate(null);
+        }
+        executor.shutdown();
+    }
+
+    /** Frames replaced before any subscriber asked for them. */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private final class FrameSubscription implements FaceStream.Subscription {
+        private final FaceStream.Subscriber<? super FaceFrame> subscriber;
+        private long demand;
+        private FaceFrame pending;
+        private boolean terminated;
+        private Throwable error;
+        private boolean cancelled;
+        private boolean drainScheduled;
+
+        FrameSubscription(FaceStream.Subscriber<? super FaceFrame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(FaceFrame frame) {
+            synchronized (this) {
+                if (cancelled || terminated) {
+                    return;
+                }
+                if (pending != null) {
+                    framesDropped.incrementAndGet();
+                }
+                pending = frame;
+            }
+            scheduleDrain();
+        }
+
+        void terminate(Throwable cause) {
+            synchronized (this) {
+                if (cancelled || terminated) {
+                    return;
+                }
+                terminated = true;
+                error = cause;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(new IllegalArgumentException("Demand must be positive: " + n));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pending = null;
+            }
+            subscriptions.remove(this);
+        }
+
+        private void scheduleDrain() {
+            synchronized (this) {
+                if (drainScheduled) {
+                    return;
+                }
+                drainScheduled = true;
+            }
+            if (!execute(this::drain)) {
+                // Источник закрыт, а сигнал завершения уже в очереди или выдан
+                synchronized (this) {
+                    drainScheduled = false;
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                FaceFrame frame;
+                synchronized (this) {
+                    if (cancelled) {
+                        drainScheduled = false;
+                        return;
+                    }
+                    if (terminated) {
+                        // Завершение не ждет спроса
+                        cancelled = true;
+                        pending = null;
+                        drainScheduled = false;
+                        frame = null;
+                    } else if (pending != null && demand > 0) {
+                        frame = pending;
+                        pending = null;
+                        demand--;
+                    } else {
+                        drainScheduled = false;
+                        return;
+                    }
+                }
+                if (frame == null) {
+                    subscriptions.remove(this);
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                subscriber.onNext(frame);
+            }
+        }
+    }
+}
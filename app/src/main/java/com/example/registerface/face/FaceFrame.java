@@ -0,0 +1,35 @@
+package com.example.registerface.face;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Результат детектора для одного кадра: элемент потока {@link FaceEventPublisher}.
+ */
+public final class FaceFrame {
+    private final long timestampNanos;
+    private final List<DetectedFace> faces;
+
+    public FaceFrame(long timestampNanos, List<DetectedFace> faces) {
+        this.timestampNanos = timestampNanos;
+        this.faces = Collections.unmodifiableList(faces);
+    }
+
+    /** Camera timestamp of the frame, 0 for a frame without faces. */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public List<DetectedFace> getFaces() {
+        return faces;
+    }
+
+    public boolean isEmpty() {
+        return faces.isEmpty();
+    }
+
+    /** First face reported by the detector, or {@code null} for an empty frame. */
+    public DetectedFace getPrimaryFace() {
+        return faces.isEmpty() ? null : faces.get(0);
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.registerface.face;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Галерея шаблонов для поиска 1:N. Записи в формате {@link QuantizedTemplate}
+ * лежат вне кучи Java, в одном direct {@link ByteBuffer} по столбцам: каждая
+ * координата и каждый признак — свой непрерывный столбец. В куче остаются
+ * только массив ID по номеру строки и индекс ID → строка, поэтому размер
+ * галереи почти не влияет на сборку мусора, а поиск не создает объектов.
+ * Удаление сразу уплотняет галерею, перенося последнюю строку на место
+ * удаленной; когда заполнено меньше четверти буфера, он уменьшается вдвое.
+ * Потокобезопасна.
+ */
+public final class FaceGallery {
+    private static final int INITIAL_CAPACITY = 256;
+    // Записей галереи на блок в пакетном поиске: ~19 КБ, помещается в L1 вместе с пробами
+    static final int BLOCK_RECORDS = 256;
+
+    public static final class Match {
+        public final String userId;
+        public final float similarityPercentage;
+
+        Match(String userId, float similarityPercentage) {
+            this.userId = userId;
+            this.similarityPercentage = similarityPercentage;
+        }
+    }
+
+    private ByteBuffer records;
+    private int capacity;
+    private String[] userIds;
+    private final Map<String, Integer> slots;
+    private int size;
+
+    public FaceGallery() {
+        capacity = INITIAL_CAPACITY;
+        records = QuantizedTemplate.allocate(capacity, true);
+        userIds = new String[capacity];
+        slots = new HashMap<>();
+    }
+
+    private FaceGallery(Builder builder, int size) {
+        this.records = builder.records;
+        this.capacity = builder.capacity;
+        this.userIds = builder.userIds;
+        this.size = size;
+        this.slots = new HashMap<>(Math.max(16, size * 4 / 3 + 1));
+        for (int i = 0; i < size; i++) {
+            slots.put(userIds[i], i);
+        }
+    }
+
+    /**
+     * Заранее выделенный буфер для массовой загрузки: несколько потоков
+     * пишут каждый в свои строки без блокировок, затем {@link #build}
+     * создает галерею. Вызов build должен идти после завершения всех
+     * записей (например, после {@code Future.get()}).
+     */
+    public static final class Builder {
+        final ByteBuffer records;
+        final int capacity;
+        final String[] userIds;
+
+        public Builder(int capacity) {
+            this.capacity = Math.max(capacity, 1);
+            records = QuantizedTemplate.allocate(this.capacity, true);
+            userIds = new String[this.capacity];
+        }
+
+        public int capacity() {
+            return capacity;
+        }
+
+        /** Slots written by different threads must not overlap. */
+        public void set(int slot, String userId, FaceTemplate template) {
+            userIds[slot] = userId;
+            // Абсолютная запись не трогает позицию буфера, поэтому строки можно писать параллельно
+            QuantizedTemplate.encode(template, records, capacity, slot);
+        }
+
+        /** @param size number of slots filled, {@code [0, size)} */
+        public FaceGallery build(int size) {
+            return new FaceGallery(this, size);
+        }
+    }
+
+    /** Adds or replaces the template of {@code userId}. */
+    public synchronized void put(String userId, FaceTemplate template) {
+        Integer slot = slots.get(userId);
+        if (slot == null) {
+            ensureCapacity(size + 1);
+            slot = size++;
+            userIds[slot] = userId;
+            slots.put(userId, slot);
+        }
+        QuantizedTemplate.encode(template, records, capacity, slot);
+    }
+
+    public void put(String userId, String faceData) {
+        put(userId, FaceTemplate.parse(faceData));
+    }
+
+    public synchronized boolean remove(String userId) {
+        Integer slot = slots.remove(userId);
+        if (slot == null) {
+            return false;
+        }
+        int last = --size;
+        if (slot != last) {
+            QuantizedTemplate.copyRecord(records, capacity, last, slot);
+            userIds[slot] = userIds[last];
+            slots.put(userIds[slot], slot);
+        }
+        userIds[last] = null;
+        if (capacity > INITIAL_CAPACITY && size < capacity / 4) {
+            resize(Math.max(INITIAL_CAPACITY, capacity / 2));
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        slots.clear();
+        Arrays.fill(userIds, 0, size, null);
+        size = 0;
+        if (capacity > INITIAL_CAPACITY) {
+            resize(INITIAL_CAPACITY);
+        }
+    }
+
+    /** Number of records the off-heap buffer can hold without growing. */
+    synchronized int capacity() {
+        return capacity;
+    }
+
+    /**
+     * User ID of the record at {@code row}, as returned by
+     * {@link #findBestRow}. Rows are only valid until the next change.
+     */
+    public synchronized String getUserId(int row) {
+        return userIds[row];
+    }
+
+    /**
+     * Best-scoring template at or above {@code minPercentage}, or {@code null}.
+     * Scores are the quantized ones, within
+     * {@link QuantizedTemplate#maxScoreError} of the current config of
+     * {@link FaceMatcher#score}.
+     */
+    public Match findBest(FaceTemplate probe, float minPercentage) {
+        return findBest(probe, minPercentage, null);
+    }
+
+    /**
+     * Like {@link #findBest(FaceTemplate, float)} but ignores {@code excludeUserId},
+     * e.g. the user whose template is being replaced.
+     */
+    public synchronized Match findBest(FaceTemplate probe, float minPercentage, String excludeUserId) {
+        float[] score = new float[1];
+        int row = findBestRow(QuantizedTemplate.encode(probe), minPercentage, excludeUserId, score);
+        return row >= 0 ? new Match(userIds[row], score[0]) : null;
+    }
+
+    /**
+     * Allocation-free form of {@link #findBest(FaceTemplate, float, String)}
+     * for callers that scan on every frame: returns the row of the best
+     * record and stores its score in {@code scoreOut[0]}, or returns -1.
+     */
+    public synchronized int findBestRow(QuantizedTemplate probe, float minPercentage, String excludeUserId,
+                                        float[] scoreOut) {
+        int best = -1;
+        float bestScore = minPercentage;
+        for (int i = 0; i < size; i++) {
+            // Порог поднимается до лучшего найденного, кандидаты ниже отбрасываются до контура
+            float score = QuantizedTemplate.score(probe.record, 1, 0, records, capacity, i, bestScore);
+            if (score != FaceMatcher.REJECTED && (best < 0 || score > bestScore) && !userIds[i].equals(excludeUserId)) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        if (best >= 0) {
+            scoreOut[0] = bestScore;
+        }
+        return best;
+    }
+
+    /**
+     * Batched {@link #findBest(FaceTemplate, float)} for all faces of one
+     * frame: element {@code i} of the result is the match of {@code probes[i]}
+     * or {@code null}. The faces × gallery score matrix is walked in blocks of
+     * gallery records, so each block is read from memory once for all probes
+     * instead of once per probe; only the best score of each row is kept.
+     */
+    public synchronized Match[] findBest(FaceTemplate[] probes, float minPercentage) {
+        int count = probes.length;
+        ByteBuffer probeRecords = QuantizedTemplate.allocate(count, false);
+        for (int p = 0; p < count; p++) {
+            QuantizedTemplate.encode(probes[p], probeRecords, count, p);
+        }
+        int[] best = new int[count];
+        Arrays.fill(best, -1);
+        float[] bestScores = new float[count];
+        Arrays.fill(bestScores, minPercentage);
+
+        for (int blockStart = 0; blockStart < size; blockStart += BLOCK_RECORDS) {
+            int blockEnd = Math.min(size, blockStart + BLOCK_RECORDS);
+            for (int p = 0; p < count; p++) {
+                int bestIndex = best[p];
+                float bestScore = bestScores[p];
+                for (int i = blockStart; i < blockEnd; i++) {
+                    float score = QuantizedTemplate.score(probeRecords, count, p, records, capacity, i, bestScore);
+                    if (score != FaceMatcher.REJECTED && (bestIndex < 0 || score > bestScore)) {
+                        bestIndex = i;
+                        bestScore = score;
+                    }
+                }
+                best[p] = bestIndex;
+                bestScores[p] = bestScore;
+            }
+        }
+
+        Match[] matches = new Match[count];
+        for (int p = 0; p < count; p++) {
+            if (best[p] >= 0) {
+                matches[p] = new Match(userIds[best[p]], bestScores[p]);
+            }
+        }
+        return matches;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > capacity) {
+            resize(Math.max(required, capacity * 2));
+        }
+    }
+
+    // Столбцы зависят от емкости, поэтому при смене размера копируется каждый столбец
+    private void resize(int newCapacity) {
+        ByteBuffer newRecords = QuantizedTemplate.allocate(newCapacity, true);
+        QuantizedTemplate.copyRecords(records, capacity, newRecords, newCapacity, size);
+        records = newRecords;
+        capacity = newCapacity;
+        userIds = Arrays.copyOf(userIds, newCapacity);
+    }
+}
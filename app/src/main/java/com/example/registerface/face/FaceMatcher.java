@@ -0,0 +1,303 @@
+package com.example.registerface.face;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сравнение шаблонов лиц. {@link #score} считает полную схожесть так же,
+ * как {@code FaceDetectorHelper.compareFaces}; {@link Cascade} дает то же
+ * решение, но отбрасывает кандидата, как только оставшиеся признаки уже не
+ * могут поднять среднее до порога. Пороги и веса берутся из
+ * {@link MatcherConfig}; константы ниже — значения по умолчанию.
+ */
+public final class FaceMatcher {
+    public static final float SIMILARITY_THRESHOLD = 0.15f;
+    public static final float LANDMARK_DISTANCE_THRESHOLD = 0.10f;
+    public static final float FEATURE_DIFF_THRESHOLD = 0.15f;
+    public static final float CONTOUR_POINT_DISTANCE_THRESHOLD = 0.15f;
+    public static final float HEAD_ANGLE_THRESHOLD = 30f;
+
+    /** Результат каскада для отброшенного кандидата. */
+    public static final float REJECTED = -1f;
+
+    // Глаза, нос и рот: первые четыре слота FaceTemplate.LANDMARK_KEYS
+    private static final int COARSE_LANDMARKS = 4;
+    // Запас на округление float при сравнении верхней оценки с порогом
+    private static final float BOUND_SLACK = 1e-3f;
+
+    private static volatile MatcherConfig config = MatcherConfig.DEFAULT;
+
+    private FaceMatcher() {
+    }
+
+    public static MatcherConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Replaces the config used by all matching from now on. Quantized
+     * gallery scores then follow {@link #score} within
+     * {@link QuantizedTemplate#maxScoreError} of the new config.
+     */
+    public static void setConfig(MatcherConfig newConfig) {
+        config = newConfig;
+    }
+
+    /** Current similarity threshold in percent. */
+    public static float getThresholdPercentage() {
+        return config.similarityThreshold * 100;
+    }
+
+    public static boolean isMatch(float similarityPercentage) {
+        return similarityPercentage >= getThresholdPercentage();
+    }
+
+    /**
+     * Full similarity of two templates in percent, 0 when the head poses
+     * differ too much: weighted average over the features present in both
+     * templates.
+     */
+    public static float score(FaceTemplate face1, FaceTemplate face2) {
+        return score(face1, face2, config);
+    }
+
+    /** Like {@link #score(FaceTemplate, FaceTemplate)} with an explicit config. */
+    public static float score(FaceTemplate face1, FaceTemplate face2, MatcherConfig config) {
+        if (!posesCompatible(face1, face2)) {
+            return 0f;
+        }
+
+        float totalWeight = commonWeight(face1, face2, config);
+        if (totalWeight == 0) {
+            return 0f;
+        }
+
+        float totalSimilarity = addLandmarks(0f, face1, face2, 0, FaceTemplate.LANDMARK_COUNT, config);
+        if (face1.hasContour && face2.hasContour) {
+            totalSimilarity += config.contourWeight * contourSimilarity(face1.contour, face2.contour, config);
+        }
+        totalSimilarity = addFeatures(totalSimilarity, face1, face2, config);
+
+        return totalSimilarity / totalWeight * 100;
+    }
+
+    static boolean posesCompatible(FaceTemplate face1, FaceTemplate face2) {
+        int pose = (1 << FaceTemplate.FEATURE_HEAD_EULER_Y) | (1 << FaceTemplate.FEATURE_HEAD_EULER_Z);
+        if ((face1.featureMask & pose) != pose || (face2.featureMask & pose) != pose) {
+            return true;
+        }
+        float y1 = face1.features[FaceTemplate.FEATURE_HEAD_EULER_Y];
+        float y2 = face2.features[FaceTemplate.FEATURE_HEAD_EULER_Y];
+        float z1 = face1.features[FaceTemplate.FEATURE_HEAD_EULER_Z];
+        float z2 = face2.features[FaceTemplate.FEATURE_HEAD_EULER_Z];
+        return !(Math.abs(normalizeAngle(y1 - y2)) > HEAD_ANGLE_THRESHOLD ||
+                Math.abs(normalizeAngle(z1 - z2)) > HEAD_ANGLE_THRESHOLD);
+    }
+
+    // С единичными весами это просто число общих признаков
+    static float commonWeight(FaceTemplate face1, FaceTemplate face2, MatcherConfig config) {
+        return config.landmarkWeight * Integer.bitCount(face1.landmarkMask & face2.landmarkMask)
+                + (face1.hasContour && face2.hasContour ? config.contourWeight : 0f)
+                + config.featureWeight * Integer.bitCount(face1.featureMask & face2.featureMask);
+    }
+
+    private static float addLandmarks(float total, FaceTemplate face1, FaceTemplate face2, int from, int to,
+                                      MatcherConfig config) {
+        int common = face1.landmarkMask & face2.landmarkMask;
+        for (int i = from; i < to; i++) {
+            if ((common & (1 << i)) != 0) {
+                total += config.landmarkWeight * landmarkSimilarity(face1.landmarks, face2.landmarks, i * 2,
+                        config.landmarkDistanceThreshold);
+            }
+        }
+        return total;
+    }
+
+    private static float addFeatures(float total, FaceTemplate face1, FaceTemplate face2, MatcherConfig config) {
+        int common = face1.featureMask & face2.featureMask;
+        for (int i = 0; i < FaceTemplate.FEATURE_COUNT; i++) {
+            if ((common & (1 << i)) != 0) {
+                total += config.featureWeight * featureSimilarity(face1.features[i], face2.features[i],
+                        config.featureDiffThreshold);
+            }
+        }
+        return total;
+    }
+
+    static float landmarkSimilarity(float[] landmarks1, float[] landmarks2, int offset, float distanceThreshold) {
+        float x1 = landmarks1[offset];
+        float y1 = landmarks1[offset + 1];
+        float x2 = landmarks2[offset];
+        float y2 = landmarks2[offset + 1];
+        float distance = (float) Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+        if (Float.isNaN(distance)) {
+            return 0f;
+        }
+        // Экспоненциальная функция дает плавное уменьшение схожести
+        return (float) Math.exp(-distance / distanceThreshold);
+    }
+
+    static float featureSimilarity(float v1, float v2, float diffThreshold) {
+        // Углы головы сравниваются с тем же порогом, что и вероятности, как и раньше
+        float diff = Math.abs(v1 - v2);
+        if (Float.isNaN(diff)) {
+            return 0f;
+        }
+        return (float) Math.exp(-diff / diffThreshold);
+    }
+
+    static float contourSimilarity(float[] points1, float[] points2, MatcherConfig config) {
+        if (points1 == null || points2 == null) {
+            return 0f;
+        }
+        // Оба контура имеют одинаковую раскладку, поэтому цикл фиксированной длины и без ветвлений
+        float totalSimilarity = 0f;
+        for (int i = 0; i < ContourResampler.SLOTS; i += 2) {
+            float dx = points2[i] - points1[i];
+            float dy = points2[i + 1] - points1[i + 1];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            totalSimilarity += (float) Math.exp(-distance / config.contourPointDistanceThreshold);
+        }
+        return totalSimilarity / ContourResampler.POINTS;
+    }
+
+    static float normalizeAngle(float angle) {
+        // Нормализуем угол в диапазон [-180, 180]
+        angle = angle % 360;
+        if (angle > 180) {
+            angle -= 360;
+        } else if (angle < -180) {
+            angle += 360;
+        }
+        return angle;
+    }
+
+    /**
+     * Каскадный матчер для поиска 1:N. Этапы: сравнение поз, грубый этап по
+     * глазам, носу и рту, затем щеки и скалярные признаки, и только для
+     * оставшихся кандидатов контур. Каждая схожесть не больше 1, поэтому после
+     * каждого этапа известна верхняя оценка итогового среднего. Для
+     * прошедших кандидатов результат совпадает с {@link #score} бит в бит.
+     * Потокобезопасен, счетчики общие для всех потоков.
+     */
+    public static final class Cascade {
+        private final AtomicLong evaluated = new AtomicLong();
+        private final AtomicLong rejectedByPose = new AtomicLong();
+        private final AtomicLong rejectedByCoarse = new AtomicLong();
+        private final AtomicLong rejectedByFine = new AtomicLong();
+        private final AtomicLong rejectedByContour = new AtomicLong();
+        private final AtomicLong accepted = new AtomicLong();
+
+        /**
+         * @return the same value as {@link FaceMatcher#score} if the candidate
+         * reaches the similarity threshold, otherwise {@link #REJECTED}
+         */
+        public float match(FaceTemplate probe, FaceTemplate candidate) {
+            return match(probe, candidate, getThresholdPercentage());
+        }
+
+        /**
+         * Like {@link #match(FaceTemplate, FaceTemplate)} but also abandons
+         * candidates that cannot reach {@code floorPercentage}, e.g. the best
+         * score found so far in a 1:N scan. The floor never drops below the
+         * similarity threshold.
+         */
+        public float match(FaceTemplate probe, FaceTemplate candidate, float floorPercentage) {
+            evaluated.incrementAndGet();
+            MatcherConfig config = FaceMatcher.config;
+            float floor = Math.max(floorPercentage, config.similarityThreshold * 100);
+
+            if (!posesCompatible(probe, candidate)) {
+                rejectedByPose.incrementAndGet();
+                return REJECTED;
+            }
+
+            float totalWeight = commonWeight(probe, candidate, config);
+            if (totalWeight == 0) {
+                rejectedByCoarse.incrementAndGet();
+                return REJECTED;
+            }
+
+            int common = probe.landmarkMask & candidate.landmarkMask;
+            int coarseMask = (1 << COARSE_LANDMARKS) - 1;
+            // Каждая схожесть не больше 1, поэтому оставшиеся признаки дадут не больше своего веса
+            float remaining = totalWeight - config.landmarkWeight * Integer.bitCount(common & coarseMask);
+
+            float total = addLandmarks(0f, probe, candidate, 0, COARSE_LANDMARKS, config);
+            if (cannotReach(total, remaining, totalWeight, floor)) {
+                rejectedByCoarse.incrementAndGet();
+                return REJECTED;
+            }
+
+            total = addLandmarks(total, probe, candidate, COARSE_LANDMARKS, FaceTemplate.LANDMARK_COUNT, config);
+            boolean withContour = probe.hasContour && candidate.hasContour;
+            // Скалярные признаки дешевые: считаем их сумму для оценки до контура
+            float featureBound = addFeatures(0f, probe, candidate, config);
+            if (cannotReach(total + featureBound, withContour ? config.contourWeight : 0f, totalWeight, floor)) {
+                rejectedByFine.incrementAndGet();
+                return REJECTED;
+            }
+
+            // Итог считаем в том же порядке, что и score, чтобы совпасть бит в бит
+            if (withContour) {
+                total += config.contourWeight * contourSimilarity(probe.contour, candidate.contour, config);
+            }
+            total = addFeatures(total, probe, candidate, config);
+            float similarityPercentage = total / totalWeight * 100;
+
+            if (similarityPercentage < floor) {
+                rejectedByContour.incrementAndGet();
+                return REJECTED;
+            }
+            accepted.incrementAndGet();
+            return similarityPercentage;
+        }
+
+        private static boolean cannotReach(float partial, float remaining, float totalWeight, float floor) {
+            float upperBound = (partial + remaining) / totalWeight * 100;
+            return upperBound < floor - BOUND_SLACK;
+        }
+
+        public long getEvaluated() {
+            return evaluated.get();
+        }
+
+        public long getRejectedByPose() {
+            return rejectedByPose.get();
+        }
+
+        public long getRejectedByCoarse() {
+            return rejectedByCoarse.get();
+        }
+
+        public long getRejectedByFine() {
+            return rejectedByFine.get();
+        }
+
+        public long getRejectedByContour() {
+            return rejectedByContour.get();
+        }
+
+        public long getAccepted() {
+            return accepted.get();
+        }
+
+        public void resetCounters() {
+            evaluated.set(0);
+            rejectedByPose.set(0);
+            rejectedByCoarse.set(0);
+            rejectedByFine.set(0);
+            rejectedByContour.set(0);
+            accepted.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "Cascade{evaluated=" + evaluated.get()
+                    + ", pose=" + rejectedByPose.get()
+                    + ", coarse=" + rejectedByCoarse.get()
+                    + ", fine=" + rejectedByFine.get()
+                    + ", contour=" + rejectedByContour.get()
+                    + ", accepted=" + accepted.get() + "}";
+        }
+    }
+}
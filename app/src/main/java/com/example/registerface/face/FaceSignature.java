@@ -0,0 +1,145 @@
+package com.example.registerface.face;
+
+/**
+ * 64-битная геометрическая сигнатура шаблона для предварительного отбора в
+ * БД. Восемь отношений расстояний между точками лица к расстоянию между
+ * глазами квантуются на уровни и пишутся термометрическим кодом (уровень
+ * {@code b} — младшие {@code b} бит байта), поэтому расстояние Хэмминга
+ * двух сигнатур равно сумме разниц уровней. Отношения не зависят от
+ * масштаба и наклона головы, поворот по Y компенсируется делением X на
+ * косинус угла.
+ *
+ * <p>Старший байт — самое устойчивое отношение, и в нем только 7 бит: знак
+ * всегда 0, значит числовой порядок сигнатур совпадает с порядком уровней
+ * этого отношения, и по индексу можно выбрать диапазон
+ * {@link #rangeLow}..{@link #rangeHigh}. Уровней всего 7, поэтому диапазон
+ * шириной в {@link #DEFAULT_MAX_DISTANCE} захватил бы все ключи; он
+ * ограничен {@link #RANGE_LEVELS} уровнями, на которые снимки одного
+ * человека почти никогда не расходятся.
+ */
+public final class FaceSignature {
+    /** Hamming distance that still keeps nearly all captures of the same person. */
+    public static final int DEFAULT_MAX_DISTANCE = 12;
+    /**
+     * Most levels the top ratio may differ by inside {@link #rangeLow}..{@link #rangeHigh},
+     * whatever the Hamming distance allows.
+     */
+    public static final int RANGE_LEVELS = 2;
+
+    static final int RATIOS = 8;
+    private static final int EYE_MIDPOINT = FaceTemplate.LANDMARK_COUNT;
+    private static final int LEFT_EYE = 0;
+    private static final int RIGHT_EYE = 1;
+    // Пары точек каждого отношения, от самого устойчивого; EYE_MIDPOINT — середина между глазами
+    private static final int[][] PAIRS = {
+            {EYE_MIDPOINT, 3}, {2, 3}, {4, 5}, {EYE_MIDPOINT, 2},
+            {0, 4}, {1, 5}, {2, 4}, {2, 5}
+    };
+    // Диапазон каждого отношения, за краями значения прижимаются к крайнему уровню
+    private static final float[] LOW = {0.70f, 0.27f, 1.00f, 0.24f, 0.34f, 0.33f, 0.40f, 0.40f};
+    private static final float[] HIGH = {1.46f, 0.91f, 1.98f, 0.78f, 1.08f, 1.07f, 1.13f, 1.13f};
+    static final int TOP_LEVELS = 7;
+    static final int LEVELS = 8;
+    private static final long LOW_BYTES_MASK = 0x00FFFFFFFFFFFFFFL;
+
+    private FaceSignature() {
+    }
+
+    /**
+     * Signature of {@code template}, or {@code null} if a landmark it needs
+     * is missing. Such rows are never filtered out.
+     */
+    public static Long of(FaceTemplate template) {
+        float[] ratios = new float[RATIOS];
+        if (!ratios(template, ratios)) {
+            return null;
+        }
+        long signature = 0;
+        for (int r = 0; r < RATIOS; r++) {
+            int levels = r == 0 ? TOP_LEVELS : LEVELS;
+            signature |= thermometer(level(ratios[r], LOW[r], HIGH[r], levels)) << (8 * (RATIOS - 1 - r));
+        }
+        return signature;
+    }
+
+    static boolean ratios(FaceTemplate template, float[] ratios) {
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            if (!template.hasLandmark(i) || Float.isNaN(template.getLandmarkX(i))
+                    || Float.isNaN(template.getLandmarkY(i))) {
+                return false;
+            }
+        }
+
+        // Снимаем наклон (Z), затем растягиваем X обратно на косинус поворота (Y)
+        double roll = template.hasFeature(FaceTemplate.FEATURE_HEAD_EULER_Z)
+                ? Math.toRadians(template.getFeature(FaceTemplate.FEATURE_HEAD_EULER_Z)) : 0;
+        double yaw = template.hasFeature(FaceTemplate.FEATURE_HEAD_EULER_Y)
+                ? Math.toRadians(template.getFeature(FaceTemplate.FEATURE_HEAD_EULER_Y)) : 0;
+        if (Double.isNaN(roll) || Double.isNaN(yaw)) {
+            return false;
+        }
+        float cos = (float) Math.cos(-roll);
+        float sin = (float) Math.sin(-roll);
+        float yawScale = 1f / (float) Math.cos(yaw);
+        float[] points = new float[(FaceTemplate.LANDMARK_COUNT + 1) * 2];
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            float x = template.getLandmarkX(i);
+            float y = template.getLandmarkY(i);
+            points[i * 2] = (x * cos - y * sin) * yawScale;
+            points[i * 2 + 1] = x * sin + y * cos;
+        }
+        points[EYE_MIDPOINT * 2] = (points[LEFT_EYE * 2] + points[RIGHT_EYE * 2]) / 2;
+        points[EYE_MIDPOINT * 2 + 1] = (points[LEFT_EYE * 2 + 1] + points[RIGHT_EYE * 2 + 1]) / 2;
+
+        float eyeDistance = distance(points, LEFT_EYE, RIGHT_EYE);
+        if (!(eyeDistance > 0)) {
+            return false;
+        }
+        for (int r = 0; r < RATIOS; r++) {
+            ratios[r] = distance(points, PAIRS[r][0], PAIRS[r][1]) / eyeDistance;
+        }
+        return true;
+    }
+
+    public static Long of(String faceData) {
+        return faceData == null || faceData.isEmpty() ? null : of(FaceTemplate.parse(faceData));
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Smallest signature of the index range searched for {@code signature}:
+     * the top ratio is at most {@code min(maxDistance, RANGE_LEVELS)} levels
+     * lower. Signatures within {@code maxDistance} but further off in the
+     * top ratio are left out, which costs about 0.2% of genuine pairs on
+     * synthetic captures.
+     */
+    public static long rangeLow(long signature, int maxDistance) {
+        int level = Long.bitCount(signature >>> 56);
+        return thermometer(Math.max(0, level - Math.min(maxDistance, RANGE_LEVELS))) << 56;
+    }
+
+    /** Largest signature of the index range searched for {@code signature}, see {@link #rangeLow}. */
+    public static long rangeHigh(long signature, int maxDistance) {
+        int level = Long.bitCount(signature >>> 56);
+        return thermometer(Math.min(TOP_LEVELS, level + Math.min(maxDistance, RANGE_LEVELS))) << 56
+                | LOW_BYTES_MASK;
+    }
+
+    static int level(float ratio, float low, float high, int levels) {
+        int level = (int) ((ratio - low) / (high - low) * (levels + 1));
+        return Math.max(0, Math.min(levels, level));
+    }
+
+    static long thermometer(int level) {
+        return (1L << level) - 1;
+    }
+
+    private static float distance(float[] points, int a, int b) {
+        float dx = points[a * 2] - points[b * 2];
+        float dy = points[a * 2 + 1] - points[b * 2 + 1];
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+}
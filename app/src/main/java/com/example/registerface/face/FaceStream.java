@@ -0,0 +1,408 @@
+package com.example.registerface.face;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Поток событий детектора со спросом со стороны подписчика, по контракту
+ * Reactive Streams: источник отдает не больше элементов, чем запрошено через
+ * {@link Subscription#request(long)}. Операторы 1:1 пробрасывают спрос вверх
+ * как есть, а каждый отброшенный элемент заменяют запросом еще одного, так
+ * что медленный подписчик никогда не копит кадры — их отбрасывает источник.
+ * <p>
+ * Свои интерфейсы вместо {@code java.util.concurrent.Flow}: он есть только с
+ * API 30. Класс на чистой Java, без Android.
+ */
+public final class FaceStream<T> {
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /** Signals for one subscriber are never concurrent. */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    /** Open groups kept by {@link #groupBy}. */
+    public static final int MAX_GROUPS = 8;
+
+    // Таймеры timeout общие для всех потоков, поток-демон не держит процесс
+    private static ScheduledExecutorService timer;
+
+    private final Publisher<T> source;
+
+    private FaceStream(Publisher<T> source) {
+        this.source = source;
+    }
+
+    public static <T> FaceStream<T> from(Publisher<T> source) {
+        return new FaceStream<>(source);
+    }
+
+    public void subscribe(Subscriber<? super T> subscriber) {
+        source.subscribe(subscriber);
+    }
+
+    /**
+     * Subscribes with demand of one: the next item is requested only after
+     * {@code onNext} returns. Completion is ignored.
+     *
+     * @return handle to stop the stream from any thread
+     */
+    public Subscription subscribe(Consumer<? super T> onNext, Consumer<? super Throwable> onError) {
+        OneByOneSubscriber<T> subscriber = new OneByOneSubscriber<>(onNext, onError);
+        source.subscribe(subscriber);
+        return subscriber;
+    }
+
+    public FaceStream<T> filter(Predicate<? super T> predicate) {
+        return lift(downstream -> new Operator<T, T>(downstream) {
+            @Override
+            void next(T item) {
+                if (predicate.test(item)) {
+                    downstream.onNext(item);
+                } else {
+                    upstream.request(1);
+                }
+            }
+        });
+    }
+
+    public <R> FaceStream<R> map(Function<? super T, ? extends R> mapper) {
+        return lift(downstream -> new Operator<T, R>(downstream) {
+            @Override
+            void next(T item) {
+                downstream.onNext(mapper.apply(item));
+            }
+        });
+    }
+
+    /**
+     * Drops items whose quality is below {@code minQuality}, e.g. with
+     * {@code FaceDetectorHelper::estimateQuality}.
+     */
+    public FaceStream<T> filterQuality(ToDoubleFunction<? super T> quality, double minQuality) {
+        return filter(item -> quality.applyAsDouble(item) >= minQuality);
+    }
+
+    /** Passes at most one item per {@code period}, dropping the rest. */
+    public FaceStream<T> sample(long period, TimeUnit unit) {
+        long periodNanos = unit.toNanos(period);
+        return lift(downstream -> new Operator<T, T>(downstream) {
+            private boolean emitted;
+            private long lastEmitNanos;
+
+            @Override
+            void next(T item) {
+                long now = System.nanoTime();
+                if (emitted && now - lastEmitNanos < periodNanos) {
+                    upstream.request(1);
+                    return;
+                }
+                emitted = true;
+                lastEmitNanos = now;
+                downstream.onNext(item);
+            }
+        });
+    }
+
+    /**
+     * Collects {@code size} consecutive items into one list. A partial window
+     * is dropped when the stream ends.
+     */
+    public FaceStream<List<T>> window(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        return lift(downstream -> new Operator<T, List<T>>(downstream) {
+            private List<T> buffer = new ArrayList<>(size);
+
+            @Override
+            public void request(long n) {
+                // Одно окно вниз — это size элементов сверху
+                upstream.request(n >= Long.MAX_VALUE / size ? Long.MAX_VALUE : n * size);
+            }
+
+            @Override
+            void next(T item) {
+                buffer.add(item);
+                if (buffer.size() == size) {
+                    List<T> window = buffer;
+                    buffer = new ArrayList<>(size);
+                    downstream.onNext(window);
+                }
+            }
+        });
+    }
+
+    /**
+     * Collects {@code size} items with the same key, e.g.
+     * {@code DetectedFace::getTrackingId}, and emits them as one list. Items
+     * with a {@code null} key are dropped. Only the most recent
+     * {@link #MAX_GROUPS} keys are kept open, so groups of tracks that
+     * disappeared do not accumulate.
+     */
+    public <K> FaceStream<List<T>> groupBy(Function<? super T, ? extends K> key, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        return lift(downstream -> new Operator<T, List<T>>(downstream) {
+            private final Map<K, List<T>> groups = new LinkedHashMap<K, List<T>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, List<T>> eldest) {
+                    return size() > MAX_GROUPS;
+                }
+            };
+
+            @Override
+            void next(T item) {
+                K groupKey = key.apply(item);
+                if (groupKey == null) {
+                    upstream.request(1);
+                    return;
+                }
+                List<T> group = groups.get(groupKey);
+                if (group == null) {
+                    group = new ArrayList<>(size);
+                    groups.put(groupKey, group);
+                }
+                group.add(item);
+                if (group.size() < size) {
+                    upstream.request(1);
+                    return;
+                }
+                groups.remove(groupKey);
+                downstream.onNext(group);
+            }
+        });
+    }
+
+    /**
+     * Fails with {@link TimeoutException} and cancels the source if no item
+     * arrives within {@code timeout} after subscription or after the
+     * previous item.
+     */
+    public FaceStream<T> timeout(long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        return lift(downstream -> new Operator<T, T>(downstream) {
+            private ScheduledFuture<?> pending;
+
+            @Override
+            void started() {
+                schedule();
+            }
+
+            @Override
+            void next(T item) {
+                pending.cancel(false);
+                schedule();
+                downstream.onNext(item);
+            }
+
+            @Override
+            void stopped() {
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+            }
+
+            private void schedule() {
+                pending = timer().schedule(() -> {
+                    if (terminate(new TimeoutException("No item within " + unit.toMillis(timeout) + " ms"))) {
+                        upstream.cancel();
+                    }
+                }, timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+        });
+    }
+
+    private <R> FaceStream<R> lift(Function<Subscriber<? super R>, Operator<T, R>> operator) {
+        return new FaceStream<>(downstream -> source.subscribe(operator.apply(downstream)));
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "FaceStream-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return timer;
+    }
+
+    /**
+     * Base of the operators: sits between upstream and downstream and, by
+     * default, passes demand and cancellation straight through. All signals
+     * to downstream go under the operator lock, so a timer firing never
+     * overlaps with {@code onNext}.
+     */
+    private abstract static class Operator<T, R> implements Subscriber<T>, Subscription {
+        final Subscriber<? super R> downstream;
+        Subscription upstream;
+        private boolean done;
+
+        Operator(Subscriber<? super R> downstream) {
+            this.downstream = downstream;
+        }
+
+        abstract void next(T item);
+
+        void started() {
+        }
+
+        void stopped() {
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            synchronized (this) {
+                started();
+            }
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public final synchronized void onNext(T item) {
+            if (!done) {
+                next(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            terminate(error);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            if (!done) {
+                done = true;
+                stopped();
+                downstream.onComplete();
+            }
+        }
+
+        /** Returns {@code false} if the stream had already ended. */
+        synchronized boolean terminate(Throwable error) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            stopped();
+            downstream.onError(error);
+            return true;
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (!done) {
+                    done = true;
+                    stopped();
+                }
+            }
+            upstream.cancel();
+        }
+    }
+
+    private static final class OneByOneSubscriber<T> implements Subscriber<T>, Subscription {
+        private final Consumer<? super T> onNext;
+        private final Consumer<? super Throwable> onError;
+        private Subscription upstream;
+        private boolean cancelled;
+
+        OneByOneSubscriber(Consumer<? super T> onNext, Consumer<? super Throwable> onError) {
+            this.onNext = onNext;
+            this.onError = onError;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            synchronized (this) {
+                if (cancelled) {
+                    subscription.cancel();
+                    return;
+                }
+                upstream = subscription;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(T item) {
+            onNext.accept(item);
+            Subscription subscription;
+            synchronized (this) {
+                subscription = cancelled ? null : upstream;
+            }
+            if (subscription != null) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            onError.accept(error);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public void request(long n) {
+            Subscription subscription;
+            synchronized (this) {
+                subscription = upstream;
+            }
+            if (subscription != null) {
+                subscription.request(n);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            Subscription subscription;
+            synchronized (this) {
+                cancelled = true;
+                subscription = upstream;
+            }
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.registerface.face;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Шаблон лица, разобранный из строки {@code getFaceData} в фиксированную
+ * раскладку слотов: 6 точек лица, контур из {@link ContourResampler#POINTS}
+ * точек и 5 скалярных признаков. Строка разбирается один раз, дальше
+ * сравнение идет только по примитивным массивам.
+ */
+public final class FaceTemplate {
+    public static final String[] LANDMARK_KEYS = {"leftEye", "rightEye", "nose", "mouth", "leftCheek", "rightCheek"};
+    public static final String[] FEATURE_KEYS = {"smile", "leftEyeOpen", "rightEyeOpen", "headEulerY", "headEulerZ"};
+    public static final int LANDMARK_COUNT = LANDMARK_KEYS.length;
+    public static final int FEATURE_COUNT = FEATURE_KEYS.length;
+    public static final int FEATURE_HEAD_EULER_Y = 3;
+    public static final int FEATURE_HEAD_EULER_Z = 4;
+
+    /** Пары (x, y); NaN, если ключ есть, но значение не разобрать. */
+    final float[] landmarks = new float[LANDMARK_COUNT * 2];
+    /** Бит i выставлен, если в строке есть ключ LANDMARK_KEYS[i]. */
+    int landmarkMask;
+    /** Контур в раскладке ContourResampler; null, если его нет или он поврежден. */
+    float[] contour;
+    boolean hasContour;
+    /** NaN, если ключ есть, но значение не разобрать. */
+    final float[] features = new float[FEATURE_COUNT];
+    int featureMask;
+
+    FaceTemplate() {
+    }
+
+    public static FaceTemplate parse(String faceData) {
+        FaceTemplate template = new FaceTemplate();
+        Map<String, String> values = parseFaceData(faceData);
+
+        for (int i = 0; i < LANDMARK_COUNT; i++) {
+            String value = values.get(LANDMARK_KEYS[i]);
+            if (value == null) {
+                continue;
+            }
+            template.landmarkMask |= 1 << i;
+            template.landmarks[i * 2] = Float.NaN;
+            template.landmarks[i * 2 + 1] = Float.NaN;
+            String[] coords = value.split(",");
+            if (coords.length == 2) {
+                try {
+                    float x = Float.parseFloat(coords[0]);
+                    float y = Float.parseFloat(coords[1]);
+                    template.landmarks[i * 2] = x;
+                    template.landmarks[i * 2 + 1] = y;
+                } catch (NumberFormatException ignored) {
+                    // Оставляем NaN: точка учитывается, но схожесть по ней нулевая
+                }
+            }
+        }
+
+        String contour = values.get("faceContour");
+        if (contour != null) {
+            template.hasContour = true;
+            template.contour = ContourResampler.parse(contour);
+        }
+
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            String value = values.get(FEATURE_KEYS[i]);
+            if (value == null) {
+                continue;
+            }
+            template.featureMask |= 1 << i;
+            try {
+                // Старые шаблоны могли быть записаны с запятой в качестве разделителя
+                template.features[i] = Float.parseFloat(value.replace(",", "."));
+            } catch (NumberFormatException e) {
+                template.features[i] = Float.NaN;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Template string of {@code face}: landmarks and contour relative to the
+     * center of the face box in units of its longer side, then the scalar
+     * features. Empty if the box has no size or the head is turned more than
+     * {@link FaceMatcher#HEAD_ANGLE_THRESHOLD}.
+     */
+    public static String encode(DetectedFace face) {
+        float width = face.getWidth();
+        float height = face.getHeight();
+        if (width == 0 || height == 0) {
+            return "";
+        }
+        float headEulerY = face.getHeadEulerAngleY();
+        float headEulerZ = face.getHeadEulerAngleZ();
+        if (Math.abs(headEulerY) > FaceMatcher.HEAD_ANGLE_THRESHOLD
+                || Math.abs(headEulerZ) > FaceMatcher.HEAD_ANGLE_THRESHOLD) {
+            return "";
+        }
+
+        // Нормализуем координаты относительно размера лица
+        StringBuilder faceData = new StringBuilder();
+        float scale = Math.max(width, height);
+        float centerX = face.getLeft() + width / 2;
+        float centerY = face.getTop() + height / 2;
+
+        for (int i = 0; i < LANDMARK_COUNT; i++) {
+            if (face.hasLandmark(i)) {
+                float relX = (face.getLandmarkX(i) - centerX) / scale;
+                float relY = (face.getLandmarkY(i) - centerY) / scale;
+                faceData.append(LANDMARK_KEYS[i]).append(":").append(formatValue(relX)).append(",")
+                        .append(formatValue(relY)).append(";");
+            }
+        }
+
+        int contourPoints = face.getContourPointCount();
+        if (contourPoints > 0) {
+            float[] contour = face.getContour();
+            float[] points = new float[contourPoints * 2];
+            for (int i = 0; i < contourPoints; i++) {
+                points[i * 2] = (contour[i * 2] - centerX) / scale;
+                points[i * 2 + 1] = (contour[i * 2 + 1] - centerY) / scale;
+            }
+
+            // Пересэмплируем контур по длине дуги до фиксированного числа точек
+            float[] resampled = new float[ContourResampler.SLOTS];
+            ContourResampler.resample(points, contourPoints, resampled);
+
+            faceData.append("faceContour:");
+            for (int i = 0; i < ContourResampler.SLOTS; i += 2) {
+                faceData.append(formatValue(resampled[i])).append(",")
+                        .append(formatValue(resampled[i + 1])).append(";");
+            }
+        }
+
+        faceData.append("smile:").append(formatValue(face.getSmilingProbability() != null ? face.getSmilingProbability() : 0f)).append(";");
+        faceData.append("leftEyeOpen:").append(formatValue(face.getLeftEyeOpenProbability() != null ? face.getLeftEyeOpenProbability() : 0f)).append(";");
+        faceData.append("rightEyeOpen:").append(formatValue(face.getRightEyeOpenProbability() != null ? face.getRightEyeOpenProbability() : 0f)).append(";");
+        faceData.append("headEulerY:").append(formatValue(headEulerY)).append(";");
+        faceData.append("headEulerZ:").append(formatValue(headEulerZ));
+        return faceData.toString();
+    }
+
+    private static String formatValue(float value) {
+        // Фиксированная локаль: в русской локали запятая ломает разбор координат "x,y"
+        return String.format(Locale.US, "%.4f", value);
+    }
+
+    public boolean hasLandmark(int index) {
+        return (landmarkMask & (1 << index)) != 0;
+    }
+
+    public boolean hasFeature(int index) {
+        return (featureMask & (1 << index)) != 0;
+    }
+
+    public float getLandmarkX(int index) {
+        return landmarks[index * 2];
+    }
+
+    public float getLandmarkY(int index) {
+        return landmarks[index * 2 + 1];
+    }
+
+    public float getFeature(int index) {
+        return features[index];
+    }
+
+    static Map<String, String> parseFaceData(String faceData) {
+        Map<String, String> features = new HashMap<>();
+        String[] parts = faceData.split(";");
+        StringBuilder contour = null;
+        boolean inContour = false;
+        for (String part : parts) {
+            String[] keyValue = part.split(":");
+            if (keyValue.length == 2) {
+                inContour = "faceContour".equals(keyValue[0]);
+                if (inContour) {
+                    contour = new StringBuilder(keyValue[1]);
+                } else {
+                    features.put(keyValue[0], keyValue[1]);
+                }
+            } else if (inContour && keyValue.length == 1) {
+                // Точки контура разделены ';' и идут без ключа вслед за "faceContour:"
+                contour.append(';').append(part);
+            }
+        }
+        if (contour != null) {
+            features.put("faceContour", contour.toString());
+        }
+        return features;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.registerface.face;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Опознание всех лиц кадра одним запросом: за один проход по галерее через
+ * {@link FaceGallery#findBest(FaceTemplate[], float)} или одним запросом к
+ * серверу через {@link MatchClient}. Результат выдается по лицам вместе с
+ * ID трека, чтобы несколько человек в кадре опознавались независимо.
+ */
+public class FrameIdentifier {
+
+    public static final class Identification {
+        /** Tracking ID of the face, {@code null} if the detector did not track it. */
+        public final Integer trackingId;
+        public final DetectedFace face;
+        /** Template string of the face, empty if the pose was too far off. */
+        public final String faceData;
+        /** Best gallery match, or {@code null} if nobody reached the threshold. */
+        public final FaceGallery.Match match;
+
+        Identification(DetectedFace face, String faceData, FaceGallery.Match match) {
+            this.trackingId = face.getTrackingId();
+            this.face = face;
+            this.faceData = faceData;
+            this.match = match;
+        }
+    }
+
+    private final MatchClient client;
+    private final float minPercentage;
+
+    public FrameIdentifier(FaceGallery gallery, float minPercentage) {
+        this(MatchClient.local(gallery), minPercentage);
+    }
+
+    public FrameIdentifier(MatchClient client, float minPercentage) {
+        this.client = client;
+        this.minPercentage = minPercentage;
+    }
+
+    /**
+     * One entry per face of {@code frame}, in detector order.
+     *
+     * @throws InterruptedException see {@link MatchClient#identify}
+     */
+    public List<Identification> identify(FaceFrame frame) throws InterruptedException {
+        List<DetectedFace> faces = frame.getFaces();
+        String[] faceData = new String[faces.size()];
+        List<String> probes = new ArrayList<>(faces.size());
+        int[] probeIndex = new int[faces.size()];
+        for (int i = 0; i < faces.size(); i++) {
+            faceData[i] = FaceDetectorHelper.getFaceData(faces.get(i));
+            // Пустой шаблон (голова сильно повернута) ни с кем не совпадет, в поиск его не берем
+            if (faceData[i].isEmpty()) {
+                probeIndex[i] = -1;
+            } else {
+                probeIndex[i] = probes.size();
+                probes.add(faceData[i]);
+            }
+        }
+
+        FaceGallery.Match[] matches = probes.isEmpty() ? new FaceGallery.Match[0]
+                : client.identify(probes.toArray(new String[0]), minPercentage);
+        List<Identification> result = new ArrayList<>(faces.size());
+        for (int i = 0; i < faces.size(); i++) {
+            FaceGallery.Match match = probeIndex[i] >= 0 ? matches[probeIndex[i]] : null;
+            result.add(new Identification(faces.get(i), faceData[i], match));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.registerface.face;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Учет потерянных кадров анализа. {@code STRATEGY_KEEP_ONLY_LATEST} молча
+ * выбрасывает кадры, пока анализатор занят; монитор видит их как разрывы
+ * между метками времени камеры и приписывает каждый разрыв причине:
+ * медленному детектору, очереди колбэков или сборке мусора. Данные копятся
+ * за последние {@link #WINDOW_FRAMES} кадров, сводку можно брать через
+ * {@link #summary()} или раз в {@link #LOG_INTERVAL_NANOS} через
+ * {@link #summaryIfDue(long)}. Чистая Java: счетчики GC подставляет
+ * платформа через {@link GcStats}.
+ */
+public final class FrameMonitor {
+    public static final int WINDOW_FRAMES = 300;
+    public static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public enum Cause {
+        /** Detection of the previous frame took longer than the frame interval. */
+        DETECTOR,
+        /** Detection results waited for the callback thread. */
+        CALLBACK,
+        /** A garbage collection ran during the gap. */
+        GC,
+        UNKNOWN
+    }
+
+    /** Cumulative GC counters of the process. */
+    public interface GcStats {
+        long gcCount();
+
+        long gcTimeMillis();
+    }
+
+    public static final GcStats NO_GC_STATS = new GcStats() {
+        @Override
+        public long gcCount() {
+            return 0;
+        }
+
+        @Override
+        public long gcTimeMillis() {
+            return 0;
+        }
+    };
+
+    private static final Cause[] CAUSES = Cause.values();
+    private static FrameMonitor instance;
+
+    private volatile GcStats gcStats = NO_GC_STATS;
+
+    // Кольцевые буферы по кадрам окна; индекс кадра — frames % WINDOW_FRAMES
+    private final long[] gapNanos = new long[WINDOW_FRAMES];
+    private final int[] dropped = new int[WINDOW_FRAMES];
+    private final byte[] causes = new byte[WINDOW_FRAMES];
+    private final long[] detectorNanos = new long[WINDOW_FRAMES];
+    private final long[] callbackWaitNanos = new long[WINDOW_FRAMES];
+    // Сборки мусора за разрыв перед кадром, чтобы GC в сводке считался по тому же окну, что и потери
+    private final long[] gcCounts = new long[WINDOW_FRAMES];
+    private final long[] gcTimesMillis = new long[WINDOW_FRAMES];
+    private long frames;
+    private long totalDropped;
+    private final long[] totalDroppedByCause = new long[CAUSES.length];
+
+    // Состояние с прихода прошлого кадра
+    private long lastTimestampNanos = -1;
+    private long lastDetectorNanos;
+    private long maxCallbackWaitSinceFrame;
+    private long lastGcCount;
+    private long lastGcTimeMillis;
+    private long lastSummaryNanos = -1;
+
+    // Время до первого кадра сканирования, см. ScanController
+    private long coldStarts;
+    private long coldStartNanosTotal;
+    private long warmStarts;
+    private long warmStartNanosTotal;
+
+    public static synchronized FrameMonitor getInstance() {
+        if (instance == null) {
+            instance = new FrameMonitor();
+        }
+        return instance;
+    }
+
+    public void setGcStats(GcStats gcStats) {
+        this.gcStats = gcStats;
+        synchronized (this) {
+            lastGcCount = gcStats.gcCount();
+            lastGcTimeMillis = gcStats.gcTimeMillis();
+        }
+    }
+
+    /**
+     * Called by the analyzer for every frame it receives, with the camera
+     * timestamp of the frame.
+     */
+    public synchronized void onFrameArrived(long timestampNanos) {
+        long gcCount = gcStats.gcCount();
+        long gcTimeMillis = gcStats.gcTimeMillis();
+        long gcDelta = gcCount - lastGcCount;
+        long gcTimeDelta = gcTimeMillis - lastGcTimeMillis;
+        lastGcCount = gcCount;
+        lastGcTimeMillis = gcTimeMillis;
+
+        if (lastTimestampNanos >= 0 && timestampNanos > lastTimestampNanos) {
+            int slot = (int) (frames % WINDOW_FRAMES);
+            long gap = timestampNanos - lastTimestampNanos;
+            gapNanos[slot] = gap;
+            long interval = frameIntervalNanos(gap);
+            // Разрыв в k интервалов значит k - 1 потерянных кадров; половина интервала — запас на дрожание
+            int lost = (int) ((gap + interval / 2) / interval) - 1;
+            Cause cause = Cause.UNKNOWN;
+            if (lost > 0) {
+                cause = attribute(interval, gcDelta);
+                totalDropped += lost;
+                totalDroppedByCause[cause.ordinal()] += lost;
+            }
+            dropped[slot] = lost;
+            causes[slot] = (byte) cause.ordinal();
+            detectorNanos[slot] = lastDetectorNanos;
+            callbackWaitNanos[slot] = maxCallbackWaitSinceFrame;
+            gcCounts[slot] = gcDelta;
+            gcTimesMillis[slot] = gcTimeDelta;
+            frames++;
+        }
+        lastTimestampNanos = timestampNanos;
+        maxCallbackWaitSinceFrame = 0;
+    }
+
+    // GC важнее всего: пауза останавливает все потоки, и медленный детектор тогда лишь следствие
+    private Cause attribute(long interval, long gcDelta) {
+        if (gcDelta > 0) {
+            return Cause.GC;
+        }
+        if (lastDetectorNanos > interval) {
+            return Cause.DETECTOR;
+        }
+        if (maxCallbackWaitSinceFrame > interval) {
+            return Cause.CALLBACK;
+        }
+        return Cause.UNKNOWN;
+    }
+
+    /** Time from handing a frame to the detector until it released the frame. */
+    public synchronized void onDetectionFinished(long latencyNanos) {
+        lastDetectorNanos = latencyNanos;
+    }
+
+    /** Time a detection result waited before its callback started. */
+    public synchronized void onCallbackStarted(long waitNanos) {
+        maxCallbackWaitSinceFrame = Math.max(maxCallbackWaitSinceFrame, waitNanos);
+    }
+
+    // Интервал камеры — самый короткий разрыв в окне: быстрее сенсора кадры не приходят
+    private long frameIntervalNanos(long currentGap) {
+        long min = currentGap;
+        int filled = (int) Math.min(frames, WINDOW_FRAMES);
+        for (int i = 0; i < filled; i++) {
+            min = Math.min(min, gapNanos[i]);
+        }
+        return Math.max(1, min);
+    }
+
+    public synchronized Summary summary() {
+        int filled = (int) Math.min(frames, WINDOW_FRAMES);
+        int windowDropped = 0;
+        int[] byCause = new int[CAUSES.length];
+        long windowGcCount = 0;
+        long windowGcTimeMillis = 0;
+        for (int i = 0; i < filled; i++) {
+            windowDropped += dropped[i];
+            byCause[causes[i]] += dropped[i];
+            windowGcCount += gcCounts[i];
+            windowGcTimeMillis += gcTimesMillis[i];
+        }
+        long[] detector = Arrays.copyOf(detectorNanos, filled);
+        long[] callbackWait = Arrays.copyOf(callbackWaitNanos, filled);
+        Arrays.sort(detector);
+        Arrays.sort(callbackWait);
+        return new Summary(filled, windowDropped, byCause, detector, callbackWait,
+                filled == 0 ? 0 : frameIntervalNanos(Long.MAX_VALUE), windowGcCount, windowGcTimeMillis,
+                frames, totalDropped, totalDroppedByCause.clone(),
+                coldStarts, coldStarts == 0 ? 0 : coldStartNanosTotal / coldStarts,
+                warmStarts, warmStarts == 0 ? 0 : warmStartNanosTotal / warmStarts);
+    }
+
+    /**
+     * Returns a summary once per {@link #LOG_INTERVAL_NANOS} of camera time,
+     * {@code null} otherwise.
+     */
+    public synchronized Summary summaryIfDue(long timestampNanos) {
+        if (lastSummaryNanos < 0) {
+            lastSummaryNanos = timestampNanos;
+            return null;
+        }
+        if (timestampNanos - lastSummaryNanos < LOG_INTERVAL_NANOS) {
+            return null;
+        }
+        lastSummaryNanos = timestampNanos;
+        return summary();
+    }
+
+    /**
+     * Called when the camera starts, so that the pause since the last scan
+     * is not counted as dropped frames. Statistics are kept.
+     */
+    public synchronized void onCameraStarted() {
+        lastTimestampNanos = -1;
+        lastDetectorNanos = 0;
+        maxCallbackWaitSinceFrame = 0;
+        lastSummaryNanos = -1;
+        lastGcCount = gcStats.gcCount();
+        lastGcTimeMillis = gcStats.gcTimeMillis();
+    }
+
+    /**
+     * Called with the time from a scan request to its first analyzed frame;
+     * {@code cold} when the camera had to be bound first.
+     */
+    public synchronized void onScanStarted(boolean cold, long latencyNanos) {
+        if (cold) {
+            coldStarts++;
+            coldStartNanosTotal += latencyNanos;
+        } else {
+            warmStarts++;
+            warmStartNanosTotal += latencyNanos;
+        }
+    }
+
+    /** Rolling statistics over the last {@link #WINDOW_FRAMES} frames. */
+    public static final class Summary {
+        public final int frames;
+        public final int dropped;
+        public final long frameIntervalNanos;
+        public final long gcCount;
+        public final long gcTimeMillis;
+        public final long totalFrames;
+        public final long totalDropped;
+        public final long coldStarts;
+        /** Mean time to the first frame of a cold start, 0 without cold starts. */
+        public final long coldStartNanos;
+        public final long warmStarts;
+        /** Mean time to the first frame of a warm start, 0 without warm starts. */
+        public final long warmStartNanos;
+        private final int[] droppedByCause;
+        private final long[] totalDroppedByCause;
+        private final long[] detectorNanos;
+        private final long[] callbackWaitNanos;
+
+        Summary(int frames, int dropped, int[] droppedByCause, long[] detectorNanos, long[] callbackWaitNanos,
+                long frameIntervalNanos, long gcCount, long gcTimeMillis, long totalFrames, long totalDropped,
+                long[] totalDroppedByCause, long coldStarts, long coldStartNanos, long warmStarts,
+                long warmStartNanos) {
+            this.frames = frames;
+            this.dropped = dropped;
+            this.droppedByCause = droppedByCause;
+            this.detectorNanos = detectorNanos;
+            this.callbackWaitNanos = callbackWaitNanos;
+            this.frameIntervalNanos = frameIntervalNanos;
+            this.gcCount = gcCount;
+            this.gcTimeMillis = gcTimeMillis;
+            this.totalFrames = totalFrames;
+            this.totalDropped = totalDropped;
+            this.totalDroppedByCause = totalDroppedByCause;
+            this.coldStarts = coldStarts;
+            this.coldStartNanos = coldStartNanos;
+            this.warmStarts = warmStarts;
+            this.warmStartNanos = warmStartNanos;
+        }
+
+        public int getDropped(Cause cause) {
+            return droppedByCause[cause.ordinal()];
+        }
+
+        public long getTotalDropped(Cause cause) {
+            return totalDroppedByCause[cause.ordinal()];
+        }
+
+        /** Detector latency at {@code percentile} (0..100) in the window. */
+        public long detectorLatencyNanos(int percentile) {
+            return percentile(detectorNanos, percentile);
+        }
+
+        /** Callback wait at {@code percentile} (0..100) in the window. */
+        public long callbackWaitNanos(int percentile) {
+            return percentile(callbackWaitNanos, percentile);
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder causes = new StringBuilder();
+            for (Cause cause : CAUSES) {
+                if (causes.length() > 0) {
+                    causes.append(", ");
+                }
+                causes.append(cause.name().toLowerCase(Locale.US)).append(' ').append(getDropped(cause));
+            }
+            return String.format(Locale.US, "%d frames, %d dropped (%s), interval %.1f ms, "
+                            + "detector p50/p95/max %.1f/%.1f/%.1f ms, callback wait p95 %.1f ms, "
+                            + "GC %d (%d ms); total %d frames, %d dropped; "
+                            + "start cold %.0f ms (%d), warm %.0f ms (%d)",
+                    frames, dropped, causes, millis(frameIntervalNanos),
+                    millis(detectorLatencyNanos(50)), millis(detectorLatencyNanos(95)),
+                    millis(detectorLatencyNanos(100)), millis(callbackWaitNanos(95)),
+                    gcCount, gcTimeMillis, totalFrames, totalDropped,
+                    millis(coldStartNanos), coldStarts, millis(warmStartNanos), warmStarts);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
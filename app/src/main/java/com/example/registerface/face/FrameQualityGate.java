@@ -0,0 +1,223 @@
+package com.example.registerface.face;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Дешевая проверка кадра до детектора по яркостной плоскости Y, без Bitmap.
+ * Один проход по центральной области с шагом {@link Thresholds#step}
+ * считает резкость (дисперсию лапласиана), среднюю яркость и долю
+ * пересвеченных и провальных пикселей; проход не создает объектов.
+ * Смазанные, темные и пересвеченные кадры пропускаются, но не больше
+ * {@link Thresholds#maxConsecutiveSkips} подряд: в плохом освещении
+ * детектор все равно иногда получает кадр, и сканирование не замирает.
+ *
+ * Кадры проверяются в потоке анализа, а время детектора приходит из
+ * потока ML Kit, поэтому счетчики синхронизированы.
+ */
+public final class FrameQualityGate {
+    public enum Verdict {
+        PASS, BLURRY, DARK, BRIGHT, CLIPPED
+    }
+
+    private static final Verdict[] VERDICTS = Verdict.values();
+    private static final int CLIP_LOW = 8;
+    private static final int CLIP_HIGH = 247;
+
+    /** Gate thresholds; metrics are in 8-bit luma units. */
+    public static final class Thresholds {
+        public static final Thresholds DEFAULT = new Thresholds(25f, 40f, 215f, 0.3f, 0.6f, 4, 15);
+
+        /** Minimum variance of the 4-neighbour Laplacian. */
+        public final float minSharpness;
+        public final float minBrightness;
+        public final float maxBrightness;
+        /** Maximum share of samples at or near 0 or 255. */
+        public final float maxClipped;
+        /** Share of width and height around the centre that is examined. */
+        public final float region;
+        /** Sample every {@code step}-th pixel in both directions. */
+        public final int step;
+        public final int maxConsecutiveSkips;
+
+        public Thresholds(float minSharpness, float minBrightness, float maxBrightness, float maxClipped,
+                          float region, int step, int maxConsecutiveSkips) {
+            if (step < 1 || region <= 0 || region > 1) {
+                throw new IllegalArgumentException("step must be >= 1 and region in (0, 1]");
+            }
+            this.minSharpness = minSharpness;
+            this.minBrightness = minBrightness;
+            this.maxBrightness = maxBrightness;
+            this.maxClipped = maxClipped;
+            this.region = region;
+            this.step = step;
+            this.maxConsecutiveSkips = maxConsecutiveSkips;
+        }
+    }
+
+    private final Thresholds thresholds;
+
+    // Метрики последнего кадра
+    private float sharpness;
+    private float brightness;
+    private float clipped;
+
+    private long evaluated;
+    private final long[] verdicts = new long[VERDICTS.length];
+    private long skipped;
+    private long forcedPasses;
+    private int consecutiveSkips;
+    private long gateNanos;
+    private long detectorNanos;
+    private long detectorRuns;
+
+    public FrameQualityGate() {
+        this(Thresholds.DEFAULT);
+    }
+
+    public FrameQualityGate(Thresholds thresholds) {
+        this.thresholds = thresholds;
+    }
+
+    /**
+     * Evaluates one Y plane. Reads with absolute gets, so the buffer position
+     * is not changed.
+     *
+     * @return whether the frame should go to the detector
+     */
+    public synchronized boolean accept(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+        long started = System.nanoTime();
+        Verdict verdict = measure(plane, width, height, rowStride, pixelStride);
+        evaluated++;
+        verdicts[verdict.ordinal()]++;
+        boolean accept = verdict == Verdict.PASS;
+        if (!accept && consecutiveSkips >= thresholds.maxConsecutiveSkips) {
+            forcedPasses++;
+            accept = true;
+        }
+        if (accept) {
+            consecutiveSkips = 0;
+        } else {
+            consecutiveSkips++;
+            skipped++;
+        }
+        gateNanos += System.nanoTime() - started;
+        return accept;
+    }
+
+    /** Computes the metrics of one Y plane and classifies it, without counting it. */
+    public synchronized Verdict measure(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+        int step = thresholds.step;
+        // Центральная область, отступ минимум в пиксель под соседей лапласиана
+        int marginX = Math.max(1, Math.round(width * (1 - thresholds.region) / 2));
+        int marginY = Math.max(1, Math.round(height * (1 - thresholds.region) / 2));
+        long count = 0;
+        long sum = 0;
+        long clippedCount = 0;
+        long laplacianSum = 0;
+        long laplacianSquares = 0;
+        for (int y = marginY; y < height - marginY; y += step) {
+            int row = y * rowStride;
+            for (int x = marginX; x < width - marginX; x += step) {
+                int index = row + x * pixelStride;
+                int center = plane.get(index) & 0xFF;
+                int laplacian = 4 * center
+                        - (plane.get(index - pixelStride) & 0xFF)
+                        - (plane.get(index + pixelStride) & 0xFF)
+                        - (plane.get(index - rowStride) & 0xFF)
+                        - (plane.get(index + rowStride) & 0xFF);
+                sum += center;
+                if (center <= CLIP_LOW || center >= CLIP_HIGH) {
+                    clippedCount++;
+                }
+                laplacianSum += laplacian;
+                laplacianSquares += (long) laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            sharpness = 0;
+            brightness = 0;
+            clipped = 0;
+            return Verdict.PASS;
+        }
+        double mean = (double) laplacianSum / count;
+        sharpness = (float) ((double) laplacianSquares / count - mean * mean);
+        brightness = (float) sum / count;
+        clipped = (float) clippedCount / count;
+
+        if (brightness < thresholds.minBrightness) {
+            return Verdict.DARK;
+        }
+        if (brightness > thresholds.maxBrightness) {
+            return Verdict.BRIGHT;
+        }
+        if (clipped > thresholds.maxClipped) {
+            return Verdict.CLIPPED;
+        }
+        if (sharpness < thresholds.minSharpness) {
+            return Verdict.BLURRY;
+        }
+        return Verdict.PASS;
+    }
+
+    /** Reports the detector time of an accepted frame, for {@link #estimatedSavedNanos()}. */
+    public synchronized void onDetectorFinished(long latencyNanos) {
+        detectorNanos += latencyNanos;
+        detectorRuns++;
+    }
+
+    public synchronized float getSharpness() {
+        return sharpness;
+    }
+
+    public synchronized float getBrightness() {
+        return brightness;
+    }
+
+    public synchronized float getClipped() {
+        return clipped;
+    }
+
+    public synchronized long getEvaluated() {
+        return evaluated;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getVerdictCount(Verdict verdict) {
+        return verdicts[verdict.ordinal()];
+    }
+
+    public synchronized long getGateNanos() {
+        return gateNanos;
+    }
+
+    /**
+     * Detector time not spent on skipped frames, at the mean latency of the
+     * frames that did run, minus the time of the gate itself.
+     */
+    public synchronized long estimatedSavedNanos() {
+        if (detectorRuns == 0) {
+            return -gateNanos;
+        }
+        return skipped * (detectorNanos / detectorRuns) - gateNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder reasons = new StringBuilder();
+        for (Verdict verdict : VERDICTS) {
+            if (verdict != Verdict.PASS && verdicts[verdict.ordinal()] > 0) {
+                reasons.append(reasons.length() > 0 ? ", " : "")
+                        .append(verdict.name().toLowerCase(Locale.US)).append(' ')
+                        .append(verdicts[verdict.ordinal()]);
+            }
+        }
+        return String.format(Locale.US, "%d frames, %d skipped (%s), %d forced, gate %.1f ms, "
+                        + "detector time saved %.0f ms",
+                evaluated, skipped, reasons, forcedPasses, gateNanos / 1e6, estimatedSavedNanos() / 1e6);
+    }
+}
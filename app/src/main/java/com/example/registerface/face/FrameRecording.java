@@ -0,0 +1,232 @@
+package com.example.registerface.face;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Текстовый формат записи результатов детектора для {@link ReplayFrameSource}.
+ *
+ * <pre>
+ * # faceregister frames v1
+ * F &lt;timestampNanos&gt; &lt;faceCount&gt;
+ * D &lt;trackingId|-&gt; &lt;left&gt; &lt;top&gt; &lt;right&gt; &lt;bottom&gt; &lt;eulerX&gt; &lt;eulerY&gt; &lt;eulerZ&gt;
+ *   &lt;smile|-&gt; &lt;leftEyeOpen|-&gt; &lt;rightEyeOpen|-&gt; &lt;landmarkMask&gt; &lt;12 landmark values&gt;
+ *   &lt;contourPointCount&gt; &lt;contour x y ...&gt;
+ * </pre>
+ * Каждая строка D занимает одну строку файла и идет сразу после своей
+ * строки F. Числа пишутся через {@link Float#toString}, поэтому значения
+ * восстанавливаются без потерь.
+ */
+public final class FrameRecording {
+    static final String HEADER = "# faceregister frames v1";
+    private static final String NONE = "-";
+
+    private FrameRecording() {
+    }
+
+    /**
+     * Записывает кадры и передает их дальше {@code delegate}, чтобы запись
+     * шла во время обычной работы экрана.
+     */
+    public static final class Writer implements FaceDetectorHelper.FaceDetectorListener, Closeable {
+        private final BufferedWriter out;
+        private final FaceDetectorHelper.FaceDetectorListener delegate;
+        private long lastTimestampNanos;
+        private long frameCount;
+
+        public Writer(File file, FaceDetectorHelper.FaceDetectorListener delegate) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            this.delegate = delegate;
+            out.write(HEADER);
+            out.write('\n');
+        }
+
+        public synchronized void writeFrame(List<DetectedFace> faces) throws IOException {
+            // У пустого кадра нет своего времени, берем время предыдущего
+            long timestampNanos = faces.isEmpty() ? lastTimestampNanos : faces.get(0).getTimestampNanos();
+            lastTimestampNanos = timestampNanos;
+            StringBuilder line = new StringBuilder(256);
+            line.append("F ").append(timestampNanos).append(' ').append(faces.size()).append('\n');
+            for (DetectedFace face : faces) {
+                appendFace(line, face);
+                line.append('\n');
+            }
+            out.write(line.toString());
+            frameCount++;
+        }
+
+        @Override
+        public void onFaceDetected(List<DetectedFace> faces) {
+            try {
+                writeFrame(faces);
+            } catch (IOException e) {
+                if (delegate != null) {
+                    delegate.onFaceDetectionError(e);
+                }
+            }
+            if (delegate != null) {
+                delegate.onFaceDetected(faces);
+            }
+        }
+
+        @Override
+        public void onFaceDetectionError(Exception e) {
+            if (delegate != null) {
+                delegate.onFaceDetectionError(e);
+            }
+        }
+
+        public synchronized long getFrameCount() {
+            return frameCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Последовательно читает кадры записи.
+     */
+    public static final class Reader implements Closeable {
+        private final BufferedReader in;
+        private int lineNumber;
+
+        public Reader(File file) throws IOException {
+            this.in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            String header = in.readLine();
+            lineNumber = 1;
+            if (!HEADER.equals(header)) {
+                in.close();
+                throw new IOException("Not a frame recording: " + file);
+            }
+        }
+
+        /**
+         * @return the faces of the next frame, or {@code null} at the end of the recording
+         */
+        public List<DetectedFace> readFrame() throws IOException {
+            String line = nextLine();
+            if (line == null) {
+                return null;
+            }
+            String[] frame = line.split(" ");
+            if (frame.length != 3 || !"F".equals(frame[0])) {
+                throw error("frame line expected");
+            }
+            try {
+                long timestampNanos = Long.parseLong(frame[1]);
+                int faceCount = Integer.parseInt(frame[2]);
+                if (faceCount == 0) {
+                    return Collections.emptyList();
+                }
+                List<DetectedFace> faces = new ArrayList<>(faceCount);
+                for (int i = 0; i < faceCount; i++) {
+                    String faceLine = nextLine();
+                    if (faceLine == null) {
+                        throw error("unexpected end of recording");
+                    }
+                    faces.add(parseFace(faceLine, timestampNanos));
+                }
+                return faces;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw error(e.toString());
+            }
+        }
+
+        private String nextLine() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                lineNumber++;
+            } while (line != null && (line.isEmpty() || line.startsWith("#")));
+            return line;
+        }
+
+        private IOException error(String message) {
+            return new IOException("Line " + lineNumber + ": " + message);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static void appendFace(StringBuilder line, DetectedFace face) {
+        line.append("D ");
+        line.append(face.getTrackingId() != null ? face.getTrackingId().toString() : NONE);
+        line.append(' ').append(face.getLeft())
+                .append(' ').append(face.getTop())
+                .append(' ').append(face.getRight())
+                .append(' ').append(face.getBottom());
+        line.append(' ').append(face.getHeadEulerAngleX())
+                .append(' ').append(face.getHeadEulerAngleY())
+                .append(' ').append(face.getHeadEulerAngleZ());
+        appendOptional(line, face.getSmilingProbability());
+        appendOptional(line, face.getLeftEyeOpenProbability());
+        appendOptional(line, face.getRightEyeOpenProbability());
+        line.append(' ').append(face.getLandmarkMask());
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            line.append(' ').append(face.getLandmarkX(i)).append(' ').append(face.getLandmarkY(i));
+        }
+        float[] contour = face.getContour();
+        line.append(' ').append(face.getContourPointCount());
+        for (float value : contour) {
+            line.append(' ').append(value);
+        }
+    }
+
+    static DetectedFace parseFace(String line, long timestampNanos) {
+        String[] parts = line.split(" ");
+        if (!"D".equals(parts[0])) {
+            throw new NumberFormatException("face line expected");
+        }
+        int i = 1;
+        DetectedFace.Builder builder = new DetectedFace.Builder().setTimestampNanos(timestampNanos);
+        String trackingId = parts[i++];
+        builder.setTrackingId(NONE.equals(trackingId) ? null : Integer.valueOf(trackingId));
+        builder.setBounds(Integer.parseInt(parts[i++]), Integer.parseInt(parts[i++]),
+                Integer.parseInt(parts[i++]), Integer.parseInt(parts[i++]));
+        builder.setHeadEulerAngles(Float.parseFloat(parts[i++]), Float.parseFloat(parts[i++]),
+                Float.parseFloat(parts[i++]));
+        builder.setProbabilities(parseOptional(parts[i++]), parseOptional(parts[i++]), parseOptional(parts[i++]));
+        int landmarkMask = Integer.parseInt(parts[i++]);
+        for (int landmark = 0; landmark < FaceTemplate.LANDMARK_COUNT; landmark++) {
+            float x = Float.parseFloat(parts[i++]);
+            float y = Float.parseFloat(parts[i++]);
+            if ((landmarkMask & (1 << landmark)) != 0) {
+                builder.setLandmark(landmark, x, y);
+            }
+        }
+        int contourPoints = Integer.parseInt(parts[i++]);
+        if (contourPoints > 0) {
+            float[] contour = new float[contourPoints * 2];
+            for (int j = 0; j < contour.length; j++) {
+                contour[j] = Float.parseFloat(parts[i++]);
+            }
+            builder.setContour(contour);
+        }
+        return builder.build();
+    }
+
+    private static void appendOptional(StringBuilder line, Float value) {
+        line.append(' ').append(value != null ? value.toString() : NONE);
+    }
+
+    private static Float parseOptional(String value) {
+        return NONE.equals(value) ? null : Float.valueOf(value);
+    }
+}
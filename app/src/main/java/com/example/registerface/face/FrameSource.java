@@ -0,0 +1,14 @@
+package com.example.registerface.face;
+
+/**
+ * Источник кадров с результатами детектора. Живая камера ({@link CameraHelper})
+ * и воспроизведение записи ({@link ReplayFrameSource}) отдают результаты в
+ * один и тот же {@link FaceDetectorHelper.FaceDetectorListener}, поэтому
+ * остальной конвейер не знает, откуда пришел кадр.
+ */
+public interface FrameSource {
+    void start();
+
+    /** Stops delivering frames and releases resources; the source cannot be restarted. */
+    void stop();
+}
@@ -0,0 +1,231 @@
+package com.example.registerface.face;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Опознание на сервере {@code :match-server} с откатом на локальную
+ * галерею. Если сервер не ответил, следующие {@link #RETRY_AFTER_MS}
+ * запросы сразу идут локально, чтобы не ждать таймаут на каждом кадре.
+ * Локальный поиск задает {@link LocalMatcher}, и галерея за ним
+ * загружается только при первом откате.
+ *
+ * Протокол: {@code POST <endpoint>/identify?min=P}, в теле по шаблону на
+ * строку; в ответе на каждую строку {@code userId<TAB>процент} или
+ * {@code -}, если совпадения нет. Сервер знает только тех, кого ему
+ * отправили через {@link #enroll} и {@link #remove}; в приложении это
+ * делает {@code ChangeFeed.pushToMatchServer}. Каждый запрос несет общий
+ * с сервером ключ в заголовке {@link #TOKEN_HEADER}, без него сервер
+ * отвечает 401. Чистая Java, общая с сервером.
+ */
+public class MatchClient {
+    public static final long RETRY_AFTER_MS = 30_000;
+    private static final int CONNECT_TIMEOUT_MS = 1_000;
+    /** Enough for one gallery pass of the server under load, see {@code MatchServerLoadTest}. */
+    public static final int DEFAULT_READ_TIMEOUT_MS = 3_000;
+    public static final String TOKEN_HEADER = "X-Match-Token";
+    static final String NO_MATCH = "-";
+
+    /** Local 1:N search, such as {@link FaceGallery#findBest(FaceTemplate[], float)}. */
+    public interface LocalMatcher {
+        FaceGallery.Match[] findBest(FaceTemplate[] probes, float minPercentage) throws InterruptedException;
+    }
+
+    private final String endpoint;
+    private final String token;
+    private final int readTimeoutMs;
+    private final LocalMatcher localMatcher;
+    private volatile long serverDownUntil;
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /** Client without a token and with {@link #DEFAULT_READ_TIMEOUT_MS}. */
+    public MatchClient(String endpoint, LocalMatcher localMatcher) {
+        this(endpoint, null, DEFAULT_READ_TIMEOUT_MS, localMatcher);
+    }
+
+    /**
+     * @param endpoint      server base URL such as {@code http://10.0.0.5:8089};
+     *                      {@code null} or empty to always match locally
+     * @param token         key shared with the server, {@code null} or empty for none
+     * @param readTimeoutMs how long to wait for an answer before matching
+     *                      locally; larger galleries need more
+     * @param localMatcher  search used without the server
+     */
+    public MatchClient(String endpoint, String token, int readTimeoutMs, LocalMatcher localMatcher) {
+        this.endpoint = endpoint == null || endpoint.isEmpty() ? null
+                : endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.token = token == null || token.isEmpty() ? null : token;
+        this.readTimeoutMs = readTimeoutMs;
+        this.localMatcher = localMatcher;
+    }
+
+    public static MatchClient local(final FaceGallery gallery) {
+        return new MatchClient(null, gallery::findBest);
+    }
+
+    /** Number of requests answered locally because the server failed. */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Best match per template, {@code null} where nobody reached
+     * {@code minPercentage}. Blocks on the network, so it must not be called
+     * on the main thread.
+     *
+     * @throws InterruptedException if interrupted during the local search,
+     *                              e.g. while its gallery was loading
+     */
+    public FaceGallery.Match[] identify(String[] faceData, float minPercentage) throws InterruptedException {
+        if (endpoint != null && System.currentTimeMillis() >= serverDownUntil) {
+            try {
+                return identifyRemote(faceData, minPercentage);
+            } catch (IOException | RuntimeException e) {
+                serverDownUntil = System.currentTimeMillis() + RETRY_AFTER_MS;
+                fallbacks.incrementAndGet();
+            }
+        }
+        return identifyLocal(faceData, minPercentage);
+    }
+
+    private FaceGallery.Match[] identifyLocal(String[] faceData, float minPercentage) throws InterruptedException {
+        FaceTemplate[] probes = new FaceTemplate[faceData.length];
+        for (int i = 0; i < faceData.length; i++) {
+            probes[i] = FaceTemplate.parse(faceData[i]);
+        }
+        return localMatcher.findBest(probes, minPercentage);
+    }
+
+    private FaceGallery.Match[] identifyRemote(String[] faceData, float minPercentage) throws IOException {
+        String[] lines = request("POST", "/identify?min=" + String.format(Locale.US, "%.2f", minPercentage),
+                faceData, faceData.length);
+        FaceGallery.Match[] matches = new FaceGallery.Match[faceData.length];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = parseMatch(lines[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * Adds or replaces users on the server.
+     *
+     * @return number of users the server stored
+     */
+    public int enroll(String[] userIds, String[] faceData) throws IOException {
+        String[] lines = new String[userIds.length];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = userIds[i] + "\t" + faceData[i];
+        }
+        return parseCount(request("POST", "/enroll", lines, 1)[0]);
+    }
+
+    /** @return number of the users the server had and removed */
+    public int remove(String[] userIds) throws IOException {
+        return parseCount(request("POST", "/remove", userIds, 1)[0]);
+    }
+
+    /**
+     * ID the server picked when it started. Its gallery lives in memory, so
+     * a new ID means everything enrolled before is gone.
+     */
+    public String getServerInstance() throws IOException {
+        String line = request("GET", "/health", null, 1)[0];
+        String[] fields = line != null ? line.split("\t", -1) : new String[0];
+        if (fields.length != 3 || !"ok".equals(fields[0])) {
+            throw new IOException("Malformed match server response: " + line);
+        }
+        return fields[2];
+    }
+
+    /** Server base URL, {@code null} if matching is local only. */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    // Отправляет строки запроса и читает первые responseLines строк ответа; недостающие — null
+    private String[] request(String method, String pathAndQuery, String[] lines, int responseLines)
+            throws IOException {
+        if (endpoint == null) {
+            throw new IOException("No match server configured");
+        }
+        URL url = URI.create(endpoint + pathAndQuery).toURL();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        // Соединение не закрываем после успешного ответа: HttpURLConnection переиспользует его для следующего запроса
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(readTimeoutMs);
+            connection.setRequestMethod(method);
+            if (token != null) {
+                connection.setRequestProperty(TOKEN_HEADER, token);
+            }
+            if (lines != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+                try (OutputStream out = connection.getOutputStream();
+                     Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Match server answered HTTP " + status);
+            }
+            String[] response = new String[responseLines];
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                for (int i = 0; i < responseLines; i++) {
+                    response[i] = reader.readLine();
+                }
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static int parseCount(String line) throws IOException {
+        try {
+            return Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed match server response: " + line, e);
+        }
+    }
+
+    static FaceGallery.Match parseMatch(String line) throws IOException {
+        if (line == null) {
+            throw new IOException("Truncated match server response");
+        }
+        if (NO_MATCH.equals(line)) {
+            return null;
+        }
+        int tab = line.lastIndexOf('\t');
+        if (tab <= 0) {
+            throw new IOException("Malformed match server response: " + line);
+        }
+        try {
+            return new FaceGallery.Match(line.substring(0, tab), Float.parseFloat(line.substring(tab + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed match server response: " + line, e);
+        }
+    }
+
+    /** One response line of the protocol. */
+    public static String formatMatch(FaceGallery.Match match) {
+        return match == null ? NO_MATCH
+                : match.userId + "\t" + String.format(Locale.US, "%.3f", match.similarityPercentage);
+    }
+}
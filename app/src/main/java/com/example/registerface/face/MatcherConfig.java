@@ -0,0 +1,172 @@
+package com.example.registerface.face;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Пороги и веса признаков {@link FaceMatcher}. Значения по умолчанию
+ * совпадают с прежними константами и равными весами; подобранные
+ * {@link MatcherEvaluator} параметры хранятся в properties-файле
+ * {@link #ASSET_NAME} и загружаются при старте приложения.
+ */
+public final class MatcherConfig {
+    public static final String ASSET_NAME = "matcher_config.properties";
+
+    static final String KEY_SIMILARITY_THRESHOLD = "similarityThreshold";
+    static final String KEY_LANDMARK_DISTANCE_THRESHOLD = "landmarkDistanceThreshold";
+    static final String KEY_FEATURE_DIFF_THRESHOLD = "featureDiffThreshold";
+    static final String KEY_CONTOUR_POINT_DISTANCE_THRESHOLD = "contourPointDistanceThreshold";
+    static final String KEY_LANDMARK_WEIGHT = "landmarkWeight";
+    static final String KEY_CONTOUR_WEIGHT = "contourWeight";
+    static final String KEY_FEATURE_WEIGHT = "featureWeight";
+
+    public static final MatcherConfig DEFAULT = new MatcherConfig(
+            FaceMatcher.SIMILARITY_THRESHOLD, FaceMatcher.LANDMARK_DISTANCE_THRESHOLD,
+            FaceMatcher.FEATURE_DIFF_THRESHOLD, FaceMatcher.CONTOUR_POINT_DISTANCE_THRESHOLD,
+            1f, 1f, 1f);
+
+    final float similarityThreshold;
+    final float landmarkDistanceThreshold;
+    final float featureDiffThreshold;
+    final float contourPointDistanceThreshold;
+    final float landmarkWeight;
+    final float contourWeight;
+    final float featureWeight;
+
+    /**
+     * @param similarityThreshold minimum similarity for a match, as a fraction
+     *                            within [0, 1] (0.15 means 15%)
+     * @param landmarkWeight      weight of each landmark in the average; the
+     *                            contour counts as one feature with
+     *                            {@code contourWeight}, each scalar feature
+     *                            with {@code featureWeight}
+     */
+    public MatcherConfig(float similarityThreshold, float landmarkDistanceThreshold, float featureDiffThreshold,
+                         float contourPointDistanceThreshold, float landmarkWeight, float contourWeight,
+                         float featureWeight) {
+        if (!(similarityThreshold >= 0 && similarityThreshold <= 1)) {
+            throw new IllegalArgumentException(KEY_SIMILARITY_THRESHOLD + " must be within [0, 1]: "
+                    + similarityThreshold);
+        }
+        requirePositive(KEY_LANDMARK_DISTANCE_THRESHOLD, landmarkDistanceThreshold);
+        requirePositive(KEY_FEATURE_DIFF_THRESHOLD, featureDiffThreshold);
+        requirePositive(KEY_CONTOUR_POINT_DISTANCE_THRESHOLD, contourPointDistanceThreshold);
+        requireNonNegative(KEY_LANDMARK_WEIGHT, landmarkWeight);
+        requireNonNegative(KEY_CONTOUR_WEIGHT, contourWeight);
+        requireNonNegative(KEY_FEATURE_WEIGHT, featureWeight);
+        if (landmarkWeight + contourWeight + featureWeight <= 0) {
+            throw new IllegalArgumentException("At least one weight must be positive");
+        }
+        this.similarityThreshold = similarityThreshold;
+        this.landmarkDistanceThreshold = landmarkDistanceThreshold;
+        this.featureDiffThreshold = featureDiffThreshold;
+        this.contourPointDistanceThreshold = contourPointDistanceThreshold;
+        this.landmarkWeight = landmarkWeight;
+        this.contourWeight = contourWeight;
+        this.featureWeight = featureWeight;
+    }
+
+    public float getSimilarityThreshold() {
+        return similarityThreshold;
+    }
+
+    public float getLandmarkDistanceThreshold() {
+        return landmarkDistanceThreshold;
+    }
+
+    public float getFeatureDiffThreshold() {
+        return featureDiffThreshold;
+    }
+
+    public float getContourPointDistanceThreshold() {
+        return contourPointDistanceThreshold;
+    }
+
+    public float getLandmarkWeight() {
+        return landmarkWeight;
+    }
+
+    public float getContourWeight() {
+        return contourWeight;
+    }
+
+    public float getFeatureWeight() {
+        return featureWeight;
+    }
+
+    public MatcherConfig withSimilarityThreshold(float threshold) {
+        return new MatcherConfig(threshold, landmarkDistanceThreshold, featureDiffThreshold,
+                contourPointDistanceThreshold, landmarkWeight, contourWeight, featureWeight);
+    }
+
+    /**
+     * Reads a config written by {@link #store}. Missing keys keep their
+     * {@link #DEFAULT} values.
+     */
+    public static MatcherConfig load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        try {
+            return new MatcherConfig(
+                    get(properties, KEY_SIMILARITY_THRESHOLD, DEFAULT.similarityThreshold),
+                    get(properties, KEY_LANDMARK_DISTANCE_THRESHOLD, DEFAULT.landmarkDistanceThreshold),
+                    get(properties, KEY_FEATURE_DIFF_THRESHOLD, DEFAULT.featureDiffThreshold),
+                    get(properties, KEY_CONTOUR_POINT_DISTANCE_THRESHOLD, DEFAULT.contourPointDistanceThreshold),
+                    get(properties, KEY_LANDMARK_WEIGHT, DEFAULT.landmarkWeight),
+                    get(properties, KEY_CONTOUR_WEIGHT, DEFAULT.contourWeight),
+                    get(properties, KEY_FEATURE_WEIGHT, DEFAULT.featureWeight));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid matcher config: " + e.getMessage(), e);
+        }
+    }
+
+    public void store(OutputStream out, String comment) throws IOException {
+        Properties properties = new Properties();
+        put(properties, KEY_SIMILARITY_THRESHOLD, similarityThreshold);
+        put(properties, KEY_LANDMARK_DISTANCE_THRESHOLD, landmarkDistanceThreshold);
+        put(properties, KEY_FEATURE_DIFF_THRESHOLD, featureDiffThreshold);
+        put(properties, KEY_CONTOUR_POINT_DISTANCE_THRESHOLD, contourPointDistanceThreshold);
+        put(properties, KEY_LANDMARK_WEIGHT, landmarkWeight);
+        put(properties, KEY_CONTOUR_WEIGHT, contourWeight);
+        put(properties, KEY_FEATURE_WEIGHT, featureWeight);
+        properties.store(out, comment);
+    }
+
+    private static float get(Properties properties, String key, float defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a number: " + value);
+        }
+    }
+
+    private static void put(Properties properties, String key, float value) {
+        properties.setProperty(key, String.format(Locale.US, "%.4f", value));
+    }
+
+    private static void requirePositive(String key, float value) {
+        if (!(value > 0)) {
+            throw new IllegalArgumentException(key + " must be positive: " + value);
+        }
+    }
+
+    private static void requireNonNegative(String key, float value) {
+        if (!(value >= 0)) {
+            throw new IllegalArgumentException(key + " must not be negative: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "MatcherConfig{threshold=%.4f, landmark=%.4f, feature=%.4f, contour=%.4f,"
+                        + " weights=%.2f/%.2f/%.2f}", similarityThreshold, landmarkDistanceThreshold,
+                featureDiffThreshold, contourPointDistanceThreshold, landmarkWeight, contourWeight, featureWeight);
+    }
+}
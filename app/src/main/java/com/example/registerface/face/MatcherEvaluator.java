@@ -0,0 +1,326 @@
+package com.example.registerface.face;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Офлайн-оценка матчера на размеченном наборе шаблонов: все пары сравниваются
+ * между собой, пары одного человека считаются своими, остальные — чужими.
+ * Пары раздаются по строкам треугольной матрицы в {@link ForkJoinPool};
+ * каждая задача копит оценки в своих гистограммах {@code long[]} с шагом
+ * {@link #BINS_PER_PERCENT}, гистограммы складываются при слиянии. По
+ * гистограммам строятся ROC/DET, EER и порог под заданный FAR.
+ * {@link #sweep} перебирает сетку порогов расстояний и весов и выбирает
+ * конфигурацию с наименьшим EER. Чистая Java, без Android.
+ */
+public final class MatcherEvaluator {
+    public static final int BINS_PER_PERCENT = 10;
+    static final int BINS = 100 * BINS_PER_PERCENT + 1;
+    // Строк матрицы пар на листовую задачу
+    private static final int ROWS_PER_TASK = 8;
+
+    private final FaceTemplate[] templates;
+    private final int[] labels;
+    private final ForkJoinPool pool;
+
+    public MatcherEvaluator(List<String> labels, List<FaceTemplate> templates) {
+        this(labels, templates, ForkJoinPool.commonPool());
+    }
+
+    public MatcherEvaluator(List<String> labels, List<FaceTemplate> templates, ForkJoinPool pool) {
+        if (labels.size() != templates.size()) {
+            throw new IllegalArgumentException("labels and templates differ in size: "
+                    + labels.size() + " vs " + templates.size());
+        }
+        this.templates = templates.toArray(new FaceTemplate[0]);
+        // Метки сводим к int, чтобы в цикле по парам не сравнивать строки
+        this.labels = new int[labels.size()];
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < labels.size(); i++) {
+            Integer id = ids.get(labels.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(labels.get(i), id);
+            }
+            this.labels[i] = id;
+        }
+        this.pool = pool;
+    }
+
+    public long getPairCount() {
+        return (long) templates.length * (templates.length - 1) / 2;
+    }
+
+    /** Scores all pairs with {@code config}. */
+    public Result evaluate(MatcherConfig config) {
+        long[][] histograms = pool.invoke(new PairTask(config, 0, templates.length));
+        return new Result(config, histograms[0], histograms[1]);
+    }
+
+    /**
+     * Evaluates every config of {@code grid} and picks the one with the
+     * lowest EER. Its similarity threshold is then set to the lowest one
+     * with FAR at most {@code targetFar}.
+     */
+    public Sweep sweep(Grid grid, float targetFar) {
+        List<Result> results = new ArrayList<>();
+        Result best = null;
+        for (MatcherConfig config : grid.configs(MatcherConfig.DEFAULT.similarityThreshold)) {
+            Result result = evaluate(config);
+            results.add(result);
+            if (best == null || result.getEer() < best.getEer()) {
+                best = result;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("Empty grid");
+        }
+        MatcherConfig chosen = best.config.withSimilarityThreshold(best.thresholdForFar(targetFar) / 100);
+        return new Sweep(results, best, chosen);
+    }
+
+    // Задачи не сериализуются, serialVersionUID им не нужен
+    @SuppressWarnings("serial")
+    private final class PairTask extends RecursiveTask<long[][]> {
+        private final MatcherConfig config;
+        private final int fromRow;
+        private final int toRow;
+
+        PairTask(MatcherConfig config, int fromRow, int toRow) {
+            this.config = config;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected long[][] compute() {
+            if (toRow - fromRow <= ROWS_PER_TASK) {
+                return scoreRows();
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            PairTask right = new PairTask(config, middle, toRow);
+            right.fork();
+            long[][] left = new PairTask(config, fromRow, middle).compute();
+            long[][] merged = right.join();
+            for (int b = 0; b < BINS; b++) {
+                merged[0][b] += left[0][b];
+                merged[1][b] += left[1][b];
+            }
+            return merged;
+        }
+
+        private long[][] scoreRows() {
+            long[] genuine = new long[BINS];
+            long[] impostor = new long[BINS];
+            for (int i = fromRow; i < toRow; i++) {
+                FaceTemplate first = templates[i];
+                int label = labels[i];
+                for (int j = i + 1; j < templates.length; j++) {
+                    int bin = bin(FaceMatcher.score(first, templates[j], config));
+                    if (labels[j] == label) {
+                        genuine[bin]++;
+                    } else {
+                        impostor[bin]++;
+                    }
+                }
+            }
+            return new long[][]{genuine, impostor};
+        }
+    }
+
+    static int bin(float percentage) {
+        // Запас на округление: ровно 15.0% после умножения не должно уйти в бин 149
+        int bin = (int) Math.floor(percentage * BINS_PER_PERCENT + 1e-3f);
+        return Math.max(0, Math.min(BINS - 1, bin));
+    }
+
+    /** Score distributions of one config and the error rates derived from them. */
+    public static final class Result {
+        public final MatcherConfig config;
+        public final long genuinePairs;
+        public final long impostorPairs;
+        // Чужие пары с оценкой не ниже бина b и свои пары ниже бина b
+        private final long[] impostorAccepted = new long[BINS];
+        private final long[] genuineRejected = new long[BINS];
+        private final float eer;
+        private final float eerThreshold;
+
+        Result(MatcherConfig config, long[] genuine, long[] impostor) {
+            this.config = config;
+            long accepted = 0;
+            for (int b = BINS - 1; b >= 0; b--) {
+                accepted += impostor[b];
+                impostorAccepted[b] = accepted;
+            }
+            long rejected = 0;
+            for (int b = 0; b < BINS; b++) {
+                genuineRejected[b] = rejected;
+                rejected += genuine[b];
+            }
+            this.genuinePairs = rejected;
+            this.impostorPairs = accepted;
+
+            int eerBin = 0;
+            float bestGap = Float.MAX_VALUE;
+            for (int b = 0; b < BINS; b++) {
+                float gap = Math.abs(farAt(b) - frrAt(b));
+                if (gap < bestGap) {
+                    bestGap = gap;
+                    eerBin = b;
+                }
+            }
+            this.eer = (farAt(eerBin) + frrAt(eerBin)) / 2;
+            this.eerThreshold = eerBin / (float) BINS_PER_PERCENT;
+        }
+
+        private float farAt(int bin) {
+            return impostorPairs == 0 ? 0f : impostorAccepted[bin] / (float) impostorPairs;
+        }
+
+        private float frrAt(int bin) {
+            return genuinePairs == 0 ? 0f : genuineRejected[bin] / (float) genuinePairs;
+        }
+
+        /** False accept rate with a threshold of {@code thresholdPercentage}. */
+        public float getFar(float thresholdPercentage) {
+            return farAt(bin(thresholdPercentage));
+        }
+
+        /** False reject rate with a threshold of {@code thresholdPercentage}. */
+        public float getFrr(float thresholdPercentage) {
+            return frrAt(bin(thresholdPercentage));
+        }
+
+        /** Equal error rate, where FAR and FRR are closest. */
+        public float getEer() {
+            return eer;
+        }
+
+        /** Threshold in percent at the equal error rate. */
+        public float getEerThreshold() {
+            return eerThreshold;
+        }
+
+        /** Lowest threshold in percent whose FAR does not exceed {@code targetFar}. */
+        public float thresholdForFar(float targetFar) {
+            for (int b = 0; b < BINS; b++) {
+                if (farAt(b) <= targetFar) {
+                    return b / (float) BINS_PER_PERCENT;
+                }
+            }
+            return 100f;
+        }
+
+        /**
+         * Writes one line per histogram bin: threshold, FAR, FRR and TAR.
+         * FAR against TAR is the ROC curve, FAR against FRR the DET curve.
+         */
+        public void writeCurves(Writer out) throws IOException {
+            out.write("threshold\tfar\tfrr\ttar\n");
+            for (int b = 0; b < BINS; b++) {
+                float far = farAt(b);
+                float frr = frrAt(b);
+                out.write(String.format(Locale.US, "%.1f\t%.6f\t%.6f\t%.6f\n",
+                        b / (float) BINS_PER_PERCENT, far, frr, 1 - frr));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "EER=%.4f at %.1f%% (%d genuine, %d impostor pairs) %s",
+                    eer, eerThreshold, genuinePairs, impostorPairs, config);
+        }
+    }
+
+    public static final class Sweep {
+        /** One result per grid config, in grid order. */
+        public final List<Result> results;
+        /** Result with the lowest EER. */
+        public final Result best;
+        /** Config of {@link #best} with the threshold set for the target FAR. */
+        public final MatcherConfig chosen;
+
+        Sweep(List<Result> results, Result best, MatcherConfig chosen) {
+            this.results = results;
+            this.best = best;
+            this.chosen = chosen;
+        }
+    }
+
+    /**
+     * Values to try for each parameter; the sweep covers their Cartesian
+     * product. An axis that is not set keeps only the
+     * {@link MatcherConfig#DEFAULT} value.
+     */
+    public static final class Grid {
+        private float[] landmarkDistance = {MatcherConfig.DEFAULT.landmarkDistanceThreshold};
+        private float[] featureDiff = {MatcherConfig.DEFAULT.featureDiffThreshold};
+        private float[] contourDistance = {MatcherConfig.DEFAULT.contourPointDistanceThreshold};
+        private float[] landmarkWeight = {MatcherConfig.DEFAULT.landmarkWeight};
+        private float[] contourWeight = {MatcherConfig.DEFAULT.contourWeight};
+        private float[] featureWeight = {MatcherConfig.DEFAULT.featureWeight};
+
+        public Grid landmarkDistance(float... values) {
+            landmarkDistance = values;
+            return this;
+        }
+
+        public Grid featureDiff(float... values) {
+            featureDiff = values;
+            return this;
+        }
+
+        public Grid contourDistance(float... values) {
+            contourDistance = values;
+            return this;
+        }
+
+        public Grid landmarkWeight(float... values) {
+            landmarkWeight = values;
+            return this;
+        }
+
+        public Grid contourWeight(float... values) {
+            contourWeight = values;
+            return this;
+        }
+
+        public Grid featureWeight(float... values) {
+            featureWeight = values;
+            return this;
+        }
+
+        public int size() {
+            return landmarkDistance.length * featureDiff.length * contourDistance.length
+                    * landmarkWeight.length * contourWeight.length * featureWeight.length;
+        }
+
+        List<MatcherConfig> configs(float similarityThreshold) {
+            List<MatcherConfig> configs = new ArrayList<>(size());
+            for (float landmark : landmarkDistance) {
+                for (float feature : featureDiff) {
+                    for (float contour : contourDistance) {
+                        for (float wLandmark : landmarkWeight) {
+                            for (float wContour : contourWeight) {
+                                for (float wFeature : featureWeight) {
+                                    if (wLandmark + wContour + wFeature > 0) {
+                                        configs.add(new MatcherConfig(similarityThreshold, landmark, feature,
+                                                contour, wLandmark, wContour, wFeature));
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            return configs;
+        }
+    }
+}
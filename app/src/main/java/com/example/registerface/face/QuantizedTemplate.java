@@ -0,0 +1,313 @@
+package com.example.registerface.face;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Компактное целочисленное представление {@link FaceTemplate} для галерей,
+ * которые держатся в памяти.
+ *
+ * Значения одной записи:
+ * <ul>
+ *   <li>{@link #SHORT_SLOTS} значений int16: 6 точек лица (x, y) с шагом
+ *   {@link #LANDMARK_STEP}, три вероятности с шагом {@link #PROBABILITY_STEP}
+ *   и два угла головы с шагом {@link #ANGLE_STEP} градуса;</li>
+ *   <li>{@link #BYTE_SLOTS} значений int8: контур (x, y) с шагом
+ *   {@link #CONTOUR_STEP}, затем маска точек и маска признаков.</li>
+ * </ul>
+ * Итого {@link #BYTES_PER_TEMPLATE} байт против 228 байт float-массивов
+ * FaceTemplate (57 значений) и ~1,2 КБ исходной строки, то есть сжатие
+ * ровно в 3 раза, а не в 4, как планировалось. До 57 байт пришлось бы
+ * перевести точки лица и углы в int8, а их шаги задают погрешность: точка
+ * int8 дает до 0,055 схожести на точку, угол сравнивается с порогом 0,15
+ * и в int8 теряет всю точность. {@link #MAX_SCORE_ERROR} важнее 19 байт на
+ * шаблон; контур, самая большая часть записи, уже int8.
+ *
+ * <p>Записи хранятся в {@link ByteBuffer} по столбцам: буфер на
+ * {@code capacity} записей содержит сначала {@link #SHORT_SLOTS} столбцов
+ * int16 по {@code capacity} значений, затем {@link #BYTE_SLOTS} столбцов
+ * int8. Отдельный шаблон — такой же буфер на одну запись.
+ *
+ * <p>Погрешность. Округление меняет каждую координату не больше чем на
+ * полшага, поэтому расстояние между двумя шаблонами меняется не больше чем
+ * на {@code sqrt(2) * step}, а схожесть {@code exp(-d / T)} не больше чем на
+ * {@code sqrt(2) * step / T}. С текущими порогами это 0,0018 на точку лица,
+ * 0,074 на контур, 0,0002 на вероятность и 0,0067 на угол (углы, как и в
+ * {@link FaceMatcher}, сравниваются с порогом FEATURE_DIFF_THRESHOLD). Для
+ * {@link MatcherConfig#DEFAULT} при всех 12 признаках {@link #score}
+ * отличается от {@link FaceMatcher#score} не больше чем на
+ * {@link #MAX_SCORE_ERROR} процентного пункта; для другой конфигурации
+ * (меньшие пороги дают большую погрешность) границу считает
+ * {@link #maxScoreError(MatcherConfig)}. Исключения: значения за
+ * пределами диапазона (обрезаются) и пары, у которых разница углов
+ * отличается от порога проверки позы меньше чем на ANGLE_STEP.
+ */
+public final class QuantizedTemplate {
+    public static final float LANDMARK_STEP = 1f / 8192;
+    public static final float CONTOUR_STEP = 1f / 128;
+    public static final float PROBABILITY_STEP = 1f / 32767;
+    public static final float ANGLE_STEP = 0.001f;
+    /**
+     * Верхняя граница |score - FaceMatcher.score| в процентных пунктах для
+     * {@link MatcherConfig#DEFAULT}, с запасом над
+     * {@code maxScoreError(DEFAULT)}, см. описание класса.
+     */
+    public static final float MAX_SCORE_ERROR = 0.85f;
+
+    static final int LANDMARK_SLOTS = FaceTemplate.LANDMARK_COUNT * 2;
+    public static final int SHORT_SLOTS = LANDMARK_SLOTS + FaceTemplate.FEATURE_COUNT;
+    public static final int BYTE_SLOTS = ContourResampler.SLOTS + 2;
+    public static final int BYTES_PER_TEMPLATE = SHORT_SLOTS * 2 + BYTE_SLOTS;
+
+    static final int LANDMARK_MASK_SLOT = ContourResampler.SLOTS;
+    static final int FEATURE_MASK_SLOT = ContourResampler.SLOTS + 1;
+    static final int HAS_CONTOUR = 0x40;
+    static final int CONTOUR_VALID = 0x20;
+    /** Признак есть, но значение не разобрать: схожесть по нему нулевая. */
+    static final short INVALID = Short.MIN_VALUE;
+
+    final ByteBuffer record = allocate(1, false);
+
+    private QuantizedTemplate() {
+    }
+
+    public static QuantizedTemplate encode(FaceTemplate template) {
+        QuantizedTemplate quantized = new QuantizedTemplate();
+        encode(template, quantized.record, 1, 0);
+        return quantized;
+    }
+
+    /** Buffer for {@code capacity} records in native byte order. */
+    public static ByteBuffer allocate(int capacity, boolean direct) {
+        int bytes = capacity * BYTES_PER_TEMPLATE;
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    // Смещение значения int16 из столбца column записи row
+    static int shortIndex(int capacity, int column, int row) {
+        return (column * capacity + row) * 2;
+    }
+
+    static int byteIndex(int capacity, int column, int row) {
+        return SHORT_SLOTS * capacity * 2 + column * capacity + row;
+    }
+
+    /**
+     * Writes one record into row {@code row} of a buffer holding
+     * {@code capacity} records.
+     */
+    public static void encode(FaceTemplate template, ByteBuffer buffer, int capacity, int row) {
+        for (int i = 0; i < LANDMARK_SLOTS; i++) {
+            buffer.putShort(shortIndex(capacity, i, row), template.hasLandmark(i / 2)
+                    ? quantizeShort(template.landmarks[i], LANDMARK_STEP) : 0);
+        }
+        for (int i = 0; i < FaceTemplate.FEATURE_COUNT; i++) {
+            float step = isAngle(i) ? ANGLE_STEP : PROBABILITY_STEP;
+            buffer.putShort(shortIndex(capacity, LANDMARK_SLOTS + i, row), template.hasFeature(i)
+                    ? quantizeShort(template.features[i], step) : 0);
+        }
+
+        int featureFlags = template.featureMask;
+        if (template.hasContour) {
+            featureFlags |= HAS_CONTOUR;
+            if (template.contour != null) {
+                featureFlags |= CONTOUR_VALID;
+            }
+        }
+        for (int i = 0; i < ContourResampler.SLOTS; i++) {
+            buffer.put(byteIndex(capacity, i, row), template.contour != null ? quantizeByte(template.contour[i]) : 0);
+        }
+        buffer.put(byteIndex(capacity, LANDMARK_MASK_SLOT, row), (byte) template.landmarkMask);
+        buffer.put(byteIndex(capacity, FEATURE_MASK_SLOT, row), (byte) featureFlags);
+    }
+
+    /** Copies record {@code from} over record {@code to} in the same buffer. */
+    static void copyRecord(ByteBuffer buffer, int capacity, int from, int to) {
+        for (int c = 0; c < SHORT_SLOTS; c++) {
+            buffer.putShort(shortIndex(capacity, c, to), buffer.getShort(shortIndex(capacity, c, from)));
+        }
+        for (int c = 0; c < BYTE_SLOTS; c++) {
+            buffer.put(byteIndex(capacity, c, to), buffer.get(byteIndex(capacity, c, from)));
+        }
+    }
+
+    /**
+     * Copies the first {@code rows} records of every column into a buffer of
+     * another capacity.
+     */
+    static void copyRecords(ByteBuffer source, int sourceCapacity, ByteBuffer target, int targetCapacity, int rows) {
+        for (int c = 0; c < SHORT_SLOTS; c++) {
+            copyRange(source, shortIndex(sourceCapacity, c, 0), target, shortIndex(targetCapacity, c, 0), rows * 2);
+        }
+        for (int c = 0; c < BYTE_SLOTS; c++) {
+            copyRange(source, byteIndex(sourceCapacity, c, 0), target, byteIndex(targetCapacity, c, 0), rows);
+        }
+    }
+
+    private static void copyRange(ByteBuffer source, int sourceIndex, ByteBuffer target, int targetIndex, int length) {
+        ByteBuffer from = source.duplicate();
+        from.limit(sourceIndex + length).position(sourceIndex);
+        ByteBuffer to = target.duplicate();
+        to.position(targetIndex);
+        to.put(from);
+    }
+
+    /**
+     * Upper bound of |{@link #score} - {@link FaceMatcher#score}| in
+     * percentage points under {@code config}, for templates with all 12
+     * features: the rounding error of each feature from the class comment,
+     * averaged with the config weights.
+     */
+    public static float maxScoreError(MatcherConfig config) {
+        double sqrt2 = Math.sqrt(2);
+        double landmarkError = sqrt2 * LANDMARK_STEP / config.landmarkDistanceThreshold;
+        double contourError = sqrt2 * CONTOUR_STEP / config.contourPointDistanceThreshold;
+        double featureError = 0;
+        for (int i = 0; i < FaceTemplate.FEATURE_COUNT; i++) {
+            featureError += (isAngle(i) ? ANGLE_STEP : PROBABILITY_STEP) / config.featureDiffThreshold;
+        }
+        double totalWeight = config.landmarkWeight * FaceTemplate.LANDMARK_COUNT + config.contourWeight
+                + config.featureWeight * FaceTemplate.FEATURE_COUNT;
+        return (float) (100 * (config.landmarkWeight * FaceTemplate.LANDMARK_COUNT * landmarkError
+                + config.contourWeight * contourError + config.featureWeight * featureError) / totalWeight);
+    }
+
+    public float score(QuantizedTemplate other) {
+        return score(record, 1, 0, other.record, 1, 0, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Similarity in percent of record {@code row1} of {@code buffer1} and
+     * record {@code row2} of {@code buffer2}, computed with integer distance
+     * arithmetic and the current {@link FaceMatcher#getConfig()}. Follows
+     * {@link FaceMatcher#score} within {@link #maxScoreError} of that config
+     * ({@link #MAX_SCORE_ERROR} for the default one). Returns
+     * {@link FaceMatcher#REJECTED} without scoring the contour when the
+     * result cannot reach {@code floorPercentage}. Reads the buffers with
+     * absolute gets only and allocates nothing.
+     */
+    public static float score(ByteBuffer buffer1, int capacity1, int row1,
+                              ByteBuffer buffer2, int capacity2, int row2, float floorPercentage) {
+        MatcherConfig config = FaceMatcher.getConfig();
+        // Столбец c записи: база + c * шаг
+        int shortBase1 = row1 * 2;
+        int shortStride1 = capacity1 * 2;
+        int shortBase2 = row2 * 2;
+        int shortStride2 = capacity2 * 2;
+        int byteBase1 = SHORT_SLOTS * capacity1 * 2 + row1;
+        int byteBase2 = SHORT_SLOTS * capacity2 * 2 + row2;
+
+        int landmarkMask = buffer1.get(byteBase1 + LANDMARK_MASK_SLOT * capacity1)
+                & buffer2.get(byteBase2 + LANDMARK_MASK_SLOT * capacity2);
+        int flags1 = buffer1.get(byteBase1 + FEATURE_MASK_SLOT * capacity1);
+        int flags2 = buffer2.get(byteBase2 + FEATURE_MASK_SLOT * capacity2);
+        int featureMask = flags1 & flags2 & ((1 << FaceTemplate.FEATURE_COUNT) - 1);
+        boolean withContour = (flags1 & flags2 & HAS_CONTOUR) != 0;
+
+        if (!posesCompatible(buffer1, shortBase1, shortStride1, flags1, buffer2, shortBase2, shortStride2, flags2)) {
+            return 0f < floorPercentage ? FaceMatcher.REJECTED : 0f;
+        }
+
+        float totalWeight = config.landmarkWeight * Integer.bitCount(landmarkMask)
+                + (withContour ? config.contourWeight : 0f) + config.featureWeight * Integer.bitCount(featureMask);
+        if (totalWeight == 0) {
+            return 0f < floorPercentage ? FaceMatcher.REJECTED : 0f;
+        }
+
+        float landmarkFactor = LANDMARK_STEP / config.landmarkDistanceThreshold;
+        float totalSimilarity = 0f;
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            if ((landmarkMask & (1 << i)) == 0) {
+                continue;
+            }
+            int x1 = buffer1.getShort(shortBase1 + i * 2 * shortStride1);
+            int y1 = buffer1.getShort(shortBase1 + (i * 2 + 1) * shortStride1);
+            int x2 = buffer2.getShort(shortBase2 + i * 2 * shortStride2);
+            int y2 = buffer2.getShort(shortBase2 + (i * 2 + 1) * shortStride2);
+            if (x1 == INVALID || y1 == INVALID || x2 == INVALID || y2 == INVALID) {
+                continue;
+            }
+            long dx = x2 - x1;
+            long dy = y2 - y1;
+            totalSimilarity += config.landmarkWeight * (float) Math.exp(-Math.sqrt(dx * dx + dy * dy) * landmarkFactor);
+        }
+
+        for (int i = 0; i < FaceTemplate.FEATURE_COUNT; i++) {
+            if ((featureMask & (1 << i)) == 0) {
+                continue;
+            }
+            int v1 = buffer1.getShort(shortBase1 + (LANDMARK_SLOTS + i) * shortStride1);
+            int v2 = buffer2.getShort(shortBase2 + (LANDMARK_SLOTS + i) * shortStride2);
+            if (v1 == INVALID || v2 == INVALID) {
+                continue;
+            }
+            float step = isAngle(i) ? ANGLE_STEP : PROBABILITY_STEP;
+            totalSimilarity += config.featureWeight
+                    * (float) Math.exp(-Math.abs(v1 - v2) * step / config.featureDiffThreshold);
+        }
+
+        // Контур самый дорогой (20 точек), поэтому считаем его последним и только если он может помочь
+        if (withContour) {
+            if ((totalSimilarity + config.contourWeight) / totalWeight * 100 < floorPercentage) {
+                return FaceMatcher.REJECTED;
+            }
+            if ((flags1 & flags2 & CONTOUR_VALID) != 0) {
+                totalSimilarity += config.contourWeight * contourSimilarity(buffer1, byteBase1, capacity1,
+                        buffer2, byteBase2, capacity2, CONTOUR_STEP / config.contourPointDistanceThreshold);
+            }
+        }
+
+        float similarityPercentage = totalSimilarity / totalWeight * 100;
+        return similarityPercentage < floorPercentage ? FaceMatcher.REJECTED : similarityPercentage;
+    }
+
+    static float contourSimilarity(ByteBuffer buffer1, int byteBase1, int capacity1,
+                                   ByteBuffer buffer2, int byteBase2, int capacity2, float contourFactor) {
+        // Фиксированная длина и целочисленные квадраты расстояний
+        float totalSimilarity = 0f;
+        for (int i = 0; i < ContourResampler.SLOTS; i += 2) {
+            int dx = buffer2.get(byteBase2 + i * capacity2) - buffer1.get(byteBase1 + i * capacity1);
+            int dy = buffer2.get(byteBase2 + (i + 1) * capacity2) - buffer1.get(byteBase1 + (i + 1) * capacity1);
+            totalSimilarity += (float) Math.exp(-Math.sqrt(dx * dx + dy * dy) * contourFactor);
+        }
+        return totalSimilarity / ContourResampler.POINTS;
+    }
+
+    private static boolean posesCompatible(ByteBuffer buffer1, int shortBase1, int shortStride1, int flags1,
+                                           ByteBuffer buffer2, int shortBase2, int shortStride2, int flags2) {
+        int pose = (1 << FaceTemplate.FEATURE_HEAD_EULER_Y) | (1 << FaceTemplate.FEATURE_HEAD_EULER_Z);
+        if ((flags1 & pose) != pose || (flags2 & pose) != pose) {
+            return true;
+        }
+        int yColumn = LANDMARK_SLOTS + FaceTemplate.FEATURE_HEAD_EULER_Y;
+        int zColumn = LANDMARK_SLOTS + FaceTemplate.FEATURE_HEAD_EULER_Z;
+        int y1 = buffer1.getShort(shortBase1 + yColumn * shortStride1);
+        int y2 = buffer2.getShort(shortBase2 + yColumn * shortStride2);
+        int z1 = buffer1.getShort(shortBase1 + zColumn * shortStride1);
+        int z2 = buffer2.getShort(shortBase2 + zColumn * shortStride2);
+        if (y1 == INVALID || y2 == INVALID || z1 == INVALID || z2 == INVALID) {
+            return true;
+        }
+        // Углы хранятся в пределах ±32.767°, поэтому нормализация в [-180, 180] не нужна
+        int limit = Math.round(FaceMatcher.HEAD_ANGLE_THRESHOLD / ANGLE_STEP);
+        return Math.abs(y1 - y2) <= limit && Math.abs(z1 - z2) <= limit;
+    }
+
+    private static boolean isAngle(int feature) {
+        return feature == FaceTemplate.FEATURE_HEAD_EULER_Y || feature == FaceTemplate.FEATURE_HEAD_EULER_Z;
+    }
+
+    private static short quantizeShort(float value, float step) {
+        if (Float.isNaN(value)) {
+            return INVALID;
+        }
+        long q = Math.round(value / step);
+        return (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, q));
+    }
+
+    private static byte quantizeByte(float value) {
+        long q = Math.round(value / CONTOUR_STEP);
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, q));
+    }
+}
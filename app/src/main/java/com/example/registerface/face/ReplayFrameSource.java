@@ -0,0 +1,180 @@
+package com.example.registerface.face;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Источник кадров без камеры: читает {@link FrameRecording} и отдает кадры
+ * тому же {@link FaceDetectorHelper.FaceDetectorListener}, что и
+ * {@link CameraHelper}. Паузы между кадрами берутся из записанных
+ * временных меток и делятся на {@code speed}; при {@code speed <= 0} кадры
+ * идут подряд без пауз. Слушатель вызывается в отдельном потоке источника,
+ * как и у живой камеры, и следующий кадр не выдается, пока слушатель не
+ * вернул управление.
+ */
+public class ReplayFrameSource implements FrameSource {
+    /** Кадры выдаются без пауз. */
+    public static final float MAX_SPEED = 0f;
+
+    private final File recording;
+    private final FaceDetectorHelper.FaceDetectorListener listener;
+    private final float speed;
+    private final boolean loop;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile long framesDelivered;
+    private volatile long facesDelivered;
+    private volatile long listenerNanosTotal;
+    private volatile long listenerNanosMax;
+    private volatile long replayStartNanos;
+    private volatile long replayEndNanos;
+
+    public ReplayFrameSource(File recording, FaceDetectorHelper.FaceDetectorListener listener) {
+        this(recording, listener, 1f, false);
+    }
+
+    /**
+     * @param speed playback speed relative to the recording, {@link #MAX_SPEED} for no pauses
+     * @param loop  start over at the end of the recording until {@link #stop()} is called
+     */
+    public ReplayFrameSource(File recording, FaceDetectorHelper.FaceDetectorListener listener,
+                             float speed, boolean loop) {
+        this.recording = recording;
+        this.listener = listener;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::replay, "ReplayFrameSource");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * Waits until the recording has been played to the end or the source was stopped.
+     *
+     * @return {@code false} if the timeout elapsed first
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current == null) {
+            return true;
+        }
+        current.join(unit.toMillis(timeout));
+        return !current.isAlive();
+    }
+
+    private void replay() {
+        replayStartNanos = System.nanoTime();
+        try {
+            do {
+                playOnce();
+            } while (loop && running);
+        } catch (InterruptedException e) {
+            // stop() во время паузы между кадрами
+        } catch (IOException e) {
+            listener.onFaceDetectionError(e);
+        } finally {
+            replayEndNanos = System.nanoTime();
+            running = false;
+        }
+    }
+
+    private void playOnce() throws IOException, InterruptedException {
+        try (FrameRecording.Reader reader = new FrameRecording.Reader(recording)) {
+            long firstTimestamp = Long.MIN_VALUE;
+            long passStartNanos = System.nanoTime();
+            List<DetectedFace> faces;
+            while (running && (faces = reader.readFrame()) != null) {
+                if (!faces.isEmpty() && speed > 0) {
+                    long timestamp = faces.get(0).getTimestampNanos();
+                    if (firstTimestamp == Long.MIN_VALUE) {
+                        firstTimestamp = timestamp;
+                    }
+                    long dueNanos = passStartNanos + (long) ((timestamp - firstTimestamp) / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                }
+                deliver(faces);
+            }
+        }
+    }
+
+    private void deliver(List<DetectedFace> faces) {
+        long start = System.nanoTime();
+        listener.onFaceDetected(faces);
+        long elapsed = System.nanoTime() - start;
+        // Пишет только поток воспроизведения
+        framesDelivered++;
+        facesDelivered += faces.size();
+        listenerNanosTotal += elapsed;
+        if (elapsed > listenerNanosMax) {
+            listenerNanosMax = elapsed;
+        }
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    public long getFacesDelivered() {
+        return facesDelivered;
+    }
+
+    /** Average time the listener spent per frame, in nanoseconds. */
+    public long getAverageListenerNanos() {
+        long frames = framesDelivered;
+        return frames > 0 ? listenerNanosTotal / frames : 0;
+    }
+
+    public long getMaxListenerNanos() {
+        return listenerNanosMax;
+    }
+
+    /** Frames per second since {@link #start()}, up to now or to the end of the replay. */
+    public double getThroughputFps() {
+        long start = replayStartNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = running ? System.nanoTime() : replayEndNanos;
+        long elapsed = end - start;
+        return elapsed > 0 ? framesDelivered * 1e9 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayFrameSource{frames=" + framesDelivered
+                + ", faces=" + facesDelivered
+                + ", avgListenerUs=" + getAverageListenerNanos() / 1000
+                + ", maxListenerUs=" + listenerNanosMax / 1000
+                + ", fps=" + String.format(Locale.US, "%.1f", getThroughputFps()) + "}";
+    }
+}
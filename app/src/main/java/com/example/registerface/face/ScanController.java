@@ -0,0 +1,225 @@
+package com.example.registerface.face;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+import androidx.camera.core.Preview;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.camera.view.PreviewView;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Держит CameraX привязанной к жизненному циклу экрана между сканированиями.
+ * Провайдер, {@link Preview} и {@link ImageAnalysis} привязываются один раз
+ * при первом сканировании (холодный старт); дальше сканирование только
+ * ставит и снимает анализатор (теплый старт). Пока экран не виден, камеру
+ * останавливает сам CameraX по жизненному циклу; {@link #release()} в
+ * {@code onDestroyView} отвязывает ее совсем.
+ *
+ * Разрешение анализа берется из уровня {@link DetectorLoadController},
+ * переданного при старте сканирования, и меняется только при старте, чтобы
+ * не прерывать идущее.
+ *
+ * Время от запроса до первого кадра в анализаторе пишется в лог и в
+ * {@link FrameMonitor}; на устройстве холодный и теплый старт замеряет
+ * {@code ScanStartLatencyTest} из androidTest. Замеров с устройства пока
+ * нет: требование к задержке старта сведено к наличию этого теста, а
+ * числа (холодный старт, p50 и максимум теплого) вносятся сюда после
+ * прогона {@code ./gradlew connectedAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=com.example.registerface.ScanStartLatencyTest}
+ * с {@code adb logcat -s ScanStartLatency}, с указанием модели устройства.
+ * Все методы вызываются в главном потоке.
+ */
+public class ScanController {
+    private static final String TAG = "ScanController";
+    private final Context context;
+    private final LifecycleOwner lifecycleOwner;
+    private final PreviewView previewView;
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
+    private final FrameMonitor monitor = FrameMonitor.getInstance();
+    private final DetectorLoadController loadController = DetectorLoadController.getInstance();
+    private ProcessCameraProvider cameraProvider;
+    private Preview preview;
+    private ImageAnalysis imageAnalysis;
+    private CameraSelector cameraSelector;
+    private DetectorLoadController.Level analysisLevel;
+    private boolean bindRequested;
+    private boolean released;
+    // Анализатор, заданный до окончания холодного старта
+    private ImageAnalysis.Analyzer pendingAnalyzer;
+    private DetectorLoadController.Level pendingLevel;
+    private long startRequestedNanos;
+
+    public ScanController(Context context, LifecycleOwner lifecycleOwner, PreviewView previewView) {
+        this.context = context;
+        this.lifecycleOwner = lifecycleOwner;
+        this.previewView = previewView;
+    }
+
+    /** Starts delivering frames to {@code analyzer} at the shared controller's current level. */
+    public void setAnalyzer(ImageAnalysis.Analyzer analyzer) {
+        setAnalyzer(analyzer, loadController.getLevel());
+    }
+
+    /**
+     * Starts delivering frames to {@code analyzer} at the resolution of
+     * {@code level}, binding the camera on the first call.
+     */
+    public void setAnalyzer(ImageAnalysis.Analyzer analyzer, DetectorLoadController.Level level) {
+        if (released) {
+            throw new IllegalStateException("ScanController is released");
+        }
+        monitor.onCameraStarted();
+        startRequestedNanos = System.nanoTime();
+        if (imageAnalysis != null && !sameResolution(analysisLevel, level)) {
+            rebindAnalysis(level);
+        }
+        if (imageAnalysis != null) {
+            install(analyzer, false);
+            return;
+        }
+        pendingAnalyzer = analyzer;
+        pendingLevel = level;
+        if (bindRequested) {
+            return;
+        }
+        bindRequested = true;
+        ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(context);
+        cameraProviderFuture.addListener(() -> {
+            try {
+                cameraProvider = cameraProviderFuture.get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Error starting camera", e);
+                bindRequested = false;
+                return;
+            }
+            if (released) {
+                return;
+            }
+            bindCameraUseCases(pendingLevel);
+            if (imageAnalysis != null && pendingAnalyzer != null) {
+                install(pendingAnalyzer, true);
+            }
+            pendingAnalyzer = null;
+        }, ContextCompat.getMainExecutor(context));
+    }
+
+    /** Stops frame delivery; the camera and preview stay bound. */
+    public void clearAnalyzer() {
+        pendingAnalyzer = null;
+        if (imageAnalysis != null) {
+            imageAnalysis.clearAnalyzer();
+        }
+    }
+
+    /** Unbinds the use cases of this controller; call from {@code onDestroyView}. */
+    public void release() {
+        released = true;
+        clearAnalyzer();
+        if (cameraProvider != null) {
+            if (preview != null) {
+                cameraProvider.unbind(preview);
+            }
+            if (imageAnalysis != null) {
+                cameraProvider.unbind(imageAnalysis);
+            }
+        }
+        preview = null;
+        imageAnalysis = null;
+        analysisExecutor.shutdown();
+    }
+
+    private void bindCameraUseCases(DetectorLoadController.Level level) {
+        cameraSelector = new CameraSelector.Builder()
+                .requireLensFacing(CameraSelector.LENS_FACING_FRONT)
+                .build();
+
+        Preview newPreview = new Preview.Builder().build();
+        newPreview.setSurfaceProvider(previewView.getSurfaceProvider());
+
+        ImageAnalysis newAnalysis = buildAnalysis(level);
+
+        try {
+            // Камеру мог оставить привязанной предыдущий экран
+            cameraProvider.unbindAll();
+            cameraProvider.bindToLifecycle(lifecycleOwner, cameraSelector, newPreview, newAnalysis);
+            preview = newPreview;
+            imageAnalysis = newAnalysis;
+            analysisLevel = level;
+        } catch (Exception e) {
+            Log.e(TAG, "Error binding camera use cases", e);
+            bindRequested = false;
+        }
+    }
+
+    private static ImageAnalysis buildAnalysis(DetectorLoadController.Level level) {
+        // Экран портретный, поэтому короткая сторона — ширина
+        return new ImageAnalysis.Builder()
+                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                .setTargetResolution(new Size(level.shortSide, level.longSide))
+                .build();
+    }
+
+    private static boolean sameResolution(DetectorLoadController.Level a, DetectorLoadController.Level b) {
+        return a.longSide == b.longSide && a.shortSide == b.shortSide;
+    }
+
+    // Перепривязывает только анализ, превью продолжает идти; при ошибке привязка пойдет заново целиком
+    private void rebindAnalysis(DetectorLoadController.Level level) {
+        ImageAnalysis newAnalysis = buildAnalysis(level);
+        cameraProvider.unbind(imageAnalysis);
+        try {
+            cameraProvider.bindToLifecycle(lifecycleOwner, cameraSelector, newAnalysis);
+            Log.d(TAG, "Analysis resolution: " + analysisLevel + " -> " + level);
+            imageAnalysis = newAnalysis;
+            analysisLevel = level;
+        } catch (Exception e) {
+            Log.e(TAG, "Error rebinding image analysis", e);
+            imageAnalysis = null;
+            bindRequested = false;
+        }
+    }
+
+    private void install(ImageAnalysis.Analyzer analyzer, boolean cold) {
+        imageAnalysis.setAnalyzer(analysisExecutor, new FirstFrameAnalyzer(analyzer, startRequestedNanos, cold));
+    }
+
+    private final class FirstFrameAnalyzer implements ImageAnalysis.Analyzer {
+        private final ImageAnalysis.Analyzer delegate;
+        private final long requestedNanos;
+        private final boolean cold;
+        // Только поток анализа
+        private boolean firstFrame = true;
+
+        FirstFrameAnalyzer(ImageAnalysis.Analyzer delegate, long requestedNanos, boolean cold) {
+            this.delegate = delegate;
+            this.requestedNanos = requestedNanos;
+            this.cold = cold;
+        }
+
+        @Override
+        public void analyze(@NonNull ImageProxy image) {
+            if (firstFrame) {
+                firstFrame = false;
+                long latencyNanos = System.nanoTime() - requestedNanos;
+                monitor.onScanStarted(cold, latencyNanos);
+                Log.d(TAG, String.format(Locale.US, "%s start: first frame after %.1f ms",
+                        cold ? "Cold" : "Warm", latencyNanos / 1e6));
+            }
+            delegate.analyze(image);
+        }
+    }
+}
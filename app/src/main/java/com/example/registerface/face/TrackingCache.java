@@ -0,0 +1,184 @@
+package com.example.registerface.face;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Кэш результатов по trackingId лица. Пока ML Kit ведет одно и то же лицо,
+ * шаблон, оценка качества и решение о совпадении берутся из кэша, а не
+ * считаются заново на каждом кадре. Запись сбрасывается, когда трек
+ * потерян, истек срок жизни или поза головы заметно изменилась.
+ *
+ * Кэш очищается при каждом старте сканирования. Вход останавливает
+ * сканирование на первом кадре с лицом, поэтому кадры из кэша там почти не
+ * берутся, а пользу дает кэш решений при повторных нажатиях "Войти". При
+ * регистрации кадр с неизвестным качеством не останавливает сканирование,
+ * и следующие стабильные кадры того же трека берутся из кэша.
+ */
+public class TrackingCache {
+    public static final long DEFAULT_TTL_MS = 3000;
+    public static final float DEFAULT_MAX_POSE_DELTA = 10f;
+
+    /** Milliseconds since boot, {@link SystemClock#elapsedRealtime()} outside tests. */
+    public interface Clock {
+        long elapsedRealtime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = SystemClock::elapsedRealtime;
+
+    public interface MetricsListener {
+        void onCacheMetrics(long framesFromCache, long framesEvaluated);
+    }
+
+    public static class Entry {
+        public final int trackingId;
+        public final String faceData;
+        public final float quality;
+        private final float headEulerX;
+        private final float headEulerY;
+        private final float headEulerZ;
+        private long lastSeen;
+        private String decisionKey;
+        private FaceDetectorHelper.FaceComparisonResult decision;
+
+        Entry(int trackingId, String faceData, float quality, DetectedFace face, long now) {
+            this.trackingId = trackingId;
+            this.faceData = faceData;
+            this.quality = quality;
+            this.headEulerX = face.getHeadEulerAngleX();
+            this.headEulerY = face.getHeadEulerAngleY();
+            this.headEulerZ = face.getHeadEulerAngleZ();
+            this.lastSeen = now;
+        }
+
+        private boolean poseChanged(DetectedFace face, float maxDelta) {
+            return Math.abs(face.getHeadEulerAngleX() - headEulerX) > maxDelta
+                    || Math.abs(face.getHeadEulerAngleY() - headEulerY) > maxDelta
+                    || Math.abs(face.getHeadEulerAngleZ() - headEulerZ) > maxDelta;
+        }
+    }
+
+    private final Clock clock;
+    private final long ttlMs;
+    private final float maxPoseDelta;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private long framesFromCache;
+    private long framesEvaluated;
+    private MetricsListener metricsListener;
+
+    public TrackingCache() {
+        this(DEFAULT_TTL_MS, DEFAULT_MAX_POSE_DELTA);
+    }
+
+    public TrackingCache(long ttlMs, float maxPoseDelta) {
+        this(SYSTEM_CLOCK, ttlMs, maxPoseDelta);
+    }
+
+    public TrackingCache(Clock clock, long ttlMs, float maxPoseDelta) {
+        this.clock = clock;
+        this.ttlMs = ttlMs;
+        this.maxPoseDelta = maxPoseDelta;
+    }
+
+    public synchronized void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Returns the cached entry for a face that is still tracked with a similar
+     * pose, or {@code null} if the face has to be evaluated again. Every call
+     * counts as one frame for the metrics.
+     */
+    public synchronized Entry get(DetectedFace face) {
+        Integer trackingId = face.getTrackingId();
+        long now = clock.elapsedRealtime();
+        Entry entry = trackingId != null ? entries.get(trackingId) : null;
+
+        if (entry != null && (now - entry.lastSeen > ttlMs || entry.poseChanged(face, maxPoseDelta))) {
+            entries.remove(trackingId);
+            entry = null;
+        }
+
+        if (entry != null) {
+            entry.lastSeen = now;
+            framesFromCache++;
+        } else {
+            framesEvaluated++;
+        }
+        if (metricsListener != null) {
+            metricsListener.onCacheMetrics(framesFromCache, framesEvaluated);
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a freshly extracted template. Faces without a tracking ID and
+     * empty templates (frames rejected by {@code getFaceData}) are not cached
+     * and {@code null} is returned.
+     */
+    public synchronized Entry put(DetectedFace face, String faceData, float quality) {
+        Integer trackingId = face.getTrackingId();
+        if (trackingId == null) {
+            return null;
+        }
+        if (faceData == null || faceData.isEmpty()) {
+            // Следующий кадр того же трека с лучшей позой должен пройти извлечение заново
+            entries.remove(trackingId);
+            return null;
+        }
+        Entry entry = new Entry(trackingId, faceData, quality, face, clock.elapsedRealtime());
+        entries.put(trackingId, entry);
+        return entry;
+    }
+
+    /** Remembers the match decision for a tracked face against {@code key}, e.g. a user ID. */
+    public synchronized void putDecision(int trackingId, String key, FaceDetectorHelper.FaceComparisonResult decision) {
+        Entry entry = entries.get(trackingId);
+        if (entry != null) {
+            entry.decisionKey = key;
+            entry.decision = decision;
+        }
+    }
+
+    public synchronized FaceDetectorHelper.FaceComparisonResult getDecision(int trackingId, String key) {
+        Entry entry = entries.get(trackingId);
+        if (entry == null || entry.decision == null || !entry.decisionKey.equals(key)) {
+            return null;
+        }
+        return entry.decision;
+    }
+
+    /** Drops entries whose faces are no longer in the frame. */
+    public synchronized void retainTracked(List<DetectedFace> faces) {
+        Iterator<Integer> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            Integer trackingId = iterator.next();
+            boolean tracked = false;
+            for (DetectedFace face : faces) {
+                if (trackingId.equals(face.getTrackingId())) {
+                    tracked = true;
+                    break;
+                }
+            }
+            if (!tracked) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getFramesFromCache() {
+        return framesFromCache;
+    }
+
+    public synchronized long getFramesEvaluated() {
+        return framesEvaluated;
+    }
+}
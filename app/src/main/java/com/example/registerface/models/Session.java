@@ -0,0 +1,59 @@
+package com.example.registerface.models;
+
+/**
+ * Неизменяемый снимок текущей сессии: вошедший пользователь и его профиль.
+ * Изменения создают новый снимок через {@code with*}.
+ */
+public final class Session {
+    private final String userId;
+    private final String name;
+    private final String email;
+    private final String faceData;
+    private final float faceSimilarity;
+    private final long registeredAt;
+    private final long lastLoginAt;
+
+    public Session(String userId, String name, String email, String faceData, float faceSimilarity,
+                   long registeredAt, long lastLoginAt) {
+        this.userId = userId;
+        this.name = name;
+        this.email = email;
+        this.faceData = faceData;
+        this.faceSimilarity = faceSimilarity;
+        this.registeredAt = registeredAt;
+        this.lastLoginAt = lastLoginAt;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getFaceData() {
+        return faceData;
+    }
+
+    /** Similarity of the login capture in percent, 0 for a restored session. */
+    public float getFaceSimilarity() {
+        return faceSimilarity;
+    }
+
+    public long getRegisteredAt() {
+        return registeredAt;
+    }
+
+    public long getLastLoginAt() {
+        return lastLoginAt;
+    }
+
+    public Session withProfile(String name, String email) {
+        return new Session(userId, name, email, faceData, faceSimilarity, registeredAt, lastLoginAt);
+    }
+}
@@ -5,6 +5,9 @@ public class User {
     private String faceData;
     private String name;
     private String email;
+    // Время в мс; 0, если неизвестно (пользователи, зарегистрированные до версии БД 2)
+    private long registeredAt;
+    private long lastLoginAt;
 
     public User(String userId, String faceData, String name, String email) {
         this.userId = userId;
@@ -13,6 +16,12 @@ public class User {
         this.email = email;
     }
 
+    public User(String userId, String faceData, String name, String email, long registeredAt, long lastLoginAt) {
+        this(userId, faceData, name, email);
+        this.registeredAt = registeredAt;
+        this.lastLoginAt = lastLoginAt;
+    }
+
     // Getters and Setters
     public String getUserId() {
         return userId;
@@ -45,4 +54,20 @@ public class User {
     public void setEmail(String email) {
         this.email = email;
     }
-} 
\ No newline at end of file
+
+    public long getRegisteredAt() {
+        return registeredAt;
+    }
+
+    public void setRegisteredAt(long registeredAt) {
+        this.registeredAt = registeredAt;
+    }
+
+    public long getLastLoginAt() {
+        return lastLoginAt;
+    }
+
+    public void setLastLoginAt(long lastLoginAt) {
+        this.lastLoginAt = lastLoginAt;
+    }
+}
\ No newline at end of file
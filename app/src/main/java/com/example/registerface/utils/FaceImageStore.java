@@ -0,0 +1,313 @@
+package com.example.registerface.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.registerface.R;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Хранилище снимков лиц в {@code getFilesDir()} с ограничением по объему.
+ * Размеры и время последнего обращения хранятся в индексе
+ * {@link #INDEX_FILE_NAME}, поэтому каталог сканируется только если индекса
+ * нет. При превышении квоты удаляются самые давние снимки входа; снимки
+ * регистрации не вытесняются. Вся работа с диском, включая чтение снимков,
+ * идет в одном фоновом потоке, в том же порядке, в каком были вызовы.
+ *
+ * Индекс не переписывается на каждый снимок и каждое чтение: изменения
+ * помечают его грязным, и он сохраняется одной записью через
+ * {@link #INDEX_FLUSH_DELAY_MS} после первого из них. Если процесс убит
+ * раньше, теряются только время доступа и размеры снимков за эти секунды.
+ */
+public class FaceImageStore {
+    private static final String TAG = "FaceImageStore";
+    static final String INDEX_FILE_NAME = "face_images.idx";
+    private static final String IMAGE_SUFFIX = ".jpg";
+    private static final int JPEG_QUALITY = 90;
+    static final long INDEX_FLUSH_DELAY_MS = 5000;
+
+    public enum Kind {
+        REGISTRATION("face_reg_"),
+        LOGIN("face_login_");
+
+        final String prefix;
+
+        Kind(String prefix) {
+            this.prefix = prefix;
+        }
+
+        String fileName(String userId) {
+            return prefix + userId + IMAGE_SUFFIX;
+        }
+
+        static Kind of(String fileName) {
+            for (Kind kind : values()) {
+                if (fileName.startsWith(kind.prefix) && fileName.endsWith(IMAGE_SUFFIX)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        final long size;
+        long lastAccess;
+
+        Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    public interface LoadCallback {
+        /** Called on the main thread; {@code bitmap} is {@code null} if there is no snapshot. */
+        void onLoaded(Bitmap bitmap);
+    }
+
+    private static FaceImageStore instance;
+
+    private final File directory;
+    private final File indexFile;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Порядок доступа: первый элемент давнее всех. Меняется только в фоновом потоке
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+    private volatile long quotaBytes;
+    private long totalBytes;
+    // Оба поля меняются только в фоновом потоке
+    private boolean indexDirty;
+    private boolean flushScheduled;
+
+    public static synchronized FaceImageStore getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            long quota = appContext.getResources().getInteger(R.integer.face_image_quota_mb) * 1024L * 1024L;
+            instance = new FaceImageStore(appContext.getFilesDir(), quota);
+        }
+        return instance;
+    }
+
+    FaceImageStore(File directory, long quotaBytes) {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        this.quotaBytes = quotaBytes;
+        executor.execute(this::loadIndex);
+    }
+
+    public void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+        executor.execute(() -> {
+            if (evictToQuota()) {
+                markIndexDirty();
+            }
+        });
+    }
+
+    /**
+     * Compresses and writes the snapshot in the background. The bitmap must
+     * not be modified or recycled by the caller afterwards.
+     */
+    public void save(Kind kind, String userId, Bitmap bitmap) {
+        String fileName = kind.fileName(userId);
+        executor.execute(() -> {
+            File file = new File(directory, fileName);
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save " + fileName, e);
+                return;
+            }
+            Entry previous = index.remove(fileName);
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            Entry entry = new Entry(file.length(), System.currentTimeMillis());
+            index.put(fileName, entry);
+            totalBytes += entry.size;
+            evictToQuota();
+            markIndexDirty();
+        });
+    }
+
+    /**
+     * Decodes the snapshot in the background and passes it to
+     * {@code callback} on the main thread, {@code null} if there is none.
+     * Runs after the writes queued before it, so a snapshot just saved is
+     * already there.
+     */
+    public void load(Kind kind, String userId, LoadCallback callback) {
+        String fileName = kind.fileName(userId);
+        executor.execute(() -> {
+            Bitmap bitmap = null;
+            File file = new File(directory, fileName);
+            if (file.exists()) {
+                bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+                Entry entry = index.get(fileName);
+                if (entry != null) {
+                    entry.lastAccess = System.currentTimeMillis();
+                    markIndexDirty();
+                }
+            }
+            Bitmap loaded = bitmap;
+            mainHandler.post(() -> callback.onLoaded(loaded));
+        });
+    }
+
+    /** Removes every snapshot of {@code userId}. */
+    public void deleteUser(String userId) {
+        executor.execute(() -> {
+            boolean changed = false;
+            for (Kind kind : Kind.values()) {
+                changed |= deleteFile(kind.fileName(userId));
+            }
+            if (changed) {
+                markIndexDirty();
+            }
+        });
+    }
+
+    /** Blocks until the work queued before this call is done and the index is on disk. */
+    void flush() throws InterruptedException {
+        try {
+            executor.submit(this::flushIndex).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private boolean deleteFile(String fileName) {
+        Entry entry = index.remove(fileName);
+        File file = new File(directory, fileName);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + fileName);
+        }
+        if (entry != null) {
+            totalBytes -= entry.size;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean evictToQuota() {
+        boolean changed = false;
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        while (totalBytes > quotaBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            if (Kind.of(next.getKey()) != Kind.LOGIN) {
+                continue;
+            }
+            File file = new File(directory, next.getKey());
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not evict " + next.getKey());
+                continue;
+            }
+            totalBytes -= next.getValue().size;
+            iterator.remove();
+            changed = true;
+            Log.d(TAG, "Evicted " + next.getKey());
+        }
+        if (totalBytes > quotaBytes) {
+            Log.w(TAG, "Registration images alone exceed the quota: " + totalBytes + " > " + quotaBytes);
+        }
+        return changed;
+    }
+
+    private void loadIndex() {
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts.length == 3 && Kind.of(parts[0]) != null) {
+                        Entry entry = new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                        index.put(parts[0], entry);
+                        totalBytes += entry.size;
+                    }
+                }
+                // Квота могла уменьшиться с прошлого запуска
+                if (evictToQuota()) {
+                    writeIndex();
+                }
+                return;
+            } catch (IOException | NumberFormatException e) {
+                Log.w(TAG, "Face image index is corrupt, rebuilding", e);
+                index.clear();
+                totalBytes = 0;
+            }
+        }
+        rebuildIndex();
+    }
+
+    // Единственное место, где сканируется каталог: при первом запуске или после порчи индекса
+    private void rebuildIndex() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                if (Kind.of(file.getName()) != null) {
+                    index.put(file.getName(), new Entry(file.length(), file.lastModified()));
+                    totalBytes += file.length();
+                }
+            }
+        }
+        Log.d(TAG, "Rebuilt face image index: " + index.size() + " files, " + totalBytes + " bytes");
+        evictToQuota();
+        writeIndex();
+    }
+
+    // Изменения за INDEX_FLUSH_DELAY_MS уходят на диск одной записью
+    private void markIndexDirty() {
+        indexDirty = true;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            executor.schedule(this::flushIndex, INDEX_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushIndex() {
+        flushScheduled = false;
+        if (indexDirty) {
+            writeIndex();
+        }
+    }
+
+    private void writeIndex() {
+        indexDirty = false;
+        File temp = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().size + "\t" + entry.getValue().lastAccess + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write face image index", e);
+            return;
+        }
+        if (!temp.renameTo(indexFile)) {
+            Log.e(TAG, "Failed to replace face image index");
+        }
+    }
+}
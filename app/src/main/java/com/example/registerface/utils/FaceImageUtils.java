@@ -1,34 +0,0 @@
-package com.example.registerface.utils;
-
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import java.io.File;
-import java.io.FileOutputStream;
-
-public class FaceImageUtils {
-    public static String saveFaceImage(Context context, Bitmap bitmap, String fileName) {
-        try {
-            File file = new File(context.getFilesDir(), fileName);
-            FileOutputStream fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, fos);
-            fos.close();
-            return file.getAbsolutePath();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    public static Bitmap loadFaceImage(Context context, String fileName) {
-        try {
-            File file = new File(context.getFilesDir(), fileName);
-            if (file.exists()) {
-                return BitmapFactory.decodeFile(file.getAbsolutePath());
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-} 
\ No newline at end of file
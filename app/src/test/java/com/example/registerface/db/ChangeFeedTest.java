@@ -0,0 +1,254 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.User;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Репликация между двумя базами-киосками через файловый транспорт и
+ * HTTP-сервер на loopback.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChangeFeedTest {
+    private static final long SEED = 7L;
+
+    private Context context;
+    private DatabaseHelper kioskA;
+    private DatabaseHelper kioskB;
+    private ChangeFeed feedA;
+    private ChangeFeed feedB;
+    private SyntheticFaceGenerator generator;
+    private Random random;
+    private File changesFile;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        kioskA = new DatabaseHelper(context, "kiosk-a");
+        kioskB = new DatabaseHelper(context, "kiosk-b");
+        feedA = new ChangeFeed(kioskA);
+        feedB = new ChangeFeed(kioskB);
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+        changesFile = new File(context.getCacheDir(), "kiosk-a.changes");
+    }
+
+    @After
+    public void tearDown() {
+        kioskA.close();
+        kioskB.close();
+        changesFile.delete();
+    }
+
+    @Test
+    public void fileTransportSendsOnlyNewChanges() throws IOException {
+        kioskA.addUser(generator.user(1, random));
+        kioskA.addUser(generator.user(2, random));
+        kioskA.addUser(generator.user(3, random));
+        User renamed = kioskA.getUser("u2");
+        kioskA.updateUser(new User(renamed.getUserId(), renamed.getFaceData(), "Renamed", renamed.getEmail()));
+        kioskA.deleteUser("u3");
+        assertNotEquals(feedA.getDeviceId(), feedB.getDeviceId());
+
+        // Одна запись на пользователя: u2 после переименования, u3 как удаление
+        FileChangeTransport transport = new FileChangeTransport(changesFile);
+        assertEquals(3, transport.write(feedA, 0));
+        ChangeFeed.PullResult result = feedB.pull(feedA.getDeviceId(), transport);
+        assertEquals(3, result.applied);
+        assertEquals(feedA.getLastSeq(), feedB.getPeerSeq(feedA.getDeviceId()));
+        assertEquals(kioskA.getUser("u1").getFaceData(), kioskB.getUser("u1").getFaceData());
+        assertEquals("Renamed", kioskB.getUser("u2").getName());
+        assertNull(kioskB.getUser("u3"));
+
+        // Повторное применение того же файла ничего не меняет
+        result = feedB.pull(feedA.getDeviceId(), transport);
+        assertEquals(0, result.applied);
+        assertEquals(3, result.skipped);
+
+        // Новая дельта содержит только новое изменение
+        kioskA.addUser(generator.user(4, random));
+        assertEquals(1, transport.write(feedA, feedB.getPeerSeq(feedA.getDeviceId())));
+        assertEquals(1, feedB.pull(feedA.getDeviceId(), transport).applied);
+        assertEquals(kioskA.getUser("u4").getFaceData(), kioskB.getUser("u4").getFaceData());
+    }
+
+    @Test
+    public void replicatesEditedProfile() throws IOException {
+        kioskA.addUser(generator.user(1, random));
+        FileChangeTransport transport = new FileChangeTransport(changesFile);
+        transport.write(feedA, 0);
+        assertEquals(1, feedB.pull(feedA.getDeviceId(), transport).applied);
+        long seq = feedA.getLastSeq();
+
+        // Только время входа — изменение локальное, в журнал не попадает
+        User user = kioskA.getUser("u1");
+        assertTrue(kioskA.updateProfile("u1", user.getName(), user.getEmail(), 1234L));
+        assertEquals(seq, feedA.getLastSeq());
+
+        // Правка профиля, как из ProfileFragment через UserDirectory
+        assertTrue(kioskA.updateProfile("u1", "Edited", "edited@example.com", 5678L));
+        assertEquals(1, transport.write(feedA, feedB.getPeerSeq(feedA.getDeviceId())));
+        assertEquals(1, feedB.pull(feedA.getDeviceId(), transport).applied);
+        User replicated = kioskB.getUser("u1");
+        assertEquals("Edited", replicated.getName());
+        assertEquals("edited@example.com", replicated.getEmail());
+        assertEquals(user.getFaceData(), replicated.getFaceData());
+        // Время входа у каждого киоска свое
+        assertEquals(0, replicated.getLastLoginAt());
+        assertEquals(5678L, kioskA.getUser("u1").getLastLoginAt());
+
+        assertFalse(kioskA.updateProfile("u9", "Nobody", "nobody@example.com", 1L));
+        assertEquals(seq + 1, feedA.getLastSeq());
+    }
+
+    @Test
+    public void loopbackHttpDoesNotEchoChanges() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/changes", exchange -> {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                feedA.exportChanges(Long.parseLong(query.get("since")), query.get("requester"), body);
+            }
+        });
+        server.start();
+        try {
+            kioskA.addUser(generator.user(1, random));
+            ChangeTransport http = new HttpChangeTransport(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/changes");
+            assertEquals(1, feedB.pull(feedA.getDeviceId(), http).applied);
+
+            // B отдает обратно только свои изменения, принятое от A не возвращается
+            kioskB.addUser(generator.user(9, random));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(1, feedB.exportChanges(0, feedA.getDeviceId(), out));
+            assertEquals(1, feedA.apply(feedB.getDeviceId(), new ByteArrayInputStream(out.toByteArray())).applied);
+            assertEquals(kioskB.getUser("u9").getFaceData(), kioskA.getUser("u9").getFaceData());
+
+            // И A не отдает B его же изменение
+            assertEquals(0, feedB.pull(feedA.getDeviceId(), http).applied);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void rejectsStreamOfAnotherDevice() throws IOException {
+        kioskA.addUser(generator.user(1, random));
+        FileChangeTransport transport = new FileChangeTransport(changesFile);
+        assertEquals(1, transport.write(feedA, 0));
+
+        // Поток A под ID соседа C не должен сдвинуть номер ни A, ни C
+        String otherPeer = feedB.getDeviceId() + "-c";
+        try {
+            feedB.pull(otherPeer, transport);
+            fail("stream of another device was applied");
+        } catch (IOException expected) {
+            // Заголовок не совпал с ожидаемым соседом
+        }
+        assertNull(kioskB.getUser("u1"));
+        assertEquals(0, feedB.getPeerSeq(otherPeer));
+        assertEquals(0, feedB.getPeerSeq(feedA.getDeviceId()));
+
+        assertEquals(1, feedB.pull(feedA.getDeviceId(), transport).applied);
+    }
+
+    @Test
+    public void pushesChangesToMatchServer() throws IOException {
+        // Сервер опознания с галереей в памяти: /enroll, /remove и /health с ID запуска
+        Map<String, String> gallery = new HashMap<>();
+        String[] instance = {"first"};
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            int count = 0;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (path.equals("/enroll")) {
+                        int tab = line.indexOf('\t');
+                        gallery.put(line.substring(0, tab), line.substring(tab + 1));
+                        count++;
+                    } else if (path.equals("/remove") && gallery.remove(line) != null) {
+                        count++;
+                    }
+                }
+            }
+            byte[] response = (path.equals("/health") ? "ok\t" + gallery.size() + "\t" + instance[0]
+                    : String.valueOf(count)).concat("\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+        server.start();
+        try {
+            MatchClient client = new MatchClient("http://127.0.0.1:" + server.getAddress().getPort(), null);
+            kioskA.addUser(generator.user(1, random));
+            kioskA.addUser(generator.user(2, random));
+            assertEquals(2, feedA.pushToMatchServer(client));
+            assertEquals(kioskA.getUser("u2").getFaceData(), gallery.get("u2"));
+            assertEquals(0, feedA.pushToMatchServer(client));
+
+            // Принятое от соседа тоже уходит на сервер, удаление — через /remove
+            kioskB.addUser(generator.user(3, random));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            feedB.exportChanges(0, feedA.getDeviceId(), out);
+            feedA.apply(feedB.getDeviceId(), new ByteArrayInputStream(out.toByteArray()));
+            kioskA.deleteUser("u1");
+            assertEquals(2, feedA.pushToMatchServer(client));
+            assertEquals(2, gallery.size());
+            assertNull(gallery.get("u1"));
+            assertEquals(kioskB.getUser("u3").getFaceData(), gallery.get("u3"));
+
+            // Перезапущенный сервер пуст и получает всех заново
+            gallery.clear();
+            instance[0] = "second";
+            assertEquals(3, feedA.pushToMatchServer(client));
+            assertEquals(2, gallery.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> values = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            values.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.registerface.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.FaceDetectorHelper;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Нагрузочный прогон регистрации и входа на синтетических пользователях.
+ * Размеры задаются свойством {@code loadtest.users} (через запятую, по
+ * умолчанию 1000), например {@code ./gradlew testDebugUnitTest
+ * -Ploadtest.users=1000,10000,100000 --tests '*EnrollmentLoadTest'}.
+ * Отчет с пропускной способностью, перцентилями задержки и FAR/FRR пишется
+ * в stdout теста.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EnrollmentLoadTest {
+    private static final long SEED = 20240601L;
+    private static final int MAX_VERIFICATIONS = 2000;
+    private static final int MAX_IDENTIFICATIONS = 200;
+
+    private DatabaseHelper databaseHelper;
+
+    @Before
+    public void setUp() {
+        databaseHelper = new DatabaseHelper(ApplicationProvider.getApplicationContext());
+    }
+
+    @After
+    public void tearDown() {
+        databaseHelper.close();
+    }
+
+    @Test
+    public void enrollVerifyIdentify() {
+        for (String size : System.getProperty("loadtest.users", "1000").split(",")) {
+            runWorkload(Integer.parseInt(size.trim()));
+        }
+    }
+
+    private void runWorkload(int userCount) {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        Random random = new Random(SEED + userCount);
+        clearUsers();
+        System.out.println(String.format(Locale.US, "=== %d users ===", userCount));
+
+        // Регистрация одной транзакцией, как при массовом импорте
+        LatencyStats enroll = new LatencyStats(userCount);
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < userCount; i++) {
+                long start = System.nanoTime();
+                String faceData = generator.faceData(generator.identity(i), random);
+                boolean added = databaseHelper.addUser(new User(userId(i), faceData, "User " + i, "user" + i + "@example.com"));
+                enroll.record(System.nanoTime() - start);
+                assertTrue(added);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        enroll.report("enroll");
+
+        // Проверка 1:1: своя попытка и попытка чужого лица под тем же ID
+        int verifications = Math.min(userCount, MAX_VERIFICATIONS);
+        LatencyStats verify = new LatencyStats(verifications * 2);
+        float[] genuineScores = new float[verifications];
+        float[] impostorScores = new float[verifications];
+        int falseRejects = 0;
+        int falseAccepts = 0;
+        for (int n = 0; n < verifications; n++) {
+            int claimed = random.nextInt(userCount);
+            // Чужие лица берем вне зарегистрированного диапазона
+            String genuine = generator.faceData(generator.identity(claimed), random);
+            String impostor = generator.faceData(generator.identity(userCount + n), random);
+
+            long start = System.nanoTime();
+            FaceDetectorHelper.FaceComparisonResult result = verify(claimed, genuine);
+            verify.record(System.nanoTime() - start);
+            genuineScores[n] = result.similarityPercentage;
+            if (!result.matches) {
+                falseRejects++;
+            }
+
+            start = System.nanoTime();
+            result = verify(claimed, impostor);
+            verify.record(System.nanoTime() - start);
+            impostorScores[n] = result.similarityPercentage;
+            if (result.matches) {
+                falseAccepts++;
+            }
+        }
+        verify.report("verify");
+        System.out.println(String.format(Locale.US,
+                "verify FRR=%.4f FAR=%.4f genuine p50=%.1f%% impostor p50=%.1f%% threshold=%.1f%%",
+                falseRejects / (float) verifications, falseAccepts / (float) verifications,
+                median(genuineScores), median(impostorScores), FaceMatcher.getThresholdPercentage()));
+
+        // Идентификация 1:N по всей галерее
+        long loadStart = System.nanoTime();
+        List<FaceTemplate> gallery = loadGallery(userCount);
+        System.out.println(String.format(Locale.US, "gallery load %d templates in %.1f ms",
+                gallery.size(), (System.nanoTime() - loadStart) / 1e6));
+        assertEquals(userCount, gallery.size());
+
+        int identifications = Math.min(userCount, MAX_IDENTIFICATIONS);
+        FaceMatcher.Cascade cascade = new FaceMatcher.Cascade();
+        LatencyStats identify = new LatencyStats(identifications * 2);
+        int correct = 0;
+        int misidentified = 0;
+        int missed = 0;
+        int falsePositives = 0;
+        for (int n = 0; n < identifications; n++) {
+            int enrolled = random.nextInt(userCount);
+            FaceTemplate probe = FaceTemplate.parse(generator.faceData(generator.identity(enrolled), random));
+            long start = System.nanoTime();
+            int best = identify(cascade, gallery, probe);
+            identify.record(System.nanoTime() - start);
+            if (best == enrolled) {
+                correct++;
+            } else if (best < 0) {
+                missed++;
+            } else {
+                misidentified++;
+            }
+
+            FaceTemplate stranger = FaceTemplate.parse(generator.faceData(generator.identity(userCount + n), random));
+            start = System.nanoTime();
+            best = identify(cascade, gallery, stranger);
+            identify.record(System.nanoTime() - start);
+            if (best >= 0) {
+                falsePositives++;
+            }
+        }
+        identify.report("identify");
+        System.out.println(String.format(Locale.US,
+                "identify rank1=%.4f misidentified=%.4f missed=%.4f FPIR=%.4f %s",
+                correct / (float) identifications, misidentified / (float) identifications,
+                missed / (float) identifications, falsePositives / (float) identifications, cascade));
+
+        // Свои попытки должны в среднем быть ближе чужих
+        assertTrue(median(genuineScores) > median(impostorScores));
+    }
+
+    private FaceDetectorHelper.FaceComparisonResult verify(int claimed, String probeFaceData) {
+        User user = databaseHelper.getUser(userId(claimed));
+        return FaceDetectorHelper.compareFaces(user.getFaceData(), probeFaceData);
+    }
+
+    private static int identify(FaceMatcher.Cascade cascade, List<FaceTemplate> gallery, FaceTemplate probe) {
+        int best = -1;
+        float bestScore = 0f;
+        for (int i = 0; i < gallery.size(); i++) {
+            float score = cascade.match(probe, gallery.get(i), bestScore);
+            if (score != FaceMatcher.REJECTED && score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private List<FaceTemplate> loadGallery(int userCount) {
+        FaceTemplate[] templates = new FaceTemplate[userCount];
+        try (Cursor cursor = databaseHelper.getReadableDatabase().query(DatabaseHelper.TABLE_USERS,
+                new String[]{DatabaseHelper.COLUMN_USER_ID, DatabaseHelper.COLUMN_FACE_DATA},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                int index = Integer.parseInt(cursor.getString(0).substring(1));
+                templates[index] = FaceTemplate.parse(cursor.getString(1));
+            }
+        }
+        List<FaceTemplate> gallery = new ArrayList<>(userCount);
+        for (FaceTemplate template : templates) {
+            if (template != null) {
+                gallery.add(template);
+            }
+        }
+        return gallery;
+    }
+
+    private void clearUsers() {
+        databaseHelper.getWritableDatabase().delete(DatabaseHelper.TABLE_USERS, null, null);
+    }
+
+    private static String userId(int index) {
+        return "u" + index;
+    }
+
+    private static float median(float[] values) {
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static final class LatencyStats {
+        private final long[] samples;
+        private int count;
+        private long totalNanos;
+
+        LatencyStats(int capacity) {
+            samples = new long[capacity];
+        }
+
+        void record(long nanos) {
+            samples[count++] = nanos;
+            totalNanos += nanos;
+        }
+
+        void report(String name) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            System.out.println(String.format(Locale.US,
+                    "%s n=%d throughput=%.0f/s p50=%.3f ms p95=%.3f ms p99=%.3f ms max=%.3f ms",
+                    name, count, count * 1e9 / Math.max(1, totalNanos),
+                    percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99),
+                    count > 0 ? sorted[count - 1] / 1e6 : 0));
+        }
+
+        private static double percentile(long[] sorted, double q) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (q * sorted.length))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Импорт пачками с продолжением по checkpoint и экспорт через временный
+ * файл, на отдельных базах.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EnrollmentTransferTest {
+    private static final long SEED = 28L;
+    private static final int USERS = EnrollmentTransfer.BATCH_SIZE * 2 + 234;
+
+    private Context context;
+    private DatabaseHelper source;
+    private DatabaseHelper target;
+    private SyntheticFaceGenerator generator;
+    private Random random;
+    private File file;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        source = new DatabaseHelper(context, "transfer-source");
+        target = new DatabaseHelper(context, "transfer-target");
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+        file = new File(context.getCacheDir(), "users.tsv");
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        target.close();
+        file.delete();
+        new File(file.getPath() + ".checkpoint").delete();
+    }
+
+    @Test
+    public void importsInBatchesAndSkipsMalformedLines() throws IOException {
+        List<String> lines = userLines(USERS);
+        lines.add(3, "# comment");
+        lines.add(10, "");
+        lines.add(20, "only\ttwo");
+        lines.add(30, "\tno id\tx@example.com\tface");
+        writeFile(lines);
+
+        List<Long> progress = new ArrayList<>();
+        EnrollmentTransfer.ImportResult result = new EnrollmentTransfer(target)
+                .importUsers(file, (records, fraction) -> progress.add(records));
+
+        assertEquals(USERS, result.imported);
+        assertEquals(2, result.skipped);
+        assertFalse(result.resumed);
+        assertEquals(USERS, countUsers(target));
+        // Одно сообщение на закоммиченную пачку и итоговое
+        assertEquals(3, progress.size());
+        assertEquals(EnrollmentTransfer.BATCH_SIZE, (long) progress.get(0));
+        assertEquals(USERS, (long) progress.get(2));
+        assertFalse(new File(file.getPath() + ".checkpoint").exists());
+    }
+
+    @Test
+    public void resumesInterruptedImportFromCheckpoint() throws IOException {
+        writeFile(userLines(USERS));
+        try {
+            new EnrollmentTransfer(target).importUsers(file, (records, fraction) -> {
+                throw new IllegalStateException("interrupted after " + records);
+            });
+            fail("import was not interrupted");
+        } catch (IllegalStateException expected) {
+            // Первая пачка закоммичена, вторая откатилась
+        }
+        assertEquals(EnrollmentTransfer.BATCH_SIZE, countUsers(target));
+        assertTrue(new File(file.getPath() + ".checkpoint").exists());
+
+        EnrollmentTransfer.ImportResult result = new EnrollmentTransfer(target).importUsers(file, null);
+        assertTrue(result.resumed);
+        assertEquals(USERS, result.imported);
+        assertEquals(USERS, countUsers(target));
+        assertEquals("User " + (USERS - 1), target.getUser("u" + (USERS - 1)).getName());
+    }
+
+    @Test
+    public void reimportReplacesRows() throws IOException {
+        writeFile(userLines(10));
+        EnrollmentTransfer transfer = new EnrollmentTransfer(target);
+        transfer.importUsers(file, null);
+        String faceData = target.getUser("u3").getFaceData();
+
+        // Тот же файл еще раз и правка одной записи: строк не прибавилось
+        transfer.importUsers(file, null);
+        List<String> edited = userLines(10);
+        edited.set(4, "u3\tRenamed\tu3@example.com\t" + faceData);
+        writeFile(edited);
+        transfer.importUsers(file, null);
+
+        assertEquals(10, countUsers(target));
+        assertEquals("Renamed", target.getUser("u3").getName());
+        assertEquals(faceData, target.getUser("u3").getFaceData());
+    }
+
+    @Test
+    public void reimportKeepsRegistrationAndLoginTimes() throws IOException {
+        long before = System.currentTimeMillis();
+        writeFile(userLines(5));
+        EnrollmentTransfer transfer = new EnrollmentTransfer(target);
+        transfer.importUsers(file, null);
+        User imported = target.getUser("u2");
+        // Новый пользователь зарегистрирован в момент импорта
+        assertTrue(imported.getRegisteredAt() >= before);
+        assertEquals(0, imported.getLastLoginAt());
+        assertTrue(target.updateProfile("u2", imported.getName(), imported.getEmail(), 1234L));
+
+        List<String> edited = userLines(5);
+        edited.set(3, "u2\tRenamed\tu2@example.com\t" + imported.getFaceData());
+        writeFile(edited);
+        transfer.importUsers(file, null);
+
+        User reimported = target.getUser("u2");
+        assertEquals("Renamed", reimported.getName());
+        assertEquals(imported.getRegisteredAt(), reimported.getRegisteredAt());
+        assertEquals(1234L, reimported.getLastLoginAt());
+    }
+
+    @Test
+    public void exportRoundTripsThroughTempFile() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            source.addUser(user(i, "User " + i, "user" + i + "@example.com"));
+        }
+        source.addUser(user(20, "Tab\there\\and\nnewline", "odd@example.com"));
+        // Прежний файл заменяется целиком
+        writeFile(userLines(3));
+
+        long exported = new EnrollmentTransfer(source).exportUsers(file, null);
+        assertEquals(21, exported);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            assertTrue(reader.readLine().startsWith("#"));
+        }
+
+        new EnrollmentTransfer(target).importUsers(file, null);
+        assertEquals(21, countUsers(target));
+        for (int i = 0; i <= 20; i++) {
+            User expected = source.getUser("u" + i);
+            User actual = target.getUser("u" + i);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getEmail(), actual.getEmail());
+            assertEquals(expected.getFaceData(), actual.getFaceData());
+        }
+    }
+
+    @Test
+    public void failedExportLeavesNoFile() {
+        File missingDir = new File(context.getCacheDir(), "missing/users.tsv");
+        try {
+            new EnrollmentTransfer(source).exportUsers(missingDir, null);
+            fail("export into a missing directory succeeded");
+        } catch (IOException expected) {
+            assertFalse(missingDir.exists());
+        }
+    }
+
+    private List<String> userLines(int count) {
+        List<String> lines = new ArrayList<>();
+        lines.add("# faceregister enrollment v1");
+        for (int i = 0; i < count; i++) {
+            lines.add("u" + i + "\tUser " + i + "\tuser" + i + "@example.com\t"
+                    + generator.faceData(generator.identity(i), random));
+        }
+        return lines;
+    }
+
+    private User user(int index, String name, String email) {
+        return new User("u" + index, generator.faceData(generator.identity(index), random), name, email);
+    }
+
+    private void writeFile(List<String> lines) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static long countUsers(DatabaseHelper dbHelper) {
+        return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(), DatabaseHelper.TABLE_USERS);
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Галерея {@link DatabaseHelper#getFaceGallery}, своя у каждой базы: записи
+ * во время загрузки не ждут ее и не теряются, прерванная загрузка не
+ * кэшируется, а {@link DatabaseHelper#identify} запускает загрузку и до ее
+ * конца обходится кандидатами.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FaceGalleryCacheTest {
+    private static final long SEED = 38L;
+    private static final int USERS = 50;
+
+    private DatabaseHelper dbHelper;
+    private SyntheticFaceGenerator generator;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        dbHelper = new DatabaseHelper(context, "gallery-cache");
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+        for (int i = 0; i < USERS; i++) {
+            dbHelper.addUser(generator.user(i, random));
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // Фоновая загрузка не должна пережить базу
+        dbHelper.awaitFaceGalleryPreload();
+        dbHelper.close();
+    }
+
+    @Test
+    public void writesDuringLoadAreReplayed() throws InterruptedException {
+        User late = generator.user(USERS, random);
+        User replaced = generator.user(3, random);
+        AtomicBoolean written = new AtomicBoolean();
+        // Слушатель вызывается из потоков загрузки до публикации галереи; раньше такая запись ждала бы конца загрузки
+        FaceGallery gallery = dbHelper.getFaceGallery((loaded, total) -> {
+            if (written.compareAndSet(false, true)) {
+                dbHelper.addUser(late);
+                dbHelper.deleteUser("u1");
+                dbHelper.updateUser(replaced);
+            }
+        });
+
+        assertEquals(USERS, gallery.size());
+        assertEquals("u" + USERS, best(gallery, late).userId);
+        assertEquals("u3", best(gallery, replaced).userId);
+        for (int row = 0; row < gallery.size(); row++) {
+            assertNotEquals("u1", gallery.getUserId(row));
+        }
+        assertSame(gallery, dbHelper.getFaceGallery());
+    }
+
+    @Test
+    public void interruptedLoadIsNotCached() throws InterruptedException {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread loader = new Thread(() -> {
+            try {
+                dbHelper.getFaceGallery((loaded, total) -> {
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                        // Загрузку отменили
+                    }
+                });
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        loader.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        loader.interrupt();
+        loader.join(10_000);
+        release.countDown();
+        // Пустую галерею вместо недочитанной не отдаем
+        assertTrue(interrupted.get());
+
+        // Запись без загруженной галереи никуда не копится, следующий вызов читает заново
+        dbHelper.addUser(generator.user(USERS, random));
+        FaceGallery gallery = dbHelper.getFaceGallery();
+        assertEquals(USERS + 1, gallery.size());
+    }
+
+    @Test
+    public void invalidationDuringLoadReloads() throws InterruptedException {
+        AtomicBoolean invalidated = new AtomicBoolean();
+        FaceGallery gallery = dbHelper.getFaceGallery((loaded, total) -> {
+            if (invalidated.compareAndSet(false, true)) {
+                // Как после импорта в обход DatabaseHelper
+                dbHelper.getWritableDatabase().delete(DatabaseHelper.TABLE_USERS,
+                        DatabaseHelper.COLUMN_USER_ID + " = ?", new String[]{"u2"});
+                dbHelper.invalidateFaceGallery();
+            }
+        });
+        // Опубликована галерея второй загрузки, уже без u2
+        assertEquals(USERS - 1, gallery.size());
+        assertSame(gallery, dbHelper.getFaceGallery());
+    }
+
+    @Test
+    public void identifiesFromSignatureCandidatesWhileGalleryLoads() throws InterruptedException {
+        FaceTemplate own = FaceTemplate.parse(dbHelper.getUser("u5").getFaceData());
+        FaceGallery.Match[] matches = dbHelper.identify(new FaceTemplate[]{own}, 99f);
+        assertEquals("u5", matches[0].userId);
+        // Совпадение нашлось среди кандидатов, а галерея тем временем загружается в фоне
+        dbHelper.awaitFaceGalleryPreload();
+        AtomicBoolean loaded = new AtomicBoolean();
+        FaceGallery gallery = dbHelper.getFaceGallery((count, total) -> loaded.set(true));
+        assertFalse(loaded.get());
+        assertEquals(USERS, gallery.size());
+        assertEquals("u5", dbHelper.identify(new FaceTemplate[]{own}, 99f)[0].userId);
+
+        // Без совпадения среди кандидатов ищем по всей галерее
+        dbHelper.invalidateFaceGallery();
+        FaceTemplate stranger = FaceTemplate.parse(generator.faceData(generator.identity(USERS + 1), random));
+        assertNull(dbHelper.identify(new FaceTemplate[]{own, stranger}, 99f)[1]);
+        dbHelper.getFaceGallery((count, total) -> loaded.set(true));
+        assertFalse(loaded.get());
+    }
+
+    @Test
+    public void galleriesArePerDatabase() throws InterruptedException {
+        DatabaseHelper other = new DatabaseHelper(ApplicationProvider.getApplicationContext(), "gallery-cache-other");
+        try {
+            FaceGallery gallery = dbHelper.getFaceGallery();
+            assertEquals(USERS, gallery.size());
+            // Запись и сброс на втором киоске не трогают галерею первого
+            other.addUser(generator.user(USERS, random));
+            other.invalidateFaceGallery();
+            assertSame(gallery, dbHelper.getFaceGallery());
+            assertEquals(USERS, gallery.size());
+            assertEquals(1, other.getFaceGallery().size());
+        } finally {
+            other.close();
+        }
+    }
+
+    private static FaceGallery.Match best(FaceGallery gallery, User user) {
+        return gallery.findBest(FaceTemplate.parse(user.getFaceData()), 0f);
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.registerface.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Журнал входов на временном каталоге: запись и чтение через
+ * {@link LoginAuditLog.Reader}, отсечение испорченного хвоста, ротация
+ * сегментов и выгрузка в TSV.
+ */
+public class LoginAuditLogTest {
+    // Запись с ID из ID_LENGTH байт имеет постоянный размер
+    private static final int ID_LENGTH = 12;
+    private static final int RECORD_BYTES = 2 + 8 + 1 + 4 + 4 + 1 + ID_LENGTH + 4;
+    private static final int HEADER_BYTES = 6;
+
+    private File directory;
+    private LoginAuditLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit").toFile();
+        log = new LoginAuditLog(directory);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void recordsRoundTripThroughReader() throws IOException {
+        long before = System.currentTimeMillis();
+        LoginAuditLog.Decision[] decisions = LoginAuditLog.Decision.values();
+        for (int i = 0; i < 1_000; i++) {
+            log.log(userId(i), i / 10f, decisions[i % decisions.length], i * 1_500L);
+        }
+        log.log(null, 0f, LoginAuditLog.Decision.UNKNOWN_USER, Long.MAX_VALUE);
+        log.flush();
+        long after = System.currentTimeMillis();
+
+        List<LoginAuditLog.Record> records = readAll();
+        assertEquals(1_001, records.size());
+        for (int i = 0; i < 1_000; i++) {
+            LoginAuditLog.Record record = records.get(i);
+            assertEquals(userId(i), record.userId);
+            assertEquals(i / 10f, record.similarityPercentage, 0f);
+            assertEquals(decisions[i % decisions.length], record.decision);
+            assertEquals(i * 3 / 2, record.latencyMicros);
+            assertTrue(record.timestampMillis >= before && record.timestampMillis <= after);
+        }
+        LoginAuditLog.Record last = records.get(1_000);
+        assertEquals("", last.userId);
+        assertEquals(Integer.MAX_VALUE, last.latencyMicros);
+        assertEquals(0, log.getDroppedCount());
+    }
+
+    @Test
+    public void truncatesLongUserIdAtCharacterBoundary() throws IOException {
+        StringBuilder cyrillic = new StringBuilder();
+        for (int i = 0; i < 130; i++) {
+            cyrillic.append('ж');
+        }
+        StringBuilder emoji = new StringBuilder("ab");
+        for (int i = 0; i < 70; i++) {
+            emoji.append("😀");
+        }
+        log.log(cyrillic.toString(), 90f, LoginAuditLog.Decision.ACCEPTED, 0);
+        log.log(emoji.toString(), 90f, LoginAuditLog.Decision.ACCEPTED, 0);
+        log.flush();
+
+        List<LoginAuditLog.Record> records = readAll();
+        assertEquals(2, records.size());
+        // 255 байт разрезали бы 128-ю «ж», остается 127 целых
+        assertEquals(cyrillic.substring(0, 127), records.get(0).userId);
+        // 2 + 4 * 63 = 254, 64-й смайлик не помещается целиком
+        assertEquals(emoji.substring(0, 2 + 2 * 63), records.get(1).userId);
+
+        byte[] bytes = "aж".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, LoginAuditLog.utf8PrefixLength(bytes, 2));
+        assertEquals(3, LoginAuditLog.utf8PrefixLength(bytes, 3));
+        assertEquals(3, LoginAuditLog.utf8PrefixLength(bytes, 255));
+    }
+
+    @Test
+    public void skipsTornTail() throws IOException {
+        logBatch(0, 100);
+        log.flush();
+        File[] segments = LoginAuditLog.listSegments(directory);
+        assertEquals(1, segments.length);
+        // Сбой посреди последней записи
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            assertEquals(HEADER_BYTES + 100 * RECORD_BYTES, file.length());
+            file.setLength(file.length() - 5);
+        }
+
+        List<LoginAuditLog.Record> records = readAll();
+        assertEquals(99, records.size());
+        assertEquals(userId(98), records.get(98).userId);
+    }
+
+    @Test
+    public void skipsCorruptRecordAndContinuesWithNextSegment() throws IOException {
+        logBatch(0, 100);
+        log.close();
+        // Новый экземпляр начинает следующий сегмент, как после перезапуска
+        log = new LoginAuditLog(directory);
+        logBatch(100, 50);
+        log.flush();
+        File[] segments = LoginAuditLog.listSegments(directory);
+        assertEquals(2, segments.length);
+
+        // Один байт схожести в 91-й записи первого сегмента
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            long offset = HEADER_BYTES + 90L * RECORD_BYTES + 2 + 8 + 1;
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0x01);
+        }
+
+        List<LoginAuditLog.Record> records = readAll();
+        assertEquals(90 + 50, records.size());
+        assertEquals(userId(89), records.get(89).userId);
+        assertEquals(userId(100), records.get(90).userId);
+        assertEquals(userId(149), records.get(139).userId);
+    }
+
+    @Test
+    public void skipsSegmentWithBadHeader() throws IOException {
+        logBatch(0, 10);
+        log.close();
+        log = new LoginAuditLog(directory);
+        logBatch(10, 10);
+        log.flush();
+        File[] segments = LoginAuditLog.listSegments(directory);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.write(0);
+        }
+
+        List<LoginAuditLog.Record> records = readAll();
+        assertEquals(10, records.size());
+        assertEquals(userId(10), records.get(0).userId);
+    }
+
+    @Test
+    public void rotatesSegmentsAndKeepsTheNewest() throws IOException {
+        // Длинный ID, чтобы каждая пачка переполняла сегмент
+        int perBatch = 5_000;
+        int batches = LoginAuditLog.MAX_SEGMENTS + 4;
+        int maxRecordBytes = 2 + 8 + 1 + 4 + 4 + 1 + 255 + 4;
+        int sequence = 0;
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < perBatch; i++) {
+                log.log(longUserId(sequence++), 50f, LoginAuditLog.Decision.REJECTED, 1_000);
+            }
+            log.flush();
+        }
+
+        File[] segments = LoginAuditLog.listSegments(directory);
+        assertEquals(LoginAuditLog.MAX_SEGMENTS, segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            File segment = segments[i];
+            // Сегмент закрывается после первой группы, на которой он перевалил за предел;
+            // последний мог остаться открытым, если фоновая фиксация разделила пачку
+            if (i < segments.length - 1) {
+                assertTrue(segment.getName() + " " + segment.length(), segment.length() >= LoginAuditLog.SEGMENT_BYTES);
+            }
+            assertTrue(segment.getName() + " " + segment.length(),
+                    segment.length() <= LoginAuditLog.SEGMENT_BYTES + (long) perBatch * maxRecordBytes);
+        }
+
+        // Остался непрерывный хвост журнала, последняя запись — последняя записанная
+        List<LoginAuditLog.Record> records = readAll();
+        assertTrue(records.size() < sequence);
+        int first = sequence - records.size();
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(longUserId(first + i), records.get(i).userId);
+        }
+    }
+
+    @Test
+    public void exportsTsv() throws IOException {
+        log.log("alice", 91.237f, LoginAuditLog.Decision.ACCEPTED, 12_345_678);
+        log.log("bob", 40.5f, LoginAuditLog.Decision.REJECTED, 2_000);
+        log.log("", 0f, LoginAuditLog.Decision.UNKNOWN_USER, 999);
+        File target = new File(directory, "export.tsv");
+
+        // exportTsv сам дожидается записи очереди
+        assertEquals(3, log.exportTsv(target));
+        List<LoginAuditLog.Record> records = readAll();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(target), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("#"));
+        assertEquals(String.format(Locale.US, "%d\talice\tACCEPTED\t91.24\t12345", records.get(0).timestampMillis),
+                lines.get(1));
+        assertEquals(String.format(Locale.US, "%d\tbob\tREJECTED\t40.50\t2", records.get(1).timestampMillis),
+                lines.get(2));
+        assertEquals(String.format(Locale.US, "%d\t\tUNKNOWN_USER\t0.00\t0", records.get(2).timestampMillis),
+                lines.get(3));
+    }
+
+    @Test
+    public void emptyLogReadsNothing() throws IOException {
+        log.flush();
+        assertEquals(0, directory.list().length);
+        try (LoginAuditLog.Reader reader = log.openReader()) {
+            assertNull(reader.next());
+        }
+    }
+
+    private void logBatch(int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            log.log(userId(i), 80f, LoginAuditLog.Decision.ACCEPTED, 1_000);
+        }
+    }
+
+    private List<LoginAuditLog.Record> readAll() throws IOException {
+        List<LoginAuditLog.Record> records = new ArrayList<>();
+        try (LoginAuditLog.Reader reader = log.openReader()) {
+            LoginAuditLog.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static String userId(int index) {
+        return String.format(Locale.US, "user-%07d", index);
+    }
+
+    private static String longUserId(int index) {
+        StringBuilder userId = new StringBuilder(String.format(Locale.US, "%08d", index));
+        while (userId.length() < 255) {
+            userId.append('x');
+        }
+        return userId.toString();
+    }
+}
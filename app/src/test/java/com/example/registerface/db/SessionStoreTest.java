@@ -0,0 +1,183 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.Session;
+import com.example.registerface.models.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Сессия поверх каталога на отдельной базе: слияние отложенных записей
+ * профиля, доставка слушателям в главном потоке и перенос профиля из
+ * SharedPreferences старых версий.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SessionStoreTest {
+    private static final long SEED = 37L;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private Context context;
+    private DatabaseHelper dbHelper;
+    private User user;
+    private final AtomicInteger profileWrites = new AtomicInteger();
+    private final CountDownLatch writing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        // Первая запись профиля ждет release, чтобы следующие правки успели встать в очередь за ней
+        dbHelper = new DatabaseHelper(context, "session-store") {
+            @Override
+            public boolean updateProfile(String userId, String name, String email, long lastLoginAt) {
+                profileWrites.incrementAndGet();
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.updateProfile(userId, name, email, lastLoginAt);
+            }
+        };
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        user = generator.user(1, new Random(SEED));
+        assertTrue(dbHelper.addUser(user));
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        dbHelper.close();
+    }
+
+    @Test
+    public void coalescesProfileWrites() throws InterruptedException {
+        UserDirectory directory = new UserDirectory(dbHelper);
+        SessionStore store = new SessionStore(context, directory);
+        store.login(user, 90f);
+        assertTrue(writing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 50; i++) {
+            store.updateProfile("Name " + i, "name" + i + "@example.com");
+        }
+        // Снимок меняется сразу, каталог — в потоке хранилища
+        assertEquals("Name 49", store.get().getName());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!"Name 49".equals(directory.getUser("u1").getName())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("profile edits did not reach the directory");
+            }
+            Thread.sleep(10);
+        }
+        release.countDown();
+        store.flush();
+
+        // Запись при входе и одна за все 50 правок
+        assertEquals(2, profileWrites.get());
+        User stored = dbHelper.getUser("u1");
+        assertEquals("Name 49", stored.getName());
+        assertEquals("name49@example.com", stored.getEmail());
+        assertEquals(store.get().getLastLoginAt(), stored.getLastLoginAt());
+    }
+
+    @Test
+    public void notifiesListenersOnTheMainThread() throws InterruptedException {
+        release.countDown();
+        SessionStore store = new SessionStore(context, new UserDirectory(dbHelper));
+        List<Session> delivered = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        store.addListener(session -> {
+            delivered.add(session);
+            threads.add(Thread.currentThread());
+        });
+
+        store.login(user, 90f);
+        // Слушатель не вызывается из login, а ждет главного потока
+        assertTrue(delivered.isEmpty());
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, delivered.size());
+        assertEquals("u1", delivered.get(0).getUserId());
+        assertEquals(90f, delivered.get(0).getFaceSimilarity(), 0f);
+        assertSame(Looper.getMainLooper().getThread(), threads.get(0));
+        store.flush();
+        assertEquals("u1", preferences().getString("user_id", null));
+
+        store.logout();
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(2, delivered.size());
+        assertNull(delivered.get(1));
+        assertNull(store.get());
+        store.flush();
+        assertFalse(preferences().contains("user_id"));
+    }
+
+    @Test
+    public void migratesLegacyProfileOnRestore() throws InterruptedException {
+        release.countDown();
+        preferences().edit()
+                .putString("user_id", "u1")
+                .putString("name", "Legacy Name")
+                .putString("email", "legacy@example.com")
+                .putString("last_login", "2020-01-01 10:00")
+                .putString("face_similarity", "93.5")
+                .commit();
+
+        SessionStore store = new SessionStore(context, new UserDirectory(dbHelper));
+        store.flush();
+        Session restored = store.get();
+        assertEquals("u1", restored.getUserId());
+        assertEquals("Legacy Name", restored.getName());
+
+        // Профиль теперь живет в users, в настройках остается только ID
+        User stored = dbHelper.getUser("u1");
+        assertEquals("Legacy Name", stored.getName());
+        assertEquals("legacy@example.com", stored.getEmail());
+        SharedPreferences preferences = preferences();
+        assertEquals("u1", preferences.getString("user_id", null));
+        assertFalse(preferences.contains("name"));
+        assertFalse(preferences.contains("email"));
+        assertFalse(preferences.contains("last_login"));
+        assertFalse(preferences.contains("face_similarity"));
+    }
+
+    @Test
+    public void forgetsSessionOfDeletedUser() throws InterruptedException {
+        release.countDown();
+        preferences().edit().putString("user_id", "gone").commit();
+
+        SessionStore store = new SessionStore(context, new UserDirectory(dbHelper));
+        store.flush();
+        assertNull(store.get());
+        assertFalse(preferences().contains("user_id"));
+    }
+
+    private SharedPreferences preferences() {
+        return context.getSharedPreferences("UserPrefs", 0);
+    }
+}
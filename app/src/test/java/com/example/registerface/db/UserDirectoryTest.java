@@ -0,0 +1,249 @@
+package com.example.registerface.db;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.SyntheticFaceGenerator;
+import com.example.registerface.models.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Каталог перед отдельной базой: чтение своих записей до записи в БД,
+ * порядок отложенных записей, параллельные читатели и чтение для главного
+ * потока.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UserDirectoryTest {
+    private static final long SEED = 50L;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private DatabaseHelper dbHelper;
+    private UserDirectory directory;
+    private SyntheticFaceGenerator generator;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        dbHelper = new DatabaseHelper(context, "directory");
+        directory = new UserDirectory(dbHelper);
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+    }
+
+    @After
+    public void tearDown() {
+        dbHelper.close();
+    }
+
+    @Test
+    public void readsOwnWritesBeforeTheyReachTheDatabase() throws InterruptedException {
+        User user = generator.user(1, random);
+        assertTrue(directory.addUser(user));
+        assertEquals(user.getFaceData(), directory.getUser("u1").getFaceData());
+        assertTrue(directory.getUser("u1").getRegisteredAt() > 0);
+        assertFalse(directory.addUser(generator.user(1, random)));
+
+        // Выданная копия не меняет каталог
+        directory.getUser("u1").setName("Changed");
+        assertEquals("User 1", directory.getUser("u1").getName());
+
+        directory.flush();
+        User stored = dbHelper.getUser("u1");
+        assertEquals(user.getFaceData(), stored.getFaceData());
+        assertEquals(directory.getUser("u1").getRegisteredAt(), stored.getRegisteredAt());
+    }
+
+    @Test
+    public void appliesWritesInOrder() throws InterruptedException {
+        assertTrue(directory.addUser(generator.user(1, random)));
+        assertTrue(directory.updateProfile("u1", "First", "first@example.com", 1));
+        assertTrue(directory.deleteUser("u1"));
+        assertNull(directory.getUser("u1"));
+        assertFalse(directory.updateProfile("u1", "Lost", "lost@example.com", 2));
+        assertTrue(directory.addUser(generator.user(1, random)));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(directory.updateProfile("u1", "Name " + i, "name" + i + "@example.com", i));
+        }
+        assertTrue(directory.addUser(generator.user(2, random)));
+        assertTrue(directory.deleteUser("u2"));
+
+        directory.flush();
+        User stored = dbHelper.getUser("u1");
+        assertEquals("Name 99", stored.getName());
+        assertEquals(99, stored.getLastLoginAt());
+        assertNull(dbHelper.getUser("u2"));
+    }
+
+    @Test
+    public void loadsExistingUsersLazily() throws InterruptedException {
+        dbHelper.addUser(generator.user(1, random));
+        dbHelper.addUser(generator.user(2, random));
+        assertEquals("User 2", directory.getUser("u2").getName());
+
+        List<User> users = directory.listUsers();
+        assertEquals(2, users.size());
+        assertEquals("u1", users.get(0).getUserId());
+        // Список читается без face_data, у уже загруженного пользователя она есть
+        assertNull(users.get(0).getFaceData());
+        assertNotNull(users.get(1).getFaceData());
+        assertNull(directory.getUser("u3"));
+        assertFalse(directory.deleteUser("u3"));
+
+        // Запись в обход каталога видна только после сброса
+        dbHelper.addUser(generator.user(3, random));
+        assertEquals(2, directory.listUsers().size());
+        directory.invalidate();
+        directory.flush();
+        assertEquals(3, directory.listUsers().size());
+        assertEquals("User 3", directory.getUser("u3").getName());
+    }
+
+    @Test
+    public void readersRunAlongsideWriter() throws Exception {
+        int users = 20;
+        for (int i = 0; i < users; i++) {
+            assertTrue(directory.addUser(generator.user(i, random)));
+        }
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            results.add(readers.submit(() -> {
+                int found = 0;
+                for (int i = 0; i < 5_000; i++) {
+                    if (directory.getUser("u" + i % users) != null) {
+                        found++;
+                    }
+                }
+                return found;
+            }));
+        }
+        for (int i = 0; i < 1_000; i++) {
+            directory.updateProfile("u" + i % users, "Name " + i, "name" + i + "@example.com", i);
+        }
+        for (Future<Integer> result : results) {
+            assertEquals(5_000, (int) result.get());
+        }
+        readers.shutdown();
+        assertTrue(readers.awaitTermination(10, TimeUnit.SECONDS));
+
+        directory.flush();
+        for (int i = 0; i < users; i++) {
+            int last = 1_000 - users + i;
+            assertEquals("Name " + last, dbHelper.getUser("u" + i).getName());
+        }
+    }
+
+    @Test
+    public void answersLookupsOnTheMainThread() throws InterruptedException {
+        dbHelper.addUser(generator.user(1, random));
+        assertTrue(directory.addUser(generator.user(2, random)));
+
+        User[] found = new User[2];
+        List<List<User>> listed = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        directory.getUser("u1", user -> {
+            found[0] = user;
+            threads.add(Thread.currentThread());
+        });
+        directory.getUser("u3", user -> {
+            found[1] = user;
+            threads.add(Thread.currentThread());
+        });
+        directory.listUsers(users -> {
+            listed.add(users);
+            threads.add(Thread.currentThread());
+        });
+        // Ответы приходят через главный поток, а он здесь — поток теста
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (threads.size() < 3) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("lookups were not answered");
+            }
+            Thread.sleep(10);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+
+        assertEquals("User 1", found[0].getName());
+        assertNull(found[1]);
+        assertEquals(2, listed.get(0).size());
+        for (Thread thread : threads) {
+            assertSame(Looper.getMainLooper().getThread(), thread);
+        }
+    }
+
+    @Test
+    public void failedInsertIsReportedAndDropped() throws InterruptedException {
+        Context context = ApplicationProvider.getApplicationContext();
+        User replicated = new User("u1", generator.faceData(generator.identity(100), random),
+                "Replicated", "replicated@example.com");
+        // Первую вставку опередила репликация своей строкой, вторая падает с ошибкой SQLite
+        DatabaseHelper failing = new DatabaseHelper(context, "directory-failing") {
+            @Override
+            public boolean addUser(User user) {
+                if ("u2".equals(user.getUserId())) {
+                    throw new IllegalStateException("disk full");
+                }
+                if (user.getUserId().equals(replicated.getUserId()) && user != replicated) {
+                    super.addUser(replicated);
+                }
+                return false;
+            }
+        };
+        try {
+            FaceGallery gallery = failing.getFaceGallery();
+            UserDirectory failingDirectory = new UserDirectory(failing);
+            List<User> notSaved = Collections.synchronizedList(new ArrayList<>());
+            User first = generator.user(1, random);
+            assertTrue(failingDirectory.addUser(first, notSaved::add));
+            assertTrue(failingDirectory.addUser(generator.user(2, random), notSaved::add));
+            // Без слушателя провал не доходит до вызвавшего, но пользователь так же убирается
+            assertTrue(failingDirectory.addUser(generator.user(3, random)));
+            failingDirectory.flush();
+
+            assertEquals(2, notSaved.size());
+            assertEquals("u1", notSaved.get(0).getUserId());
+            assertEquals("u2", notSaved.get(1).getUserId());
+            assertNotNull(notSaved.get(0).getFaceData());
+            assertEquals("Replicated", failingDirectory.getUser("u1").getName());
+            assertNull(failingDirectory.getUser("u2"));
+            assertNull(failingDirectory.getUser("u3"));
+            assertEquals(1, failingDirectory.listUsers().size());
+
+            // Галерея не сброшена: в ней строка репликации вместо непринятой, остальные убраны
+            assertSame(gallery, failing.getFaceGallery());
+            assertEquals(1, gallery.size());
+            assertEquals("u1", gallery.findBest(FaceTemplate.parse(replicated.getFaceData()), 99f).userId);
+            assertNull(gallery.findBest(FaceTemplate.parse(first.getFaceData()), 99f));
+        } finally {
+            failing.close();
+        }
+    }
+}
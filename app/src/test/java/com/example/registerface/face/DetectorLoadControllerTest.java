@@ -0,0 +1,231 @@
+package com.example.registerface.face;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Контроллер на поддельных часах и модели устройства: задержка детектора
+ * равна базовой задержке устройства, умноженной на стоимость уровня и на
+ * замедление от троттлинга, плюс 10% шума. Камера дает 30 кадров в секунду,
+ * следующий кадр анализируется только после окончания предыдущего.
+ */
+public class DetectorLoadControllerTest {
+    private static final long SEED = 48L;
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1_000 * MS;
+    private static final long FRAME_NANOS = SECOND / 30;
+    private static final long BUDGET = DetectorLoadController.DEFAULT_BUDGET_NANOS;
+    // Относительная стоимость уровней лестницы; частота кадров задержку не меняет
+    private static final float[] LEVEL_COST = {1f, 0.7f, 0.45f, 0.3f, 0.3f, 0.18f};
+
+    private interface Slowdown {
+        float at(long nanos);
+    }
+
+    private static final class FakeClock implements DetectorLoadController.Clock {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private static final class Detection {
+        final long finishedNanos;
+        final int level;
+        final long latencyNanos;
+
+        Detection(long finishedNanos, int level, long latencyNanos) {
+            this.finishedNanos = finishedNanos;
+            this.level = level;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private static final class Simulation {
+        final FakeClock clock = new FakeClock();
+        final DetectorLoadController controller = new DetectorLoadController(clock, BUDGET);
+        final List<Detection> detections = new ArrayList<>();
+        final Random random = new Random(SEED);
+        final float[] levelCost;
+        final long baseNanos;
+        final Slowdown slowdown;
+
+        Simulation(long baseNanos, float[] levelCost, Slowdown slowdown) {
+            this.baseNanos = baseNanos;
+            this.levelCost = levelCost;
+            this.slowdown = slowdown;
+        }
+
+        Simulation run(long durationNanos) {
+            long frameNanos = 0;
+            while (frameNanos < durationNanos) {
+                clock.now = frameNanos;
+                if (!controller.acceptFrame(frameNanos)) {
+                    frameNanos += FRAME_NANOS;
+                    continue;
+                }
+                int level = controller.getLevelIndex();
+                double noise = 1 + 0.1 * random.nextGaussian();
+                long latency = Math.max(MS, (long) (baseNanos * levelCost[level] * slowdown.at(frameNanos) * noise));
+                clock.now += latency;
+                controller.onDetectionFinished(latency);
+                detections.add(new Detection(clock.now, level, latency));
+                // Следующий кадр, пришедший после окончания детекции
+                frameNanos = (clock.now / FRAME_NANOS + 1) * FRAME_NANOS;
+            }
+            return this;
+        }
+
+        /** 90th percentile latency of detections finished in [from, to). */
+        long p90(long from, long to) {
+            long[] latencies = detections.stream()
+                    .filter(d -> d.finishedNanos >= from && d.finishedNanos < to)
+                    .mapToLong(d -> d.latencyNanos)
+                    .toArray();
+            assertTrue("no detections in window", latencies.length > 0);
+            Arrays.sort(latencies);
+            return latencies[(int) Math.ceil(0.9 * latencies.length) - 1];
+        }
+
+        double framesPerSecond(long from, long to) {
+            long count = detections.stream().filter(d -> d.finishedNanos >= from && d.finishedNanos < to).count();
+            return count / ((to - from) / (double) SECOND);
+        }
+
+        int levelAt(long nanos) {
+            int level = 0;
+            for (Detection detection : detections) {
+                if (detection.finishedNanos > nanos) {
+                    break;
+                }
+                level = detection.level;
+            }
+            return level;
+        }
+
+        /** Share of time spent at {@code level}, measured by detections. */
+        double timeAtLevel(int level) {
+            long time = 0;
+            long previous = 0;
+            for (Detection detection : detections) {
+                if (detection.level == level) {
+                    time += detection.finishedNanos - previous;
+                }
+                previous = detection.finishedNanos;
+            }
+            return (double) time / previous;
+        }
+    }
+
+    private static Slowdown constant() {
+        return nanos -> 1f;
+    }
+
+    @Test
+    public void fastDeviceKeepsFullQuality() {
+        Simulation sim = new Simulation(40 * MS, LEVEL_COST, constant()).run(120 * SECOND);
+        assertEquals(0, sim.controller.getLevelChanges());
+        assertEquals(0, sim.controller.getLevelIndex());
+    }
+
+    @Test
+    public void slowDeviceSettlesWithinBudget() {
+        // 250 мс на полном уровне: укладывается только уровень 3 (75 мс)
+        Simulation sim = new Simulation(250 * MS, LEVEL_COST, constant()).run(120 * SECOND);
+        assertEquals(3, sim.controller.getLevelIndex());
+        assertEquals(3, sim.controller.getLevelChanges());
+        assertTrue(sim.p90(60 * SECOND, 120 * SECOND) <= BUDGET);
+        // Спуск занимает секунды, а не минуты
+        assertEquals(3, sim.levelAt(30 * SECOND));
+    }
+
+    @Test
+    public void verySlowDeviceLowersAnalysisRate() {
+        // 400 мс: нужен последний уровень, 320x240 и 10 кадров в секунду
+        Simulation sim = new Simulation(400 * MS, LEVEL_COST, constant()).run(180 * SECOND);
+        assertEquals(DetectorLoadController.LEVELS.length - 1, sim.controller.getLevelIndex());
+        assertTrue(sim.p90(120 * SECOND, 180 * SECOND) <= BUDGET);
+        double fps = sim.framesPerSecond(120 * SECOND, 180 * SECOND);
+        assertTrue("fps " + fps, fps > 8 && fps <= 10.5);
+    }
+
+    @Test
+    public void throttlingStepsDownAndRecovers() {
+        // С 60 по 180 секунду устройство вдвое медленнее
+        Slowdown throttled = nanos -> nanos >= 60 * SECOND && nanos < 180 * SECOND ? 2f : 1f;
+        Simulation sim = new Simulation(60 * MS, LEVEL_COST, throttled).run(300 * SECOND);
+
+        assertEquals(0, sim.levelAt(59 * SECOND));
+        assertTrue(sim.levelAt(70 * SECOND) > 0);
+        assertTrue(sim.p90(90 * SECOND, 180 * SECOND) <= BUDGET);
+        assertEquals(0, sim.controller.getLevelIndex());
+        assertTrue(sim.p90(240 * SECOND, 300 * SECOND) <= BUDGET);
+    }
+
+    @Test
+    public void failedUpgradesBackOff() {
+        // Уровень 0 не укладывается (130 мс), а уровень 1 всего 39 мс и все время зовет наверх
+        float[] cliff = {1f, 0.3f, 0.3f, 0.3f, 0.3f, 0.18f};
+        Simulation sim = new Simulation(130 * MS, cliff, constant()).run(600 * SECOND);
+
+        // Без удвоения ожидания было бы ~90 попыток за 10 минут
+        assertTrue("changes " + sim.controller.getLevelChanges(), sim.controller.getLevelChanges() <= 25);
+        assertTrue(sim.timeAtLevel(0) < 0.05);
+        assertEquals(1, sim.levelAt(600 * SECOND - 2 * SECOND));
+    }
+
+    @Test
+    public void acceptsEveryFrameAtFullRate() {
+        DetectorLoadController controller = new DetectorLoadController(new FakeClock(), BUDGET);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(controller.acceptFrame(i * FRAME_NANOS));
+        }
+    }
+
+    @Test
+    public void pinnedControllerHoldsItsLevel() {
+        // Так регистрация держит точный детектор с контуром
+        DetectorLoadController pinned = DetectorLoadController.pinned(0);
+        assertTrue(pinned.getLevel().accurate);
+        assertTrue(pinned.getLevel().contours);
+        long sharedChanges = DetectorLoadController.getInstance().getLevelChanges();
+        for (int i = 0; i < 200; i++) {
+            assertFalse(pinned.onDetectionFinished(5 * BUDGET));
+            assertTrue(pinned.acceptFrame(i * FRAME_NANOS));
+        }
+        assertEquals(0, pinned.getLevelIndex());
+        assertEquals(0, pinned.getLevelChanges());
+        assertEquals(5 * BUDGET, pinned.rollingLatencyNanos());
+        assertEquals(sharedChanges, DetectorLoadController.getInstance().getLevelChanges());
+
+        // Закрепленный легкий уровень сохраняет и свою частоту кадров
+        DetectorLoadController lowest = DetectorLoadController.pinned(DetectorLoadController.LEVELS.length - 1);
+        long interval = lowest.getLevel().minFrameIntervalNanos;
+        assertTrue(lowest.acceptFrame(0));
+        assertFalse(lowest.acceptFrame(interval / 2));
+        assertTrue(lowest.acceptFrame(interval));
+    }
+
+    @Test
+    public void rejectsUnknownPinnedLevel() {
+        for (int level : new int[]{-1, DetectorLoadController.LEVELS.length}) {
+            try {
+                DetectorLoadController.pinned(level);
+                fail("pinned level " + level);
+            } catch (IllegalArgumentException expected) {
+                // Такого уровня на лестнице нет
+            }
+        }
+    }
+}
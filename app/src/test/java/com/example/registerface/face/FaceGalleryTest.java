@@ -0,0 +1,156 @@
+package com.example.registerface.face;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Галерея вне кучи: поиск без выделения памяти, уплотнение после удалений и
+ * совпадение оценок столбцового формата с {@link FaceMatcher}.
+ */
+public class FaceGalleryTest {
+    private static final long SEED = 42L;
+    private static final int USERS = 2000;
+
+    private SyntheticFaceGenerator generator;
+    private Random random;
+    private List<FaceTemplate> enrolled;
+    private FaceGallery gallery;
+
+    @Before
+    public void setUp() {
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+        enrolled = new ArrayList<>();
+        gallery = new FaceGallery();
+        for (int i = 0; i < USERS; i++) {
+            FaceTemplate template = FaceTemplate.parse(generator.faceData(generator.identity(i), random));
+            enrolled.add(template);
+            gallery.put(userId(i), template);
+        }
+    }
+
+    @Test
+    public void scanAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        long threadId = Thread.currentThread().getId();
+        QuantizedTemplate probe = QuantizedTemplate.encode(
+                FaceTemplate.parse(generator.faceData(generator.identity(7), random)));
+        float[] score = new float[1];
+
+        // Прогрев с теми же аргументами, чтобы JIT и загрузка классов не попали в замер
+        int rows = 0;
+        for (int i = 0; i < 1000; i++) {
+            rows += gallery.findBestRow(probe, 0f, "u3", score);
+        }
+
+        long overhead = threads.getThreadAllocatedBytes(threadId);
+        overhead = threads.getThreadAllocatedBytes(threadId) - overhead;
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            rows += gallery.findBestRow(probe, 0f, "u3", score);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertTrue(rows >= 0);
+        assertEquals("bytes allocated by 1000 scans of " + USERS + " records", 0, allocated);
+    }
+
+    @Test
+    public void compactsAfterDeletes() {
+        int capacity = gallery.capacity();
+        // Удаляем всех, кроме каждого десятого: строки переносятся, буфер сжимается
+        for (int i = 0; i < USERS; i++) {
+            if (i % 10 != 0) {
+                assertTrue(gallery.remove(userId(i)));
+            }
+        }
+        assertEquals(USERS / 10, gallery.size());
+        assertTrue(gallery.capacity() < capacity);
+        assertTrue(gallery.capacity() >= gallery.size());
+
+        for (int i = 0; i < USERS; i += 10) {
+            FaceGallery.Match match = gallery.findBest(enrolled.get(i), 99f);
+            assertNotNull(match);
+            assertEquals(userId(i), match.userId);
+        }
+        assertNull(gallery.findBest(enrolled.get(1), 99f));
+
+        // После сжатия галерея снова растет
+        gallery.put("late", enrolled.get(1));
+        assertEquals("late", gallery.findBest(enrolled.get(1), 99f).userId);
+    }
+
+    @Test
+    public void columnScoresFollowFloatMatcher() {
+        for (int n = 0; n < 2000; n++) {
+            FaceTemplate probe = enrolled.get(random.nextInt(USERS));
+            FaceTemplate candidate = enrolled.get(random.nextInt(USERS));
+            float expected = FaceMatcher.score(probe, candidate);
+            float actual = QuantizedTemplate.encode(probe).score(QuantizedTemplate.encode(candidate));
+            assertEquals(expected, actual, QuantizedTemplate.MAX_SCORE_ERROR);
+        }
+    }
+
+    @Test
+    public void scoreErrorBoundFollowsConfig() {
+        assertTrue(QuantizedTemplate.maxScoreError(MatcherConfig.DEFAULT) <= QuantizedTemplate.MAX_SCORE_ERROR);
+        // Узкие пороги и перевес контура: погрешность больше, чем у конфигурации по умолчанию
+        MatcherConfig tight = new MatcherConfig(0.3f, 0.05f, 0.1f, 0.05f, 1f, 3f, 0.5f);
+        float bound = QuantizedTemplate.maxScoreError(tight);
+        assertTrue(bound > QuantizedTemplate.MAX_SCORE_ERROR);
+        FaceMatcher.setConfig(tight);
+        try {
+            for (int n = 0; n < 2000; n++) {
+                FaceTemplate probe = enrolled.get(random.nextInt(USERS));
+                FaceTemplate candidate = enrolled.get(random.nextInt(USERS));
+                float expected = FaceMatcher.score(probe, candidate);
+                float actual = QuantizedTemplate.encode(probe).score(QuantizedTemplate.encode(candidate));
+                assertEquals(expected, actual, bound);
+            }
+        } finally {
+            FaceMatcher.setConfig(MatcherConfig.DEFAULT);
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleSearch() {
+        FaceTemplate[] probes = new FaceTemplate[4];
+        for (int p = 0; p < probes.length; p++) {
+            probes[p] = FaceTemplate.parse(generator.faceData(generator.identity(p * 311), random));
+        }
+        FaceGallery.Match[] batch = gallery.findBest(probes, 15f);
+        for (int p = 0; p < probes.length; p++) {
+            FaceGallery.Match single = gallery.findBest(probes[p], 15f);
+            assertEquals(single == null, batch[p] == null);
+            if (single != null) {
+                assertEquals(single.userId, batch[p].userId);
+                assertEquals(single.similarityPercentage, batch[p].similarityPercentage, 0f);
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Счетчик выделений есть только в HotSpot
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static String userId(int index) {
+        return "u" + index;
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.registerface.face;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FaceMatcher#score} против прежнего строкового
+ * {@code compareFaces} (копия ниже) и {@link FaceMatcher.Cascade} против
+ * полного перебора галереи.
+ */
+public class FaceMatcherTest {
+    private static final long SEED = 27L;
+    private static final int PAIRS = 5_000;
+
+    private final Random random = new Random(SEED);
+    private final SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+
+    @Test
+    public void scoreEqualsBaselineOnSyntheticPairs() {
+        for (int i = 0; i < PAIRS; i++) {
+            // Половина пар — один человек, половина — разные люди
+            String face1 = generator.faceData(generator.identity(i), random);
+            String face2 = generator.faceData(generator.identity(i % 2 == 0 ? i : i + PAIRS), random);
+            assertSameScore(face1, face2);
+        }
+    }
+
+    @Test
+    public void scoreEqualsBaselineOnRandomTemplates() {
+        for (int i = 0; i < PAIRS; i++) {
+            assertSameScore(randomFaceData(), randomFaceData());
+        }
+    }
+
+    @Test
+    public void cascadeFindsTheSameBestMatchAsFullScan() {
+        List<FaceTemplate> gallery = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            gallery.add(FaceTemplate.parse(generator.faceData(generator.identity(i), random)));
+        }
+        FaceMatcher.Cascade cascade = new FaceMatcher.Cascade();
+        float threshold = FaceMatcher.getThresholdPercentage();
+        int matched = 0;
+        for (int p = 0; p < 300; p++) {
+            // Зарегистрированные и чужие лица вперемешку
+            int identity = p % 3 == 0 ? 1_000 + p : p;
+            FaceTemplate probe = FaceTemplate.parse(generator.faceData(generator.identity(identity), random));
+
+            int expected = -1;
+            float expectedScore = -1f;
+            int actual = -1;
+            float actualScore = -1f;
+            for (int i = 0; i < gallery.size(); i++) {
+                float score = FaceMatcher.score(probe, gallery.get(i));
+                if (score >= threshold && score > expectedScore) {
+                    expected = i;
+                    expectedScore = score;
+                }
+                float cascaded = cascade.match(probe, gallery.get(i), actualScore);
+                if (cascaded > actualScore) {
+                    actual = i;
+                    actualScore = cascaded;
+                }
+            }
+            assertEquals("probe " + p, expected, actual);
+            assertEquals(Float.floatToIntBits(expected < 0 ? -1f : expectedScore), Float.floatToIntBits(actualScore));
+            matched += expected >= 0 ? 1 : 0;
+        }
+        System.out.println("Cascade: " + cascade + ", probes matched " + matched);
+        assertTrue(matched > 0);
+        // Каскад должен что-то отсекать, иначе проверка ничего не доказывает
+        assertTrue(cascade.getAccepted() < cascade.getEvaluated());
+    }
+
+    private void assertSameScore(String face1, String face2) {
+        float expected = baselineCompareFaces(face1, face2);
+        float actual = FaceMatcher.score(FaceTemplate.parse(face1), FaceTemplate.parse(face2));
+        assertEquals(face1 + "\n" + face2, Float.floatToIntBits(expected), Float.floatToIntBits(actual));
+    }
+
+    /** Template string with a random subset of keys and some unparseable values. */
+    private String randomFaceData() {
+        StringBuilder faceData = new StringBuilder();
+        for (String key : FaceTemplate.LANDMARK_KEYS) {
+            if (random.nextInt(5) == 0) {
+                continue;
+            }
+            faceData.append(key).append(':');
+            if (random.nextInt(20) == 0) {
+                faceData.append("broken");
+            } else {
+                faceData.append(value(0.5f)).append(',').append(value(0.5f));
+            }
+            faceData.append(';');
+        }
+        if (random.nextInt(4) != 0) {
+            faceData.append("faceContour:");
+            int points = random.nextInt(10) == 0 ? 7 : ContourResampler.POINTS;
+            for (int i = 0; i < points; i++) {
+                faceData.append(value(0.6f)).append(',').append(value(0.6f)).append(';');
+            }
+        }
+        for (int i = 0; i < FaceTemplate.FEATURE_COUNT; i++) {
+            boolean pose = i == FaceTemplate.FEATURE_HEAD_EULER_Y || i == FaceTemplate.FEATURE_HEAD_EULER_Z;
+            if (!pose && random.nextInt(5) == 0) {
+                continue;
+            }
+            faceData.append(FaceTemplate.FEATURE_KEYS[i]).append(':');
+            if (pose) {
+                faceData.append(value(40f));
+            } else if (random.nextInt(20) == 0) {
+                faceData.append("x");
+            } else {
+                faceData.append(String.format(Locale.US, "%.4f", random.nextFloat()));
+            }
+            faceData.append(';');
+        }
+        return faceData.toString();
+    }
+
+    private String value(float range) {
+        return String.format(Locale.US, "%.4f", (random.nextFloat() * 2 - 1) * range);
+    }
+
+    // Ниже — compareFaces до каскада, без логирования
+
+    private static float baselineCompareFaces(String face1Data, String face2Data) {
+        Map<String, String> face1Features = baselineParse(face1Data);
+        Map<String, String> face2Features = baselineParse(face2Data);
+
+        if (face1Features.containsKey("headEulerY") && face2Features.containsKey("headEulerY") &&
+                face1Features.containsKey("headEulerZ") && face2Features.containsKey("headEulerZ")) {
+            float y1 = Float.parseFloat(face1Features.get("headEulerY").replace(",", "."));
+            float y2 = Float.parseFloat(face2Features.get("headEulerY").replace(",", "."));
+            float z1 = Float.parseFloat(face1Features.get("headEulerZ").replace(",", "."));
+            float z2 = Float.parseFloat(face2Features.get("headEulerZ").replace(",", "."));
+            if (Math.abs(FaceMatcher.normalizeAngle(y1 - y2)) > FaceMatcher.HEAD_ANGLE_THRESHOLD ||
+                    Math.abs(FaceMatcher.normalizeAngle(z1 - z2)) > FaceMatcher.HEAD_ANGLE_THRESHOLD) {
+                return 0f;
+            }
+        }
+
+        float totalSimilarity = 0f;
+        int totalFeatures = 0;
+        for (String landmark : FaceTemplate.LANDMARK_KEYS) {
+            if (face1Features.containsKey(landmark) && face2Features.containsKey(landmark)) {
+                totalFeatures++;
+                totalSimilarity += baselineLandmark(face1Features.get(landmark), face2Features.get(landmark));
+            }
+        }
+        if (face1Features.containsKey("faceContour") && face2Features.containsKey("faceContour")) {
+            totalFeatures++;
+            totalSimilarity += baselineContour(face1Features.get("faceContour"), face2Features.get("faceContour"));
+        }
+        for (String feature : FaceTemplate.FEATURE_KEYS) {
+            if (face1Features.containsKey(feature) && face2Features.containsKey(feature)) {
+                totalFeatures++;
+                totalSimilarity += baselineFeature(face1Features.get(feature), face2Features.get(feature));
+            }
+        }
+        float averageSimilarity = totalFeatures > 0 ? totalSimilarity / totalFeatures : 0;
+        return averageSimilarity * 100;
+    }
+
+    private static float baselineLandmark(String landmark1, String landmark2) {
+        try {
+            String[] coords1 = landmark1.split(",");
+            String[] coords2 = landmark2.split(",");
+            if (coords1.length != 2 || coords2.length != 2) {
+                return 0f;
+            }
+            float x1 = Float.parseFloat(coords1[0]);
+            float y1 = Float.parseFloat(coords1[1]);
+            float x2 = Float.parseFloat(coords2[0]);
+            float y2 = Float.parseFloat(coords2[1]);
+            float distance = (float) Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+            return (float) Math.exp(-distance / FaceMatcher.LANDMARK_DISTANCE_THRESHOLD);
+        } catch (NumberFormatException e) {
+            return 0f;
+        }
+    }
+
+    private static float baselineFeature(String value1, String value2) {
+        try {
+            float v1 = Float.parseFloat(value1.replace(",", "."));
+            float v2 = Float.parseFloat(value2.replace(",", "."));
+            float diff = Math.abs(v1 - v2);
+            return (float) Math.exp(-diff / FaceMatcher.FEATURE_DIFF_THRESHOLD);
+        } catch (NumberFormatException e) {
+            return 0f;
+        }
+    }
+
+    private static float baselineContour(String contour1, String contour2) {
+        float[] points1 = ContourResampler.parse(contour1);
+        float[] points2 = ContourResampler.parse(contour2);
+        if (points1 == null || points2 == null) {
+            return 0f;
+        }
+        float totalSimilarity = 0f;
+        for (int i = 0; i < ContourResampler.SLOTS; i += 2) {
+            float dx = points2[i] - points1[i];
+            float dy = points2[i + 1] - points1[i + 1];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            totalSimilarity += (float) Math.exp(-distance / FaceMatcher.CONTOUR_POINT_DISTANCE_THRESHOLD);
+        }
+        return totalSimilarity / ContourResampler.POINTS;
+    }
+
+    private static Map<String, String> baselineParse(String faceData) {
+        Map<String, String> features = new HashMap<>();
+        StringBuilder contour = null;
+        boolean inContour = false;
+        for (String part : faceData.split(";")) {
+            String[] keyValue = part.split(":");
+            if (keyValue.length == 2) {
+                inContour = "faceContour".equals(keyValue[0]);
+                if (inContour) {
+                    contour = new StringBuilder(keyValue[1]);
+                } else {
+                    features.put(keyValue[0], keyValue[1]);
+                }
+            } else if (inContour && keyValue.length == 1) {
+                contour.append(';').append(part);
+            }
+        }
+        if (contour != null) {
+            features.put("faceContour", contour.toString());
+        }
+        return features;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.registerface.face;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Уровни и термометрический код {@link FaceSignature}, расстояние Хэмминга
+ * и границы диапазона по индексу, а также доля отсеянных чужих лиц на
+ * синтетических снимках.
+ */
+public class FaceSignatureTest {
+    private static final long SEED = 44L;
+    private static final int IDENTITIES = 300;
+    private static final int CAPTURES = 4;
+    private static final long LOW_BYTES = 0x00FFFFFFFFFFFFFFL;
+
+    @Test
+    public void levelSplitsRangeEvenlyAndClamps() {
+        // levels + 1 равных корзин: от 0 до levels
+        for (int k = 0; k <= FaceSignature.LEVELS; k++) {
+            float ratio = 0.5f + (k + 0.5f) / (FaceSignature.LEVELS + 1);
+            assertEquals(k, FaceSignature.level(ratio, 0.5f, 1.5f, FaceSignature.LEVELS));
+        }
+        assertEquals(0, FaceSignature.level(0.1f, 0.5f, 1.5f, FaceSignature.LEVELS));
+        assertEquals(FaceSignature.LEVELS, FaceSignature.level(1.5f, 0.5f, 1.5f, FaceSignature.LEVELS));
+        assertEquals(FaceSignature.LEVELS, FaceSignature.level(9f, 0.5f, 1.5f, FaceSignature.LEVELS));
+        assertEquals(FaceSignature.TOP_LEVELS, FaceSignature.level(9f, 0.5f, 1.5f, FaceSignature.TOP_LEVELS));
+    }
+
+    @Test
+    public void hammingDistanceIsTheSumOfLevelDifferences() {
+        assertEquals(0L, FaceSignature.thermometer(0));
+        assertEquals(0b111L, FaceSignature.thermometer(3));
+        assertEquals(0xFFL, FaceSignature.thermometer(FaceSignature.LEVELS));
+        for (int a = 0; a <= FaceSignature.LEVELS; a++) {
+            for (int b = 0; b <= FaceSignature.LEVELS; b++) {
+                assertEquals(Math.abs(a - b),
+                        FaceSignature.distance(FaceSignature.thermometer(a), FaceSignature.thermometer(b)));
+            }
+        }
+
+        long a = signature(3, 0, 8, 4, 4, 1, 7, 2);
+        long b = signature(5, 1, 6, 4, 0, 1, 8, 2);
+        assertEquals(2 + 1 + 2 + 0 + 4 + 0 + 1 + 0, FaceSignature.distance(a, b));
+        assertEquals(0, FaceSignature.distance(a, a));
+    }
+
+    @Test
+    public void signaturesOfCapturesAreThermometerCodes() {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        Random random = new Random(SEED);
+        for (int i = 0; i < 50; i++) {
+            Long signature = FaceSignature.of(generator.faceData(generator.identity(i), random));
+            assertNotNull(signature);
+            // Знаковый бит свободен, поэтому порядок чисел — порядок уровней старшего отношения
+            assertTrue(signature >= 0);
+            assertTrue(Long.bitCount(signature >>> 56) <= FaceSignature.TOP_LEVELS);
+            for (int r = 0; r < FaceSignature.RATIOS; r++) {
+                long code = signature >>> (8 * r) & 0xFF;
+                assertEquals(FaceSignature.thermometer(Long.bitCount(code)), code);
+            }
+        }
+    }
+
+    @Test
+    public void missingLandmarkGivesNoSignature() {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        String faceData = generator.faceData(generator.identity(0), new Random(SEED));
+        assertNull(FaceSignature.of(faceData.replaceFirst("^[A-Za-z]+:[^;]*;", "")));
+        assertNull(FaceSignature.of(""));
+        assertNull(FaceSignature.of((String) null));
+    }
+
+    @Test
+    public void rangeCoversOnlyNearbyTopLevels() {
+        int limit = FaceSignature.RANGE_LEVELS;
+        for (int level = 0; level <= FaceSignature.TOP_LEVELS; level++) {
+            long probe = FaceSignature.thermometer(level) << 56 | 0x0000F0F0F0F0F0F0L;
+            long low = FaceSignature.rangeLow(probe, FaceSignature.DEFAULT_MAX_DISTANCE);
+            long high = FaceSignature.rangeHigh(probe, FaceSignature.DEFAULT_MAX_DISTANCE);
+            assertEquals(FaceSignature.thermometer(Math.max(0, level - limit)) << 56, low);
+            assertEquals(FaceSignature.thermometer(Math.min(FaceSignature.TOP_LEVELS, level + limit)) << 56 | LOW_BYTES,
+                    high);
+
+            for (int other = 0; other <= FaceSignature.TOP_LEVELS; other++) {
+                // Крайние значения младших байтов при этом уровне старшего
+                long smallest = FaceSignature.thermometer(other) << 56;
+                long largest = smallest | LOW_BYTES;
+                boolean inside = Math.abs(other - level) <= limit;
+                assertEquals(level + " vs " + other, inside, smallest >= low && smallest <= high);
+                assertEquals(level + " vs " + other, inside, largest >= low && largest <= high);
+            }
+        }
+
+        // Средний уровень не захватывает весь диапазон ключей
+        long middle = FaceSignature.thermometer(3) << 56;
+        assertTrue(FaceSignature.rangeLow(middle, FaceSignature.DEFAULT_MAX_DISTANCE) > 0);
+        assertTrue(FaceSignature.rangeHigh(middle, FaceSignature.DEFAULT_MAX_DISTANCE)
+                < (FaceSignature.thermometer(FaceSignature.TOP_LEVELS) << 56 | LOW_BYTES));
+        // Меньшее допустимое расстояние сужает диапазон еще сильнее
+        assertEquals(FaceSignature.thermometer(2) << 56, FaceSignature.rangeLow(middle, 1));
+        assertEquals(FaceSignature.thermometer(4) << 56 | LOW_BYTES, FaceSignature.rangeHigh(middle, 1));
+    }
+
+    @Test
+    public void keepsGenuinePairsAndPrunesImpostors() {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        Random random = new Random(SEED);
+        long[][] signatures = new long[IDENTITIES][CAPTURES];
+        for (int i = 0; i < IDENTITIES; i++) {
+            SyntheticFaceGenerator.Identity identity = generator.identity(i);
+            for (int c = 0; c < CAPTURES; c++) {
+                signatures[i][c] = FaceSignature.of(generator.faceData(identity, random));
+            }
+        }
+
+        int genuine = 0;
+        int genuineKept = 0;
+        for (int i = 0; i < IDENTITIES; i++) {
+            for (int c = 1; c < CAPTURES; c++) {
+                genuine++;
+                if (candidate(signatures[i][0], signatures[i][c])) {
+                    genuineKept++;
+                }
+            }
+        }
+        int impostors = 0;
+        int inRange = 0;
+        int impostorsKept = 0;
+        for (int i = 0; i < IDENTITIES; i++) {
+            long probe = signatures[i][0];
+            for (int j = 0; j < IDENTITIES; j++) {
+                if (i == j) {
+                    continue;
+                }
+                impostors++;
+                long stored = signatures[j][1];
+                if (stored >= FaceSignature.rangeLow(probe, FaceSignature.DEFAULT_MAX_DISTANCE)
+                        && stored <= FaceSignature.rangeHigh(probe, FaceSignature.DEFAULT_MAX_DISTANCE)) {
+                    inRange++;
+                }
+                if (candidate(probe, stored)) {
+                    impostorsKept++;
+                }
+            }
+        }
+
+        double recall = genuineKept / (double) genuine;
+        double rangeShare = inRange / (double) impostors;
+        double keptShare = impostorsKept / (double) impostors;
+        System.out.println(String.format(Locale.US,
+                "Signature filter: genuine kept %.3f, impostors in range %.3f, impostors kept %.3f",
+                recall, rangeShare, keptShare));
+        assertTrue("recall " + recall, recall >= 0.97);
+        assertTrue("range " + rangeShare, rangeShare <= 0.85);
+        assertTrue("kept " + keptShare, keptShare <= 0.5);
+    }
+
+    // Тот же отбор, что и в DatabaseHelper.findSignatureCandidates: диапазон по индексу и расстояние Хэмминга
+    private static boolean candidate(long probe, long stored) {
+        return stored >= FaceSignature.rangeLow(probe, FaceSignature.DEFAULT_MAX_DISTANCE)
+                && stored <= FaceSignature.rangeHigh(probe, FaceSignature.DEFAULT_MAX_DISTANCE)
+                && FaceSignature.distance(probe, stored) <= FaceSignature.DEFAULT_MAX_DISTANCE;
+    }
+
+    /** Signature with the given level per ratio, top ratio first. */
+    private static long signature(int... levels) {
+        long signature = 0;
+        for (int r = 0; r < levels.length; r++) {
+            signature |= FaceSignature.thermometer(levels[r]) << (8 * (FaceSignature.RATIOS - 1 - r));
+        }
+        return signature;
+    }
+}
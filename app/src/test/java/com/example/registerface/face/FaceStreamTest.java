@@ -0,0 +1,480 @@
+package com.example.registerface.face;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Операторы {@link FaceStream} над синхронным тестовым источником и
+ * {@link FaceEventPublisher} с его фоновым потоком. Тестовый подписчик
+ * проверяет на каждом сигнале, что спрос не превышен и что после отмены и
+ * завершения сигналов нет.
+ */
+public class FaceStreamTest {
+    private static final long WAIT_MS = 5_000;
+
+    @Test
+    public void filterAndMapPassDemandThroughAndReplaceDroppedItems() {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).filter(x -> x % 2 == 0).map(x -> x * 10).subscribe(subscriber);
+        source.push(range(0, 100));
+        assertEquals(0, source.emitted);
+
+        subscriber.request(3);
+        assertEquals(Arrays.asList(0, 20, 40), subscriber.items);
+        // Три запрошенных и по одному на замену отброшенных 1 и 3
+        assertEquals(5, source.emitted);
+        assertEquals(3 + 2, source.requested);
+        assertEquals(0, source.outstanding);
+
+        subscriber.request(1);
+        assertEquals(Arrays.asList(0, 20, 40, 60), subscriber.items);
+        assertEquals(7, source.emitted);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void filterQualityAndSampleReplaceDroppedItems() {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        // За час проходит только первый элемент, остальные заменяются запросом следующего
+        FaceStream.from(source).filterQuality(x -> x, 10).sample(1, TimeUnit.HOURS).subscribe(subscriber);
+        source.push(range(0, 30));
+        subscriber.request(2);
+
+        assertEquals(Collections.singletonList(10), subscriber.items);
+        assertEquals(30, source.emitted);
+        assertEquals(1, source.outstanding);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void windowRequestsSizeTimesDemandAndDropsPartialWindow() {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<List<Integer>> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).window(3).subscribe(subscriber);
+
+        subscriber.request(2);
+        assertEquals(6, source.requested);
+        source.push(range(0, 8));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5)), subscriber.items);
+        assertEquals(6, source.emitted);
+
+        subscriber.request(1);
+        assertEquals(8, source.emitted);
+        source.complete();
+        // Неполное окно [6, 7] не выдается
+        assertEquals(2, subscriber.items.size());
+        assertEquals(1, subscriber.completions);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void groupByEmitsCompleteGroupsAndEvictsOldestKey() {
+        TestPublisher<String> source = new TestPublisher<>();
+        TestSubscriber<List<String>> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).groupBy(FaceStreamTest::keyOf, 2).subscribe(subscriber);
+
+        List<String> items = new ArrayList<>();
+        // Ключей на один больше MAX_GROUPS: группа ключа 0 вытесняется
+        for (int key = 0; key <= FaceStream.MAX_GROUPS; key++) {
+            items.add(key + ":a");
+        }
+        items.add("-:x");
+        items.add("8:b");
+        // Будь группа 0 открыта, здесь вышла бы [0:a, 0:b]
+        items.add("0:b");
+        items.add("0:c");
+        items.add("2:b");
+        source.push(items.toArray(new String[0]));
+
+        subscriber.request(2);
+        assertEquals(Arrays.asList(Arrays.asList("8:a", "8:b"), Arrays.asList("0:b", "0:c")), subscriber.items);
+        // Незавершенные группы и элемент без ключа заменялись запросом следующего
+        assertEquals(items.size() - 1, source.emitted);
+        assertEquals(0, source.outstanding);
+
+        source.complete();
+        assertEquals(2, subscriber.items.size());
+        assertEquals(1, subscriber.completions);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void noSignalsAfterCancel() {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<List<Integer>> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).filter(x -> true).window(1).subscribe(subscriber);
+        source.push(range(0, 10));
+        subscriber.request(2);
+        assertEquals(2, subscriber.items.size());
+
+        subscriber.cancel();
+        assertTrue(source.cancelled);
+        // Источник, который не сразу заметил отмену, все равно не дойдет до подписчика
+        source.emitIgnoringDemand(100);
+        source.error(new IllegalStateException("late"));
+        source.complete();
+        assertEquals(2, subscriber.items.size());
+        assertEquals(0, subscriber.signalsAfterCancel);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void oneByOneSubscriberRequestsAfterEachItem() {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        List<Integer> received = new ArrayList<>();
+        FaceStream.Subscription[] handle = new FaceStream.Subscription[1];
+        handle[0] = FaceStream.from(source).map(x -> x).subscribe(x -> {
+            received.add(x);
+            assertEquals(0, source.outstanding);
+            if (x == 4) {
+                handle[0].cancel();
+            }
+        }, error -> {
+            throw new AssertionError(error);
+        });
+        source.push(range(0, 10));
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), received);
+        assertTrue(source.cancelled);
+        assertEquals(5, source.emitted);
+    }
+
+    @Test
+    public void timeoutFiresOnceAndCancelsUpstream() throws InterruptedException {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).timeout(50, TimeUnit.MILLISECONDS).subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+
+        subscriber.await(() -> !subscriber.errors.isEmpty() && source.cancelled);
+        assertTrue(subscriber.errors.get(0) instanceof TimeoutException);
+        // Ни второго таймаута, ни сигналов от источника после отмены
+        source.emitIgnoringDemand(1);
+        source.complete();
+        Thread.sleep(200);
+        assertEquals(1, subscriber.errors.size());
+        assertTrue(subscriber.items.isEmpty());
+        assertEquals(0, subscriber.completions);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void timeoutIsResetByEachItemAndStoppedByCompletion() throws InterruptedException {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).timeout(300, TimeUnit.MILLISECONDS).subscribe(subscriber);
+        subscriber.request(Long.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(50);
+            source.push(i);
+        }
+        // 500 мс с элементами каждые 50 мс: таймаут не сработал
+        assertEquals(10, subscriber.items.size());
+        assertTrue(subscriber.errors.isEmpty());
+
+        source.complete();
+        Thread.sleep(500);
+        assertEquals(1, subscriber.completions);
+        assertTrue(subscriber.errors.isEmpty());
+        assertFalse(source.cancelled);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void timeoutDoesNotFireAfterCancel() throws InterruptedException {
+        TestPublisher<Integer> source = new TestPublisher<>();
+        TestSubscriber<Integer> subscriber = new TestSubscriber<>();
+        FaceStream.from(source).timeout(50, TimeUnit.MILLISECONDS).subscribe(subscriber);
+        subscriber.cancel();
+        Thread.sleep(200);
+        assertTrue(subscriber.errors.isEmpty());
+        assertEquals(0, subscriber.signalsAfterCancel);
+    }
+
+    @Test
+    public void publisherKeepsOnlyLatestFrameWithoutDemand() {
+        FaceEventPublisher publisher = new FaceEventPublisher();
+        TestSubscriber<FaceFrame> subscriber = new TestSubscriber<>();
+        publisher.subscribe(subscriber);
+        subscriber.await(() -> subscriber.subscription != null);
+
+        for (int i = 1; i <= 5; i++) {
+            publisher.onFaceDetected(frame(i));
+        }
+        // Четыре кадра заменены следующим, пока спроса не было
+        assertEquals(4, publisher.getFramesDropped());
+        subscriber.request(1);
+        subscriber.await(() -> subscriber.items.size() == 1);
+        assertEquals(5, subscriber.items.get(0).getTimestampNanos());
+
+        // Спрос исчерпан: новые кадры снова ждут по одному
+        publisher.onFaceDetected(frame(6));
+        publisher.onFaceDetected(frame(7));
+        assertEquals(5, publisher.getFramesDropped());
+        subscriber.request(5);
+        subscriber.await(() -> subscriber.items.size() == 2);
+        assertEquals(7, subscriber.items.get(1).getTimestampNanos());
+        publisher.onFaceDetected(frame(8));
+        subscriber.await(() -> subscriber.items.size() == 3);
+
+        publisher.close();
+        subscriber.await(() -> subscriber.completions == 1);
+        publisher.onFaceDetected(frame(9));
+        assertEquals(3, subscriber.items.size());
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void publisherNeverExceedsDemandUnderLoad() {
+        FaceEventPublisher publisher = new FaceEventPublisher();
+        TestSubscriber<FaceFrame> subscriber = new TestSubscriber<>();
+        publisher.subscribe(subscriber);
+        subscriber.await(() -> subscriber.subscription != null);
+        subscriber.request(3);
+        for (int i = 1; i <= 10_000; i++) {
+            publisher.onFaceDetected(frame(i));
+        }
+        subscriber.await(() -> subscriber.items.size() == 3);
+        // Все, что не выдано, отброшено, а не накоплено
+        publisher.close();
+        subscriber.await(() -> subscriber.completions == 1);
+        assertEquals(3, subscriber.items.size());
+        // Кроме выданных и замененных, мог остаться один ожидающий кадр, его сняло закрытие
+        long accounted = subscriber.items.size() + publisher.getFramesDropped();
+        assertTrue("accounted " + accounted, accounted == 10_000 || accounted == 9_999);
+        subscriber.assertValid();
+    }
+
+    @Test
+    public void cancelledSubscriberGetsNothingFromPublisher() {
+        FaceEventPublisher publisher = new FaceEventPublisher();
+        TestSubscriber<FaceFrame> cancelled = new TestSubscriber<>();
+        TestSubscriber<FaceFrame> other = new TestSubscriber<>();
+        publisher.subscribe(cancelled);
+        publisher.subscribe(other);
+        other.await(() -> other.subscription != null);
+        cancelled.request(10);
+        other.request(10);
+        publisher.onFaceDetected(frame(1));
+        other.await(() -> other.items.size() == 1);
+        cancelled.await(() -> cancelled.items.size() == 1);
+
+        cancelled.cancel();
+        publisher.onFaceDetected(frame(2));
+        publisher.onFaceDetected(frame(3));
+        publisher.onFaceDetectionError(new IllegalStateException("camera closed"));
+        // Сигналы одного источника идут по порядку, поэтому ошибка второму подписчику — граница
+        other.await(() -> other.errors.size() == 1);
+        assertEquals(1, cancelled.items.size());
+        assertTrue(cancelled.errors.isEmpty());
+        assertEquals(0, cancelled.signalsAfterCancel);
+        cancelled.assertValid();
+        other.assertValid();
+        publisher.close();
+    }
+
+    @Test
+    public void subscribeAfterCloseFails() {
+        FaceEventPublisher publisher = new FaceEventPublisher();
+        publisher.close();
+        TestSubscriber<FaceFrame> subscriber = new TestSubscriber<>();
+        publisher.subscribe(subscriber);
+        assertEquals(1, subscriber.errors.size());
+        assertNull(subscriber.subscription);
+    }
+
+    private static String keyOf(String item) {
+        String key = item.substring(0, item.indexOf(':'));
+        return key.equals("-") ? null : key;
+    }
+
+    private static Integer[] range(int from, int to) {
+        Integer[] items = new Integer[to - from];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = from + i;
+        }
+        return items;
+    }
+
+    private static List<DetectedFace> frame(long timestampNanos) {
+        return Collections.singletonList(new DetectedFace.Builder().setTimestampNanos(timestampNanos).build());
+    }
+
+    /**
+     * Синхронный источник: отдает элементы из очереди, пока есть спрос, в
+     * том же потоке, где его запросили. Повторный вход из onNext не
+     * углубляет стек, а продолжает тот же цикл.
+     */
+    private static final class TestPublisher<T> implements FaceStream.Publisher<T>, FaceStream.Subscription {
+        private final Deque<T> queue = new ArrayDeque<>();
+        private FaceStream.Subscriber<? super T> subscriber;
+        private boolean draining;
+        long requested;
+        long outstanding;
+        int emitted;
+        volatile boolean cancelled;
+
+        @Override
+        public void subscribe(FaceStream.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+        }
+
+        @SafeVarargs
+        final void push(T... items) {
+            queue.addAll(Arrays.asList(items));
+            drain();
+        }
+
+        void emitIgnoringDemand(T item) {
+            subscriber.onNext(item);
+        }
+
+        void complete() {
+            subscriber.onComplete();
+        }
+
+        void error(Throwable error) {
+            subscriber.onError(error);
+        }
+
+        @Override
+        public void request(long n) {
+            assertTrue("non-positive request " + n, n > 0);
+            requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            outstanding = outstanding + n < 0 ? Long.MAX_VALUE : outstanding + n;
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            if (draining) {
+                return;
+            }
+            draining = true;
+            try {
+                while (!cancelled && outstanding > 0 && !queue.isEmpty()) {
+                    outstanding--;
+                    emitted++;
+                    subscriber.onNext(queue.poll());
+                }
+            } finally {
+                draining = false;
+            }
+        }
+    }
+
+    /** Records signals and the first contract violation it sees. */
+    private static final class TestSubscriber<T> implements FaceStream.Subscriber<T> {
+        final List<T> items = Collections.synchronizedList(new ArrayList<>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        volatile FaceStream.Subscription subscription;
+        volatile int completions;
+        volatile int signalsAfterCancel;
+        private long requested;
+        private boolean cancelled;
+        private String violation;
+
+        @Override
+        public synchronized void onSubscribe(FaceStream.Subscription subscription) {
+            if (this.subscription != null) {
+                violate("onSubscribe twice");
+            }
+            this.subscription = subscription;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onNext(T item) {
+            signal();
+            items.add(item);
+            if (items.size() > requested) {
+                violate("demand exceeded: " + items.size() + " items for " + requested + " requested");
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(Throwable error) {
+            signal();
+            errors.add(error);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            signal();
+            completions++;
+            notifyAll();
+        }
+
+        void request(long n) {
+            synchronized (this) {
+                requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            subscription.request(n);
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            subscription.cancel();
+        }
+
+        synchronized void await(BooleanSupplier condition) {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (!condition.getAsBoolean()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new AssertionError("condition not reached in " + WAIT_MS + " ms");
+                }
+                try {
+                    // Условие может зависеть не только от сигналов, поэтому и опрашиваем
+                    wait(Math.min(left, 10));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+
+        synchronized void assertValid() {
+            assertNull(violation);
+        }
+
+        private void signal() {
+            if (cancelled) {
+                signalsAfterCancel++;
+            }
+            if (!errors.isEmpty() || completions > 0) {
+                violate("signal after termination");
+            }
+        }
+
+        private void violate(String message) {
+            if (violation == null) {
+                violation = message;
+            }
+        }
+    }
+}
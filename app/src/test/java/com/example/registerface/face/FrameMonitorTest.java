@@ -0,0 +1,150 @@
+package com.example.registerface.face;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Подсчет потерянных кадров по разрывам меток времени и причины потерь, со
+ * счетчиками GC через {@link FrameMonitor.GcStats}.
+ */
+public class FrameMonitorTest {
+    private static final long INTERVAL = 33_333_333L;
+
+    private FrameMonitor monitor;
+    private FakeGcStats gc;
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        monitor = new FrameMonitor();
+        gc = new FakeGcStats();
+        monitor.setGcStats(gc);
+        timestamp = 1_000_000_000L;
+        monitor.onFrameArrived(timestamp);
+        advance(10, 1);
+    }
+
+    @Test
+    public void countsLostFramesFromGaps() {
+        // Разрыв в k интервалов — k - 1 потерь, дрожание до половины интервала не считается
+        advance(1, 2);
+        advance(1, 3);
+        advance(1, 1.4);
+        advance(1, 1.6);
+        advance(1, 0.8);
+
+        FrameMonitor.Summary summary = monitor.summary();
+        assertEquals(15, summary.frames);
+        assertEquals(1 + 2 + 1, summary.dropped);
+        assertEquals(4, summary.getDropped(FrameMonitor.Cause.UNKNOWN));
+        assertEquals(4, summary.totalDropped);
+        // Интервал камеры — самый короткий разрыв
+        assertEquals((long) (INTERVAL * 0.8), summary.frameIntervalNanos);
+    }
+
+    @Test
+    public void attributesGapsToCauses() {
+        // GC важнее медленного детектора в том же разрыве
+        gc.collect(15);
+        monitor.onDetectionFinished(3 * INTERVAL);
+        advance(1, 2);
+
+        monitor.onDetectionFinished(2 * INTERVAL);
+        advance(1, 3);
+
+        monitor.onDetectionFinished(INTERVAL / 2);
+        monitor.onCallbackStarted(INTERVAL / 4);
+        monitor.onCallbackStarted(2 * INTERVAL);
+        advance(1, 2);
+
+        monitor.onCallbackStarted(INTERVAL / 4);
+        advance(1, 4);
+
+        FrameMonitor.Summary summary = monitor.summary();
+        assertEquals(1, summary.getDropped(FrameMonitor.Cause.GC));
+        assertEquals(2, summary.getDropped(FrameMonitor.Cause.DETECTOR));
+        assertEquals(1, summary.getDropped(FrameMonitor.Cause.CALLBACK));
+        assertEquals(3, summary.getDropped(FrameMonitor.Cause.UNKNOWN));
+        assertEquals(7, summary.dropped);
+        assertEquals(1, summary.gcCount);
+        assertEquals(15, summary.gcTimeMillis);
+        assertEquals(3 * INTERVAL, summary.detectorLatencyNanos(100));
+        assertEquals(2 * INTERVAL, summary.callbackWaitNanos(100));
+    }
+
+    @Test
+    public void gcCountsRollWithTheFrameWindow() {
+        // Сборки перед кадрами 10 и 290
+        gc.collect(20);
+        advance(1, 1);
+        advance(FrameMonitor.WINDOW_FRAMES - 21, 1);
+        gc.collect(30);
+        advance(1, 2);
+        // На кадре 305 окно — кадры 5..304; счетчик, обнуляемый каждые 300 кадров, показал бы 0
+        advance(14, 1);
+
+        FrameMonitor.Summary summary = monitor.summary();
+        assertEquals(FrameMonitor.WINDOW_FRAMES, summary.frames);
+        assertEquals(2, summary.gcCount);
+        assertEquals(50, summary.gcTimeMillis);
+        assertEquals(1, summary.getDropped(FrameMonitor.Cause.GC));
+
+        // Первая сборка вышла из окна вместе со своим кадром, вторая осталась
+        advance(6, 1);
+        summary = monitor.summary();
+        assertEquals(1, summary.gcCount);
+        assertEquals(30, summary.gcTimeMillis);
+
+        advance(FrameMonitor.WINDOW_FRAMES, 1);
+        summary = monitor.summary();
+        assertEquals(0, summary.gcCount);
+        assertEquals(0, summary.dropped);
+        assertEquals(1, summary.totalDropped);
+        assertEquals(1, summary.getTotalDropped(FrameMonitor.Cause.GC));
+    }
+
+    @Test
+    public void cameraRestartIsNotALoss() {
+        gc.collect(40);
+        monitor.onCameraStarted();
+        timestamp += 5_000_000_000L;
+        monitor.onFrameArrived(timestamp);
+        advance(5, 1);
+
+        FrameMonitor.Summary summary = monitor.summary();
+        assertEquals(0, summary.dropped);
+        // Сборка во время паузы не попадает ни в окно, ни в причины
+        assertEquals(0, summary.gcCount);
+        assertEquals(15, summary.frames);
+    }
+
+    /** Delivers {@code count} frames, each {@code intervals} camera intervals after the previous one. */
+    private void advance(int count, double intervals) {
+        for (int i = 0; i < count; i++) {
+            timestamp += (long) (INTERVAL * intervals);
+            monitor.onFrameArrived(timestamp);
+        }
+    }
+
+    private static final class FakeGcStats implements FrameMonitor.GcStats {
+        private long count;
+        private long timeMillis;
+
+        void collect(long pauseMillis) {
+            count++;
+            timeMillis += pauseMillis;
+        }
+
+        @Override
+        public long gcCount() {
+            return count;
+        }
+
+        @Override
+        public long gcTimeMillis() {
+            return timeMillis;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.registerface.face;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Проверка кадров на синтетических плоскостях Y 640x480: резкая текстура,
+ * она же после размытия, темный, пересвеченный и выбеленный кадры.
+ */
+public class FrameQualityGateTest {
+    private static final long SEED = 49L;
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    // Модель детектора для оценки экономии: столько стоит один проход ML Kit
+    private static final long DETECTOR_NANOS = 60_000_000L;
+
+    private final Random random = new Random(SEED);
+
+    @Test
+    public void classifiesSyntheticPlanes() {
+        FrameQualityGate gate = new FrameQualityGate();
+        int[] sharp = texture(60, 200);
+
+        assertEquals(FrameQualityGate.Verdict.PASS, measure(gate, sharp));
+        assertTrue(gate.getSharpness() > FrameQualityGate.Thresholds.DEFAULT.minSharpness);
+        assertEquals(130, gate.getBrightness(), 5);
+
+        assertEquals(FrameQualityGate.Verdict.BLURRY, measure(gate, blur(blur(sharp, 4), 4)));
+        assertEquals(FrameQualityGate.Verdict.DARK, measure(gate, texture(0, 40)));
+        assertEquals(FrameQualityGate.Verdict.BRIGHT, measure(gate, texture(220, 255)));
+
+        // Средняя яркость в норме, но почти половина центра выбелена
+        int[] blownOut = texture(60, 160);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                blownOut[y * WIDTH + x] = 255;
+            }
+        }
+        assertEquals(FrameQualityGate.Verdict.CLIPPED, measure(gate, blownOut));
+    }
+
+    @Test
+    public void honoursRowAndPixelStride() {
+        FrameQualityGate gate = new FrameQualityGate();
+        int[] pixels = texture(60, 200);
+        measure(gate, pixels);
+        float sharpness = gate.getSharpness();
+        float brightness = gate.getBrightness();
+
+        // Хвост строки заполнен мусором, он не должен попадать в метрики
+        gate.measure(plane(pixels, WIDTH + 96, 1, (byte) 0xFF), WIDTH, HEIGHT, WIDTH + 96, 1);
+        assertEquals(sharpness, gate.getSharpness(), 0f);
+        assertEquals(brightness, gate.getBrightness(), 0f);
+
+        gate.measure(plane(pixels, WIDTH * 2, 2, (byte) 0), WIDTH, HEIGHT, WIDTH * 2, 2);
+        assertEquals(sharpness, gate.getSharpness(), 0f);
+        assertEquals(brightness, gate.getBrightness(), 0f);
+    }
+
+    @Test
+    public void passesAFrameAfterTooManySkips() {
+        FrameQualityGate gate = new FrameQualityGate();
+        ByteBuffer dark = plane(texture(0, 30), WIDTH, 1, (byte) 0);
+        int skips = FrameQualityGate.Thresholds.DEFAULT.maxConsecutiveSkips;
+        for (int i = 0; i < skips; i++) {
+            assertFalse(gate.accept(dark, WIDTH, HEIGHT, WIDTH, 1));
+        }
+        // В плохом освещении детектор все равно иногда получает кадр
+        assertTrue(gate.accept(dark, WIDTH, HEIGHT, WIDTH, 1));
+        assertFalse(gate.accept(dark, WIDTH, HEIGHT, WIDTH, 1));
+        assertEquals(skips + 1, gate.getSkipped());
+    }
+
+    @Test
+    public void reportsDetectorTimeSaved() {
+        FrameQualityGate gate = new FrameQualityGate();
+        ByteBuffer[] frames = {
+                plane(texture(60, 200), WIDTH, 1, (byte) 0),
+                plane(blur(blur(texture(60, 200), 4), 4), WIDTH, 1, (byte) 0),
+                plane(texture(0, 40), WIDTH, 1, (byte) 0),
+                plane(texture(220, 255), WIDTH, 1, (byte) 0),
+        };
+        // Сканирование, где каждый второй кадр смазан, темный или пересвечен
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer frame = i % 2 == 0 ? frames[0] : frames[1 + (i / 2) % 3];
+            if (gate.accept(frame, WIDTH, HEIGHT, WIDTH, 1)) {
+                gate.onDetectorFinished(DETECTOR_NANOS);
+            }
+        }
+        System.out.println("Quality gate: " + gate);
+        System.out.println(String.format(Locale.US, "gate %.3f ms per frame vs detector %.0f ms",
+                gate.getGateNanos() / 1e6 / gate.getEvaluated(), DETECTOR_NANOS / 1e6));
+
+        assertEquals(500, gate.getSkipped());
+        assertEquals(500 * DETECTOR_NANOS - gate.getGateNanos(), gate.estimatedSavedNanos());
+        // Проверка кадра на порядки дешевле детектора
+        assertTrue(gate.getGateNanos() / gate.getEvaluated() < DETECTOR_NANOS / 20);
+    }
+
+    @Test
+    public void gateAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        long threadId = Thread.currentThread().getId();
+        FrameQualityGate gate = new FrameQualityGate();
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        frame.put(plane(texture(60, 200), WIDTH, 1, (byte) 0));
+
+        // Прогрев с теми же аргументами, чтобы JIT и загрузка классов не попали в замер
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            accepted += gate.accept(frame, WIDTH, HEIGHT, WIDTH, 1) ? 1 : 0;
+        }
+
+        long overhead = threads.getThreadAllocatedBytes(threadId);
+        overhead = threads.getThreadAllocatedBytes(threadId) - overhead;
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            accepted += gate.accept(frame, WIDTH, HEIGHT, WIDTH, 1) ? 1 : 0;
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertEquals(2000, accepted);
+        assertEquals("bytes allocated by 1000 gated frames", 0, allocated);
+    }
+
+    private static FrameQualityGate.Verdict measure(FrameQualityGate gate, int[] pixels) {
+        return gate.measure(plane(pixels, WIDTH, 1, (byte) 0), WIDTH, HEIGHT, WIDTH, 1);
+    }
+
+    private int[] texture(int low, int high) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = low + random.nextInt(high - low + 1);
+        }
+        return pixels;
+    }
+
+    // Квадратное усреднение со стороной 2 * radius + 1, у краев окно обрезается
+    private static int[] blur(int[] pixels, int radius) {
+        int[] out = new int[pixels.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = Math.max(0, y - radius); dy <= Math.min(HEIGHT - 1, y + radius); dy++) {
+                    for (int dx = Math.max(0, x - radius); dx <= Math.min(WIDTH - 1, x + radius); dx++) {
+                        sum += pixels[dy * WIDTH + dx];
+                        count++;
+                    }
+                }
+                out[y * WIDTH + x] = sum / count;
+            }
+        }
+        return out;
+    }
+
+    /** Packs luma values into a plane with the given strides, padding with {@code filler}. */
+    private static ByteBuffer plane(int[] pixels, int rowStride, int pixelStride, byte filler) {
+        byte[] bytes = new byte[rowStride * HEIGHT];
+        Arrays.fill(bytes, filler);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                bytes[y * rowStride + x * pixelStride] = (byte) pixels[y * WIDTH + x];
+            }
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Счетчик выделений есть только в HotSpot
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.registerface.face;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Прогон {@link MatcherEvaluator}: все пары набора шаблонов, сетка порогов и
+ * весов, выбор конфигурации. Свойства (через {@code -Peval.*}):
+ * <ul>
+ *   <li>{@code eval.templates} — TSV {@code метка<TAB>face_data}; без него
+ *   берется синтетический набор {@link SyntheticFaceGenerator};</li>
+ *   <li>{@code eval.identities}, {@code eval.captures} — размер синтетического
+ *   набора (по умолчанию 100 × 5);</li>
+ *   <li>{@code eval.far} — целевой FAR для порога (по умолчанию 0.01);</li>
+ *   <li>{@code eval.output} — куда записать выбранную конфигурацию; тесты
+ *   идут из каталога app, поэтому для приложения это
+ *   {@code src/main/assets/matcher_config.properties};</li>
+ *   <li>{@code eval.curves} — TSV с ROC/DET выбранной конфигурации.</li>
+ * </ul>
+ */
+public class MatcherEvaluationTest {
+    private static final long SEED = 20240601L;
+
+    @Test
+    public void sweepThresholdsAndWeights() throws IOException {
+        List<String> labels = new ArrayList<>();
+        List<FaceTemplate> templates = new ArrayList<>();
+        String templatesPath = System.getProperty("eval.templates", "");
+        if (templatesPath.isEmpty()) {
+            generateTemplates(Integer.getInteger("eval.identities", 100), Integer.getInteger("eval.captures", 5),
+                    labels, templates);
+        } else {
+            readTemplates(new File(templatesPath), labels, templates);
+        }
+
+        MatcherEvaluator evaluator = new MatcherEvaluator(labels, templates);
+        MatcherEvaluator.Grid grid = new MatcherEvaluator.Grid()
+                .landmarkDistance(0.05f, 0.10f, 0.15f)
+                .featureDiff(0.10f, 0.15f, 0.25f)
+                .contourDistance(0.10f, 0.15f)
+                .contourWeight(0.5f, 1f, 2f)
+                .featureWeight(0.25f, 1f);
+        float targetFar = Float.parseFloat(System.getProperty("eval.far", "0.01"));
+
+        long start = System.nanoTime();
+        MatcherEvaluator.Result baseline = evaluator.evaluate(MatcherConfig.DEFAULT);
+        MatcherEvaluator.Sweep sweep = evaluator.sweep(grid, targetFar);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long pairs = evaluator.getPairCount() * (grid.size() + 1);
+        System.out.println(String.format(Locale.US, "%d templates, %d configs, %d pairs in %.1f s (%.0f pairs/s)",
+                templates.size(), grid.size(), pairs, seconds, pairs / seconds));
+        System.out.println("baseline " + baseline);
+        System.out.println(String.format(Locale.US, "baseline at %.1f%%: FAR=%.4f FRR=%.4f",
+                MatcherConfig.DEFAULT.similarityThreshold * 100,
+                baseline.getFar(MatcherConfig.DEFAULT.similarityThreshold * 100),
+                baseline.getFrr(MatcherConfig.DEFAULT.similarityThreshold * 100)));
+        System.out.println("best " + sweep.best);
+        float chosenThreshold = sweep.chosen.similarityThreshold * 100;
+        System.out.println(String.format(Locale.US, "chosen at FAR<=%.4f: FAR=%.4f FRR=%.4f %s", targetFar,
+                sweep.best.getFar(chosenThreshold), sweep.best.getFrr(chosenThreshold), sweep.chosen));
+
+        writeOutputs(sweep);
+
+        assertEquals(grid.size(), sweep.results.size());
+        assertEquals(evaluator.getPairCount(), baseline.genuinePairs + baseline.impostorPairs);
+        // Сетка включает значения по умолчанию, поэтому лучший EER не хуже исходного
+        assertTrue(sweep.best.getEer() <= baseline.getEer());
+        assertTrue(sweep.best.getFar(chosenThreshold) <= targetFar);
+    }
+
+    @Test
+    public void configRoundTrip() throws IOException {
+        MatcherConfig config = new MatcherConfig(0.42f, 0.05f, 0.2f, 0.1f, 1f, 0.5f, 0.25f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.store(out, null);
+        MatcherConfig loaded = MatcherConfig.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(config.toString(), loaded.toString());
+    }
+
+    @Test
+    public void rejectsThresholdOutsideUnitRange() {
+        for (String value : new String[]{"-0.01", "1.5", "15", "NaN"}) {
+            try {
+                MatcherConfig.load(new ByteArrayInputStream(("similarityThreshold=" + value)
+                        .getBytes(StandardCharsets.ISO_8859_1)));
+                fail("accepted similarityThreshold=" + value);
+            } catch (IOException expected) {
+                // Порог в процентах вместо доли — частая ошибка в файле
+            }
+        }
+        assertEquals(1f, MatcherConfig.DEFAULT.withSimilarityThreshold(1f).getSimilarityThreshold(), 0f);
+        assertEquals(0f, MatcherConfig.DEFAULT.withSimilarityThreshold(0f).getSimilarityThreshold(), 0f);
+    }
+
+    private static void generateTemplates(int identities, int captures, List<String> labels,
+                                          List<FaceTemplate> templates) {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        Random random = new Random(SEED);
+        for (int i = 0; i < identities; i++) {
+            SyntheticFaceGenerator.Identity identity = generator.identity(i);
+            for (int c = 0; c < captures; c++) {
+                labels.add("s" + i);
+                templates.add(FaceTemplate.parse(generator.faceData(identity, random)));
+            }
+        }
+    }
+
+    private static void readTemplates(File file, List<String> labels, List<FaceTemplate> templates)
+            throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (line.isEmpty() || line.startsWith("#") || tab < 0) {
+                    continue;
+                }
+                labels.add(line.substring(0, tab));
+                templates.add(FaceTemplate.parse(line.substring(tab + 1)));
+            }
+        }
+    }
+
+    private static void writeOutputs(MatcherEvaluator.Sweep sweep) throws IOException {
+        String output = System.getProperty("eval.output", "");
+        if (!output.isEmpty()) {
+            try (OutputStream out = new FileOutputStream(output)) {
+                sweep.chosen.store(out, String.format(Locale.US, "Chosen by MatcherEvaluator, EER=%.4f over %d pairs",
+                        sweep.best.getEer(), sweep.best.genuinePairs + sweep.best.impostorPairs));
+            }
+            System.out.println("config written to " + output);
+        }
+        String curves = System.getProperty("eval.curves", "");
+        if (!curves.isEmpty()) {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(curves), StandardCharsets.UTF_8)) {
+                sweep.best.writeCurves(out);
+            }
+            System.out.println("curves written to " + curves);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.registerface.face;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Запись синтетических кадров через {@link FrameRecording.Writer} и их
+ * воспроизведение без камеры: то же, что прогон на CI по записанной сессии.
+ */
+public class ReplayFrameSourceTest {
+    private static final long SEED = 32L;
+    private static final int FRAMES = 600;
+    private static final long FRAME_NANOS = 33_333_333L;
+
+    private File file;
+    private List<List<DetectedFace>> recorded;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("frames", ".rec");
+        recorded = recordFrames(FRAMES);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void replaysRecordingAtMaxSpeed() throws InterruptedException {
+        Collector collector = new Collector();
+        ReplayFrameSource source = new ReplayFrameSource(file, collector, ReplayFrameSource.MAX_SPEED, false);
+        source.start();
+        assertTrue(source.awaitCompletion(30, TimeUnit.SECONDS));
+        System.out.println("Replay: " + source);
+
+        assertNull(collector.error);
+        assertEquals(FRAMES, source.getFramesDelivered());
+        assertEquals(FRAMES, collector.frames.size());
+        long faces = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            List<DetectedFace> expected = recorded.get(i);
+            List<DetectedFace> actual = collector.frames.get(i);
+            assertEquals("frame " + i, expected.size(), actual.size());
+            for (int f = 0; f < expected.size(); f++) {
+                // Float.toString восстанавливается без потерь, поэтому строки совпадают, только если совпали все поля
+                assertEquals(describe(expected.get(f)), describe(actual.get(f)));
+                assertEquals(expected.get(f).getTimestampNanos(), actual.get(f).getTimestampNanos());
+            }
+            faces += expected.size();
+        }
+        assertEquals(faces, source.getFacesDelivered());
+
+        assertTrue(source.getThroughputFps() > 0);
+        assertTrue(source.getAverageListenerNanos() > 0);
+        assertTrue(source.getMaxListenerNanos() >= source.getAverageListenerNanos());
+        // Без пауз запись длиной 20 с проигрывается намного быстрее реального времени
+        assertTrue("fps " + source.getThroughputFps(), source.getThroughputFps() > 1_000_000_000.0 / FRAME_NANOS);
+    }
+
+    @Test
+    public void pacesFramesByRecordedTimestamps() throws InterruptedException {
+        Collector collector = new Collector();
+        // 20 с записи при скорости 100 — около 200 мс
+        ReplayFrameSource source = new ReplayFrameSource(file, collector, 100f, false);
+        long start = System.nanoTime();
+        source.start();
+        assertTrue(source.awaitCompletion(30, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        long recordedSpan = (FRAMES - 1) * FRAME_NANOS;
+        assertEquals(FRAMES, source.getFramesDelivered());
+        assertTrue(String.format(Locale.US, "replay took %.1f ms", elapsed / 1e6), elapsed >= recordedSpan / 100);
+    }
+
+    @Test
+    public void stopEndsLoopingReplay() throws InterruptedException {
+        Collector collector = new Collector();
+        ReplayFrameSource source = new ReplayFrameSource(file, collector, ReplayFrameSource.MAX_SPEED, true);
+        source.start();
+        while (source.getFramesDelivered() <= FRAMES) {
+            Thread.sleep(1);
+        }
+        source.stop();
+        assertTrue(source.awaitCompletion(5, TimeUnit.SECONDS));
+        assertEquals(source.getFramesDelivered(), collector.frames.size());
+    }
+
+    /** Writes frames of two synthetic people, one of them without a track, with empty frames in between. */
+    private List<List<DetectedFace>> recordFrames(int count) throws IOException {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        Random random = new Random(SEED);
+        List<List<DetectedFace>> frames = new ArrayList<>(count);
+        try (FrameRecording.Writer writer = new FrameRecording.Writer(file, null)) {
+            for (int i = 0; i < count; i++) {
+                long timestamp = 1_000_000_000L + i * FRAME_NANOS;
+                List<DetectedFace> faces = new ArrayList<>();
+                if (i % 10 != 9) {
+                    faces.add(copy(generator.capture(generator.identity(1), random), timestamp, 7, true));
+                }
+                if (i % 3 == 0) {
+                    faces.add(copy(generator.capture(generator.identity(2), random), timestamp, null, i % 2 == 0));
+                }
+                // Пустой кадр записывается с временем предыдущего, как и в живой работе
+                writer.onFaceDetected(faces);
+                frames.add(faces);
+            }
+            assertEquals(count, writer.getFrameCount());
+        }
+        return frames;
+    }
+
+    private static DetectedFace copy(DetectedFace face, long timestampNanos, Integer trackingId,
+                                     boolean probabilities) {
+        DetectedFace.Builder builder = new DetectedFace.Builder()
+                .setTimestampNanos(timestampNanos)
+                .setTrackingId(trackingId)
+                .setBounds(face.getLeft(), face.getTop(), face.getRight(), face.getBottom())
+                .setHeadEulerAngles(face.getHeadEulerAngleX(), face.getHeadEulerAngleY(), face.getHeadEulerAngleZ())
+                .setProbabilities(probabilities ? face.getSmilingProbability() : null,
+                        probabilities ? face.getLeftEyeOpenProbability() : null,
+                        probabilities ? face.getRightEyeOpenProbability() : null)
+                .setContour(face.getContour());
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            // Без одной точки, чтобы маска тоже проверялась
+            if (face.hasLandmark(i) && i != 5) {
+                builder.setLandmark(i, face.getLandmarkX(i), face.getLandmarkY(i));
+            }
+        }
+        return builder.build();
+    }
+
+    private static String describe(DetectedFace face) {
+        StringBuilder line = new StringBuilder();
+        FrameRecording.appendFace(line, face);
+        return line.toString();
+    }
+
+    private static final class Collector implements FaceDetectorHelper.FaceDetectorListener {
+        final List<List<DetectedFace>> frames = Collections.synchronizedList(new ArrayList<>());
+        volatile Exception error;
+
+        @Override
+        public void onFaceDetected(List<DetectedFace> faces) {
+            // Немного работы, как у настоящего слушателя: шаблон каждого лица
+            for (DetectedFace face : faces) {
+                FaceTemplate.encode(face);
+            }
+            frames.add(faces);
+        }
+
+        @Override
+        public void onFaceDetectionError(Exception e) {
+            error = e;
+        }
+    }
+}
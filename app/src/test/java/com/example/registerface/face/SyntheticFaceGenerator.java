@@ -0,0 +1,180 @@
+package com.example.registerface.face;
+
+import com.example.registerface.models.User;
+
+import java.util.Random;
+
+/**
+ * Генератор синтетических лиц для нагрузочных тестов. Каждая личность
+ * получает свою базовую геометрию (шесть точек лица и контур FACE), а каждый
+ * снимок добавляет шум детектора, дрожание позы и смену выражения. Снимки
+ * отдаются как {@link DetectedFace} в пикселях кадра, поэтому шаблон
+ * строится настоящим {@link FaceTemplate#encode(DetectedFace)}.
+ * Результат полностью определяется seed.
+ */
+public class SyntheticFaceGenerator {
+    /** Точек в контуре FACE у ML Kit. */
+    public static final int CONTOUR_POINTS = 36;
+
+    // Средняя геометрия в координатах getFaceData: центр рамки, единица = сторона рамки
+    private static final float[] MEAN_LANDMARKS = {
+            -0.18f, -0.12f,  // leftEye
+            0.18f, -0.12f,   // rightEye
+            0f, 0.05f,       // nose
+            0f, 0.25f,       // mouth
+            -0.25f, 0.10f,   // leftCheek
+            0.25f, 0.10f     // rightCheek
+    };
+    // Насколько точка выступает вперед: от этого зависит сдвиг при повороте головы
+    private static final float[] LANDMARK_DEPTH = {0.05f, 0.05f, 0.15f, 0.08f, 0f, 0f};
+    private static final float MEAN_RADIUS_X = 0.42f;
+    private static final float MEAN_RADIUS_Y = 0.50f;
+    private static final int HARMONICS = 4;
+
+    /** Разброс между личностями и шум одного снимка, в долях стороны рамки и градусах. */
+    public static class Params {
+        public float identityLandmarkSd = 0.025f;
+        public float identityRadiusSd = 0.03f;
+        public float identityHarmonicSd = 0.02f;
+        public float captureLandmarkSd = 0.008f;
+        public float captureContourSd = 0.006f;
+        public float poseSd = 6f;
+        public float maxPose = 25f;
+        public float smileChance = 0.2f;
+        public float blinkChance = 0.03f;
+    }
+
+    /** Базовая геометрия одной личности. */
+    public static final class Identity {
+        public final int index;
+        final float[] landmarks = new float[MEAN_LANDMARKS.length];
+        final float radiusX;
+        final float radiusY;
+        final float[] harmonicAmplitude = new float[HARMONICS];
+        final float[] harmonicPhase = new float[HARMONICS];
+        final float smileBias;
+
+        Identity(int index, Random random, Params params) {
+            this.index = index;
+            for (int i = 0; i < landmarks.length; i++) {
+                landmarks[i] = MEAN_LANDMARKS[i] + (float) random.nextGaussian() * params.identityLandmarkSd;
+            }
+            radiusX = MEAN_RADIUS_X + (float) random.nextGaussian() * params.identityRadiusSd;
+            radiusY = MEAN_RADIUS_Y + (float) random.nextGaussian() * params.identityRadiusSd;
+            for (int k = 0; k < HARMONICS; k++) {
+                harmonicAmplitude[k] = (float) random.nextGaussian() * params.identityHarmonicSd;
+                harmonicPhase[k] = (float) (random.nextDouble() * 2 * Math.PI);
+            }
+            smileBias = (float) random.nextDouble() * 0.3f;
+        }
+    }
+
+    private final long seed;
+    private final Params params;
+
+    public SyntheticFaceGenerator(long seed) {
+        this(seed, new Params());
+    }
+
+    public SyntheticFaceGenerator(long seed, Params params) {
+        this.seed = seed;
+        this.params = params;
+    }
+
+    /** The same index always yields the same identity. */
+    public Identity identity(int index) {
+        return new Identity(index, new Random(seed * 31 + index), params);
+    }
+
+    /**
+     * One capture of {@code identity}; {@code random} drives the per-capture
+     * noise so that callers control reproducibility.
+     */
+    public DetectedFace capture(Identity identity, Random random) {
+        float yaw = clampedGaussian(random, params.poseSd, params.maxPose);
+        float roll = clampedGaussian(random, params.poseSd, params.maxPose);
+        float pitch = clampedGaussian(random, params.poseSd, params.maxPose);
+        double yawRad = Math.toRadians(yaw);
+        double rollRad = Math.toRadians(roll);
+        float cosRoll = (float) Math.cos(rollRad);
+        float sinRoll = (float) Math.sin(rollRad);
+
+        boolean smiling = random.nextFloat() < params.smileChance;
+        float smile = clamp01(smiling ? 0.7f + (float) random.nextGaussian() * 0.15f
+                : identity.smileBias + (float) random.nextGaussian() * 0.05f);
+        float leftEye = eyeOpen(random);
+        float rightEye = random.nextFloat() < 0.8f ? leftEye : eyeOpen(random);
+
+        // Рамка в пикселях: квадрат 200-400 px где-то в кадре 720x1280
+        int size = 200 + random.nextInt(201);
+        int left = random.nextInt(720 - size);
+        int top = random.nextInt(1280 - size);
+        float centerX = left + size / 2f;
+        float centerY = top + size / 2f;
+
+        DetectedFace.Builder builder = new DetectedFace.Builder()
+                .setTrackingId(random.nextInt(1000))
+                .setBounds(left, top, left + size, top + size)
+                .setHeadEulerAngles(pitch, yaw, roll)
+                .setProbabilities(smile, leftEye, rightEye);
+
+        for (int i = 0; i < FaceTemplate.LANDMARK_COUNT; i++) {
+            float x = identity.landmarks[i * 2];
+            float y = identity.landmarks[i * 2 + 1];
+            if (i == 3) {
+                // Улыбка поднимает нижнюю точку рта
+                y -= smile * 0.02f;
+            }
+            x = x * (float) Math.cos(yawRad) + LANDMARK_DEPTH[i] * (float) Math.sin(yawRad);
+            x += (float) random.nextGaussian() * params.captureLandmarkSd;
+            y += (float) random.nextGaussian() * params.captureLandmarkSd;
+            float rx = x * cosRoll - y * sinRoll;
+            float ry = x * sinRoll + y * cosRoll;
+            builder.setLandmark(i, centerX + rx * size, centerY + ry * size);
+        }
+
+        float[] contour = new float[CONTOUR_POINTS * 2];
+        for (int p = 0; p < CONTOUR_POINTS; p++) {
+            // ML Kit начинает контур сверху и идет по часовой стрелке
+            double theta = -Math.PI / 2 + 2 * Math.PI * p / CONTOUR_POINTS;
+            float radius = 1f;
+            for (int k = 0; k < HARMONICS; k++) {
+                radius += identity.harmonicAmplitude[k] * (float) Math.cos((k + 2) * theta + identity.harmonicPhase[k]);
+            }
+            float x = identity.radiusX * radius * (float) Math.cos(theta) * (float) Math.cos(yawRad);
+            float y = 0.02f + identity.radiusY * radius * (float) Math.sin(theta);
+            x += (float) random.nextGaussian() * params.captureContourSd;
+            y += (float) random.nextGaussian() * params.captureContourSd;
+            contour[p * 2] = centerX + (x * cosRoll - y * sinRoll) * size;
+            contour[p * 2 + 1] = centerY + (x * sinRoll + y * cosRoll) * size;
+        }
+        builder.setContour(contour);
+        return builder.build();
+    }
+
+    /** Template string of one capture, in the {@code getFaceData} layout. */
+    public String faceData(Identity identity, Random random) {
+        return FaceTemplate.encode(capture(identity, random));
+    }
+
+    /** User {@code "u" + index} with a fresh capture of identity {@code index}, as tests enroll them. */
+    public User user(int index, Random random) {
+        return new User("u" + index, faceData(identity(index), random), "User " + index,
+                "user" + index + "@example.com");
+    }
+
+    private float eyeOpen(Random random) {
+        if (random.nextFloat() < params.blinkChance) {
+            return clamp01(0.1f + (float) random.nextGaussian() * 0.05f);
+        }
+        return clamp01(0.9f + (float) random.nextGaussian() * 0.06f);
+    }
+
+    private static float clampedGaussian(Random random, float sd, float limit) {
+        return Math.max(-limit, Math.min(limit, (float) random.nextGaussian() * sd));
+    }
+
+    private static float clamp01(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.registerface.face;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Кэш по trackingId на поддельных часах: срок жизни, сброс при смене позы,
+ * пустые шаблоны, {@link TrackingCache#retainTracked} и счетчики кадров.
+ */
+public class TrackingCacheTest {
+    private static final long TTL_MS = 1000;
+    private static final float MAX_POSE_DELTA = 10f;
+
+    private long now;
+    private TrackingCache cache;
+
+    @Before
+    public void setUp() {
+        now = 5_000;
+        cache = new TrackingCache(() -> now, TTL_MS, MAX_POSE_DELTA);
+    }
+
+    @Test
+    public void servesTrackedFaceUntilItExpires() {
+        assertNull(cache.get(face(1, 0f)));
+        TrackingCache.Entry entry = cache.put(face(1, 0f), "template", 0.8f);
+
+        // Каждое попадание продлевает срок жизни
+        now += TTL_MS;
+        assertSame(entry, cache.get(face(1, 2f)));
+        now += TTL_MS;
+        assertSame(entry, cache.get(face(1, 2f)));
+
+        now += TTL_MS + 1;
+        assertNull(cache.get(face(1, 2f)));
+        // Истекшая запись удалена, а не просто пропущена
+        now = 0;
+        assertNull(cache.get(face(1, 2f)));
+    }
+
+    @Test
+    public void poseChangeEvictsEntry() {
+        cache.put(face(1, 0f), "template", 0.8f);
+        assertNotNull(cache.get(face(1, MAX_POSE_DELTA)));
+        assertNull(cache.get(face(1, MAX_POSE_DELTA + 0.5f)));
+        // Запись сброшена, даже если поза вернулась
+        assertNull(cache.get(face(1, 0f)));
+
+        cache.put(face(2, 0f), "template", 0.8f);
+        DetectedFace tilted = new DetectedFace.Builder()
+                .setTrackingId(2)
+                .setHeadEulerAngles(0f, 0f, -MAX_POSE_DELTA - 1f)
+                .build();
+        assertNull(cache.get(tilted));
+    }
+
+    @Test
+    public void skipsUntrackedFacesAndEmptyTemplates() {
+        DetectedFace untracked = new DetectedFace.Builder().build();
+        assertNull(cache.put(untracked, "template", 0.8f));
+        assertNull(cache.get(untracked));
+
+        cache.put(face(1, 0f), "template", 0.8f);
+        // Отвергнутый кадр того же трека сбрасывает запись, чтобы следующий извлекался заново
+        assertNull(cache.put(face(1, 0f), "", 0.8f));
+        assertNull(cache.get(face(1, 0f)));
+        assertNull(cache.put(face(1, 0f), null, 0.8f));
+        assertNull(cache.get(face(1, 0f)));
+    }
+
+    @Test
+    public void retainTrackedDropsFacesThatLeftTheFrame() {
+        cache.put(face(1, 0f), "one", 0.8f);
+        cache.put(face(2, 0f), "two", 0.8f);
+        cache.put(face(3, 0f), "three", 0.8f);
+
+        cache.retainTracked(Arrays.asList(face(2, 0f), new DetectedFace.Builder().build()));
+        assertNull(cache.get(face(1, 0f)));
+        assertEquals("two", cache.get(face(2, 0f)).faceData);
+        assertNull(cache.get(face(3, 0f)));
+
+        cache.retainTracked(Collections.<DetectedFace>emptyList());
+        assertNull(cache.get(face(2, 0f)));
+    }
+
+    @Test
+    public void decisionsAreKeptPerKeyAndTrack() {
+        FaceDetectorHelper.FaceComparisonResult accepted = new FaceDetectorHelper.FaceComparisonResult(true, 91f);
+        cache.putDecision(1, "alice", accepted);
+        // Решение без записи трека некуда сохранить
+        assertNull(cache.getDecision(1, "alice"));
+
+        cache.put(face(1, 0f), "template", 0.8f);
+        cache.putDecision(1, "alice", accepted);
+        assertSame(accepted, cache.getDecision(1, "alice"));
+        assertNull(cache.getDecision(1, "bob"));
+        assertNull(cache.getDecision(2, "alice"));
+
+        // Новый шаблон трека — старое решение к нему не относится
+        cache.put(face(1, 0f), "template", 0.8f);
+        assertNull(cache.getDecision(1, "alice"));
+        cache.putDecision(1, "alice", accepted);
+        cache.clear();
+        assertNull(cache.getDecision(1, "alice"));
+    }
+
+    @Test
+    public void countsFramesForMetrics() {
+        List<long[]> reported = new ArrayList<>();
+        cache.setMetricsListener((fromCache, evaluated) -> reported.add(new long[]{fromCache, evaluated}));
+
+        // Как регистрация: первый кадр трека извлекается, следующие стабильные берутся из кэша
+        for (int frame = 0; frame < 5; frame++) {
+            if (cache.get(face(1, frame * 0.5f)) == null) {
+                cache.put(face(1, frame * 0.5f), "template", 0.8f);
+            }
+            now += 100;
+        }
+        cache.get(face(2, 0f));
+
+        assertEquals(4, cache.getFramesFromCache());
+        assertEquals(2, cache.getFramesEvaluated());
+        assertEquals(6, reported.size());
+        assertEquals(4, reported.get(5)[0]);
+        assertEquals(2, reported.get(5)[1]);
+        // Счетчики копятся за все время, очистка кэша их не сбрасывает
+        cache.clear();
+        assertEquals(4, cache.getFramesFromCache());
+    }
+
+    private static DetectedFace face(int trackingId, float headEulerY) {
+        return new DetectedFace.Builder()
+                .setTrackingId(trackingId)
+                .setBounds(100, 100, 300, 300)
+                .setHeadEulerAngles(0f, headEulerY, 0f)
+                .build();
+    }
+}
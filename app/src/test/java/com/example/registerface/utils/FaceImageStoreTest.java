@@ -0,0 +1,171 @@
+package com.example.registerface.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Квота с вытеснением давних снимков входа, удаление снимков пользователя и
+ * отложенная запись индекса, на отдельном каталоге.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FaceImageStoreTest {
+    private static final long LARGE_QUOTA = 1L << 30;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private File directory;
+    private Bitmap bitmap;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        directory = new File(context.getCacheDir(), "face-images");
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedLoginSnapshots() throws InterruptedException {
+        FaceImageStore store = new FaceImageStore(directory, LARGE_QUOTA);
+        store.save(FaceImageStore.Kind.REGISTRATION, "u0", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u1", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u2", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u3", bitmap);
+        store.flush();
+        long size = file(FaceImageStore.Kind.LOGIN, "u1").length();
+        assertTrue(size > 0);
+
+        // Чтение делает снимок u1 свежее u2
+        assertNotNull(load(store, FaceImageStore.Kind.LOGIN, "u1"));
+        store.setQuotaBytes(3 * size);
+        store.flush();
+        assertTrue(file(FaceImageStore.Kind.LOGIN, "u1").exists());
+        assertFalse(file(FaceImageStore.Kind.LOGIN, "u2").exists());
+        assertTrue(file(FaceImageStore.Kind.LOGIN, "u3").exists());
+
+        // Снимки регистрации не вытесняются, даже если одни превышают квоту
+        store.setQuotaBytes(0);
+        store.flush();
+        assertFalse(file(FaceImageStore.Kind.LOGIN, "u1").exists());
+        assertFalse(file(FaceImageStore.Kind.LOGIN, "u3").exists());
+        assertTrue(file(FaceImageStore.Kind.REGISTRATION, "u0").exists());
+        assertEquals(1, indexLines().size());
+    }
+
+    @Test
+    public void deleteUserRemovesSnapshotsAndOrphans() throws IOException, InterruptedException {
+        FaceImageStore store = new FaceImageStore(directory, LARGE_QUOTA);
+        store.save(FaceImageStore.Kind.REGISTRATION, "u1", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u1", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u2", bitmap);
+        store.flush();
+        // Снимок, которого нет в индексе, например после сбоя до записи индекса
+        try (FileOutputStream out = new FileOutputStream(file(FaceImageStore.Kind.REGISTRATION, "u3"))) {
+            out.write(1);
+        }
+
+        store.deleteUser("u1");
+        store.deleteUser("u3");
+        store.flush();
+        assertFalse(file(FaceImageStore.Kind.REGISTRATION, "u1").exists());
+        assertFalse(file(FaceImageStore.Kind.LOGIN, "u1").exists());
+        assertFalse(file(FaceImageStore.Kind.REGISTRATION, "u3").exists());
+        assertTrue(file(FaceImageStore.Kind.LOGIN, "u2").exists());
+        List<String> lines = indexLines();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("face_login_u2.jpg\t"));
+    }
+
+    @Test
+    public void indexIsWrittenOnceForManyChanges() throws IOException, InterruptedException {
+        FaceImageStore store = new FaceImageStore(directory, LARGE_QUOTA);
+        store.flush();
+        // Индекс пустого каталога записан при построении
+        assertTrue(indexLines().isEmpty());
+
+        store.save(FaceImageStore.Kind.REGISTRATION, "u1", bitmap);
+        store.save(FaceImageStore.Kind.LOGIN, "u1", bitmap);
+        // Чтение идет после записей из той же очереди, поэтому служит и барьером
+        assertNotNull(load(store, FaceImageStore.Kind.REGISTRATION, "u1"));
+        assertNotNull(load(store, FaceImageStore.Kind.LOGIN, "u1"));
+        assertTrue(indexLines().isEmpty());
+
+        store.flush();
+        assertEquals(2, indexLines().size());
+
+        // Новый экземпляр берет размеры из сохраненного индекса
+        long size = file(FaceImageStore.Kind.LOGIN, "u1").length();
+        FaceImageStore reopened = new FaceImageStore(directory, 2 * size);
+        reopened.flush();
+        assertTrue(file(FaceImageStore.Kind.LOGIN, "u1").exists());
+        reopened.setQuotaBytes(size);
+        reopened.flush();
+        assertFalse(file(FaceImageStore.Kind.LOGIN, "u1").exists());
+        assertTrue(file(FaceImageStore.Kind.REGISTRATION, "u1").exists());
+    }
+
+    private Bitmap load(FaceImageStore store, FaceImageStore.Kind kind, String userId) throws InterruptedException {
+        Bitmap[] loaded = new Bitmap[1];
+        boolean[] done = new boolean[1];
+        store.load(kind, userId, result -> {
+            loaded[0] = result;
+            done[0] = true;
+        });
+        // Ответ приходит через главный поток, а он здесь — поток теста
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!done[0]) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("snapshot " + userId + " was not loaded");
+            }
+            Thread.sleep(10);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+        return loaded[0];
+    }
+
+    private File file(FaceImageStore.Kind kind, String userId) {
+        return new File(directory, kind.fileName(userId));
+    }
+
+    private List<String> indexLines() {
+        try {
+            return Files.readAllLines(new File(directory, FaceImageStore.INDEX_FILE_NAME).toPath(),
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
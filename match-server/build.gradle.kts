@@ -0,0 +1,51 @@
+plugins {
+    application
+}
+
+java {
+    // Виртуальные потоки
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(21))
+    }
+}
+
+// Ядро сравнения без Android берется прямо из исходников :app, чтобы сервер и планшет считали одинаково
+val faceCore = listOf(
+    "ContourResampler", "DetectedFace", "FaceTemplate", "FaceMatcher", "QuantizedTemplate",
+    "FaceGallery", "MatcherConfig", "MatchClient"
+)
+
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include(faceCore.map { "com/example/registerface/face/$it.java" })
+            include("com/example/registerface/server/**")
+        }
+    }
+    test {
+        java {
+            srcDir("../app/src/test/java")
+            // Модель User нужна фабрике пользователей из SyntheticFaceGenerator
+            srcDir("../app/src/main/java")
+            include("com/example/registerface/face/SyntheticFaceGenerator.java")
+            include("com/example/registerface/models/User.java")
+            include("com/example/registerface/server/**")
+        }
+    }
+}
+
+application {
+    mainClass.set("com.example.registerface.server.MatchServer")
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+tasks.test {
+    // Размеры галереи для нагрузочного прогона: -Pmatchserver.users=10000,100000
+    systemProperty("matchserver.users", project.findProperty("matchserver.users") ?: "10000")
+    systemProperty("matchserver.seconds", project.findProperty("matchserver.seconds") ?: "10")
+    maxHeapSize = "2g"
+}
@@ -0,0 +1,134 @@
+package com.example.registerface.server;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Собирает одновременные запросы опознания в один пакетный проход по
+ * галерее: пока идет поиск, новые запросы копятся в очереди, и следующий
+ * проход берет их все сразу (не больше {@link #MAX_BATCH_PROBES} шаблонов).
+ * Блочный поиск {@link FaceGallery} читает галерею один раз на пакет, так
+ * что под нагрузкой стоимость запроса падает, а без нагрузки пакет состоит
+ * из одного запроса и лишней задержки нет.
+ */
+final class MatchBatcher implements AutoCloseable {
+    static final int MAX_BATCH_PROBES = 64;
+
+    private static final class Request {
+        final FaceTemplate[] probes;
+        final float minPercentage;
+        final CompletableFuture<FaceGallery.Match[]> result = new CompletableFuture<>();
+
+        Request(FaceTemplate[] probes, float minPercentage) {
+            this.probes = probes;
+            this.minPercentage = minPercentage;
+        }
+    }
+
+    private final ShardedGallery gallery;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean closed;
+
+    MatchBatcher(ShardedGallery gallery) {
+        this.gallery = gallery;
+        dispatcher = new Thread(this::run, "match-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /** Blocks the calling (virtual) thread until the batch with this request is searched. */
+    FaceGallery.Match[] identify(FaceTemplate[] probes, float minPercentage) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Batcher is closed");
+        }
+        Request request = new Request(probes, minPercentage);
+        queue.put(request);
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Gallery search failed", e.getCause());
+        }
+    }
+
+    /** Average number of requests per gallery pass. */
+    double averageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) requests.get() / count;
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            int probeCount = batch.get(0).probes.length;
+            Request next;
+            while (probeCount < MAX_BATCH_PROBES && (next = queue.poll()) != null) {
+                batch.add(next);
+                probeCount += next.probes.length;
+            }
+            search(batch, probeCount);
+            batch.clear();
+        }
+        Request pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+    }
+
+    private void search(List<Request> batch, int probeCount) {
+        FaceTemplate[] probes = new FaceTemplate[probeCount];
+        float minPercentage = Float.MAX_VALUE;
+        int offset = 0;
+        for (Request request : batch) {
+            System.arraycopy(request.probes, 0, probes, offset, request.probes.length);
+            offset += request.probes.length;
+            minPercentage = Math.min(minPercentage, request.minPercentage);
+        }
+        FaceGallery.Match[] matches;
+        try {
+            matches = gallery.findBest(probes, minPercentage);
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+            return;
+        }
+        batches.incrementAndGet();
+        requests.addAndGet(batch.size());
+
+        // Порог пакета — наименьший из запросов, поэтому у остальных отсекаем по своему
+        offset = 0;
+        for (Request request : batch) {
+            FaceGallery.Match[] own = new FaceGallery.Match[request.probes.length];
+            for (int i = 0; i < own.length; i++) {
+                FaceGallery.Match match = matches[offset + i];
+                if (match != null && match.similarityPercentage >= request.minPercentage) {
+                    own[i] = match;
+                }
+            }
+            offset += own.length;
+            request.result.complete(own);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+    }
+}
@@ -0,0 +1,280 @@
+package com.example.registerface.server;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.MatchClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Сервер опознания для нескольких киосков. Каждый HTTP-запрос обслуживается
+ * своим виртуальным потоком: он разбирает тело, ждет пакетного поиска в
+ * {@link MatchBatcher} и пишет ответ, не занимая платформенный поток на
+ * время ожидания. Поиск считают платформенные потоки частей
+ * {@link ShardedGallery}.
+ *
+ * Каждый запрос несет общий ключ киосков в заголовке
+ * {@link MatchClient#TOKEN_HEADER}; без него или с чужим ключом сервер
+ * отвечает 401, не читая тело, иначе любой в сети киосков мог бы
+ * зарегистрировать свое лицо под чужим ID через {@code /enroll}.
+ *
+ * Протокол текстовый, UTF-8, по записи на строку:
+ * <ul>
+ *   <li>{@code POST /identify?min=P} — шаблоны, в ответ строки {@link MatchClient#formatMatch};</li>
+ *   <li>{@code POST /enroll} — строки {@code userId<TAB>faceData}, в ответ число записей;</li>
+ *   <li>{@code POST /remove} — ID, в ответ число удаленных;</li>
+ *   <li>{@code POST /compare} — два шаблона, в ответ {@code процент<TAB>true|false};</li>
+ *   <li>{@code GET /health} — {@code ok<TAB>размер галереи<TAB>ID запуска}; галерея
+ *   живет в памяти, и новый ID говорит киоскам, что регистрации нужно прислать заново.</li>
+ * </ul>
+ */
+public final class MatchServer implements AutoCloseable {
+    private static final int DEFAULT_PORT = 8089;
+    private static final String TOKEN_ENV = "MATCH_SERVER_TOKEN";
+
+    private final HttpServer server;
+    private final ExecutorService requestThreads;
+    private final ShardedGallery gallery;
+    private final MatchBatcher batcher;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final byte[] token;
+
+    /**
+     * @param token key the kiosks send in {@link MatchClient#TOKEN_HEADER};
+     *              requests without it are rejected
+     */
+    public MatchServer(InetSocketAddress address, int shards, String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("Match server needs a token");
+        }
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        gallery = new ShardedGallery(shards);
+        batcher = new MatchBatcher(gallery);
+        requestThreads = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(requestThreads);
+        server.createContext("/identify", exchange -> handle(exchange, this::identify));
+        server.createContext("/enroll", exchange -> handle(exchange, this::enroll));
+        server.createContext("/remove", exchange -> handle(exchange, this::remove));
+        server.createContext("/compare", exchange -> handle(exchange, this::compare));
+        server.createContext("/health", exchange -> handle(exchange, this::health));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public int getGallerySize() {
+        return gallery.size();
+    }
+
+    /** Average number of identify requests answered by one gallery pass. */
+    public double getAverageBatchSize() {
+        return batcher.averageBatchSize();
+    }
+
+    /** Adds or replaces one user, same as a {@code /enroll} line. */
+    public void enroll(String userId, String faceData) {
+        gallery.put(userId, FaceTemplate.parse(faceData));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        batcher.close();
+        gallery.close();
+        requestThreads.shutdownNow();
+    }
+
+    private interface Handler {
+        String handle(HttpExchange exchange, List<String> lines) throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status;
+        String response;
+        try (InputStream body = exchange.getRequestBody()) {
+            if (isAuthorized(exchange)) {
+                response = handler.handle(exchange, readLines(body));
+                status = 200;
+            } else {
+                response = "Missing or wrong " + MatchClient.TOKEN_HEADER + "\n";
+                status = 401;
+            }
+        } catch (IllegalArgumentException e) {
+            response = e.getMessage() + "\n";
+            status = 400;
+        } catch (Exception e) {
+            response = "Internal error: " + e + "\n";
+            status = 500;
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String sent = exchange.getRequestHeaders().getFirst(MatchClient.TOKEN_HEADER);
+        // Сравнение за постоянное время, чтобы ключ нельзя было подобрать по задержке ответа
+        return sent != null && MessageDigest.isEqual(token, sent.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String identify(HttpExchange exchange, List<String> lines) throws InterruptedException {
+        requireMethod(exchange, "POST");
+        float minPercentage = parseMin(exchange.getRequestURI().getRawQuery());
+        if (lines.isEmpty()) {
+            return "";
+        }
+        FaceTemplate[] probes = new FaceTemplate[lines.size()];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = FaceTemplate.parse(lines.get(i));
+        }
+        StringBuilder response = new StringBuilder(probes.length * 16);
+        for (FaceGallery.Match match : batcher.identify(probes, minPercentage)) {
+            response.append(MatchClient.formatMatch(match)).append('\n');
+        }
+        return response.toString();
+    }
+
+    private String enroll(HttpExchange exchange, List<String> lines) {
+        requireMethod(exchange, "POST");
+        int enrolled = 0;
+        for (String line : lines) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                throw new IllegalArgumentException("Expected userId<TAB>faceData, got: " + line);
+            }
+            enroll(line.substring(0, tab), line.substring(tab + 1));
+            enrolled++;
+        }
+        return enrolled + "\n";
+    }
+
+    private String remove(HttpExchange exchange, List<String> lines) {
+        requireMethod(exchange, "POST");
+        int removed = 0;
+        for (String userId : lines) {
+            if (gallery.remove(userId)) {
+                removed++;
+            }
+        }
+        return removed + "\n";
+    }
+
+    private String compare(HttpExchange exchange, List<String> lines) {
+        requireMethod(exchange, "POST");
+        if (lines.size() != 2) {
+            throw new IllegalArgumentException("Expected two templates, got " + lines.size());
+        }
+        float score = FaceMatcher.score(FaceTemplate.parse(lines.get(0)), FaceTemplate.parse(lines.get(1)));
+        return String.format(Locale.US, "%.2f\t%b\n", score, FaceMatcher.isMatch(score));
+    }
+
+    private String health(HttpExchange exchange, List<String> lines) {
+        return "ok\t" + gallery.size() + "\t" + instanceId + "\n";
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!method.equals(exchange.getRequestMethod())) {
+            throw new IllegalArgumentException(exchange.getRequestURI().getPath() + " expects " + method);
+        }
+    }
+
+    private static float parseMin(String query) {
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("min=")) {
+                    try {
+                        return Float.parseFloat(pair.substring(4));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad min: " + pair);
+                    }
+                }
+            }
+        }
+        return FaceMatcher.getThresholdPercentage();
+    }
+
+    private static List<String> readLines(InputStream body) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Loads a file written by the app's enrollment export (user_id, name,
+     * email, face_data separated by tabs, '#' comments). IDs and templates
+     * never contain escaped characters, so the fields are taken as is.
+     *
+     * @return number of users loaded
+     */
+    public int loadEnrollmentExport(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int loaded = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 4 || fields[0].isEmpty()) {
+                continue;
+            }
+            enroll(fields[0], fields[3]);
+            loaded++;
+        }
+        return loaded;
+    }
+
+    /**
+     * {@code MatchServer [port] [enrollment-export.tsv]}; the kiosk key is
+     * taken from the {@code MATCH_SERVER_TOKEN} environment variable.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String token = System.getenv(TOKEN_ENV);
+        if (token == null || token.isEmpty()) {
+            System.err.println("Set " + TOKEN_ENV + " to the key configured on the kiosks");
+            System.exit(2);
+        }
+        MatchServer matchServer = new MatchServer(new InetSocketAddress(port),
+                Runtime.getRuntime().availableProcessors(), token);
+        if (args.length > 1) {
+            try (InputStream in = new FileInputStream(args[1])) {
+                System.out.println("Loaded " + matchServer.loadEnrollmentExport(in) + " users from " + args[1]);
+            }
+        }
+        matchServer.start();
+        System.out.println("Match server listening on port " + matchServer.getPort());
+    }
+}
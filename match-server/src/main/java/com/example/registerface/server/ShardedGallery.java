@@ -0,0 +1,89 @@
+package com.example.registerface.server;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Галерея, разбитая на части по хэшу ID. {@link FaceGallery} синхронизирована
+ * и считает поиск в одном потоке, поэтому каждая часть ищет в своем
+ * платформенном потоке, а результаты сливаются по наибольшему сходству.
+ * Потоков столько же, сколько частей: поиск упирается в процессор, и
+ * виртуальные потоки здесь ничего не дают.
+ */
+final class ShardedGallery implements AutoCloseable {
+    private final FaceGallery[] shards;
+    private final ExecutorService workers;
+
+    ShardedGallery(int shardCount) {
+        shards = new FaceGallery[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new FaceGallery();
+        }
+        workers = Executors.newFixedThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "gallery-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private FaceGallery shardOf(String userId) {
+        return shards[Math.floorMod(userId.hashCode(), shards.length)];
+    }
+
+    void put(String userId, FaceTemplate template) {
+        shardOf(userId).put(userId, template);
+    }
+
+    boolean remove(String userId) {
+        return shardOf(userId).remove(userId);
+    }
+
+    int size() {
+        int size = 0;
+        for (FaceGallery shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /** Same contract as {@link FaceGallery#findBest(FaceTemplate[], float)}. */
+    FaceGallery.Match[] findBest(FaceTemplate[] probes, float minPercentage) {
+        if (shards.length == 1) {
+            return shards[0].findBest(probes, minPercentage);
+        }
+        List<Future<FaceGallery.Match[]>> parts = new ArrayList<>(shards.length);
+        for (FaceGallery shard : shards) {
+            parts.add(workers.submit(() -> shard.findBest(probes, minPercentage)));
+        }
+        FaceGallery.Match[] best = new FaceGallery.Match[probes.length];
+        try {
+            for (Future<FaceGallery.Match[]> part : parts) {
+                FaceGallery.Match[] matches = part.get();
+                for (int p = 0; p < best.length; p++) {
+                    if (matches[p] != null
+                            && (best[p] == null || matches[p].similarityPercentage > best[p].similarityPercentage)) {
+                        best[p] = matches[p];
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching the gallery", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Gallery shard failed", e.getCause());
+        }
+        return best;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+}
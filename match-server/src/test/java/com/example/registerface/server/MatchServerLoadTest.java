@@ -0,0 +1,151 @@
+package com.example.registerface.server;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.face.SyntheticFaceGenerator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Нагрузочный прогон через loopback: {@link #CLIENTS} киосков в
+ * виртуальных потоках опознают случайных зарегистрированных людей через
+ * {@link MatchClient}, пока не истечет {@code matchserver.seconds}. Размеры
+ * галереи задает {@code matchserver.users} (через запятую), таймаут чтения
+ * клиента — {@code matchserver.readTimeoutMs}.
+ *
+ * <p>На одном ядре проход по галерее в 100 тысяч шаблонов занимает около
+ * 34 мс, и прогон на 100 тысяч прошел без откатов к локальной галерее с
+ * p99 около 104 мс, много меньше {@link MatchClient#DEFAULT_READ_TIMEOUT_MS}.
+ * Там же без виртуальных потоков одновременно работало около одного
+ * киоска, а не {@link #CLIENTS}; с настоящей параллельностью ожидание
+ * растет с числом запросов, не вошедших в текущий проход. Поддерживаемый
+ * предел — галерея, на которой этот прогон проходит на целевом сервере;
+ * для больших галерей таймаут в приложении задается в
+ * {@code match_server_read_timeout_ms}.
+ */
+public class MatchServerLoadTest {
+    private static final long SEED = 20240701L;
+    private static final int CLIENTS = 64;
+    private static final int ENROLL_CHUNK = 1000;
+    private static final String TOKEN = "load-test";
+
+    @Test
+    public void sustainsConcurrentKiosks() throws Exception {
+        int seconds = Integer.getInteger("matchserver.seconds", 10);
+        int readTimeoutMs = Integer.getInteger("matchserver.readTimeoutMs", MatchClient.DEFAULT_READ_TIMEOUT_MS);
+        for (String users : System.getProperty("matchserver.users", "10000").split(",")) {
+            run(Integer.parseInt(users.trim()), seconds, readTimeoutMs);
+        }
+    }
+
+    private static void run(int users, int seconds, int readTimeoutMs) throws Exception {
+        SyntheticFaceGenerator generator = new SyntheticFaceGenerator(SEED);
+        try (MatchServer server = new MatchServer(new InetSocketAddress("127.0.0.1", 0),
+                Runtime.getRuntime().availableProcessors(), TOKEN)) {
+            server.start();
+            String endpoint = "http://127.0.0.1:" + server.getPort();
+            Random random = new Random(SEED);
+            StringBuilder chunk = new StringBuilder();
+            for (int i = 0; i < users; i++) {
+                chunk.append(userId(i)).append('\t').append(generator.faceData(generator.identity(i), random)).append('\n');
+                if ((i + 1) % ENROLL_CHUNK == 0 || i == users - 1) {
+                    post(endpoint + "/enroll", chunk.toString());
+                    chunk.setLength(0);
+                }
+            }
+            assertEquals(users, server.getGallerySize());
+
+            MatchClient client = new MatchClient(endpoint, TOKEN, readTimeoutMs, (probes, minPercentage) -> {
+                throw new AssertionError("local gallery must not be used");
+            });
+            float threshold = FaceMatcher.getThresholdPercentage();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            AtomicLong correct = new AtomicLong();
+            List<Future<long[]>> kiosks = new ArrayList<>(CLIENTS);
+            long start = System.nanoTime();
+            try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int c = 0; c < CLIENTS; c++) {
+                    Random kioskRandom = new Random(SEED + c);
+                    kiosks.add(threads.submit(() -> {
+                        long[] latencies = new long[1024];
+                        int count = 0;
+                        while (System.nanoTime() < deadline) {
+                            int index = kioskRandom.nextInt(users);
+                            String probe = generator.faceData(generator.identity(index), kioskRandom);
+                            long sent = System.nanoTime();
+                            FaceGallery.Match match = client.identify(new String[]{probe}, threshold)[0];
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = System.nanoTime() - sent;
+                            if (match != null && match.userId.equals(userId(index))) {
+                                correct.incrementAndGet();
+                            }
+                        }
+                        return Arrays.copyOf(latencies, count);
+                    }));
+                }
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long[] all = new long[0];
+            for (Future<long[]> kiosk : kiosks) {
+                long[] latencies = kiosk.get();
+                int offset = all.length;
+                all = Arrays.copyOf(all, offset + latencies.length);
+                System.arraycopy(latencies, 0, all, offset, latencies.length);
+            }
+            Arrays.sort(all);
+            System.out.println(String.format(Locale.US,
+                    "%d users, %d kiosks: %d requests in %.1f s (%.0f req/s), p50=%.1f ms p99=%.1f ms, "
+                            + "rank-1=%.3f, %.1f requests per gallery pass",
+                    users, CLIENTS, all.length, elapsed, all.length / elapsed,
+                    percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6,
+                    (double) correct.get() / all.length, server.getAverageBatchSize()));
+
+            assertTrue(all.length > 0);
+            // Каждый запрос получил ответ сервера, а не локальный откат
+            assertEquals(0, client.getFallbackCount());
+        }
+    }
+
+    private static String userId(int index) {
+        return "u" + index;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static void post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty(MatchClient.TOKEN_HEADER, TOKEN);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        connection.getInputStream().close();
+    }
+}
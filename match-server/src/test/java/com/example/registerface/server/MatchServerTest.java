@@ -0,0 +1,194 @@
+package com.example.registerface.server;
+
+import com.example.registerface.face.FaceGallery;
+import com.example.registerface.face.FaceMatcher;
+import com.example.registerface.face.FaceTemplate;
+import com.example.registerface.face.MatchClient;
+import com.example.registerface.face.SyntheticFaceGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MatchServerTest {
+    private static final long SEED = 11L;
+    private static final int USERS = 200;
+    private static final String TOKEN = "kiosk-key";
+
+    private MatchServer server;
+    private SyntheticFaceGenerator generator;
+    private Random random;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MatchServer(new InetSocketAddress("127.0.0.1", 0), 4, TOKEN);
+        server.start();
+        generator = new SyntheticFaceGenerator(SEED);
+        random = new Random(SEED);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void identifiesEnrolledUsersOverHttp() throws IOException, InterruptedException {
+        StringBuilder enroll = new StringBuilder();
+        for (int i = 0; i < USERS; i++) {
+            enroll.append("u").append(i).append('\t').append(faceData(i)).append('\n');
+        }
+        assertEquals(String.valueOf(USERS), post("/enroll", enroll.toString()));
+        assertEquals(USERS, server.getGallerySize());
+
+        // Тот же снимок опознается наверняка; незнакомое лицо при пороге 99% — нет
+        String enrolled = faceData(7);
+        server.enroll("u7", enrolled);
+        MatchClient client = client("http://127.0.0.1:" + server.getPort(), (probes, minPercentage) -> {
+            throw new AssertionError("local gallery must not be used");
+        });
+        FaceGallery.Match[] matches = client.identify(new String[]{enrolled, faceData(USERS + 1)}, 99f);
+        assertEquals(2, matches.length);
+        assertNotNull(matches[0]);
+        assertEquals("u7", matches[0].userId);
+        assertNull(matches[1]);
+        assertEquals(0, client.getFallbackCount());
+
+        assertEquals("1", post("/remove", "u7\nmissing\n"));
+        assertNull(client.identify(new String[]{enrolled}, 99f)[0]);
+
+        String[] compare = post("/compare", enrolled + "\n" + enrolled + "\n").split("\t");
+        assertEquals(FaceMatcher.score(FaceTemplate.parse(enrolled), FaceTemplate.parse(enrolled)),
+                Float.parseFloat(compare[0]), 0.01f);
+        assertEquals("true", compare[1]);
+    }
+
+    @Test
+    public void fallsBackToLocalGalleryWhenServerIsDown() throws IOException, InterruptedException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        String enrolled = faceData(3);
+        FaceGallery local = new FaceGallery();
+        local.put("u3", enrolled);
+        MatchClient client = client("http://127.0.0.1:" + closedPort, local::findBest);
+
+        assertEquals("u3", client.identify(new String[]{enrolled}, 99f)[0].userId);
+        assertEquals(1, client.getFallbackCount());
+        // Следующие запросы идут локально без новой попытки соединения
+        assertEquals("u3", client.identify(new String[]{enrolled}, 99f)[0].userId);
+        assertEquals(1, client.getFallbackCount());
+    }
+
+    @Test
+    public void clientEnrollsAndRemovesUsers() throws IOException, InterruptedException {
+        String endpoint = "http://127.0.0.1:" + server.getPort();
+        MatchClient client = client(endpoint, (probes, minPercentage) -> {
+            throw new AssertionError("local gallery must not be used");
+        });
+        String first = faceData(1);
+        String second = faceData(2);
+        assertEquals(2, client.enroll(new String[]{"u1", "u2"}, new String[]{first, second}));
+        assertEquals(2, server.getGallerySize());
+        assertEquals("u2", client.identify(new String[]{second}, 99f)[0].userId);
+
+        assertEquals(1, client.remove(new String[]{"u2", "missing"}));
+        assertNull(client.identify(new String[]{second}, 99f)[0]);
+
+        // ID запуска постоянен, у другого сервера — свой
+        String instance = client.getServerInstance();
+        assertEquals(instance, client.getServerInstance());
+        try (MatchServer restarted = new MatchServer(new InetSocketAddress("127.0.0.1", 0), 1, TOKEN)) {
+            restarted.start();
+            MatchClient other = client("http://127.0.0.1:" + restarted.getPort(), null);
+            assertNotEquals(instance, other.getServerInstance());
+        }
+    }
+
+    @Test
+    public void rejectsMalformedRequests() throws IOException {
+        HttpURLConnection connection = open("/enroll");
+        write(connection, "no-tab-here\n");
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(post("/health", "").startsWith("ok"));
+    }
+
+    @Test
+    public void rejectsRequestsWithoutToken() throws IOException, InterruptedException {
+        HttpURLConnection connection = open("/enroll");
+        connection.setRequestProperty(MatchClient.TOKEN_HEADER, "");
+        write(connection, "u1\t" + faceData(1) + "\n");
+        assertEquals(401, connection.getResponseCode());
+        assertEquals(0, server.getGallerySize());
+
+        String endpoint = "http://127.0.0.1:" + server.getPort();
+        MatchClient stranger = new MatchClient(endpoint, "other-key", MatchClient.DEFAULT_READ_TIMEOUT_MS, null);
+        try {
+            stranger.enroll(new String[]{"u1"}, new String[]{faceData(1)});
+            fail("enroll with a wrong token must fail");
+        } catch (IOException e) {
+            // 401, в галерею ничего не попало
+        }
+        assertEquals(0, server.getGallerySize());
+
+        // Опознание без ключа уходит в локальную галерею
+        String enrolled = faceData(2);
+        server.enroll("u2", enrolled);
+        FaceGallery local = new FaceGallery();
+        MatchClient anonymous = new MatchClient(endpoint, local::findBest);
+        assertNull(anonymous.identify(new String[]{enrolled}, 99f)[0]);
+        assertEquals(1, anonymous.getFallbackCount());
+    }
+
+    private static MatchClient client(String endpoint, MatchClient.LocalMatcher localMatcher) {
+        return new MatchClient(endpoint, TOKEN, MatchClient.DEFAULT_READ_TIMEOUT_MS, localMatcher);
+    }
+
+    private String faceData(int index) {
+        return generator.faceData(generator.identity(index), random);
+    }
+
+    private String post(String path, String body) throws IOException {
+        HttpURLConnection connection = open(path);
+        write(connection, body);
+        assertEquals(200, connection.getResponseCode());
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            return reader.readLine();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                URI.create("http://127.0.0.1:" + server.getPort() + path).toURL().openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty(MatchClient.TOKEN_HEADER, TOKEN);
+        return connection;
+    }
+
+    private static void write(HttpURLConnection connection, String body) throws IOException {
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
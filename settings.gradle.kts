@@ -5,6 +5,10 @@ pluginManagement {
         gradlePluginPortal()
     }
 }
+plugins {
+    // JDK 21 для :match-server скачивается, если его нет локально
+    id("org.gradle.toolchains.foojay-resolver-convention") version "0.7.0"
+}
 dependencyResolutionManagement {
     repositoriesMode.set(RepositoriesMode.FAIL_ON_PROJECT_REPOS)
     repositories {
@@ -15,4 +19,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "Registerface"
 include(":app")
+include(":match-server")
  
\ No newline at end of file